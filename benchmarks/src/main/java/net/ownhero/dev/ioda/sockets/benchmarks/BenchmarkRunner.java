@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link SocketBenchmark} at several concurrency levels. The levels are taken from the system property
+ * <code>benchmark.threads</code> (comma separated, default <code>1,4,16</code>). If arguments are given, they are
+ * passed to the JMH command line instead, e.g. <code>-t 8 -p payloadSize=1024</code>.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class BenchmarkRunner {
+	
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the JMH command line, if any
+	 * @throws Exception
+	 *             if a benchmark fails
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length > 0) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		
+		for (final String threads : System.getProperty("benchmark.threads", "1,4,16").split(",")) { //$NON-NLS-1$ //$NON-NLS-2$
+			run(Integer.parseInt(threads.trim()));
+		}
+	}
+	
+	/**
+	 * Runs the benchmarks with the given number of threads.
+	 *
+	 * @param threads
+	 *            the threads
+	 * @throws RunnerException
+	 *             if a benchmark fails
+	 */
+	private static void run(final int threads) throws RunnerException {
+		final Options options = new OptionsBuilder().include(SocketBenchmark.class.getSimpleName()).threads(threads)
+		                                            .build();
+		new Runner(options).run();
+	}
+}
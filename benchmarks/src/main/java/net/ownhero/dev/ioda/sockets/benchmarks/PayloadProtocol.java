@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets.benchmarks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import net.ownhero.dev.ioda.sockets.LoopbackServer;
+
+/**
+ * The minimal HTTP/1.1 dialect the benchmarks speak with the {@link LoopbackServer}: a request for
+ * <code>/&lt;n&gt;</code> is answered with <code>n</code> bytes, connections are kept alive unless the request says
+ * <code>Connection: close</code>. The client side is {@link #exchange(Socket, int, boolean)}, so benchmarks only
+ * measure the socket layer and not an HTTP library.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class PayloadProtocol {
+	
+	/** The charset of the protocol. */
+	private static final Charset ASCII = LoopbackServer.ASCII;
+	
+	/**
+	 * Sends a request for the given number of bytes and reads the complete response.
+	 *
+	 * @param socket
+	 *            the socket connected to the server
+	 * @param size
+	 *            the size of the requested payload
+	 * @param close
+	 *            whether the server should close the connection after the response
+	 * @return the number of payload bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static int exchange(final Socket socket,
+	                    final int size,
+	                    final boolean close) throws IOException {
+		return exchange(socket, size, close, null);
+	}
+	
+	/**
+	 * Sends a request for the given number of bytes and reads the complete response. The tag is sent as query string,
+	 * the server ignores it but it makes the request distinct from requests with other tags.
+	 *
+	 * @param socket
+	 *            the socket connected to the server
+	 * @param size
+	 *            the size of the requested payload
+	 * @param close
+	 *            whether the server should close the connection after the response
+	 * @param tag
+	 *            the tag or <code>null</code>
+	 * @return the number of payload bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static int exchange(final Socket socket,
+	                    final int size,
+	                    final boolean close,
+	                    final String tag) throws IOException {
+		final String query = tag != null
+		                                ? "?" + tag //$NON-NLS-1$
+		                                : ""; //$NON-NLS-1$
+		final OutputStream out = socket.getOutputStream();
+		out.write(("GET /" + size + query + " HTTP/1.1\r\nHost: loopback\r\n" //$NON-NLS-1$ //$NON-NLS-2$
+		        + (close
+		                ? "Connection: close\r\n" //$NON-NLS-1$
+		                : "") + "\r\n").getBytes(ASCII)); //$NON-NLS-1$ //$NON-NLS-2$
+		out.flush();
+		
+		final InputStream in = socket.getInputStream();
+		int length = -1;
+		for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+			if (line.toLowerCase(Locale.ENGLISH).startsWith("content-length:")) { //$NON-NLS-1$
+				length = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+			}
+		}
+		if (length < 0) {
+			throw new IOException("Response without Content-Length"); //$NON-NLS-1$
+		}
+		
+		final byte[] buffer = new byte[Math.min(length, 64 * 1024) + 1];
+		int remaining = length;
+		while (remaining > 0) {
+			final int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (n < 0) {
+				throw new EOFException("Response ended " + remaining + " bytes early"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			remaining -= n;
+		}
+		return length;
+	}
+	
+	/**
+	 * Creates the server side of the protocol, serving payloads of up to the given size.
+	 *
+	 * @param maxSize
+	 *            the maximum payload size
+	 * @return the handler
+	 */
+	static LoopbackServer.Handler handler(final int maxSize) {
+		final byte[] payload = new byte[maxSize];
+		Arrays.fill(payload, (byte) 'x');
+		return new LoopbackServer.Handler() {
+			
+			@Override
+			public byte[] respond(final String request) {
+				final String path = request.split(" ")[1].split("\\?")[0]; //$NON-NLS-1$ //$NON-NLS-2$
+				final int size = Math.min(Integer.parseInt(path.substring(1)), payload.length);
+				final boolean close = request.toLowerCase(Locale.ENGLISH).contains("\nconnection: close\r"); //$NON-NLS-1$
+				final byte[] header = ("HTTP/1.1 200 OK\r\nContent-Length: " + size + "\r\n" //$NON-NLS-1$ //$NON-NLS-2$
+				        + (close
+				                ? "Connection: close\r\n" //$NON-NLS-1$
+				                : "") + "\r\n").getBytes(ASCII); //$NON-NLS-1$ //$NON-NLS-2$
+				final byte[] response = Arrays.copyOf(header, header.length + size);
+				System.arraycopy(payload, 0, response, header.length, size);
+				return response;
+			}
+		};
+	}
+	
+	/**
+	 * Reads a CRLF terminated line byte by byte, so nothing after the line is consumed.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the line without the terminator
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readLine(final InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new EOFException("Connection closed within a header"); //$NON-NLS-1$
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+	
+	/**
+	 * Instantiates a new payload protocol.
+	 */
+	private PayloadProtocol() {
+		// utility class
+	}
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ownhero.dev.ioda.sockets.CachingRules;
+import net.ownhero.dev.ioda.sockets.CachingSocketFactory;
+import net.ownhero.dev.ioda.sockets.CachingSocketImplFactory;
+import net.ownhero.dev.ioda.sockets.LoopbackServer;
+import net.ownhero.dev.ioda.sockets.PooledSocket;
+import net.ownhero.dev.ioda.sockets.ReplayingSocketFactory;
+import net.ownhero.dev.ioda.sockets.Resolver;
+import net.ownhero.dev.ioda.sockets.ResponseStore;
+import net.ownhero.dev.ioda.sockets.SocketPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures one request/response exchange with the {@link LoopbackServer} (see {@link PayloadProtocol}): over a plain
+ * JDK socket, over a {@link CachingSocketFactory} socket that is discarded afterwards (cold, every exchange opens a
+ * connection) and over a {@link CachingSocketFactory} socket that is returned to the pool (warm, connections are
+ * reused). The recording sockets of a {@link ReplayingSocketFactory} are measured on a cache miss (every exchange sends
+ * a new request, which is forwarded to the server and recorded) and on a cache hit (the request recorded during the
+ * setup is replayed).
+ * 
+ * Throughput and the latency distribution (p50, p99 etc. of {@link Mode#SampleTime}) are reported for every payload
+ * size; the concurrency is the number of JMH threads, see {@link BenchmarkRunner}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode ({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class SocketBenchmark {
+	
+	/**
+	 * Deletes a file or a directory with its content.
+	 *
+	 * @param file
+	 *            the file
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	/** The size of the requested payload in bytes. */
+	@Param ({ "128", "16384", "1048576" })
+	public int                     payloadSize;
+	
+	/** The server. */
+	private LoopbackServer         server;
+	
+	/** The factory. */
+	private CachingSocketFactory   factory;
+	
+	/** The cache directory of the replaying factory. */
+	private File                   directory;
+	
+	/** The factory of the recording sockets. */
+	private ReplayingSocketFactory replaying;
+	
+	/** Makes the requests of {@link #cacheMiss()} distinct. */
+	private final AtomicLong       misses = new AtomicLong();
+	
+	/**
+	 * Replays the response to the request recorded during the setup.
+	 *
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int cacheHit() throws IOException {
+		return replay(null);
+	}
+	
+	/**
+	 * Sends a request that has not been recorded yet, so it is forwarded to the server and its response is recorded.
+	 *
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int cacheMiss() throws IOException {
+		return replay(String.valueOf(this.misses.incrementAndGet()));
+	}
+	
+	/**
+	 * Exchanges a request over a pooled socket that is discarded afterwards.
+	 *
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int cachingFactoryCold() throws IOException {
+		final PooledSocket socket = (PooledSocket) this.factory.createSocket(this.server.getAddress(),
+		                                                                     this.server.getPort());
+		try {
+			return PayloadProtocol.exchange(socket, this.payloadSize, true);
+		} finally {
+			socket.discard();
+		}
+	}
+	
+	/**
+	 * Exchanges a request over a pooled socket that is returned to the pool afterwards.
+	 *
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int cachingFactoryWarm() throws IOException {
+		final PooledSocket socket = (PooledSocket) this.factory.createSocket(this.server.getAddress(),
+		                                                                     this.server.getPort());
+		boolean complete = false;
+		try {
+			final int n = PayloadProtocol.exchange(socket, this.payloadSize, false);
+			complete = true;
+			return n;
+		} finally {
+			if (complete) {
+				socket.close();
+			} else {
+				socket.discard();
+			}
+		}
+	}
+	
+	/**
+	 * Exchanges a request over a new plain socket.
+	 *
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int plainSocket() throws IOException {
+		final Socket socket = new Socket(this.server.getAddress(), this.server.getPort());
+		try {
+			socket.setTcpNoDelay(true);
+			return PayloadProtocol.exchange(socket, this.payloadSize, true);
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Exchanges a request over a recording socket and reads until the connection is closed, since only complete
+	 * exchanges are recorded.
+	 *
+	 * @param tag
+	 *            the tag of the request or <code>null</code>
+	 * @return the number of bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private int replay(final String tag) throws IOException {
+		final Socket socket = this.replaying.createSocket(this.server.getAddress(), this.server.getPort());
+		try {
+			final int n = PayloadProtocol.exchange(socket, this.payloadSize, true, tag);
+			if (socket.getInputStream().read() >= 0) {
+				throw new IOException("Connection not closed after the response"); //$NON-NLS-1$
+			}
+			return n;
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Starts the server, creates the factories and records the request replayed by {@link #cacheHit()} in a new cache
+	 * directory.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		this.server = new LoopbackServer(PayloadProtocol.handler(this.payloadSize), true, false);
+		// enough connections for every benchmark thread
+		this.factory = new CachingSocketFactory(new SocketPool(1024, SocketPool.DEFAULT_IDLE_TIMEOUT,
+		                                                       SocketPool.DEFAULT_LEASE_TIMEOUT,
+		                                                       SocketPool.DEFAULT_CONNECT_TIMEOUT, Resolver.SYSTEM));
+		this.directory = Files.createTempDirectory("ioda-benchmark").toFile(); //$NON-NLS-1$
+		this.replaying = new ReplayingSocketFactory(new CachingSocketImplFactory(this.directory, CachingRules.all()));
+		cacheHit();
+	}
+	
+	/**
+	 * Closes the pool and the store, stops the server and deletes the cache directory.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		this.factory.getPool().close();
+		try {
+			final ResponseStore store = this.replaying.getFactory().getStore();
+			if (store instanceof Closeable) {
+				((Closeable) store).close();
+			}
+		} finally {
+			this.server.close();
+			delete(this.directory);
+		}
+	}
+}
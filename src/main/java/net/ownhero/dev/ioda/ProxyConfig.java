@@ -69,6 +69,30 @@ public class ProxyConfig {
 		setUseSocks(useSocks);
 	}
 	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ProxyConfig)) {
+			return false;
+		}
+		final ProxyConfig other = (ProxyConfig) obj;
+		return (this.port == other.port) && (this.useSocks == other.useSocks)
+		        && (this.host == null
+		                             ? other.host == null
+		                             : this.host.equals(other.host))
+		        && (this.username == null
+		                                 ? other.username == null
+		                                 : this.username.equals(other.username))
+		        && (this.password == null
+		                                 ? other.password == null
+		                                 : this.password.equals(other.password));
+	}
+	
 	/**
 	 * Gets the host.
 	 *
@@ -129,6 +153,26 @@ public class ProxyConfig {
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = (prime * result) + ((this.host == null)
+		                                                ? 0
+		                                                : this.host.hashCode());
+		result = (prime * result) + this.port;
+		result = (prime * result) + ((this.username == null)
+		                                                    ? 0
+		                                                    : this.username.hashCode());
+		result = (prime * result) + (this.useSocks
+		                                          ? 1231
+		                                          : 1237);
+		return result;
+	}
+	
 	/**
 	 * Sets the host.
 	 *
@@ -12,11 +12,16 @@
  ******************************************************************************/
 package net.ownhero.dev.ioda;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.LinkedList;
 
+import javax.net.SocketFactory;
+
+import net.ownhero.dev.ioda.sockets.CachingRules;
 import net.ownhero.dev.ioda.sockets.CachingSocketImplFactory;
+import net.ownhero.dev.ioda.sockets.ReplayingSocketFactory;
 import net.ownhero.dev.kanuni.conditions.Condition;
 import net.ownhero.dev.kisa.Logger;
 
@@ -27,17 +32,60 @@ import net.ownhero.dev.kisa.Logger;
  */
 public class SocketUtils {
 	
+	/**
+	 * Creates a socket factory that records and replays the connections the rules include, leaving all other sockets
+	 * of the JVM alone. Unlike {@link #enableCaching(File, CachingRules)} this can be done any number of times, e.g.
+	 * once per client.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 * @param rules
+	 *            the rules deciding which connections are cached
+	 * @return the socket factory
+	 * @throws IOException
+	 *             if the cache directory cannot be created
+	 */
+	public static final SocketFactory createCachingSocketFactory(final File directory,
+	                                                             final CachingRules rules) throws IOException {
+		return new ReplayingSocketFactory(new CachingSocketImplFactory(directory, rules));
+	}
+	
 	/**
 	 * Enable caching.
 	 */
 	public static final void enableCaching() {
+		enableCaching(CachingSocketImplFactory.getDefaultDirectory());
+	}
+	
+	/**
+	 * Enable caching, recording responses to the given directory.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 */
+	public static final void enableCaching(final File directory) {
+		enableCaching(directory, CachingSocketImplFactory.getDefaultRules());
+	}
+	
+	/**
+	 * Enable caching for all sockets of the JVM, recording responses to the given directory. Connections the rules
+	 * exclude, e.g. to databases, bypass the cache. This can only be done once per JVM, see
+	 * {@link Socket#setSocketImplFactory(java.net.SocketImplFactory)}.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 * @param rules
+	 *            the rules deciding which connections are cached
+	 */
+	public static final void enableCaching(final File directory,
+	                                       final CachingRules rules) {
 		try {
-			Socket.setSocketImplFactory(new CachingSocketImplFactory());
+			Socket.setSocketImplFactory(new CachingSocketImplFactory(directory, rules));
 		} catch (final IOException e) {
 			if (Logger.logError()) {
 				Logger.error(e);
 			}
-			
+		
 		};
 	}
 	
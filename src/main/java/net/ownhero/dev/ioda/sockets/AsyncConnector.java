@@ -0,0 +1,573 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * Connects sockets without blocking the caller. A single selector thread drives any number of connects.
+ * 
+ * If a host has several addresses, the connects race (as in RFC 8305, "Happy Eyeballs"): the addresses are ordered to
+ * alternate between address families, the next address is tried whenever the previous attempt failed or has not
+ * succeeded within {@link #ATTEMPT_DELAY} milliseconds, and the first attempt to succeed wins while the others are
+ * abandoned.
+ * 
+ * A connect bound to an explicit local port cannot have several attempts in flight, since only one socket can be
+ * bound to the port; its addresses are tried one after the other instead.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class AsyncConnector implements Closeable {
+	
+	/**
+	 * Receives the outcome of a connect. Callbacks run on the selector thread and must not block.
+	 */
+	interface Callback {
+		
+		/**
+		 * Called with the connected channel, which is in blocking mode.
+		 *
+		 * @param channel
+		 *            the channel
+		 */
+		void connected(SocketChannel channel);
+		
+		/**
+		 * Called if all attempts failed or the connect timed out.
+		 *
+		 * @param failure
+		 *            the failure
+		 */
+		void failed(IOException failure);
+	}
+	
+	/**
+	 * The attempts to connect to one host.
+	 */
+	private static final class Race {
+		
+		/** The addresses, in the order they are tried. */
+		private final List<InetSocketAddress> targets;
+		
+		/** The local address, <code>null</code> for any. */
+		private final InetAddress             localAddress;
+		
+		/** The local port, 0 for any. */
+		private final int                     localPort;
+		
+		/** The deadline, 0 for none. */
+		private final long                    deadline;
+		
+		/** The callback. */
+		private final Callback                callback;
+		
+		/** The attempts in flight. */
+		private final List<SelectionKey>      attempts = new LinkedList<SelectionKey>();
+		
+		/** The index of the next address to try. */
+		private int                           next;
+		
+		/** The time the next address is tried even if no attempt failed. */
+		private long                          nextAttempt;
+		
+		/** The last failure. */
+		private IOException                   failure;
+		
+		/** Whether the race is decided. */
+		private boolean                       done;
+		
+		/**
+		 * Instantiates a new race.
+		 *
+		 * @param targets
+		 *            the targets
+		 * @param localAddress
+		 *            the local address
+		 * @param localPort
+		 *            the local port
+		 * @param deadline
+		 *            the deadline
+		 * @param callback
+		 *            the callback
+		 */
+		Race(final List<InetSocketAddress> targets, final InetAddress localAddress, final int localPort,
+		        final long deadline, final Callback callback) {
+			this.targets = targets;
+			this.localAddress = localAddress;
+			this.localPort = localPort;
+			this.deadline = deadline;
+			this.callback = callback;
+		}
+	}
+	
+	/**
+	 * A channel that won its race.
+	 */
+	private static final class Winner {
+		
+		/** The channel. */
+		private final SocketChannel channel;
+		
+		/** The callback. */
+		private final Callback      callback;
+		
+		/**
+		 * Instantiates a new winner.
+		 *
+		 * @param channel
+		 *            the channel
+		 * @param callback
+		 *            the callback
+		 */
+		Winner(final SocketChannel channel, final Callback callback) {
+			this.channel = channel;
+			this.callback = callback;
+		}
+	}
+	
+	/** The time in milliseconds after which the next address is tried while earlier attempts are still pending. */
+	static final long                 ATTEMPT_DELAY = 250L;
+	
+	/**
+	 * Orders the addresses so that address families alternate, starting with the family of the first address.
+	 *
+	 * @param addresses
+	 *            the addresses
+	 * @return the ordered addresses
+	 */
+	static List<InetAddress> interleave(final InetAddress[] addresses) {
+		final List<InetAddress> first = new LinkedList<InetAddress>();
+		final List<InetAddress> second = new LinkedList<InetAddress>();
+		for (final InetAddress address : addresses) {
+			if ((address instanceof Inet4Address) == (addresses[0] instanceof Inet4Address)) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+		
+		final List<InetAddress> result = new ArrayList<InetAddress>(addresses.length);
+		while (!first.isEmpty() || !second.isEmpty()) {
+			if (!first.isEmpty()) {
+				result.add(first.remove(0));
+			}
+			if (!second.isEmpty()) {
+				result.add(second.remove(0));
+			}
+		}
+		return result;
+	}
+	
+	/** The selector. */
+	private final Selector            selector;
+	
+	/** The races submitted but not yet started by the selector thread. */
+	private final Queue<Race>         submitted     = new ConcurrentLinkedQueue<Race>();
+	
+	/** The races in progress; only accessed by the selector thread. */
+	private final List<Race>          races         = new LinkedList<Race>();
+	
+	/** The channels that won a race and are handed out once they are deregistered. */
+	private final List<Winner>        winners       = new LinkedList<Winner>();
+	
+	/** Whether the connector has been closed. */
+	private volatile boolean          closed;
+	
+	/**
+	 * Instantiates a new async connector and starts its selector thread.
+	 *
+	 * @param name
+	 *            the name of the selector thread
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	AsyncConnector(final String name) throws IOException {
+		this.selector = Selector.open();
+		final Thread thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				loop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Starts the next attempt of a race, skipping addresses that fail immediately.
+	 *
+	 * @param race
+	 *            the race
+	 * @param now
+	 *            the current time
+	 */
+	private void attempt(final Race race,
+	                     final long now) {
+		while (race.next < race.targets.size()) {
+			final InetSocketAddress target = race.targets.get(race.next++);
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				if ((race.localAddress != null) || (race.localPort != 0)) {
+					// the port of a failed attempt is reused by the next one
+					channel.socket().setReuseAddress(race.localPort != 0);
+					channel.socket().bind(new InetSocketAddress(race.localAddress, race.localPort));
+				}
+				if (channel.connect(target)) {
+					win(race, channel.register(this.selector, 0, race));
+					return;
+				}
+				race.attempts.add(channel.register(this.selector, SelectionKey.OP_CONNECT, race));
+				// with a fixed local port, the next address has to wait for this attempt to fail
+				race.nextAttempt = race.localPort == 0
+				                                      ? now + ATTEMPT_DELAY
+				                                      : Long.MAX_VALUE;
+				return;
+			} catch (final IOException e) {
+				race.failure = e;
+				closeQuietly(channel);
+			}
+		}
+		
+		if (race.attempts.isEmpty()) {
+			fail(race, race.failure != null
+			                               ? race.failure
+			                               : new ConnectException("No address to connect to")); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Closes a channel, logging failures.
+	 *
+	 * @param channel
+	 *            the channel, may be <code>null</code>
+	 */
+	private void closeQuietly(final SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			if (Logger.logDebug()) {
+				Logger.debug("Could not close abandoned connection: " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	/**
+	 * Stops the selector thread; pending connects fail.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Starts connecting to the given addresses.
+	 *
+	 * @param addresses
+	 *            the addresses of the host, in the order they are tried
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 * @param localPort
+	 *            the local port, 0 for any
+	 * @param timeout
+	 *            the timeout in milliseconds for the whole race, 0 for none
+	 * @param callback
+	 *            the callback
+	 */
+	void connect(final List<InetAddress> addresses,
+	             final int port,
+	             final InetAddress localAddress,
+	             final int localPort,
+	             final int timeout,
+	             final Callback callback) {
+		final List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>(addresses.size());
+		for (final InetAddress address : addresses) {
+			targets.add(new InetSocketAddress(address, port));
+		}
+		
+		this.submitted.add(new Race(targets, localAddress, localPort, timeout > 0
+		                                                                         ? System.currentTimeMillis() + timeout
+		                                                                         : 0, callback));
+		if (this.closed) {
+			// the selector thread may have drained the queue already
+			drain(new IOException("Connector has been closed")); //$NON-NLS-1$
+		} else {
+			this.selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Fails all submitted races.
+	 *
+	 * @param failure
+	 *            the failure
+	 */
+	private void drain(final IOException failure) {
+		Race race;
+		while ((race = this.submitted.poll()) != null) {
+			notifyFailed(race.callback, failure);
+		}
+	}
+	
+	/**
+	 * Fails a race, abandoning the attempts in flight.
+	 *
+	 * @param race
+	 *            the race
+	 * @param failure
+	 *            the failure
+	 */
+	private void fail(final Race race,
+	                  final IOException failure) {
+		race.done = true;
+		for (final SelectionKey key : race.attempts) {
+			key.cancel();
+			closeQuietly((SocketChannel) key.channel());
+		}
+		race.attempts.clear();
+		notifyFailed(race.callback, failure);
+	}
+	
+	/**
+	 * Finishes an attempt whose connect completed.
+	 *
+	 * @param key
+	 *            the key
+	 * @param now
+	 *            the current time
+	 */
+	private void finish(final SelectionKey key,
+	                    final long now) {
+		final Race race = (Race) key.attachment();
+		final SocketChannel channel = (SocketChannel) key.channel();
+		try {
+			if (channel.finishConnect()) {
+				race.attempts.remove(key);
+				win(race, key);
+			}
+		} catch (final IOException e) {
+			key.cancel();
+			closeQuietly(channel);
+			race.attempts.remove(key);
+			race.failure = e;
+			if (!race.done) {
+				// do not wait for the attempt delay
+				attempt(race, now);
+			}
+		}
+	}
+	
+	/**
+	 * Runs the selector.
+	 */
+	private void loop() {
+		try {
+			while (!this.closed) {
+				long wait = 0;
+				for (final Race race : this.races) {
+					wait = until(wait, race.deadline);
+					if (race.next < race.targets.size()) {
+						wait = until(wait, race.nextAttempt);
+					}
+				}
+				if (wait < 0) {
+					this.selector.selectNow();
+				} else {
+					this.selector.select(wait);
+				}
+				
+				long now = System.currentTimeMillis();
+				Race submittedRace;
+				while ((submittedRace = this.submitted.poll()) != null) {
+					this.races.add(submittedRace);
+					attempt(submittedRace, now);
+				}
+				
+				final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isConnectable()) {
+						finish(key, now);
+					}
+				}
+				
+				now = System.currentTimeMillis();
+				final Iterator<Race> iterator = this.races.iterator();
+				while (iterator.hasNext()) {
+					final Race race = iterator.next();
+					if (!race.done && (race.deadline > 0) && (now >= race.deadline)) {
+						fail(race, new SocketTimeoutException("Connect to " + race.targets.get(0) + " timed out")); //$NON-NLS-1$ //$NON-NLS-2$
+					} else if (!race.done && (now >= race.nextAttempt) && (race.next < race.targets.size())) {
+						attempt(race, now);
+					}
+					if (race.done) {
+						iterator.remove();
+					}
+				}
+				
+				handOut();
+			}
+		} catch (final IOException e) {
+			if (Logger.logError()) {
+				Logger.error("Connector failed: " + e.getMessage()); //$NON-NLS-1$
+			}
+		} catch (final ClosedSelectorException e) {
+			// closed concurrently
+		} finally {
+			this.closed = true;
+			final IOException failure = new IOException("Connector has been closed"); //$NON-NLS-1$
+			for (final Race race : this.races) {
+				if (!race.done) {
+					fail(race, failure);
+				}
+			}
+			this.races.clear();
+			drain(failure);
+			for (final Winner winner : this.winners) {
+				closeQuietly(winner.channel);
+				notifyFailed(winner.callback, failure);
+			}
+			this.winners.clear();
+			try {
+				this.selector.close();
+			} catch (final IOException e) {
+				if (Logger.logDebug()) {
+					Logger.debug("Could not close selector: " + e.getMessage()); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Hands out the channels that won their race. Their keys have been cancelled in the previous select, so they can
+	 * be switched to blocking mode; flushes the cancelled keys first.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void handOut() throws IOException {
+		if (this.winners.isEmpty()) {
+			return;
+		}
+		
+		// deregisters the cancelled keys; anything that becomes ready is handled in the next round
+		this.selector.selectNow();
+		for (final Winner winner : this.winners) {
+			try {
+				winner.channel.configureBlocking(true);
+			} catch (final IOException e) {
+				closeQuietly(winner.channel);
+				notifyFailed(winner.callback, e);
+				continue;
+			}
+			try {
+				winner.callback.connected(winner.channel);
+			} catch (final RuntimeException e) {
+				closeQuietly(winner.channel);
+				if (Logger.logError()) {
+					Logger.error(e);
+				}
+			}
+		}
+		this.winners.clear();
+	}
+	
+	/**
+	 * Notifies a callback of a failure.
+	 *
+	 * @param callback
+	 *            the callback
+	 * @param failure
+	 *            the failure
+	 */
+	private void notifyFailed(final Callback callback,
+	                          final IOException failure) {
+		try {
+			callback.failed(failure);
+		} catch (final RuntimeException e) {
+			if (Logger.logError()) {
+				Logger.error(e);
+			}
+		}
+	}
+	
+	/**
+	 * Computes the select timeout for the next event at the given time.
+	 *
+	 * @param wait
+	 *            the timeout so far, 0 for none
+	 * @param at
+	 *            the time of the event, 0 for none
+	 * @return the new timeout; negative if the event is due
+	 */
+	private long until(final long wait,
+	                   final long at) {
+		if ((at == 0) || (wait < 0)) {
+			return wait;
+		}
+		final long delay = at - System.currentTimeMillis();
+		if (delay <= 0) {
+			return -1;
+		}
+		return wait == 0
+		                ? delay
+		                : Math.min(wait, delay);
+	}
+	
+	/**
+	 * Decides a race, abandoning the other attempts.
+	 *
+	 * @param race
+	 *            the race
+	 * @param key
+	 *            the key of the winning channel
+	 */
+	private void win(final Race race,
+	                 final SelectionKey key) {
+		race.done = true;
+		for (final SelectionKey other : race.attempts) {
+			other.cancel();
+			closeQuietly((SocketChannel) other.channel());
+		}
+		race.attempts.clear();
+		key.cancel();
+		this.winners.add(new Winner((SocketChannel) key.channel(), race.callback));
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * A pool of direct {@link ByteBuffer}s of a fixed size. Direct buffers are expensive to allocate and are only freed
+ * when they are garbage collected, so the socket layer recycles them instead of allocating per connection. The pool
+ * retains at most {@link #getMaxRetained()} buffers; buffers released beyond that are left to the garbage collector.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class BufferPool {
+	
+	/** The default buffer size. */
+	public static final int         DEFAULT_BUFFER_SIZE  = 64 * 1024;
+	
+	/** The default number of retained buffers. */
+	public static final int         DEFAULT_MAX_RETAINED = 256;
+	
+	/** The shared pool. */
+	private static final BufferPool SHARED               = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RETAINED);
+	
+	/**
+	 * Gets the pool shared by the socket layer.
+	 *
+	 * @return the shared pool
+	 */
+	public static BufferPool getShared() {
+		return SHARED;
+	}
+	
+	/** The buffers. */
+	private final Queue<ByteBuffer> buffers  = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	/** The number of buffers in the queue. */
+	private final AtomicInteger     retained = new AtomicInteger();
+	
+	/** The buffer size. */
+	private final int               bufferSize;
+	
+	/** The max retained. */
+	private final int               maxRetained;
+	
+	/**
+	 * Instantiates a new buffer pool.
+	 *
+	 * @param bufferSize
+	 *            the size of the buffers
+	 * @param maxRetained
+	 *            the maximum number of idle buffers kept for reuse
+	 */
+	public BufferPool(final int bufferSize, final int maxRetained) {
+		// PRECONDITIONS
+		Condition.check(bufferSize > 0, "Argument '%s' in '%s' has to be positive.", "bufferSize", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		
+		try {
+			this.bufferSize = bufferSize;
+			this.maxRetained = maxRetained;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+	 *
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire() {
+		final ByteBuffer buffer = this.buffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+		this.retained.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Gets the buffer size.
+	 *
+	 * @return the buffer size
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+	
+	/**
+	 * Gets the maximum number of retained buffers.
+	 *
+	 * @return the max retained
+	 */
+	public int getMaxRetained() {
+		return this.maxRetained;
+	}
+	
+	/**
+	 * Returns a buffer to the pool. The caller must not use the buffer afterwards.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 */
+	public void release(@NotNull final ByteBuffer buffer) {
+		// PRECONDITIONS
+		Condition.notNull(buffer, "Argument '%s' in '%s'.", "buffer", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			if (!buffer.isDirect() || (buffer.capacity() != this.bufferSize)) {
+				return;
+			}
+			if (this.retained.incrementAndGet() <= this.maxRetained) {
+				this.buffers.offer(buffer);
+			} else {
+				this.retained.decrementAndGet();
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response served from a byte buffer, either on the heap, off-heap or a view of a mapped file. The buffer is never
+ * modified, so a single buffer can back any number of concurrent responses.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class BufferResponse implements CachedResponse {
+	
+	/** The payload. */
+	private final ByteBuffer payload;
+	
+	/**
+	 * Instantiates a new buffer response.
+	 *
+	 * @param payload
+	 *            the buffer whose remaining bytes form the response
+	 */
+	BufferResponse(final ByteBuffer payload) {
+		this.payload = payload.slice();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// nothing to release, the view stays valid as long as it is referenced
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#getSize()
+	 */
+	@Override
+	public long getSize() {
+		return this.payload.capacity();
+	}
+	
+	/**
+	 * Gets a view of the payload starting at the position.
+	 *
+	 * @param position
+	 *            the position
+	 * @param count
+	 *            the maximum number of bytes
+	 * @return the view or <code>null</code> if the position is at or past the end
+	 */
+	private ByteBuffer range(final long position,
+	                         final long count) {
+		if (position >= this.payload.capacity()) {
+			return null;
+		}
+		final ByteBuffer view = this.payload.duplicate();
+		view.position((int) position);
+		view.limit((int) Math.min(view.capacity(), position + count));
+		return view;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#read(long, java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(final long position,
+	                final ByteBuffer target) throws IOException {
+		final ByteBuffer view = range(position, target.remaining());
+		if (view == null) {
+			return -1;
+		}
+		final int n = view.remaining();
+		target.put(view);
+		return n;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#transferTo(long, long,
+	 * java.nio.channels.WritableByteChannel)
+	 */
+	@Override
+	public long transferTo(final long position,
+	                       final long count,
+	                       final WritableByteChannel target) throws IOException {
+		final ByteBuffer view = range(position, count);
+		return view == null
+		                   ? 0
+		                   : target.write(view);
+	}
+}
@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A portable snapshot of a {@link SegmentResponseStore}: all entries in a single file, each payload compressed with a
+ * {@link Codec}, followed by an index of the entry ids. A bundle exported on one machine warms the store of another,
+ * so a fleet of identical workers fetches each response from the origin once instead of once per worker.
+ * 
+ * Entries are exported as the store holds them, i.e. as written by the stores wrapping it (compressed by a
+ * {@link CompressingResponseStore}, split into chunks by a {@link DeduplicatingResponseStore}). Importing a bundle into
+ * a store wrapped the same way yields the same responses. Importing merges: entries the store holds already are kept.
+ * 
+ * The file starts with a header (magic, version) followed by the entries (id, codec, length, encoded length, CRC32 of
+ * the payload, encoded payload), the index (id and offset of every entry, sorted by id) and a trailer (index offset,
+ * number of entries, CRC32 of the index, magic).
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public final class CacheBundle {
+	
+	/** Marks bundle files ("IODX"). */
+	private static final int MAGIC        = 0x494f4458;
+	
+	/** The version of the layout. */
+	private static final int VERSION      = 1;
+	
+	/** The size of the file header. */
+	private static final int HEADER       = 8;
+	
+	/** The size of an entry header. */
+	private static final int ENTRY_HEADER = Segment.ID_LENGTH + 1 + 8 + 8 + 4;
+	
+	/** The size of an index entry. */
+	private static final int INDEX_ENTRY  = Segment.ID_LENGTH + 8;
+	
+	/** The size of the trailer. */
+	private static final int TRAILER      = 8 + 4 + 8 + 4;
+	
+	/** The size of the write buffer. */
+	private static final int BUFFER_SIZE  = 64 * 1024;
+	
+	/**
+	 * Writes all entries of the store to a bundle. Entries the codec does not shrink, e.g. because the store compresses
+	 * them already, are written as they are. The bundle is written to a temporary file first and replaces an existing
+	 * file only once it is complete.
+	 *
+	 * @param store
+	 *            the store
+	 * @param bundle
+	 *            the bundle file
+	 * @param codec
+	 *            the codec applied to the payloads
+	 * @return the number of exported entries
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static int export(@NotNull final SegmentResponseStore store,
+	                         @NotNull final File bundle,
+	                         @NotNull final Codec codec) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(store, "Argument '%s' in '%s'.", "store", "CacheBundle.export"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Condition.notNull(bundle, "Argument '%s' in '%s'.", "bundle", "CacheBundle.export"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Condition.notNull(codec, "Argument '%s' in '%s'.", "codec", "CacheBundle.export"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		try {
+			final List<byte[]> ids = store.ids();
+			final TreeMap<ByteBuffer, Long> index = new TreeMap<ByteBuffer, Long>();
+			final File temp = new File(bundle.getPath() + ".tmp"); //$NON-NLS-1$
+			
+			final FileOutputStream file = new FileOutputStream(temp);
+			try {
+				final FileChannel channel = file.getChannel();
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				
+				for (final byte[] id : ids) {
+					final CachedResponse response = store.get(id);
+					if (response == null) {
+						// removed in the meantime
+						continue;
+					}
+					try {
+						out.flush();
+						final long offset = channel.position();
+						// the header is written once the encoded length and the checksum are known
+						out.write(new byte[ENTRY_HEADER]);
+						out.flush();
+						final long start = channel.position();
+						final long length = response.getSize();
+						
+						Codec used = codec;
+						CRC32 crc = encode(response, codec, out);
+						if ((codec != Codec.NONE) && ((channel.position() - start) >= length)) {
+							channel.truncate(start);
+							channel.position(start);
+							used = Codec.NONE;
+							crc = encode(response, used, out);
+						}
+						
+						final ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+						header.put(id).put(used.getId()).putLong(length).putLong(channel.position() - start)
+						      .putInt((int) crc.getValue()).flip();
+						while (header.hasRemaining()) {
+							channel.write(header, offset + header.position());
+						}
+						index.put(ByteBuffer.wrap(id), offset);
+					} finally {
+						response.close();
+					}
+				}
+				
+				out.flush();
+				final long indexOffset = channel.position();
+				final CRC32 crc = new CRC32();
+				final DataOutputStream indexOut = new DataOutputStream(new CheckedOutputStream(out, crc));
+				for (final Map.Entry<ByteBuffer, Long> entry : index.entrySet()) {
+					indexOut.write(entry.getKey().array());
+					indexOut.writeLong(entry.getValue());
+				}
+				indexOut.flush();
+				out.writeLong(indexOffset);
+				out.writeInt(index.size());
+				out.writeLong(crc.getValue());
+				out.writeInt(MAGIC);
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+			
+			if (!temp.renameTo(bundle) && (!bundle.delete() || !temp.renameTo(bundle))) {
+				throw new IOException("Could not write cache bundle " + bundle); //$NON-NLS-1$
+			}
+			
+			if (Logger.logInfo()) {
+				Logger.info("Exported " + index.size() + " entries to " + bundle + "."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+			return index.size();
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Encodes a response.
+	 *
+	 * @param response
+	 *            the response
+	 * @param codec
+	 *            the codec
+	 * @param out
+	 *            receives the encoded payload; flushed afterwards
+	 * @return the checksum of the payload
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static CRC32 encode(final CachedResponse response,
+	                            final Codec codec,
+	                            final OutputStream out) throws IOException {
+		final CRC32 crc = new CRC32();
+		codec.encode(new CheckedInputStream(new ResponseInputStream(response, 0), crc), response.getSize(), out);
+		out.flush();
+		return crc;
+	}
+	
+	/**
+	 * Imports the entries of a bundle the store does not hold yet. Entries that turn out to be corrupt are skipped.
+	 *
+	 * @param bundle
+	 *            the bundle file
+	 * @param store
+	 *            the store
+	 * @return the number of imported entries
+	 * @throws IOException
+	 *             if the file is not a bundle or the store fails
+	 */
+	public static int merge(@NotNull final File bundle,
+	                        @NotNull final SegmentResponseStore store) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(bundle, "Argument '%s' in '%s'.", "bundle", "CacheBundle.merge"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Condition.notNull(store, "Argument '%s' in '%s'.", "store", "CacheBundle.merge"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		try {
+			final RandomAccessFile file = new RandomAccessFile(bundle, "r"); //$NON-NLS-1$
+			try {
+				final FileChannel channel = file.getChannel();
+				final long size = channel.size();
+				if ((size < (HEADER + TRAILER)) || (read(channel, 0, HEADER).getInt() != MAGIC)) {
+					throw new IOException("Not a cache bundle: " + bundle); //$NON-NLS-1$
+				}
+				if (read(channel, 4, 4).getInt() != VERSION) {
+					throw new IOException("Unsupported version of cache bundle " + bundle); //$NON-NLS-1$
+				}
+				
+				final ByteBuffer trailer = read(channel, size - TRAILER, TRAILER);
+				final long indexOffset = trailer.getLong();
+				final int count = trailer.getInt();
+				final long expected = trailer.getLong();
+				if ((trailer.getInt() != MAGIC) || (count < 0) || (indexOffset < HEADER)
+				        || ((indexOffset + ((long) count * INDEX_ENTRY)) != (size - TRAILER))) {
+					throw new IOException("Cache bundle " + bundle + " is truncated"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				final ByteBuffer index = read(channel, indexOffset, count * INDEX_ENTRY);
+				final CRC32 crc = new CRC32();
+				crc.update(index.array());
+				if (crc.getValue() != expected) {
+					throw new IOException("Index of cache bundle " + bundle + " is corrupt"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				
+				// the entries are imported in the order they have been written, i.e. the file is read sequentially
+				final long[] offsets = new long[count];
+				for (int i = 0; i < count; ++i) {
+					offsets[i] = index.getLong((i * INDEX_ENTRY) + Segment.ID_LENGTH);
+				}
+				Arrays.sort(offsets);
+				
+				int merged = 0;
+				for (final long offset : offsets) {
+					if ((offset < HEADER) || ((offset + ENTRY_HEADER) > indexOffset)) {
+						throw new IOException("Cache bundle " + bundle + " is corrupt"); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+					if (merge(channel, offset, indexOffset, store)) {
+						++merged;
+					}
+				}
+				
+				if (Logger.logInfo()) {
+					Logger.info("Imported " + merged + " of " + count + " entries from " + bundle + "."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				}
+				return merged;
+			} finally {
+				file.close();
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Imports a single entry unless the store holds it already.
+	 *
+	 * @param channel
+	 *            the channel of the bundle
+	 * @param offset
+	 *            the offset of the entry
+	 * @param end
+	 *            the end of the entries
+	 * @param store
+	 *            the store
+	 * @return true, if the entry has been imported
+	 * @throws IOException
+	 *             if the store fails
+	 */
+	private static boolean merge(final FileChannel channel,
+	                             final long offset,
+	                             final long end,
+	                             final SegmentResponseStore store) throws IOException {
+		final ByteBuffer header = read(channel, offset, ENTRY_HEADER);
+		final byte[] id = new byte[Segment.ID_LENGTH];
+		header.get(id);
+		
+		final CachedResponse existing = store.get(id);
+		if (existing != null) {
+			existing.close();
+			return false;
+		}
+		
+		final Recording recording = new Recording(BufferPool.getShared());
+		try {
+			final Codec codec = Codec.forId(header.get());
+			final long length = header.getLong();
+			final long encoded = header.getLong();
+			final int expected = header.getInt();
+			if ((length < 0) || (encoded < 0) || ((offset + ENTRY_HEADER + encoded) > end)) {
+				throw new IOException("Invalid length"); //$NON-NLS-1$
+			}
+			
+			final OutputStream sink = new OutputStream() {
+				
+				@Override
+				public void write(final byte[] b,
+				                  final int off,
+				                  final int len) throws IOException {
+					recording.append(ByteBuffer.wrap(b, off, len));
+				}
+				
+				@Override
+				public void write(final int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+			};
+			final CRC32 crc = new CRC32();
+			channel.position(offset + ENTRY_HEADER);
+			codec.decode(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), length,
+			             new CheckedOutputStream(sink, crc));
+			if ((recording.size() != length) || ((int) crc.getValue() != expected)) {
+				throw new IOException("Checksum mismatch"); //$NON-NLS-1$
+			}
+		} catch (final IOException e) {
+			recording.close();
+			if (Logger.logWarn()) {
+				Logger.warn("Skipping corrupt entry " + CacheKey.hex(id) + " of cache bundle: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			return false;
+		}
+		
+		try {
+			store.put(id, recording, recording.size());
+			return true;
+		} finally {
+			recording.close();
+		}
+	}
+	
+	/**
+	 * Reads a range of the file.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param position
+	 *            the position
+	 * @param length
+	 *            the length
+	 * @return the buffer, flipped
+	 * @throws IOException
+	 *             if the file ends before the range
+	 */
+	private static ByteBuffer read(final FileChannel channel,
+	                               final long position,
+	                               final int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of cache bundle"); //$NON-NLS-1$
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Instantiates a new cache bundle.
+	 */
+	private CacheBundle() {
+		// static methods only
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNegative;
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * Identifies a cached response by the remote endpoint and the digest of the request bytes that were sent to it.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public final class CacheKey {
+	
+	/** The digest algorithm used for requests and identifiers. */
+	private static final String  ALGORITHM = "SHA-1";                //$NON-NLS-1$
+	
+	/** The charset used to encode host names. */
+	private static final Charset UTF8      = Charset.forName("UTF-8"); //$NON-NLS-1$
+	
+	/** The hex digits. */
+	private static final char[]  HEX       = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+	
+	/**
+	 * Creates the key for the given endpoint and the request bytes.
+	 *
+	 * @param host
+	 *            the host name (or address literal) as given by the client
+	 * @param port
+	 *            the port
+	 * @param request
+	 *            the buffer holding the request
+	 * @param offset
+	 *            the offset of the request within the buffer
+	 * @param length
+	 *            the length of the request
+	 * @return the cache key
+	 */
+	public static CacheKey create(@NotNull final String host,
+	                              @NotNegative final int port,
+	                              @NotNull final byte[] request,
+	                              @NotNegative final int offset,
+	                              @NotNegative final int length) {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", "CacheKey.create"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Condition.notNull(request, "Argument '%s' in '%s'.", "request", "CacheKey.create"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		try {
+			final MessageDigest digest = digest();
+			digest.update(request, offset, length);
+			return new CacheKey(host.toLowerCase(Locale.ENGLISH), port, digest.digest());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Creates the key for the given endpoint and the remaining bytes of the request buffer. The position of the buffer
+	 * is not changed.
+	 *
+	 * @param host
+	 *            the host name (or address literal) as given by the client
+	 * @param port
+	 *            the port
+	 * @param request
+	 *            the request
+	 * @return the cache key
+	 */
+	public static CacheKey create(@NotNull final String host,
+	                              @NotNegative final int port,
+	                              @NotNull final ByteBuffer request) {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", "CacheKey.create"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Condition.notNull(request, "Argument '%s' in '%s'.", "request", "CacheKey.create"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		try {
+			final MessageDigest digest = digest();
+			digest.update(request.duplicate());
+			return new CacheKey(host.toLowerCase(Locale.ENGLISH), port, digest.digest());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Creates a new message digest instance.
+	 *
+	 * @return the message digest
+	 */
+	static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (final NoSuchAlgorithmException e) {
+			// every JRE has to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Converts the given bytes to lower case hex.
+	 *
+	 * @param bytes
+	 *            the bytes
+	 * @return the hex string
+	 */
+	static String hex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[(2 * i) + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+	
+	/** The host. */
+	private final String host;
+	
+	/** The port. */
+	private final int    port;
+	
+	/** The request digest. */
+	private final byte[] requestDigest;
+	
+	/** The binary identifier, computed on demand. */
+	private byte[]       idBytes;
+	
+	/** The identifier, computed on demand. */
+	private String       id;
+	
+	/**
+	 * Instantiates a new cache key.
+	 *
+	 * @param host
+	 *            the host
+	 * @param port
+	 *            the port
+	 * @param requestDigest
+	 *            the request digest
+	 */
+	public CacheKey(@NotNull final String host, @NotNegative final int port, @NotNull final byte[] requestDigest) {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(requestDigest, "Argument '%s' in '%s'.", "requestDigest", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.host = host;
+			this.port = port;
+			this.requestDigest = requestDigest.clone();
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CacheKey)) {
+			return false;
+		}
+		final CacheKey other = (CacheKey) obj;
+		return (this.port == other.port) && this.host.equals(other.host)
+		        && Arrays.equals(this.requestDigest, other.requestDigest);
+	}
+	
+	/**
+	 * Gets the host.
+	 *
+	 * @return the host
+	 */
+	public String getHost() {
+		return this.host;
+	}
+	
+	/**
+	 * Gets a stable identifier for this key that is safe to be used as a file name. The identifier is the hex encoded
+	 * digest of host, port and request digest.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		// PRECONDITIONS
+		
+		try {
+			if (this.id == null) {
+				this.id = hex(idBytes());
+			}
+			return this.id;
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(this.id, "Field '%s' in '%s'.", "id", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+	
+	/**
+	 * Gets the port.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return this.port;
+	}
+	
+	/**
+	 * Gets the request digest.
+	 *
+	 * @return a copy of the request digest
+	 */
+	public byte[] getRequestDigest() {
+		return this.requestDigest.clone();
+	}
+	
+	/**
+	 * Gets the binary form of {@link #getId()}. The returned array is shared and must not be modified.
+	 *
+	 * @return the id bytes
+	 */
+	byte[] idBytes() {
+		if (this.idBytes == null) {
+			final MessageDigest digest = digest();
+			digest.update(this.host.getBytes(UTF8));
+			digest.update((byte) (this.port >>> 8));
+			digest.update((byte) this.port);
+			digest.update(this.requestDigest);
+			this.idBytes = digest.digest();
+		}
+		return this.idBytes;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = (prime * result) + this.host.hashCode();
+		result = (prime * result) + this.port;
+		result = (prime * result) + Arrays.hashCode(this.requestDigest);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CacheKey [host=" + this.host + ", port=" + this.port + ", request=" + hex(this.requestDigest) + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
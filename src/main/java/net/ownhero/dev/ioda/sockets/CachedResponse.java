@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response that is held by a {@link ResponseStore} and can be replayed to a client. A cached response is a handle
+ * on the stored bytes: it stays valid even if the entry is replaced or removed in the meantime and has to be closed
+ * after use.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public interface CachedResponse extends Closeable {
+	
+	/**
+	 * Gets the size of the response in bytes.
+	 *
+	 * @return the size
+	 */
+	long getSize();
+	
+	/**
+	 * Reads bytes starting at the given position into the buffer.
+	 *
+	 * @param position
+	 *            the position within the response
+	 * @param target
+	 *            the buffer to read into
+	 * @return the number of bytes read or -1 if the position is at or past the end
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	int read(long position,
+	         ByteBuffer target) throws IOException;
+	
+	/**
+	 * Transfers bytes starting at the given position to the target channel. File backed responses use
+	 * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}, so the bytes never enter the
+	 * Java heap.
+	 *
+	 * @param position
+	 *            the position within the response
+	 * @param count
+	 *            the maximum number of bytes to transfer
+	 * @param target
+	 *            the target channel
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	long transferTo(long position,
+	                long count,
+	                WritableByteChannel target) throws IOException;
+}
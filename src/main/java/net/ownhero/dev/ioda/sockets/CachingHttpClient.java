@@ -0,0 +1,764 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * An {@link HttpClient} that caches responses with HTTP semantics in a {@link ResponseStore}, unlike the byte level
+ * replay of {@link CachingSocketImpl}, which cannot tell a changed resource from an unchanged one.
+ * 
+ * <ul>
+ * <li>Responses to <code>GET</code> requests are stored if <code>Cache-Control</code> allows it and they carry an
+ * expiration time or a validator (<code>ETag</code>, <code>Last-Modified</code>).</li>
+ * <li>Fresh responses are served from the store without contacting the server. The request may ask for revalidation
+ * with <code>no-cache</code> or limit the age with <code>max-age</code>.</li>
+ * <li>Stale responses are revalidated with a conditional request. A <code>304 Not Modified</code> refreshes the stored
+ * headers and the body is served from the store; any other response replaces the entry.</li>
+ * <li>If revalidation fails, the stale response is served with a warning unless it says <code>must-revalidate</code>.</li>
+ * <li>Successful unsafe requests (<code>POST</code>, <code>PUT</code>, ...) invalidate the entry of their URI.</li>
+ * </ul>
+ * 
+ * Requests that are conditional or ask for a range already are passed through unchanged. By default the requests are
+ * executed by a {@link DefaultHttpClient} whose <code>http</code> connections are made by a
+ * {@link CachingSchemeSocketFactory}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CachingHttpClient implements HttpClient {
+	
+	/** The status codes of responses that may be stored (RFC 2616 section 13.4). */
+	private static final int[]   CACHEABLE_STATUS = { HttpStatus.SC_OK, HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION,
+	        HttpStatus.SC_MULTIPLE_CHOICES, HttpStatus.SC_MOVED_PERMANENTLY, HttpStatus.SC_GONE };
+	
+	/** The charset of request lines. */
+	private static final Charset UTF8             = Charset.forName("UTF-8"); //$NON-NLS-1$
+	
+	/**
+	 * Creates the default client the requests are executed by.
+	 *
+	 * @param factory
+	 *            the factory <code>http</code> connections are made with
+	 * @return the client
+	 */
+	private static HttpClient createBackend(final CachingSocketFactory factory) {
+		final SchemeRegistry registry = SchemeRegistryFactory.createDefault();
+		registry.register(new Scheme("http", 80, new CachingSchemeSocketFactory(factory))); //$NON-NLS-1$
+		return new DefaultHttpClient(new PoolingClientConnectionManager(registry));
+	}
+	
+	/**
+	 * Checks whether the request is one the cache takes care of. Everything else is passed through.
+	 *
+	 * @param request
+	 *            the request
+	 * @return true, if the request may be served from the cache
+	 */
+	private static boolean isCacheable(final HttpRequest request) {
+		if (!"GET".equals(request.getRequestLine().getMethod())) { //$NON-NLS-1$
+			return false;
+		}
+		for (final Header header : request.getAllHeaders()) {
+			final String name = header.getName().toLowerCase(Locale.ENGLISH);
+			if (name.startsWith("if-") || name.equals("range")) { //$NON-NLS-1$ //$NON-NLS-2$
+				// the client validates on its own
+				return false;
+			}
+		}
+		return !HttpCacheEntry.cacheControl(request).containsKey("no-store"); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Checks whether the response to a cacheable request may be stored.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @return true, if the response may be stored
+	 */
+	private static boolean isCacheable(final HttpRequest request,
+	                                   final HttpResponse response) {
+		final int status = response.getStatusLine().getStatusCode();
+		boolean cacheable = false;
+		for (final int candidate : CACHEABLE_STATUS) {
+			cacheable |= candidate == status;
+		}
+		if (!cacheable) {
+			return false;
+		}
+		
+		final Map<String, String> directives = HttpCacheEntry.cacheControl(response);
+		if (directives.containsKey("no-store") || HttpCacheEntry.variants(request, response).containsKey("*")) { //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+		// without expiration time or validator an entry could never be used
+		return directives.containsKey("max-age") || response.containsHeader("Expires") //$NON-NLS-1$ //$NON-NLS-2$
+		        || response.containsHeader("ETag") || response.containsHeader("Last-Modified"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	/**
+	 * Gets the key of the <code>GET</code> response for the URI of the request.
+	 *
+	 * @param target
+	 *            the target
+	 * @param request
+	 *            the request
+	 * @return the key or <code>null</code> if the URI cannot be parsed
+	 */
+	private static CacheKey key(final HttpHost target,
+	                            final HttpRequest request) {
+		final URI uri;
+		try {
+			uri = URI.create(request.getRequestLine().getUri());
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+		int port = target.getPort();
+		if (port < 0) {
+			port = "https".equalsIgnoreCase(target.getSchemeName()) //$NON-NLS-1$
+			                                                       ? 443
+			                                                       : 80;
+		}
+		final String resource = "GET " + target.getSchemeName() + " " + uri.getRawPath() //$NON-NLS-1$ //$NON-NLS-2$
+		        + (uri.getRawQuery() != null
+		                                    ? "?" + uri.getRawQuery() //$NON-NLS-1$
+		                                    : ""); //$NON-NLS-1$
+		final byte[] bytes = resource.getBytes(UTF8);
+		return CacheKey.create(target.getHostName(), port, bytes, 0, bytes.length);
+	}
+	
+	/** The client requests are executed by. */
+	private final HttpClient    backend;
+	
+	/** The store. */
+	private final ResponseStore store;
+	
+	/** The number of requests served from the store without contacting the server. */
+	private final AtomicLong    hits          = new AtomicLong();
+	
+	/** The number of requests served from the store after the server confirmed the entry. */
+	private final AtomicLong    revalidations = new AtomicLong();
+	
+	/** The number of cacheable requests that had to be fetched. */
+	private final AtomicLong    misses        = new AtomicLong();
+	
+	/**
+	 * Instantiates a new caching http client that connects through the given factory.
+	 *
+	 * @param factory
+	 *            the factory <code>http</code> connections are made with
+	 * @param store
+	 *            the store
+	 */
+	public CachingHttpClient(@NotNull final CachingSocketFactory factory, @NotNull final ResponseStore store) {
+		this(createBackend(factory), store);
+	}
+	
+	/**
+	 * Instantiates a new caching http client.
+	 *
+	 * @param backend
+	 *            the client requests are executed by
+	 * @param store
+	 *            the store
+	 */
+	public CachingHttpClient(@NotNull final HttpClient backend, @NotNull final ResponseStore store) {
+		// PRECONDITIONS
+		Condition.notNull(backend, "Argument '%s' in '%s'.", "backend", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(store, "Argument '%s' in '%s'.", "store", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.backend = backend;
+			this.store = store;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Instantiates a new caching http client with a default {@link CachingSocketFactory}.
+	 *
+	 * @param store
+	 *            the store
+	 */
+	public CachingHttpClient(@NotNull final ResponseStore store) {
+		this(new CachingSocketFactory(), store);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.HttpHost, org.apache.http.HttpRequest)
+	 */
+	@Override
+	public HttpResponse execute(final HttpHost target,
+	                            final HttpRequest request) throws IOException, ClientProtocolException {
+		return execute(target, request, (HttpContext) null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.HttpHost, org.apache.http.HttpRequest,
+	 * org.apache.http.protocol.HttpContext)
+	 */
+	@Override
+	public HttpResponse execute(final HttpHost target,
+	                            final HttpRequest request,
+	                            final HttpContext context) throws IOException, ClientProtocolException {
+		// PRECONDITIONS
+		Condition.notNull(request, "Argument '%s' in '%s'.", "request", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final CacheKey key = target != null
+			                                   ? key(target, request)
+			                                   : null;
+			if (key == null) {
+				return this.backend.execute(target, request, context);
+			}
+			if (!isCacheable(request)) {
+				final HttpResponse response = this.backend.execute(target, request, context);
+				final String method = request.getRequestLine().getMethod();
+				if (!"GET".equals(method) && !"HEAD".equals(method) //$NON-NLS-1$ //$NON-NLS-2$
+				        && (response.getStatusLine().getStatusCode() < HttpStatus.SC_BAD_REQUEST)) {
+					// the resource has probably changed (RFC 2616 section 13.10)
+					this.store.remove(key);
+				}
+				return response;
+			}
+			
+			final CachedResponse stored = this.store.get(key);
+			final HttpCacheEntry entry = stored != null
+			                                           ? HttpCacheEntry.read(stored)
+			                                           : null;
+			if ((entry == null) || !entry.matches(request)) {
+				if (stored != null) {
+					stored.close();
+				}
+				this.misses.incrementAndGet();
+				return fetch(target, request, context, key);
+			}
+			
+			final Map<String, String> directives = HttpCacheEntry.cacheControl(request);
+			final boolean noCache = directives.containsKey("no-cache") //$NON-NLS-1$
+			        || "no-cache".equalsIgnoreCase(headerValue(request, "Pragma")); //$NON-NLS-1$ //$NON-NLS-2$
+			if (!noCache
+			        && entry.isFresh(System.currentTimeMillis(), HttpCacheEntry.deltaSeconds(directives.get("max-age")))) { //$NON-NLS-1$
+				this.hits.incrementAndGet();
+				return respond(entry, stored, null);
+			}
+			return revalidate(target, request, context, key, entry, stored);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.HttpHost, org.apache.http.HttpRequest,
+	 * org.apache.http.client.ResponseHandler)
+	 */
+	@Override
+	public <T> T execute(final HttpHost target,
+	                     final HttpRequest request,
+	                     final ResponseHandler<? extends T> responseHandler) throws IOException,
+	                                                                       ClientProtocolException {
+		return execute(target, request, responseHandler, null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.HttpHost, org.apache.http.HttpRequest,
+	 * org.apache.http.client.ResponseHandler, org.apache.http.protocol.HttpContext)
+	 */
+	@Override
+	public <T> T execute(final HttpHost target,
+	                     final HttpRequest request,
+	                     final ResponseHandler<? extends T> responseHandler,
+	                     final HttpContext context) throws IOException, ClientProtocolException {
+		// PRECONDITIONS
+		Condition.notNull(responseHandler, "Argument '%s' in '%s'.", "responseHandler", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final HttpResponse response = execute(target, request, context);
+			boolean handled = false;
+			try {
+				final T result = responseHandler.handleResponse(response);
+				handled = true;
+				return result;
+			} finally {
+				try {
+					EntityUtils.consume(response.getEntity());
+				} catch (final IOException e) {
+					if (handled) {
+						throw e;
+					}
+					// keep the exception of the handler
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.client.methods.HttpUriRequest)
+	 */
+	@Override
+	public HttpResponse execute(final HttpUriRequest request) throws IOException, ClientProtocolException {
+		return execute(request, (HttpContext) null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.client.methods.HttpUriRequest,
+	 * org.apache.http.protocol.HttpContext)
+	 */
+	@Override
+	public HttpResponse execute(final HttpUriRequest request,
+	                            final HttpContext context) throws IOException, ClientProtocolException {
+		// PRECONDITIONS
+		Condition.notNull(request, "Argument '%s' in '%s'.", "request", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return execute(URIUtils.extractHost(request.getURI()), request, context);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.client.methods.HttpUriRequest,
+	 * org.apache.http.client.ResponseHandler)
+	 */
+	@Override
+	public <T> T execute(final HttpUriRequest request,
+	                     final ResponseHandler<? extends T> responseHandler) throws IOException,
+	                                                                       ClientProtocolException {
+		return execute(request, responseHandler, null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#execute(org.apache.http.client.methods.HttpUriRequest,
+	 * org.apache.http.client.ResponseHandler, org.apache.http.protocol.HttpContext)
+	 */
+	@Override
+	public <T> T execute(final HttpUriRequest request,
+	                     final ResponseHandler<? extends T> responseHandler,
+	                     final HttpContext context) throws IOException, ClientProtocolException {
+		// PRECONDITIONS
+		Condition.notNull(request, "Argument '%s' in '%s'.", "request", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return execute(URIUtils.extractHost(request.getURI()), request, responseHandler, context);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Fetches the response from the server and stores it if possible.
+	 *
+	 * @param target
+	 *            the target
+	 * @param request
+	 *            the request
+	 * @param context
+	 *            the context
+	 * @param key
+	 *            the key
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private HttpResponse fetch(final HttpHost target,
+	                           final HttpRequest request,
+	                           final HttpContext context,
+	                           final CacheKey key) throws IOException {
+		final long requestTime = System.currentTimeMillis();
+		final HttpResponse response = this.backend.execute(target, request, context);
+		return store(key, request, response, requestTime, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#getConnectionManager()
+	 */
+	@Override
+	public ClientConnectionManager getConnectionManager() {
+		return this.backend.getConnectionManager();
+	}
+	
+	/**
+	 * Gets the number of requests served from the store without contacting the server.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+	
+	/**
+	 * Gets the number of cacheable requests that had to be fetched because there was no usable entry.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.client.HttpClient#getParams()
+	 */
+	@Override
+	public HttpParams getParams() {
+		return this.backend.getParams();
+	}
+	
+	/**
+	 * Gets the number of requests served from the store after a <code>304 Not Modified</code>.
+	 *
+	 * @return the revalidations
+	 */
+	public long getRevalidations() {
+		return this.revalidations.get();
+	}
+	
+	/**
+	 * Gets the store.
+	 *
+	 * @return the store
+	 */
+	public ResponseStore getStore() {
+		return this.store;
+	}
+	
+	/**
+	 * Gets the first value of a header.
+	 *
+	 * @param request
+	 *            the request
+	 * @param name
+	 *            the name
+	 * @return the value or <code>null</code>
+	 */
+	private String headerValue(final HttpRequest request,
+	                           final String name) {
+		final Header header = request.getFirstHeader(name);
+		return header != null
+		                     ? header.getValue()
+		                     : null;
+	}
+	
+	/**
+	 * Creates a response from a stored entry. The body is read from the store; closing it closes the stored response.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @param stored
+	 *            the stored response
+	 * @param warning
+	 *            the warning to add, <code>null</code> for none
+	 * @return the response
+	 */
+	private HttpResponse respond(final HttpCacheEntry entry,
+	                             final CachedResponse stored,
+	                             final String warning) {
+		final HttpResponse response = new BasicHttpResponse(entry.getStatusLine());
+		response.setHeaders(entry.getHeaders());
+		response.setHeader("Age", Long.toString(entry.age(System.currentTimeMillis()) / 1000)); //$NON-NLS-1$
+		if (warning != null) {
+			response.addHeader("Warning", warning); //$NON-NLS-1$
+		}
+		
+		final InputStream body = new FilterInputStream(new ResponseInputStream(stored, entry.getBodyOffset())) {
+			
+			@Override
+			public void close() throws IOException {
+				stored.close();
+			}
+		};
+		final InputStreamEntity entity = new InputStreamEntity(body, entry.getBodyLength());
+		entity.setContentType(entry.header("Content-Type")); //$NON-NLS-1$
+		entity.setContentEncoding(entry.header("Content-Encoding")); //$NON-NLS-1$
+		response.setEntity(entity);
+		return response;
+	}
+	
+	/**
+	 * Revalidates a stale entry with a conditional request, or fetches the response again if the entry has no
+	 * validator.
+	 *
+	 * @param target
+	 *            the target
+	 * @param request
+	 *            the request
+	 * @param context
+	 *            the context
+	 * @param key
+	 *            the key
+	 * @param entry
+	 *            the entry
+	 * @param stored
+	 *            the stored response of the entry, closed or handed to the response
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private HttpResponse revalidate(final HttpHost target,
+	                                final HttpRequest request,
+	                                final HttpContext context,
+	                                final CacheKey key,
+	                                final HttpCacheEntry entry,
+	                                final CachedResponse stored) throws IOException {
+		final String etag = entry.header("ETag"); //$NON-NLS-1$
+		final String lastModified = entry.header("Last-Modified"); //$NON-NLS-1$
+		if ((etag == null) && (lastModified == null)) {
+			stored.close();
+			this.misses.incrementAndGet();
+			return fetch(target, request, context, key);
+		}
+		
+		final HttpRequest conditional = new BasicHttpRequest(request.getRequestLine());
+		conditional.setHeaders(request.getAllHeaders());
+		if (etag != null) {
+			conditional.setHeader("If-None-Match", etag); //$NON-NLS-1$
+		}
+		if (lastModified != null) {
+			conditional.setHeader("If-Modified-Since", lastModified); //$NON-NLS-1$
+		}
+		
+		final long requestTime = System.currentTimeMillis();
+		final HttpResponse response;
+		try {
+			response = this.backend.execute(target, conditional, context);
+		} catch (final IOException e) {
+			if (entry.mustRevalidate()) {
+				stored.close();
+				throw e;
+			}
+			return respond(entry, stored, "111 - \"Revalidation Failed\""); //$NON-NLS-1$
+		}
+		final long responseTime = System.currentTimeMillis();
+		final int status = response.getStatusLine().getStatusCode();
+		
+		if (status == HttpStatus.SC_NOT_MODIFIED) {
+			EntityUtils.consume(response.getEntity());
+			final HttpCacheEntry updated = entry.update(response, requestTime, responseTime);
+			try {
+				write(key, updated, stored, entry.getBodyOffset());
+			} finally {
+				stored.close();
+			}
+			
+			final CachedResponse refreshed = this.store.get(key);
+			final HttpCacheEntry refreshedEntry = refreshed != null
+			                                                       ? HttpCacheEntry.read(refreshed)
+			                                                       : null;
+			if (refreshedEntry == null) {
+				if (refreshed != null) {
+					refreshed.close();
+				}
+				// evicted right away, e.g. by a tiny store
+				this.misses.incrementAndGet();
+				return fetch(target, request, context, key);
+			}
+			this.revalidations.incrementAndGet();
+			return respond(refreshedEntry, refreshed, null);
+		}
+		
+		if ((status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) && !entry.mustRevalidate()) {
+			EntityUtils.consume(response.getEntity());
+			return respond(entry, stored, "111 - \"Revalidation Failed\""); //$NON-NLS-1$
+		}
+		
+		stored.close();
+		this.misses.incrementAndGet();
+		return store(key, request, response, requestTime, responseTime);
+	}
+	
+	/**
+	 * Stores the response if it is cacheable. The body is read completely, so the returned response is independent of
+	 * the connection.
+	 *
+	 * @param key
+	 *            the key
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param requestTime
+	 *            when the request was sent
+	 * @param responseTime
+	 *            when the response was received
+	 * @return the response to hand to the caller
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private HttpResponse store(final CacheKey key,
+	                           final HttpRequest request,
+	                           final HttpResponse response,
+	                           final long requestTime,
+	                           final long responseTime) throws IOException {
+		if (!isCacheable(request, response)) {
+			if (HttpCacheEntry.cacheControl(response).containsKey("no-store")) { //$NON-NLS-1$
+				this.store.remove(key);
+			}
+			return response;
+		}
+		
+		final HttpEntity entity = response.getEntity();
+		final long length = entity != null
+		                                   ? entity.getContentLength()
+		                                   : 0;
+		final CachedResponse body;
+		final ResponseBuilder builder = new ResponseBuilder(length >= 0
+		                                                               ? length
+		                                                               : Long.MAX_VALUE);
+		try {
+			if (entity != null) {
+				entity.writeTo(builder);
+			}
+			body = builder.build();
+		} finally {
+			builder.close();
+		}
+		
+		final HttpCacheEntry entry = new HttpCacheEntry(request, response, requestTime, responseTime);
+		try {
+			write(key, entry, body, 0);
+		} catch (final IOException e) {
+			if (Logger.logWarn()) {
+				Logger.warn("Could not store the response for " + request.getRequestLine() + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		
+		final HttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+		copy.setHeaders(response.getAllHeaders());
+		final InputStream in = new FilterInputStream(new ResponseInputStream(body, 0)) {
+			
+			@Override
+			public void close() throws IOException {
+				body.close();
+			}
+		};
+		final InputStreamEntity stored = new InputStreamEntity(in, body.getSize());
+		if (entity != null) {
+			stored.setContentType(entity.getContentType());
+			stored.setContentEncoding(entity.getContentEncoding());
+		}
+		copy.setEntity(stored);
+		return copy;
+	}
+	
+	/**
+	 * Writes an entry to the store.
+	 *
+	 * @param key
+	 *            the key
+	 * @param entry
+	 *            the entry
+	 * @param body
+	 *            the response holding the body
+	 * @param offset
+	 *            the offset of the body within the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void write(final CacheKey key,
+	                   final HttpCacheEntry entry,
+	                   final CachedResponse body,
+	                   final long offset) throws IOException {
+		final byte[] metadata = entry.encode();
+		final InputStream in = new SequenceInputStream(new ByteArrayInputStream(metadata),
+		                                               new ResponseInputStream(body, offset));
+		this.store.put(key, Channels.newChannel(in), metadata.length + (body.getSize() - offset));
+	}
+}
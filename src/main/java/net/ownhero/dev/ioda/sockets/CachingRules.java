@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNegative;
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * Decides which connections are cached and for how long. Rules are checked in the order they have been added and the
+ * first rule matching the remote endpoint wins; connections no rule matches are not cached.
+ * 
+ * A pattern is a host name in which <code>*</code> matches any sequence of characters, optionally followed by
+ * <code>:port</code>, e.g. <code>*.example.com</code>, <code>api.example.com:8080</code> or <code>*</code>. Host
+ * names are compared case insensitively and as given by the client, i.e. without resolving them.
+ * 
+ * Excluded connections, e.g. to databases or RPC services sharing the JVM, take a passthrough path: nothing is
+ * buffered, hashed, looked up or recorded.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public final class CachingRules {
+	
+	/**
+	 * A single include or exclude rule.
+	 */
+	public static final class Rule {
+		
+		/** The pattern as given. */
+		private final String  pattern;
+		
+		/** The compiled host pattern. */
+		private final Pattern host;
+		
+		/** The port, -1 for any. */
+		private final int     port;
+		
+		/** Whether matching connections are cached. */
+		private final boolean cached;
+		
+		/** The time to live of recorded responses in milliseconds, 0 if they never expire. */
+		private final long    ttl;
+		
+		/**
+		 * Instantiates a new rule.
+		 *
+		 * @param pattern
+		 *            the pattern
+		 * @param cached
+		 *            whether matching connections are cached
+		 * @param ttl
+		 *            the time to live in milliseconds, 0 if responses never expire
+		 */
+		Rule(final String pattern, final boolean cached, final long ttl) {
+			final int colon = pattern.lastIndexOf(':');
+			final String hostPattern;
+			if ((colon >= 0) && (pattern.indexOf(':') == colon)) {
+				hostPattern = pattern.substring(0, colon);
+				try {
+					this.port = Integer.parseInt(pattern.substring(colon + 1));
+				} catch (final NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid port in caching rule: " + pattern, e); //$NON-NLS-1$
+				}
+			} else {
+				// no port or an IPv6 literal
+				hostPattern = pattern;
+				this.port = -1;
+			}
+			if (hostPattern.isEmpty()) {
+				throw new IllegalArgumentException("Missing host in caching rule: " + pattern); //$NON-NLS-1$
+			}
+			
+			final StringBuilder regex = new StringBuilder();
+			for (final String part : hostPattern.toLowerCase(Locale.ENGLISH).split("\\*", -1)) { //$NON-NLS-1$
+				if (regex.length() > 0) {
+					regex.append(".*"); //$NON-NLS-1$
+				}
+				regex.append(Pattern.quote(part));
+			}
+			this.pattern = pattern;
+			this.host = Pattern.compile(regex.toString());
+			this.cached = cached;
+			this.ttl = ttl;
+		}
+		
+		/**
+		 * Gets the pattern.
+		 *
+		 * @return the pattern
+		 */
+		public String getPattern() {
+			return this.pattern;
+		}
+		
+		/**
+		 * Gets the time to live of recorded responses.
+		 *
+		 * @return the time to live in milliseconds, 0 if responses never expire
+		 */
+		public long getTtl() {
+			return this.ttl;
+		}
+		
+		/**
+		 * Checks whether matching connections are cached.
+		 *
+		 * @return true, if this is an include rule
+		 */
+		public boolean isCached() {
+			return this.cached;
+		}
+		
+		/**
+		 * Checks whether the rule applies to the given endpoint.
+		 *
+		 * @param host
+		 *            the host name or address literal
+		 * @param port
+		 *            the port
+		 * @return true, if the rule matches
+		 */
+		public boolean matches(final String host,
+		                       final int port) {
+			return ((this.port < 0) || (this.port == port))
+			        && this.host.matcher(host.toLowerCase(Locale.ENGLISH)).matches();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder();
+			if (!this.cached) {
+				builder.append('!');
+			}
+			builder.append(this.pattern);
+			if (this.ttl > 0) {
+				builder.append('@').append(TimeUnit.MILLISECONDS.toSeconds(this.ttl));
+			}
+			return builder.toString();
+		}
+	}
+	
+	/**
+	 * Creates rules that cache every connection and never expire responses.
+	 *
+	 * @return the rules
+	 */
+	public static CachingRules all() {
+		return new CachingRules().include("*"); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Parses a comma separated list of rules. Each rule is a pattern, prefixed with <code>!</code> to exclude matching
+	 * connections and optionally suffixed with <code>@seconds</code> to expire responses, e.g.
+	 * <code>!db.internal:5432, *.example.com@3600, *</code>.
+	 *
+	 * @param spec
+	 *            the rules
+	 * @return the parsed rules
+	 */
+	public static CachingRules parse(@NotNull final String spec) {
+		// PRECONDITIONS
+		Condition.notNull(spec, "Argument '%s' in '%s'.", "spec", "CachingRules.parse"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		
+		try {
+			final CachingRules rules = new CachingRules();
+			for (final String token : spec.split(",")) { //$NON-NLS-1$
+				String rule = token.trim();
+				if (rule.isEmpty()) {
+					continue;
+				}
+				
+				if (rule.startsWith("!")) { //$NON-NLS-1$
+					rules.exclude(rule.substring(1).trim());
+					continue;
+				}
+				
+				long ttl = 0;
+				final int at = rule.lastIndexOf('@');
+				if (at >= 0) {
+					try {
+						ttl = TimeUnit.SECONDS.toMillis(Long.parseLong(rule.substring(at + 1).trim()));
+					} catch (final NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid time to live in caching rule: " + rule, e); //$NON-NLS-1$
+					}
+					rule = rule.substring(0, at).trim();
+				}
+				rules.include(rule, ttl);
+			}
+			return rules;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/** The rules in the order they are checked. */
+	private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+	
+	/**
+	 * Instantiates new rules that do not cache any connection.
+	 */
+	public CachingRules() {
+		// nothing is cached until a rule is added
+	}
+	
+	/**
+	 * Adds a rule that excludes matching connections from caching.
+	 *
+	 * @param pattern
+	 *            the pattern
+	 * @return these rules
+	 */
+	public CachingRules exclude(@NotNull final String pattern) {
+		// PRECONDITIONS
+		Condition.notNull(pattern, "Argument '%s' in '%s'.", "pattern", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.rules.add(new Rule(pattern, false, 0));
+			return this;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the rules in the order they are checked.
+	 *
+	 * @return an unmodifiable snapshot of the rules
+	 */
+	public List<Rule> getRules() {
+		return Collections.unmodifiableList(new ArrayList<Rule>(this.rules));
+	}
+	
+	/**
+	 * Gets the time to live of responses recorded for the given endpoint.
+	 *
+	 * @param host
+	 *            the host name or address literal
+	 * @param port
+	 *            the port
+	 * @return the time to live in milliseconds, 0 if responses never expire or the endpoint is not cached
+	 */
+	public long getTtl(@NotNull final String host,
+	                   final int port) {
+		final Rule rule = match(host, port);
+		return (rule != null) && rule.isCached()
+		                                        ? rule.getTtl()
+		                                        : 0;
+	}
+	
+	/**
+	 * Adds a rule that caches matching connections and never expires their responses.
+	 *
+	 * @param pattern
+	 *            the pattern
+	 * @return these rules
+	 */
+	public CachingRules include(@NotNull final String pattern) {
+		return include(pattern, 0);
+	}
+	
+	/**
+	 * Adds a rule that caches matching connections.
+	 *
+	 * @param pattern
+	 *            the pattern
+	 * @param ttl
+	 *            the time to live of recorded responses in milliseconds, 0 if they never expire
+	 * @return these rules
+	 */
+	public CachingRules include(@NotNull final String pattern,
+	                            @NotNegative final long ttl) {
+		// PRECONDITIONS
+		Condition.notNull(pattern, "Argument '%s' in '%s'.", "pattern", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.check(ttl >= 0, "Argument '%s' in '%s' must not be negative.", "ttl", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.rules.add(new Rule(pattern, true, ttl));
+			return this;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Checks whether connections to the given endpoint are cached.
+	 *
+	 * @param host
+	 *            the host name or address literal
+	 * @param port
+	 *            the port
+	 * @return true, if the first matching rule is an include rule
+	 */
+	public boolean isCached(@NotNull final String host,
+	                        final int port) {
+		final Rule rule = match(host, port);
+		return (rule != null) && rule.isCached();
+	}
+	
+	/**
+	 * Finds the rule deciding about the given endpoint.
+	 *
+	 * @param host
+	 *            the host name or address literal
+	 * @param port
+	 *            the port
+	 * @return the first matching rule or <code>null</code> if no rule matches
+	 */
+	public Rule match(@NotNull final String host,
+	                  final int port) {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			for (final Rule rule : this.rules) {
+				if (rule.matches(host, port)) {
+					return rule;
+				}
+			}
+			return null;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		for (final Rule rule : this.rules) {
+			if (builder.length() > 0) {
+				builder.append(", "); //$NON-NLS-1$
+			}
+			builder.append(rule);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpInetSocketAddress;
+import org.apache.http.conn.scheme.SchemeSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Plugs a {@link CachingSocketFactory} into HttpClient's connection managers, e.g. as the <code>http</code> scheme of a
+ * <code>SchemeRegistry</code>. Connections are resolved through the factory's {@link Resolver} and tunneled through
+ * its proxies, but are not leased from its {@link SocketPool}: HttpClient pools connections itself and may close a
+ * connection in the middle of a response, which must never reach another user.
+ * 
+ * See {@link CachingHttpClient} for HTTP level caching on top of it.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CachingSchemeSocketFactory implements SchemeSocketFactory {
+	
+	/** The factory. */
+	private final CachingSocketFactory factory;
+	
+	/**
+	 * Instantiates a new caching scheme socket factory.
+	 *
+	 * @param factory
+	 *            the factory connections are made with
+	 */
+	public CachingSchemeSocketFactory(@NotNull final CachingSocketFactory factory) {
+		// PRECONDITIONS
+		Condition.notNull(factory, "Argument '%s' in '%s'.", "factory", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.factory = factory;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.conn.scheme.SchemeSocketFactory#connectSocket(java.net.Socket, java.net.InetSocketAddress,
+	 * java.net.InetSocketAddress, org.apache.http.params.HttpParams)
+	 */
+	@Override
+	public Socket connectSocket(final Socket socket,
+	                            final InetSocketAddress remoteAddress,
+	                            final InetSocketAddress localAddress,
+	                            final HttpParams params) throws IOException, ConnectTimeoutException {
+		// PRECONDITIONS
+		Condition.notNull(remoteAddress, "Argument '%s' in '%s'.", "remoteAddress", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(params, "Argument '%s' in '%s'.", "params", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			if (socket != null) {
+				// the placeholder from createSocket, the connection is made by the factory
+				socket.close();
+			}
+			
+			// keep the host name, a proxy has to be asked for the name rather than for the address HttpClient resolved
+			final String host = remoteAddress instanceof HttpInetSocketAddress
+			                                                                  ? ((HttpInetSocketAddress) remoteAddress).getHttpHost().getHostName()
+			                                                                  : remoteAddress.getHostString();
+			final Socket connected;
+			try {
+				if (localAddress != null) {
+					connected = this.factory.createUnpooledSocket(host, remoteAddress.getAddress(),
+					                                              remoteAddress.getPort(), localAddress.getAddress(),
+					                                              localAddress.getPort(),
+					                                              HttpConnectionParams.getConnectionTimeout(params));
+				} else {
+					connected = this.factory.createUnpooledSocket(host, remoteAddress.getAddress(),
+					                                              remoteAddress.getPort(), null, 0,
+					                                              HttpConnectionParams.getConnectionTimeout(params));
+				}
+			} catch (final SocketTimeoutException e) {
+				throw new ConnectTimeoutException("Connect to " + remoteAddress + " timed out"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			connected.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+			return connected;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.conn.scheme.SchemeSocketFactory#createSocket(org.apache.http.params.HttpParams)
+	 */
+	@Override
+	public Socket createSocket(final HttpParams params) throws IOException {
+		return new Socket();
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the factory.
+	 *
+	 * @return the factory
+	 */
+	public CachingSocketFactory getFactory() {
+		return this.factory;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.http.conn.scheme.SchemeSocketFactory#isSecure(java.net.Socket)
+	 */
+	@Override
+	public boolean isSecure(final Socket socket) throws IllegalArgumentException {
+		return false;
+	}
+}
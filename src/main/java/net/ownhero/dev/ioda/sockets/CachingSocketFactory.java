@@ -17,27 +17,147 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
 
 import javax.net.SocketFactory;
 
+import net.ownhero.dev.ioda.ProxyConfig;
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
 import net.ownhero.dev.kanuni.conditions.Condition;
 
 /**
- * A factory for creating CachingSocket objects.
+ * A factory for creating CachingSocket objects. Sockets are leased from a {@link SocketPool}: connections to the same
+ * host, port and local address are kept alive after {@link Socket#close()} and handed out again instead of doing a new
+ * TCP handshake. Callers must only close a socket after a complete exchange, leaving the connection in a state the next
+ * user can start from (e.g. an HTTP keep-alive connection after the full response body has been read), and should
+ * call {@link PooledSocket#discard()} otherwise.
+ * 
+ * Sockets bound to an explicit local port cannot be shared and are connected directly.
+ * 
+ * Host names are resolved through the pool's {@link Resolver}; by default the {@link DnsCache#getShared() shared DNS
+ * cache} in front of the system resolver, so hot hosts are neither looked up on every connect nor ever wait for an
+ * expired entry.
+ * 
+ * If a {@link ProxyConfig} is given, every connection is a tunnel through that proxy. Tunnels are pooled per
+ * destination, so the proxy handshake and authentication are done once per connection rather than once per request.
+ * With a {@link LatencyProxySelector}, each new socket is tunneled through the currently fastest healthy proxy of the
+ * selector, falling back to the next one if connecting fails.
+ * 
+ * {@link #createSocketAsync(String, int)} connects without blocking the caller; connects to hosts with several
+ * addresses race, and the first address to accept the connection is used.
  *
  * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
  */
 public class CachingSocketFactory extends SocketFactory {
 	
+	/** The pool. */
+	private final SocketPool           pool;
+	
+	/** The proxy connections are tunneled through, <code>null</code> for direct connections. */
+	private final ProxyConfig          proxy;
+	
+	/** The selector choosing the proxy of each connection, <code>null</code> for a fixed proxy. */
+	private final LatencyProxySelector selector;
+	
 	/**
-	 * Instantiates a new caching socket factory.
+	 * Instantiates a new caching socket factory with a default {@link SocketPool} that resolves host names through the
+	 * {@link DnsCache#getShared() shared DNS cache}.
 	 */
 	public CachingSocketFactory() {
+		this(DnsCache.getShared());
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory with a default {@link SocketPool} that resolves host names through the
+	 * given resolver, e.g. a {@link DnsCache} in front of a stand-in resolver in tests.
+	 *
+	 * @param resolver
+	 *            the resolver
+	 */
+	public CachingSocketFactory(@NotNull final Resolver resolver) {
+		this(new SocketPool(SocketPool.DEFAULT_MAX_PER_HOST, SocketPool.DEFAULT_IDLE_TIMEOUT,
+		                    SocketPool.DEFAULT_LEASE_TIMEOUT, SocketPool.DEFAULT_CONNECT_TIMEOUT, resolver));
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory with a default {@link SocketPool} that tunnels all connections through
+	 * the given proxy.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 */
+	public CachingSocketFactory(@NotNull final ProxyConfig proxy) {
+		this(new SocketPool(SocketPool.DEFAULT_MAX_PER_HOST, SocketPool.DEFAULT_IDLE_TIMEOUT,
+		                    SocketPool.DEFAULT_LEASE_TIMEOUT, SocketPool.DEFAULT_CONNECT_TIMEOUT,
+		                    DnsCache.getShared()), proxy);
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory with a default {@link SocketPool} that tunnels each connection through
+	 * the proxy the given selector currently prefers.
+	 *
+	 * @param selector
+	 *            the selector
+	 */
+	public CachingSocketFactory(@NotNull final LatencyProxySelector selector) {
+		this(new SocketPool(SocketPool.DEFAULT_MAX_PER_HOST, SocketPool.DEFAULT_IDLE_TIMEOUT,
+		                    SocketPool.DEFAULT_LEASE_TIMEOUT, SocketPool.DEFAULT_CONNECT_TIMEOUT,
+		                    DnsCache.getShared()), selector);
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory.
+	 *
+	 * @param pool
+	 *            the pool connections are leased from
+	 */
+	public CachingSocketFactory(@NotNull final SocketPool pool) {
+		this(pool, null, null);
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory.
+	 *
+	 * @param pool
+	 *            the pool connections are leased from
+	 * @param proxy
+	 *            the proxy connections are tunneled through, <code>null</code> for direct connections
+	 */
+	public CachingSocketFactory(@NotNull final SocketPool pool, final ProxyConfig proxy) {
+		this(pool, proxy, null);
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory that tunnels each connection through the proxy the given selector
+	 * currently prefers.
+	 *
+	 * @param pool
+	 *            the pool connections are leased from
+	 * @param selector
+	 *            the selector
+	 */
+	public CachingSocketFactory(@NotNull final SocketPool pool, @NotNull final LatencyProxySelector selector) {
+		this(pool, null, selector);
+	}
+	
+	/**
+	 * Instantiates a new caching socket factory.
+	 *
+	 * @param pool
+	 *            the pool
+	 * @param proxy
+	 *            the fixed proxy or <code>null</code>
+	 * @param selector
+	 *            the selector or <code>null</code>
+	 */
+	private CachingSocketFactory(final SocketPool pool, final ProxyConfig proxy, final LatencyProxySelector selector) {
 		// PRECONDITIONS
+		Condition.notNull(pool, "Argument '%s' in '%s'.", "pool", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
 		
 		try {
-			// TODO Auto-generated constructor stub
-			
+			this.pool = pool;
+			this.proxy = proxy;
+			this.selector = selector;
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -53,8 +173,7 @@ public class CachingSocketFactory extends SocketFactory {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			return lease(null, host, port, null);
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -72,8 +191,10 @@ public class CachingSocketFactory extends SocketFactory {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			if (localPort != 0) {
+				return createUnpooledSocket(address.getHostAddress(), address, port, localAddress, localPort, 0);
+			}
+			return lease(null, address, port, localAddress);
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -89,8 +210,7 @@ public class CachingSocketFactory extends SocketFactory {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			return lease(host, null, port, null);
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -108,8 +228,94 @@ public class CachingSocketFactory extends SocketFactory {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			if (localPort != 0) {
+				return createUnpooledSocket(host, null, port, localHost, localPort, 0);
+			}
+			return lease(host, null, port, localHost);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Creates a socket connected to the given address without blocking the caller.
+	 *
+	 * @param address
+	 *            the remote address
+	 * @param port
+	 *            the remote port
+	 * @return the future socket
+	 * @see SocketPool#leaseAsync(PoolKey)
+	 */
+	public Future<PooledSocket> createSocketAsync(@NotNull final InetAddress address,
+	                                              final int port) {
+		// PRECONDITIONS
+		Condition.notNull(address, "Argument '%s' in '%s'.", "address", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return this.pool.leaseAsync(new PoolKey(address, port, null, preferredProxy()));
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Creates a socket connected to the given host without blocking the caller. If the host has several addresses, the
+	 * connects to them race and the first to succeed is used. With a {@link LatencyProxySelector}, the currently
+	 * preferred proxy is used without falling back to others.
+	 *
+	 * @param host
+	 *            the remote host
+	 * @param port
+	 *            the remote port
+	 * @return the future socket
+	 * @see SocketPool#leaseAsync(PoolKey)
+	 */
+	public Future<PooledSocket> createSocketAsync(@NotNull final String host,
+	                                              final int port) {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return this.pool.leaseAsync(new PoolKey(host, port, null, preferredProxy()));
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Connects a socket that is not leased from the pool, e.g. because it is bound to an explicit local port or because
+	 * the caller pools connections itself. Host names are resolved, their addresses raced and connections tunneled
+	 * just like for pooled sockets; closing the socket closes the connection.
+	 *
+	 * @param host
+	 *            the remote host
+	 * @param address
+	 *            the remote address, <code>null</code> to resolve the host
+	 * @param port
+	 *            the remote port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 * @param localPort
+	 *            the local port, 0 for any
+	 * @param timeout
+	 *            the connect timeout in milliseconds, 0 for none
+	 * @return the socket
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public Socket createUnpooledSocket(@NotNull final String host,
+	                                   final InetAddress address,
+	                                   final int port,
+	                                   final InetAddress localAddress,
+	                                   final int localPort,
+	                                   final int timeout) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final PoolKey key = new PoolKey(host, address, port, localAddress, preferredProxy());
+			return this.pool.connect(key, localPort, timeout).socket();
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -149,4 +355,90 @@ public class CachingSocketFactory extends SocketFactory {
 			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 		}
 	}
+	
+	/**
+	 * Gets the metrics leases and connects are reported to.
+	 *
+	 * @return the metrics
+	 */
+	public SocketMetrics getMetrics() {
+		return this.pool.getMetrics();
+	}
+	
+	/**
+	 * Gets the pool connections are leased from.
+	 *
+	 * @return the pool
+	 */
+	public SocketPool getPool() {
+		return this.pool;
+	}
+	
+	/**
+	 * Gets the proxy the next connection should be tunneled through.
+	 *
+	 * @return the proxy or <code>null</code> for a direct connection
+	 */
+	private ProxyConfig preferredProxy() {
+		return this.selector != null
+		                            ? this.selector.route().get(0)
+		                            : this.proxy;
+	}
+	
+	/**
+	 * Gets the proxy connections are tunneled through.
+	 *
+	 * @return the proxy or <code>null</code> for direct connections or if the proxy is chosen by a selector
+	 */
+	public ProxyConfig getProxy() {
+		return this.proxy;
+	}
+	
+	/**
+	 * Gets the selector choosing the proxy of each connection.
+	 *
+	 * @return the selector or <code>null</code>
+	 */
+	public LatencyProxySelector getSelector() {
+		return this.selector;
+	}
+	
+	/**
+	 * Leases a connection to the given destination, through the fixed proxy or the ones preferred by the selector.
+	 *
+	 * @param host
+	 *            the host, <code>null</code> if the address is given
+	 * @param address
+	 *            the address, <code>null</code> if the host is given
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 * @return the socket
+	 * @throws IOException
+	 *             if no connection could be established
+	 */
+	private Socket lease(final String host,
+	                     final InetAddress address,
+	                     final int port,
+	                     final InetAddress localAddress) throws IOException {
+		if (this.selector == null) {
+			return this.pool.lease(address != null
+			                                      ? new PoolKey(address, port, localAddress, this.proxy)
+			                                      : new PoolKey(host, port, localAddress, this.proxy));
+		}
+		
+		IOException failure = null;
+		for (final ProxyConfig candidate : this.selector.route()) {
+			try {
+				return this.pool.lease(address != null
+				                                      ? new PoolKey(address, port, localAddress, candidate)
+				                                      : new PoolKey(host, port, localAddress, candidate));
+			} catch (final IOException e) {
+				this.selector.recordFailure(candidate);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
 }
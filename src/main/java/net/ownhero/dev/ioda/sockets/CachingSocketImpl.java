@@ -14,47 +14,508 @@ package net.ownhero.dev.ioda.sockets;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
 import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
 
 /**
- * The Class CachingSocketImpl.
+ * A {@link SocketImpl} that records responses and replays them for identical requests.
+ * 
+ * Everything the client writes before it starts reading is buffered and treated as the request. On the first read the
+ * request is hashed into a {@link CacheKey}. If the {@link ResponseStore} holds a response for that key, it is replayed
+ * and no upstream connection is ever opened (and the host name is never resolved). Otherwise the socket connects to the
+ * remote end, forwards the request and records everything it reads until the response is complete: an HTTP response
+ * once its {@link HttpFraming framing} says so, anything else once the remote end closes the connection. Only such
+ * complete exchanges are stored.
+ * 
+ * A connection kept alive carries one exchange after the other. Once the client has read a response completely, the
+ * next write starts a new request, which is looked up like the first one; the upstream connection, if any, is reused
+ * for the next miss.
+ * 
+ * Conversations the cache cannot reason about are passed through unchanged: reading before anything has been written
+ * (protocols where the server talks first), requests exceeding {@link #MAX_REQUEST_SIZE} and writing again before the
+ * response has been read completely. Writing before a replayed response has been read completely fails as if the
+ * remote end had closed the connection.
+ * 
+ * The upstream connection is a {@link SocketChannel}, since channel sockets do not go through the
+ * {@link java.net.SocketImplFactory} this implementation is usually installed with. All staging happens in direct
+ * buffers taken from a {@link BufferPool}: the request, the upstream reads and writes and the first part of a
+ * recording. Reads fill the read buffer as far as possible, from upstream as well as from a replayed response, so byte
+ * by byte reads do not turn into a system call each. Writes are collected in the write buffer and sent according to
+ * the {@link FlushPolicy}.
+ * 
+ * Sockets sharing a {@link RequestCoalescer} open only one upstream connection for identical requests that miss the
+ * cache at the same time; the others wait for that exchange to be stored and replay it.
+ * 
+ * Connections the {@link CachingRules} exclude are opened right away and bypass the cache entirely: nothing is
+ * buffered as a request, hashed, looked up or recorded, and writes are sent immediately.
  *
  * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
  */
 public class CachingSocketImpl extends SocketImpl {
 	
+	/**
+	 * The input stream handed out to the client.
+	 */
+	private final class CachingInputStream extends InputStream {
+		
+		/** The buffer of single byte reads. Guarded by {@link CachingSocketImpl#readLock}. */
+		private final byte[] single = new byte[1];
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException {
+			return CachingSocketImpl.this.available();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			CachingSocketImpl.this.close();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			synchronized (CachingSocketImpl.this.readLock) {
+				final int n = read(this.single, 0, 1);
+				return n < 0
+				            ? -1
+				            : this.single[0] & 0xff;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b,
+		                final int off,
+		                final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			
+			synchronized (CachingSocketImpl.this.readLock) {
+				final CachedResponse response = CachingSocketImpl.this.bypassed
+				                                                               ? null
+				                                                               : source();
+				if (response != null) {
+					return readReplay(response, b, off, len);
+				}
+				return readUpstream(b, off, len);
+			}
+		}
+	}
+	
+	/**
+	 * The output stream handed out to the client.
+	 */
+	private final class CachingOutputStream extends OutputStream {
+		
+		/** The buffer of single byte writes. Guarded by {@link CachingSocketImpl#writeLock}. */
+		private final byte[] single = new byte[1];
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			CachingSocketImpl.this.close();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException {
+			CachingSocketImpl.this.writeLock.lock();
+			try {
+				// a request is only complete once the client reads
+				flushWrites();
+			} finally {
+				CachingSocketImpl.this.writeLock.unlock();
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b,
+		                  final int off,
+		                  final int len) throws IOException {
+			CachingSocketImpl.this.writeLock.lock();
+			try {
+				if (CachingSocketImpl.this.bypassed || !bufferRequest(b, off, len)) {
+					writeUpstream(b, off, len);
+				}
+			} finally {
+				CachingSocketImpl.this.writeLock.unlock();
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException {
+			CachingSocketImpl.this.writeLock.lock();
+			try {
+				this.single[0] = (byte) b;
+				write(this.single, 0, 1);
+			} finally {
+				CachingSocketImpl.this.writeLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * The state of the conversation.
+	 */
+	private enum Mode {
+		
+		/** Connected, but nothing has been exchanged yet. */
+		IDLE,
+		/** The client is writing the request. */
+		REQUEST,
+		/** The request is complete and waits for a concurrent identical request to be stored. */
+		LOOKUP,
+		/** The response is replayed from the store. */
+		REPLAY,
+		/** The response is read from upstream and recorded. */
+		RECORD,
+		/** Traffic is forwarded without caching. */
+		PASSTHROUGH;
+	}
+	
+	/** The maximum number of request bytes buffered to compute the cache key. */
+	public static final int            MAX_REQUEST_SIZE  = BufferPool.DEFAULT_BUFFER_SIZE;
+	
+	/** The maximum number of response bytes recorded for a single entry. */
+	public static final int            MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+	
+	/** The interval in milliseconds at which a socket waiting for a flight checks whether it has been closed. */
+	private static final long          POLL_INTERVAL     = 100L;
+	
+	/** The store. */
+	private final ResponseStore        store;
+	
+	/** The buffer pool. */
+	private final BufferPool           buffers;
+	
+	/** The coalescer shared with other sockets, <code>null</code> if requests are not coalesced. */
+	private final RequestCoalescer     coalescer;
+	
+	/** The metrics. */
+	private final SocketMetrics        metrics;
+	
+	/** The rules deciding which connections are cached, <code>null</code> to cache every connection. */
+	private final CachingRules         rules;
+	
+	/** The flush policy, {@link FlushPolicy#IMMEDIATE} once the connection bypasses the cache. */
+	private FlushPolicy                flushPolicy;
+	
+	/** The socket options set by the client, applied when the upstream connection is opened. */
+	private final Map<Integer, Object> options           = new HashMap<Integer, Object>();
+	
+	/** Guards the read side: {@link #readBuffer} and {@link #replayPosition}. */
+	private final Object               readLock          = new Object();
+	
+	/** Guards the write side: {@link #writeBuffer}. A lock, since a reader must not wait for a blocked writer. */
+	private final ReentrantLock        writeLock         = new ReentrantLock();
+	
+	/** The remote endpoint, possibly unresolved. */
+	private InetSocketAddress          remote;
+	
+	/** The local endpoint the socket has been bound to, if any. */
+	private InetSocketAddress          local;
+	
+	/** The connect timeout. */
+	private int                        timeout;
+	
+	/** The read timeout. */
+	private volatile int               soTimeout;
+	
+	/** The mode. */
+	private Mode                       mode              = Mode.IDLE;
+	
+	/** The key of the current exchange. */
+	private CacheKey                   key;
+	
+	/** Whether this socket leads the flight for {@link #key}. */
+	private boolean                    leading;
+	
+	/** The time the request has been forwarded upstream, 0 once the first response byte arrived. */
+	private volatile long              forwarded;
+	
+	/** The request, <code>null</code> until the client writes. */
+	private ByteBuffer                 requestBuffer;
+	
+	/** The recorded response, <code>null</code> if nothing is recorded. */
+	private Recording                  recording;
+	
+	/** The framing of the response read from upstream, <code>null</code> unless the exchange is recorded. */
+	private HttpFraming                framing;
+	
+	/** The replayed response. */
+	private CachedResponse             replay;
+	
+	/** The position within the replayed response up to which it has been read into {@link #readBuffer}. */
+	private long                       replayPosition;
+	
+	/** The upstream connection. */
+	private volatile Upstream          upstream;
+	
+	/** Bytes read from upstream or the replayed response but not yet consumed by the client. */
+	private ByteBuffer                 readBuffer;
+	
+	/** The number of bytes remaining in {@link #readBuffer}. */
+	private volatile int               buffered;
+	
+	/** Bytes written by the client but not yet sent upstream. */
+	private ByteBuffer                 writeBuffer;
+	
+	/** The number of bytes in {@link #writeBuffer}. */
+	private volatile int               unflushed;
+	
+	/** Whether {@link #writeBuffer} is being sent. */
+	private volatile boolean           flushing;
+	
+	/** Whether a read waits for upstream. */
+	private volatile boolean           awaiting;
+	
+	/** The input stream. */
+	private InputStream                inputStream;
+	
+	/** The output stream. */
+	private OutputStream               outputStream;
+	
+	/** Whether the connection bypasses the cache. Set once when connecting. */
+	private volatile boolean           bypassed;
+	
+	/** Whether the socket has been closed. */
+	private boolean                    closed;
+	
+	/**
+	 * Instantiates a new caching socket impl using the {@link BufferPool#getShared() shared buffer pool}.
+	 *
+	 * @param store
+	 *            the store responses are recorded to and replayed from
+	 */
+	public CachingSocketImpl(@NotNull final ResponseStore store) {
+		this(store, BufferPool.getShared());
+	}
+	
 	/**
 	 * Instantiates a new caching socket impl.
+	 *
+	 * @param store
+	 *            the store responses are recorded to and replayed from
+	 * @param buffers
+	 *            the pool staging buffers are taken from
 	 */
-	public CachingSocketImpl() {
+	public CachingSocketImpl(@NotNull final ResponseStore store, @NotNull final BufferPool buffers) {
+		this(store, buffers, null);
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl.
+	 *
+	 * @param store
+	 *            the store responses are recorded to and replayed from
+	 * @param buffers
+	 *            the pool staging buffers are taken from
+	 * @param coalescer
+	 *            the coalescer shared by the sockets using the store or <code>null</code> to fetch every miss from
+	 *            upstream
+	 */
+	public CachingSocketImpl(@NotNull final ResponseStore store, @NotNull final BufferPool buffers,
+	        final RequestCoalescer coalescer) {
+		this(store, buffers, coalescer, SocketMetrics.getShared());
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl.
+	 *
+	 * @param store
+	 *            the store responses are recorded to and replayed from
+	 * @param buffers
+	 *            the pool staging buffers are taken from
+	 * @param coalescer
+	 *            the coalescer shared by the sockets using the store or <code>null</code> to fetch every miss from
+	 *            upstream
+	 * @param metrics
+	 *            the metrics hits, misses and latencies are reported to
+	 */
+	public CachingSocketImpl(@NotNull final ResponseStore store, @NotNull final BufferPool buffers,
+	        final RequestCoalescer coalescer, @NotNull final SocketMetrics metrics) {
+		this(store, buffers, coalescer, metrics, FlushPolicy.BEFORE_READ);
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl.
+	 *
+	 * @param store
+	 *            the store responses are recorded to and replayed from
+	 * @param buffers
+	 *            the pool staging buffers are taken from
+	 * @param coalescer
+	 *            the coalescer shared by the sockets using the store or <code>null</code> to fetch every miss from
+	 *            upstream
+	 * @param metrics
+	 *            the metrics hits, misses and latencies are reported to
+	 * @param flushPolicy
+	 *            decides when written bytes are sent upstream
+	 */
+	public CachingSocketImpl(@NotNull final ResponseStore store, @NotNull final BufferPool buffers,
+	        final RequestCoalescer coalescer, @NotNull final SocketMetrics metrics,
+	        @NotNull final FlushPolicy flushPolicy) {
+		this(store, buffers, coalescer, metrics, flushPolicy, null);
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl.
+	 *
+	 * @param store
+	 *            the store responses are recorded to and replayed from
+	 * @param buffers
+	 *            the pool staging buffers are taken from
+	 * @param coalescer
+	 *            the coalescer shared by the sockets using the store or <code>null</code> to fetch every miss from
+	 *            upstream
+	 * @param metrics
+	 *            the metrics hits, misses and latencies are reported to
+	 * @param flushPolicy
+	 *            decides when written bytes are sent upstream
+	 * @param rules
+	 *            the rules deciding which connections are cached or <code>null</code> to cache every connection
+	 */
+	public CachingSocketImpl(@NotNull final ResponseStore store, @NotNull final BufferPool buffers,
+	        final RequestCoalescer coalescer, @NotNull final SocketMetrics metrics,
+	        @NotNull final FlushPolicy flushPolicy, final CachingRules rules) {
 		// PRECONDITIONS
+		Condition.notNull(store, "Argument '%s' in '%s'.", "store", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(buffers, "Argument '%s' in '%s'.", "buffers", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(metrics, "Argument '%s' in '%s'.", "metrics", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(flushPolicy, "Argument '%s' in '%s'.", "flushPolicy", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
 		
 		try {
-			// stub
+			this.store = store;
+			this.buffers = buffers;
+			this.coalescer = coalescer;
+			this.metrics = metrics;
+			this.flushPolicy = flushPolicy;
+			this.rules = rules;
 		} finally {
 			// POSTCONDITIONS
 		}
 	}
 	
+	/**
+	 * Stops recording and drops what has been recorded so far. Has to be called with the monitor held.
+	 */
+	private void abortRecording() {
+		if (this.recording != null) {
+			try {
+				this.recording.close();
+			} catch (final IOException e) {
+				if (Logger.logDebug()) {
+					Logger.debug("Could not discard recording for " + this.key + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+			this.recording = null;
+		}
+		endFlight();
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.net.SocketImpl#accept(java.net.SocketImpl)
 	 */
 	@Override
 	protected void accept(final SocketImpl s) throws IOException {
-		// PRECONDITIONS
-		
-		try {
-			// TODO Auto-generated method stub
-		} finally {
-			// POSTCONDITIONS
+		throw new SocketException(getClassName() + " does not support server sockets."); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Applies a socket option to the upstream socket.
+	 *
+	 * @param socket
+	 *            the socket
+	 * @param optID
+	 *            the option id
+	 * @param value
+	 *            the value
+	 * @throws SocketException
+	 *             the socket exception
+	 */
+	private void applyOption(final Socket socket,
+	                         final int optID,
+	                         final Object value) throws SocketException {
+		switch (optID) {
+			case TCP_NODELAY:
+				socket.setTcpNoDelay((Boolean) value);
+				break;
+			case SO_TIMEOUT:
+				// handled by Upstream#read, channel sockets ignore it
+				break;
+			case SO_KEEPALIVE:
+				socket.setKeepAlive((Boolean) value);
+				break;
+			case SO_LINGER:
+				if (value instanceof Integer) {
+					socket.setSoLinger(true, (Integer) value);
+				} else {
+					socket.setSoLinger(false, 0);
+				}
+				break;
+			case SO_RCVBUF:
+				socket.setReceiveBufferSize((Integer) value);
+				break;
+			case SO_SNDBUF:
+				socket.setSendBufferSize((Integer) value);
+				break;
+			case SO_REUSEADDR:
+				socket.setReuseAddress((Boolean) value);
+				break;
+			case SO_OOBINLINE:
+				socket.setOOBInline((Boolean) value);
+				break;
+			case IP_TOS:
+				socket.setTrafficClass((Integer) value);
+				break;
+			default:
+				throw new SocketException("Unsupported socket option: " + optID); //$NON-NLS-1$
 		}
 	}
 	
@@ -63,33 +524,139 @@ public class CachingSocketImpl extends SocketImpl {
 	 * @see java.net.SocketImpl#available()
 	 */
 	@Override
-	protected int available() throws IOException {
+	protected synchronized int available() throws IOException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return 0;
+			ensureOpen();
+			if (this.mode == Mode.REPLAY) {
+				return (int) Math.min(Integer.MAX_VALUE,
+				                      Math.max(0, (this.replay.getSize() - this.replayPosition) + this.buffered));
+			}
+			return this.buffered;
 		} finally {
 			// POSTCONDITIONS
 		}
 	}
 	
+	/**
+	 * Waits for the reader to conclude a request that is in {@link Mode#LOOKUP}. Has to be called with the monitor
+	 * held.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void awaitLookup() throws IOException {
+		ensureOpen();
+		while (this.mode == Mode.LOOKUP) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the request to be concluded"); //$NON-NLS-1$
+			}
+			ensureOpen();
+		}
+	}
+	
+	/**
+	 * Waits until the flight ended, the coalescer's timeout or the read timeout elapsed, whichever comes first. Must
+	 * not be called with the monitor held.
+	 *
+	 * @param flight
+	 *            the flight
+	 * @throws IOException
+	 *             if the socket has been closed in the meantime
+	 */
+	private void awaitFlight(final RequestCoalescer.Flight flight) throws IOException {
+		final long timeout = this.soTimeout > 0
+		                                       ? Math.min(this.soTimeout, this.coalescer.getTimeout())
+		                                       : this.coalescer.getTimeout();
+		final long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		
+		// wake up now and then to notice the socket being closed
+		while ((remaining > 0) && !flight.await(Math.min(remaining, POLL_INTERVAL))) {
+			synchronized (this) {
+				ensureOpen();
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.net.SocketImpl#bind(java.net.InetAddress, int)
 	 */
 	@Override
-	protected void bind(final InetAddress host,
-	                    final int port) throws IOException {
+	protected synchronized void bind(final InetAddress host,
+	                                 final int port) throws IOException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
+			this.local = new InetSocketAddress(host, port);
+			this.localport = port;
 		} finally {
 			// POSTCONDITIONS
 		}
 	}
 	
+	/**
+	 * Buffers the bytes if they belong to the request and switches modes accordingly.
+	 *
+	 * @param b
+	 *            the buffer
+	 * @param off
+	 *            the offset
+	 * @param len
+	 *            the length
+	 * @return true, if the bytes have been buffered; false, if they have to be written upstream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private synchronized boolean bufferRequest(final byte[] b,
+	                                           final int off,
+	                                           final int len) throws IOException {
+		awaitLookup();
+		switch (this.mode) {
+			case IDLE:
+			case REQUEST:
+				if (this.requestBuffer == null) {
+					this.requestBuffer = this.buffers.acquire();
+				}
+				if (len <= this.requestBuffer.remaining()) {
+					this.requestBuffer.put(b, off, len);
+					this.mode = Mode.REQUEST;
+					return true;
+				}
+				// too large to be worth caching: flush what we have and forward the rest
+				connectUpstream();
+				this.requestBuffer.flip();
+				this.upstream.write(this.requestBuffer);
+				this.buffers.release(this.requestBuffer);
+				this.requestBuffer = null;
+				this.mode = Mode.PASSTHROUGH;
+				return false;
+			case REPLAY:
+				if ((this.buffered > 0) || (this.replayPosition < this.replay.getSize())) {
+					throw new SocketException("Connection reset: the response has been replayed from cache"); //$NON-NLS-1$
+				}
+				nextExchange();
+				return bufferRequest(b, off, len);
+			case RECORD:
+				if ((this.buffered == 0) && (this.recording == null) && this.framing.isComplete()) {
+					nextExchange();
+					return bufferRequest(b, off, len);
+				}
+				// the client writes while the response is still coming in; the exchange is not cacheable anymore
+				abortRecording();
+				this.mode = Mode.PASSTHROUGH;
+				return false;
+			default:
+				return false;
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.net.SocketImpl#close()
@@ -99,12 +666,109 @@ public class CachingSocketImpl extends SocketImpl {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
+			final CachedResponse replayed;
+			final Upstream connection;
+			synchronized (this) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				// an exchange that has not been read to the end is never stored
+				abortRecording();
+				notifyAll();
+				if (this.requestBuffer != null) {
+					this.buffers.release(this.requestBuffer);
+					this.requestBuffer = null;
+				}
+				replayed = this.replay;
+				connection = this.upstream;
+			}
+			
+			// like a plain socket, send what has been written; unless a writer is blocked, then it is lost anyway
+			if ((connection != null) && (this.unflushed > 0) && this.writeLock.tryLock()) {
+				try {
+					flushWrites();
+				} catch (final IOException e) {
+					if (Logger.logDebug()) {
+						Logger.debug("Could not send pending writes on close: " + e.getMessage()); //$NON-NLS-1$
+					}
+				} finally {
+					this.writeLock.unlock();
+				}
+			}
+			
+			try {
+				if (replayed != null) {
+					replayed.close();
+				}
+			} finally {
+				// closing the channel wakes up readers and writers blocked on it, so the locks become available
+				if (connection != null) {
+					connection.close();
+				}
+				
+				synchronized (this.readLock) {
+					if (this.readBuffer != null) {
+						this.buffers.release(this.readBuffer);
+						this.readBuffer = null;
+						this.buffered = 0;
+					}
+				}
+				this.writeLock.lock();
+				try {
+					if (this.writeBuffer != null) {
+						this.buffers.release(this.writeBuffer);
+						this.writeBuffer = null;
+						this.unflushed = 0;
+					}
+				} finally {
+					this.writeLock.unlock();
+				}
+			}
 		} finally {
 			// POSTCONDITIONS
 		}
 	}
 	
+	/**
+	 * Stores the recorded response once it is complete.
+	 */
+	private void commitRecording() {
+		final CacheKey recordedKey;
+		final Recording recorded;
+		final boolean led;
+		synchronized (this) {
+			recordedKey = this.key;
+			recorded = this.recording;
+			this.recording = null;
+			// the client may start the next exchange while the response is stored
+			led = this.leading;
+			this.leading = false;
+		}
+		
+		if (recorded != null) {
+			try {
+				this.store.put(recordedKey, recorded, recorded.size());
+			} catch (final IOException e) {
+				if (Logger.logWarn()) {
+					Logger.warn("Could not store response for " + recordedKey + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			} finally {
+				try {
+					recorded.close();
+				} catch (final IOException e) {
+					if (Logger.logDebug()) {
+						Logger.debug("Could not discard recording for " + recordedKey + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+			}
+		}
+		
+		if (led) {
+			this.coalescer.end(recordedKey);
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.net.SocketImpl#connect(java.net.InetAddress, int)
@@ -112,13 +776,7 @@ public class CachingSocketImpl extends SocketImpl {
 	@Override
 	protected void connect(final InetAddress address,
 	                       final int port) throws IOException {
-		// PRECONDITIONS
-		
-		try {
-			// TODO Auto-generated method stub
-		} finally {
-			// POSTCONDITIONS
-		}
+		connect(new InetSocketAddress(address, port), 0);
 	}
 	
 	/*
@@ -126,12 +784,27 @@ public class CachingSocketImpl extends SocketImpl {
 	 * @see java.net.SocketImpl#connect(java.net.SocketAddress, int)
 	 */
 	@Override
-	protected void connect(final SocketAddress address,
-	                       final int timeout) throws IOException {
+	protected synchronized void connect(final SocketAddress address,
+	                                    final int timeout) throws IOException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
+			if (!(address instanceof InetSocketAddress)) {
+				throw new SocketException("Unsupported address type: " + address); //$NON-NLS-1$
+			}
+			
+			this.remote = (InetSocketAddress) address;
+			this.timeout = timeout;
+			this.address = this.remote.getAddress();
+			this.port = this.remote.getPort();
+			
+			if ((this.rules != null) && !this.rules.isCached(this.remote.getHostString(), this.remote.getPort())) {
+				this.flushPolicy = FlushPolicy.IMMEDIATE;
+				this.mode = Mode.PASSTHROUGH;
+				this.bypassed = true;
+				connectUpstream();
+			}
+			// otherwise the actual connect is deferred until the cache misses
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -144,12 +817,46 @@ public class CachingSocketImpl extends SocketImpl {
 	@Override
 	protected void connect(final String host,
 	                       final int port) throws IOException {
-		// PRECONDITIONS
+		connect(InetSocketAddress.createUnresolved(host, port), 0);
+	}
+	
+	/**
+	 * Opens the upstream connection unless it is open already. Has to be called with the monitor held.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void connectUpstream() throws IOException {
+		if (this.upstream != null) {
+			return;
+		}
+		
+		final InetSocketAddress target = this.remote.isUnresolved()
+		                                                           ? new InetSocketAddress(
+		                                                                                   InetAddress.getByName(this.remote.getHostString()),
+		                                                                                   this.remote.getPort())
+		                                                           : this.remote;
+		final SocketChannel channel = SocketChannel.open();
 		
 		try {
-			// TODO Auto-generated method stub
+			final Socket socket = channel.socket();
+			for (final Map.Entry<Integer, Object> entry : this.options.entrySet()) {
+				applyOption(socket, entry.getKey(), entry.getValue());
+			}
+			if (this.local != null) {
+				socket.bind(this.local);
+			}
+			final long start = System.nanoTime();
+			socket.connect(target, this.timeout);
+			this.metrics.recordConnect(this.remote.getHostString(), System.nanoTime() - start);
+			
+			this.address = target.getAddress();
+			this.localport = socket.getLocalPort();
+			this.upstream = new Upstream(channel);
 		} finally {
-			// POSTCONDITIONS
+			if (this.upstream == null) {
+				channel.close();
+			}
 		}
 	}
 	
@@ -159,12 +866,148 @@ public class CachingSocketImpl extends SocketImpl {
 	 */
 	@Override
 	protected void create(final boolean stream) throws IOException {
-		// PRECONDITIONS
+		if (!stream) {
+			throw new SocketException(getClassName() + " does not support datagram sockets."); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Makes sure the socket has been connected and not been closed yet. Has to be called with the monitor held.
+	 *
+	 * @throws SocketException
+	 *             the socket exception
+	 */
+	private void ensureOpen() throws SocketException {
+		if (this.closed) {
+			throw new SocketException("Socket closed"); //$NON-NLS-1$
+		}
+		if (this.remote == null) {
+			throw new SocketException("Socket is not connected"); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Releases the sockets waiting for the exchange this socket leads, if any. Has to be called with the monitor held.
+	 */
+	private void endFlight() {
+		if (this.leading) {
+			this.leading = false;
+			this.coalescer.end(this.key);
+		}
+	}
+	
+	/**
+	 * Concludes the request phase: looks up the response and either replays it or forwards the request upstream. Has
+	 * to be called with the monitor held.
+	 * 
+	 * If another socket is fetching the same response from upstream, the socket switches to {@link Mode#LOOKUP} and
+	 * the flight to wait for is returned. After waiting, the caller has to call this method again with
+	 * <code>coalesce</code> set to false.
+	 *
+	 * @param coalesce
+	 *            whether to join or lead a flight on a miss
+	 * @return the flight to wait for or <code>null</code> if the request has been concluded
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private RequestCoalescer.Flight finishRequest(final boolean coalesce) throws IOException {
+		final ByteBuffer request = this.requestBuffer;
+		boolean concluded = false;
+		boolean waiting = false;
 		
 		try {
-			// TODO Auto-generated method stub
+			if (this.mode == Mode.REQUEST) {
+				request.flip();
+				this.key = CacheKey.create(this.remote.getHostString(), this.remote.getPort(), request);
+			}
+			
+			this.replay = lookup();
+			
+			if ((this.replay == null) && coalesce && (this.coalescer != null)) {
+				final RequestCoalescer.Flight flight = this.coalescer.begin(this.key);
+				if (flight != null) {
+					this.mode = Mode.LOOKUP;
+					waiting = true;
+					return flight;
+				}
+				this.leading = true;
+				// a flight for the same key may have ended between the lookup and now
+				this.replay = lookup();
+				if (this.replay != null) {
+					endFlight();
+				}
+			}
+			
+			if (this.replay != null) {
+				this.metrics.recordHit();
+				this.mode = Mode.REPLAY;
+			} else {
+				this.metrics.recordMiss();
+				connectUpstream();
+				this.framing = new HttpFraming(request);
+				this.upstream.write(request);
+				this.forwarded = System.nanoTime();
+				this.recording = new Recording(this.buffers);
+				this.mode = Mode.RECORD;
+			}
+			concluded = true;
+			return null;
 		} finally {
-			// POSTCONDITIONS
+			if (!waiting) {
+				this.requestBuffer = null;
+				this.buffers.release(request);
+				if (!concluded) {
+					// the waiting sockets go upstream on their own
+					endFlight();
+					if (this.mode == Mode.LOOKUP) {
+						this.mode = Mode.REQUEST;
+					}
+				}
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Sends the pending writes before a read waits for upstream, if the flush policy asks for it. A writer that is
+	 * busy with the write buffer either sends it itself or sees {@link #awaiting} and does.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void flushBeforeRead() throws IOException {
+		while ((this.flushPolicy == FlushPolicy.BEFORE_READ) && (this.unflushed > 0) && !this.flushing) {
+			if (this.writeLock.tryLock()) {
+				try {
+					flushWrites();
+				} finally {
+					this.writeLock.unlock();
+				}
+				return;
+			}
+			Thread.yield();
+		}
+	}
+	
+	/**
+	 * Sends the pending writes upstream. Has to be called with {@link #writeLock} held.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void flushWrites() throws IOException {
+		if (this.unflushed == 0) {
+			return;
+		}
+		
+		this.flushing = true;
+		this.writeBuffer.flip();
+		try {
+			this.upstream.write(this.writeBuffer);
+		} finally {
+			this.writeBuffer.compact();
+			this.unflushed = this.writeBuffer.position();
+			this.flushing = false;
 		}
 	}
 	
@@ -208,12 +1051,15 @@ public class CachingSocketImpl extends SocketImpl {
 	 * @see java.net.SocketImpl#getInputStream()
 	 */
 	@Override
-	protected InputStream getInputStream() throws IOException {
+	protected synchronized InputStream getInputStream() throws IOException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			ensureOpen();
+			if (this.inputStream == null) {
+				this.inputStream = new CachingInputStream();
+			}
+			return this.inputStream;
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -224,12 +1070,38 @@ public class CachingSocketImpl extends SocketImpl {
 	 * @see java.net.SocketOptions#getOption(int)
 	 */
 	@Override
-	public Object getOption(final int optID) throws SocketException {
+	public synchronized Object getOption(final int optID) throws SocketException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			if (optID == SO_BINDADDR) {
+				if (this.upstream != null) {
+					return this.upstream.channel().socket().getLocalAddress();
+				}
+				return this.local != null
+				                         ? this.local.getAddress()
+				                         : new InetSocketAddress(0).getAddress();
+			}
+			
+			final Object value = this.options.get(optID);
+			if (value != null) {
+				return value;
+			}
+			
+			// java.net.Socket unboxes some of the options without checking for null
+			switch (optID) {
+				case TCP_NODELAY:
+				case SO_KEEPALIVE:
+				case SO_OOBINLINE:
+				case SO_REUSEADDR:
+				case SO_LINGER:
+					return Boolean.FALSE;
+				case SO_TIMEOUT:
+				case IP_TOS:
+					return 0;
+				default:
+					return null;
+			}
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -240,30 +1112,216 @@ public class CachingSocketImpl extends SocketImpl {
 	 * @see java.net.SocketImpl#getOutputStream()
 	 */
 	@Override
-	protected OutputStream getOutputStream() throws IOException {
+	protected synchronized OutputStream getOutputStream() throws IOException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
-			return null;
+			ensureOpen();
+			if (this.outputStream == null) {
+				this.outputStream = new CachingOutputStream();
+			}
+			return this.outputStream;
 		} finally {
 			// POSTCONDITIONS
 		}
 	}
 	
+	/**
+	 * Checks whether the remote end closed the connection before the framed response it sent was complete.
+	 *
+	 * @return true, if the response has been cut short
+	 */
+	private synchronized boolean isTruncated() {
+		return (this.framing != null) && !this.framing.isComplete() && !this.framing.isUnframed();
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.net.SocketImpl#listen(int)
 	 */
 	@Override
 	protected void listen(final int backlog) throws IOException {
-		// PRECONDITIONS
-		
+		throw new SocketException(getClassName() + " does not support server sockets."); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Looks up the response for {@link #key}. Failures are treated as misses.
+	 *
+	 * @return the response or <code>null</code>
+	 */
+	private CachedResponse lookup() {
 		try {
-			// TODO Auto-generated method stub
-		} finally {
-			// POSTCONDITIONS
+			return this.store.get(this.key);
+		} catch (final IOException e) {
+			if (Logger.logWarn()) {
+				Logger.warn("Could not read cached response for " + this.key + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Concludes the exchange whose response has been read completely, so the next write starts a new request. Has to
+	 * be called with the monitor held.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void nextExchange() throws IOException {
+		final CachedResponse replayed = this.replay;
+		this.replay = null;
+		this.replayPosition = 0;
+		this.framing = null;
+		this.key = null;
+		this.mode = Mode.IDLE;
+		if (replayed != null) {
+			replayed.close();
+		}
+	}
+	
+	/**
+	 * Reads from the replayed response through {@link #readBuffer}. Has to be called with {@link #readLock} held.
+	 *
+	 * @param response
+	 *            the response
+	 * @param b
+	 *            the buffer
+	 * @param off
+	 *            the offset
+	 * @param len
+	 *            the length
+	 * @return the number of bytes read or -1 at the end of the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private int readReplay(final CachedResponse response,
+	                       final byte[] b,
+	                       final int off,
+	                       final int len) throws IOException {
+		if (this.readBuffer == null) {
+			this.readBuffer = this.buffers.acquire();
+			this.readBuffer.flip();
+		}
+		
+		if (!this.readBuffer.hasRemaining()) {
+			if (len >= this.readBuffer.capacity()) {
+				// nothing to gain from staging
+				final int n = response.read(this.replayPosition, ByteBuffer.wrap(b, off, len));
+				if (n > 0) {
+					this.replayPosition += n;
+					this.metrics.recordCacheBytes(n);
+				}
+				return n;
+			}
+			
+			this.readBuffer.clear();
+			final int read;
+			try {
+				read = response.read(this.replayPosition, this.readBuffer);
+			} finally {
+				this.readBuffer.flip();
+			}
+			if (read < 0) {
+				return -1;
+			}
+			this.replayPosition += read;
+			this.metrics.recordCacheBytes(read);
+		}
+		
+		final int n = Math.min(len, this.readBuffer.remaining());
+		this.readBuffer.get(b, off, n);
+		this.buffered = this.readBuffer.remaining();
+		return n;
+	}
+	
+	/**
+	 * Reads from upstream through {@link #readBuffer}, recording what is read. Has to be called with {@link #readLock}
+	 * held.
+	 *
+	 * @param b
+	 *            the buffer
+	 * @param off
+	 *            the offset
+	 * @param len
+	 *            the length
+	 * @return the number of bytes read or -1 at end of stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private int readUpstream(final byte[] b,
+	                         final int off,
+	                         final int len) throws IOException {
+		if (this.readBuffer == null) {
+			this.readBuffer = this.buffers.acquire();
+			this.readBuffer.flip();
+		}
+		
+		if (!this.readBuffer.hasRemaining()) {
+			this.readBuffer.clear();
+			final int read;
+			this.awaiting = true;
+			try {
+				flushBeforeRead();
+				read = this.upstream.read(this.readBuffer, this.soTimeout);
+			} finally {
+				this.awaiting = false;
+				this.readBuffer.flip();
+			}
+			
+			if (read < 0) {
+				if (isTruncated()) {
+					// the remote end closed the connection within the response
+					synchronized (this) {
+						abortRecording();
+					}
+				} else {
+					commitRecording();
+				}
+				return -1;
+			}
+			if (this.forwarded != 0) {
+				this.metrics.recordFirstByte(this.remote.getHostString(), System.nanoTime() - this.forwarded);
+				this.forwarded = 0;
+			}
+			this.metrics.recordUpstreamBytes(read);
+			if (record(this.readBuffer)) {
+				commitRecording();
+			}
 		}
+		
+		final int n = Math.min(len, this.readBuffer.remaining());
+		this.readBuffer.get(b, off, n);
+		this.buffered = this.readBuffer.remaining();
+		return n;
+	}
+	
+	/**
+	 * Appends bytes read from upstream to the recording and follows the framing of the response.
+	 *
+	 * @param data
+	 *            the data; its position is not changed
+	 * @return true, if the recording is complete with these bytes and has to be committed
+	 */
+	private synchronized boolean record(final ByteBuffer data) {
+		final boolean complete = (this.framing != null) && this.framing.update(data);
+		if (this.recording != null) {
+			if ((this.recording.size() + data.remaining()) > MAX_RESPONSE_SIZE) {
+				if (Logger.logDebug()) {
+					Logger.debug("Response exceeds " + MAX_RESPONSE_SIZE + " bytes, not caching " + this.key); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				abortRecording();
+			} else {
+				try {
+					this.recording.append(data);
+				} catch (final IOException e) {
+					if (Logger.logWarn()) {
+						Logger.warn("Could not record response for " + this.key + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+					abortRecording();
+				}
+			}
+		}
+		return complete && (this.recording != null);
 	}
 	
 	/*
@@ -275,7 +1333,15 @@ public class CachingSocketImpl extends SocketImpl {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
+			final Upstream connection;
+			synchronized (this) {
+				ensureOpen();
+				connection = this.upstream;
+			}
+			if (connection == null) {
+				throw new SocketException("Urgent data not supported before the connection has been established"); //$NON-NLS-1$
+			}
+			connection.channel().socket().sendUrgentData(data);
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -286,14 +1352,146 @@ public class CachingSocketImpl extends SocketImpl {
 	 * @see java.net.SocketOptions#setOption(int, java.lang.Object)
 	 */
 	@Override
-	public void setOption(final int optID,
-	                      final Object value) throws SocketException {
+	public synchronized void setOption(final int optID,
+	                                   final Object value) throws SocketException {
 		// PRECONDITIONS
 		
 		try {
-			// TODO Auto-generated method stub
+			if (this.closed) {
+				throw new SocketException("Socket closed"); //$NON-NLS-1$
+			}
+			if (this.upstream != null) {
+				applyOption(this.upstream.channel().socket(), optID, value);
+			}
+			if (optID == SO_TIMEOUT) {
+				this.soTimeout = (Integer) value;
+			}
+			this.options.put(optID, value);
 		} finally {
 			// POSTCONDITIONS
 		}
 	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.SocketImpl#shutdownInput()
+	 */
+	@Override
+	protected synchronized void shutdownInput() throws IOException {
+		ensureOpen();
+		abortRecording();
+		if (this.upstream != null) {
+			this.upstream.channel().socket().shutdownInput();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.SocketImpl#shutdownOutput()
+	 */
+	@Override
+	protected void shutdownOutput() throws IOException {
+		// writers take the monitor while holding the write lock, never the other way around
+		this.writeLock.lock();
+		try {
+			flushWrites();
+		} finally {
+			this.writeLock.unlock();
+		}
+		
+		synchronized (this) {
+			awaitLookup();
+			if (this.mode == Mode.REQUEST) {
+				// the client told us the request is complete; we cannot wait for other sockets while holding the
+				// monitor
+				finishRequest(false);
+			}
+			if (this.upstream != null) {
+				this.upstream.channel().socket().shutdownOutput();
+			}
+		}
+	}
+	
+	/**
+	 * Determines where the client reads from and switches modes accordingly. Has to be called with {@link #readLock}
+	 * held.
+	 *
+	 * @return the replayed response or <code>null</code> if the client reads from upstream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private CachedResponse source() throws IOException {
+		final RequestCoalescer.Flight flight;
+		synchronized (this) {
+			ensureOpen();
+			switch (this.mode) {
+				case IDLE:
+					// the server talks first; we cannot know what we would be replaying
+					connectUpstream();
+					this.mode = Mode.PASSTHROUGH;
+					return null;
+				case REQUEST:
+					flight = finishRequest(true);
+					if (flight == null) {
+						return this.replay;
+					}
+					break;
+				case REPLAY:
+					return this.replay;
+				default:
+					return null;
+			}
+		}
+		
+		// another socket is fetching the same response
+		awaitFlight(flight);
+		
+		synchronized (this) {
+			ensureOpen();
+			finishRequest(false);
+			return this.replay;
+		}
+	}
+	
+	/**
+	 * Appends to {@link #writeBuffer}, which is sent upstream whenever it is full and otherwise as the flush policy
+	 * says. Has to be called with {@link #writeLock} held.
+	 *
+	 * @param b
+	 *            the buffer
+	 * @param off
+	 *            the offset
+	 * @param len
+	 *            the length
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeUpstream(final byte[] b,
+	                           final int off,
+	                           final int len) throws IOException {
+		if (this.writeBuffer == null) {
+			synchronized (this) {
+				ensureOpen();
+			}
+			this.writeBuffer = this.buffers.acquire();
+		}
+		
+		int offset = off;
+		final int end = off + len;
+		while (offset < end) {
+			if (!this.writeBuffer.hasRemaining()) {
+				flushWrites();
+			}
+			final int n = Math.min(end - offset, this.writeBuffer.remaining());
+			this.writeBuffer.put(b, offset, n);
+			offset += n;
+			this.unflushed = this.writeBuffer.position();
+		}
+		
+		// a read blocked on upstream will not send what we append
+		if ((this.flushPolicy == FlushPolicy.IMMEDIATE)
+		        || ((this.flushPolicy == FlushPolicy.BEFORE_READ) && this.awaiting)) {
+			flushWrites();
+		}
+	}
 }
@@ -12,27 +12,216 @@
  ******************************************************************************/
 package net.ownhero.dev.ioda.sockets;
 
-import java.net.SocketImpl;
+import java.io.File;
+import java.io.IOException;
 import java.net.SocketImplFactory;
 import java.util.LinkedList;
+import java.util.Locale;
 
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
 import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
 
 /**
- * A factory for creating CachingSocketImpl objects.
+ * A factory for creating CachingSocketImpl objects. All sockets created by one factory share the factory's
+ * {@link ResponseStore}, so a response recorded by one socket is replayed by every other, and a
+ * {@link RequestCoalescer}, so identical requests that miss at the same time go upstream only once.
+ * 
+ * The factory's {@link CachingRules} decide which connections are cached at all; connections they exclude bypass the
+ * cache. Installing the factory with {@link java.net.Socket#setSocketImplFactory(SocketImplFactory)} affects every
+ * socket of the JVM and can only be done once; use a {@link ReplayingSocketFactory} to cache only the connections of
+ * selected clients.
  *
  * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
  */
 public class CachingSocketImplFactory implements SocketImplFactory {
 	
+	/** The system property that overrides the default cache directory. */
+	public static final String DIRECTORY_PROPERTY       = "ioda.sockets.cache";        //$NON-NLS-1$
+	
+	/** The system property that overrides the heap budget of the default store in bytes. */
+	public static final String HEAP_BUDGET_PROPERTY     = "ioda.sockets.cache.heap";   //$NON-NLS-1$
+	
+	/** The system property that overrides the off-heap budget of the default store in bytes. */
+	public static final String OFF_HEAP_BUDGET_PROPERTY = "ioda.sockets.cache.offheap"; //$NON-NLS-1$
+	
+	/** The system property that overrides the disk budget of the default store in bytes. */
+	public static final String DISK_BUDGET_PROPERTY     = "ioda.sockets.cache.disk";   //$NON-NLS-1$
+	
+	/** The system property that selects the {@link FlushPolicy} of the created sockets by name. */
+	public static final String FLUSH_POLICY_PROPERTY    = "ioda.sockets.flush";        //$NON-NLS-1$
+	
+	/** The system property that sets the default {@link CachingRules}, see {@link CachingRules#parse(String)}. */
+	public static final String RULES_PROPERTY           = "ioda.sockets.rules";        //$NON-NLS-1$
+	
+	/**
+	 * Gets the default cache directory: the value of {@link #DIRECTORY_PROPERTY} or <code>ioda-socket-cache</code> in
+	 * the temporary directory.
+	 *
+	 * @return the default directory
+	 */
+	public static File getDefaultDirectory() {
+		final String path = System.getProperty(DIRECTORY_PROPERTY);
+		return path != null
+		                   ? new File(path)
+		                   : new File(System.getProperty("java.io.tmpdir"), "ioda-socket-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	/**
+	 * Gets the default flush policy: the one named by {@link #FLUSH_POLICY_PROPERTY} or
+	 * {@link FlushPolicy#BEFORE_READ} if the property is not set or does not name a policy.
+	 *
+	 * @return the default flush policy
+	 */
+	public static FlushPolicy getDefaultFlushPolicy() {
+		final String name = System.getProperty(FLUSH_POLICY_PROPERTY);
+		if (name != null) {
+			try {
+				return FlushPolicy.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+			} catch (final IllegalArgumentException e) {
+				if (Logger.logWarn()) {
+					Logger.warn("Ignoring unknown flush policy '" + name + "' in " + FLUSH_POLICY_PROPERTY //$NON-NLS-1$ //$NON-NLS-2$
+					        + ", using " + FlushPolicy.BEFORE_READ); //$NON-NLS-1$
+				}
+			}
+		}
+		return FlushPolicy.BEFORE_READ;
+	}
+	
 	/**
-	 * Instantiates a new caching socket impl factory.
+	 * Gets the default rules: the value of {@link #RULES_PROPERTY} or rules caching every connection. Rules that cannot
+	 * be parsed cache nothing, since they may have been meant to exclude connections that must never be cached.
+	 *
+	 * @return the default rules
 	 */
-	public CachingSocketImplFactory() {
+	public static CachingRules getDefaultRules() {
+		final String spec = System.getProperty(RULES_PROPERTY);
+		if (spec == null) {
+			return CachingRules.all();
+		}
+		try {
+			return CachingRules.parse(spec);
+		} catch (final IllegalArgumentException e) {
+			if (Logger.logWarn()) {
+				Logger.warn("Ignoring invalid caching rules in " + RULES_PROPERTY + ", caching nothing: " //$NON-NLS-1$ //$NON-NLS-2$
+				        + e.getMessage());
+			}
+			return new CachingRules();
+		}
+	}
+	
+	/**
+	 * Creates the default store in the given directory.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 * @param rules
+	 *            the rules assigning the time to live of entries
+	 * @return the store
+	 * @throws IOException
+	 *             if the cache directory cannot be created
+	 */
+	private static ResponseStore createDefaultStore(final File directory,
+	                                                final CachingRules rules) throws IOException {
+		final ResponseStore disk = new SegmentResponseStore(directory, SegmentResponseStore.DEFAULT_SEGMENT_SIZE,
+		                                                    Long.getLong(DISK_BUDGET_PROPERTY,
+		                                                                 SegmentResponseStore.DEFAULT_MAX_SIZE));
+		final ResponseStore chunked = new DeduplicatingResponseStore(new CompressingResponseStore(disk));
+		final ResponseStore tiered = new TieredResponseStore(chunked, Long.getLong(HEAP_BUDGET_PROPERTY,
+		                                                                           TieredResponseStore.DEFAULT_HEAP_BUDGET),
+		                                                     Long.getLong(OFF_HEAP_BUDGET_PROPERTY,
+		                                                                  TieredResponseStore.DEFAULT_OFF_HEAP_BUDGET));
+		return new ExpiringResponseStore(tiered, rules);
+	}
+	
+	/** The store shared by all created sockets. */
+	private final ResponseStore    store;
+	
+	/** The coalescer shared by all created sockets. */
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+	
+	/** The metrics all created sockets report to. */
+	private final SocketMetrics    metrics   = SocketMetrics.getShared();
+	
+	/** The flush policy of all created sockets. */
+	private final FlushPolicy      flushPolicy;
+	
+	/** The rules deciding which connections are cached. */
+	private final CachingRules     rules;
+	
+	/**
+	 * Instantiates a new caching socket impl factory using the default store in the {@link #getDefaultDirectory()
+	 * default directory}.
+	 *
+	 * @throws IOException
+	 *             if the cache directory cannot be created
+	 */
+	public CachingSocketImplFactory() throws IOException {
+		this(getDefaultDirectory());
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl factory using the default store: a {@link TieredResponseStore} in front of
+	 * a {@link SegmentResponseStore} in the given directory. Entries are split into shared chunks by a
+	 * {@link DeduplicatingResponseStore} and compressed by a {@link CompressingResponseStore} before they are written
+	 * to disk. The budgets of the tiers can be set with {@link #HEAP_BUDGET_PROPERTY},
+	 * {@link #OFF_HEAP_BUDGET_PROPERTY} and {@link #DISK_BUDGET_PROPERTY}. Connections are cached according to the
+	 * {@link #getDefaultRules() default rules}.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 * @throws IOException
+	 *             if the cache directory cannot be created
+	 */
+	public CachingSocketImplFactory(@NotNull final File directory) throws IOException {
+		this(directory, getDefaultRules());
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl factory using the default store in the given directory, see
+	 * {@link #CachingSocketImplFactory(File)}. Entries expire after the time to live the rules assign to them.
+	 *
+	 * @param directory
+	 *            the cache directory
+	 * @param rules
+	 *            the rules deciding which connections are cached
+	 * @throws IOException
+	 *             if the cache directory cannot be created
+	 */
+	public CachingSocketImplFactory(@NotNull final File directory, @NotNull final CachingRules rules)
+	        throws IOException {
+		this(createDefaultStore(directory, rules), rules);
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl factory that caches connections according to the
+	 * {@link #getDefaultRules() default rules}.
+	 *
+	 * @param store
+	 *            the store shared by all created sockets
+	 */
+	public CachingSocketImplFactory(@NotNull final ResponseStore store) {
+		this(store, getDefaultRules());
+	}
+	
+	/**
+	 * Instantiates a new caching socket impl factory. Wrap the store in an {@link ExpiringResponseStore} with the same
+	 * rules to expire entries.
+	 *
+	 * @param store
+	 *            the store shared by all created sockets
+	 * @param rules
+	 *            the rules deciding which connections are cached
+	 */
+	public CachingSocketImplFactory(@NotNull final ResponseStore store, @NotNull final CachingRules rules) {
 		// PRECONDITIONS
+		Condition.notNull(store, "Argument '%s' in '%s'.", "store", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(rules, "Argument '%s' in '%s'.", "rules", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
 		
 		try {
-			// stub
+			this.store = store;
+			this.rules = rules;
+			this.flushPolicy = getDefaultFlushPolicy();
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -43,11 +232,12 @@ public class CachingSocketImplFactory implements SocketImplFactory {
 	 * @see java.net.SocketImplFactory#createSocketImpl()
 	 */
 	@Override
-	public SocketImpl createSocketImpl() {
+	public CachingSocketImpl createSocketImpl() {
 		// PRECONDITIONS
 		
 		try {
-			return new CachingSocketImpl();
+			return new CachingSocketImpl(this.store, BufferPool.getShared(), this.coalescer, this.metrics,
+			                             this.flushPolicy, this.rules);
 		} finally {
 			// POSTCONDITIONS
 		}
@@ -87,4 +277,49 @@ public class CachingSocketImplFactory implements SocketImplFactory {
 			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 		}
 	}
+	
+	/**
+	 * Gets the coalescer shared by all created sockets.
+	 *
+	 * @return the coalescer
+	 */
+	public RequestCoalescer getCoalescer() {
+		return this.coalescer;
+	}
+	
+	/**
+	 * Gets the flush policy of all created sockets, see {@link #getDefaultFlushPolicy()}.
+	 *
+	 * @return the flush policy
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return this.flushPolicy;
+	}
+	
+	/**
+	 * Gets the metrics all created sockets report to.
+	 *
+	 * @return the metrics
+	 */
+	public SocketMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Gets the rules deciding which connections are cached. Rules added later apply to sockets connected afterwards.
+	 *
+	 * @return the rules
+	 */
+	public CachingRules getRules() {
+		return this.rules;
+	}
+	
+	/**
+	 * Gets the store shared by all created sockets.
+	 *
+	 * @return the store
+	 */
+	public ResponseStore getStore() {
+		return this.store;
+	}
 }
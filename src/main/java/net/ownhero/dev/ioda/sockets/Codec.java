@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+
+/**
+ * The codecs a {@link CompressingResponseStore} can apply to an entry. {@link #DEFLATE} is cheap enough to be used for
+ * every entry that is written; {@link #LZMA} compresses text considerably better at a much higher cost and is meant
+ * for entries that are archived rather than replayed often.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public enum Codec {
+	
+	/** Stores the payload as is. */
+	NONE((byte) 0) {
+		
+		@Override
+		void decode(final InputStream in,
+		            final long length,
+		            final OutputStream out) throws IOException {
+			copy(in, length, out);
+		}
+		
+		@Override
+		void encode(final InputStream in,
+		            final long length,
+		            final OutputStream out) throws IOException {
+			copy(in, length, out);
+		}
+	},
+	
+	/** zlib deflate at the fastest level. */
+	DEFLATE((byte) 1) {
+		
+		@Override
+		void decode(final InputStream in,
+		            final long length,
+		            final OutputStream out) throws IOException {
+			final Inflater inflater = new Inflater();
+			try {
+				copy(new InflaterInputStream(in, inflater, BUFFER_SIZE), length, out);
+			} finally {
+				inflater.end();
+			}
+		}
+		
+		@Override
+		void encode(final InputStream in,
+		            final long length,
+		            final OutputStream out) throws IOException {
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				final DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+				copy(in, length, deflating);
+				deflating.finish();
+			} finally {
+				deflater.end();
+			}
+		}
+	},
+	
+	/** LZMA with an 8 MiB dictionary, using the lzma-java SDK coder directly. */
+	LZMA((byte) 2) {
+		
+		@Override
+		void decode(final InputStream in,
+		            final long length,
+		            final OutputStream out) throws IOException {
+			final byte[] properties = new byte[Encoder.kPropSize];
+			int read = 0;
+			while (read < properties.length) {
+				final int n = in.read(properties, read, properties.length - read);
+				if (n < 0) {
+					throw new EOFException("Truncated LZMA header"); //$NON-NLS-1$
+				}
+				read += n;
+			}
+			
+			final Decoder decoder = new Decoder();
+			if (!decoder.setDecoderProperties(properties) || !decoder.code(in, out, length)) {
+				throw new IOException("Corrupt LZMA stream"); //$NON-NLS-1$
+			}
+		}
+		
+		@Override
+		void encode(final InputStream in,
+		            final long length,
+		            final OutputStream out) throws IOException {
+			final Encoder encoder = new Encoder();
+			encoder.setDictionarySize(LZMA_DICTIONARY_SIZE);
+			encoder.setEndMarkerMode(false);
+			encoder.writeCoderProperties(out);
+			encoder.code(in, out, length, -1, null);
+		}
+	};
+	
+	/** The size of the buffers used while coding. */
+	private static final int BUFFER_SIZE          = 64 * 1024;
+	
+	/** The LZMA dictionary size. */
+	private static final int LZMA_DICTIONARY_SIZE = 1 << 23;
+	
+	/**
+	 * Copies exactly the given number of bytes.
+	 *
+	 * @param in
+	 *            the in
+	 * @param length
+	 *            the length
+	 * @param out
+	 *            the out
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void copy(final InputStream in,
+	                         final long length,
+	                         final OutputStream out) throws IOException {
+		final byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+		long remaining = length;
+		while (remaining > 0) {
+			final int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0) {
+				throw new EOFException("Stream ended " + remaining + " bytes early"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			out.write(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+	
+	/**
+	 * Gets the codec with the given id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the codec
+	 * @throws IOException
+	 *             if the id is unknown
+	 */
+	static Codec forId(final byte id) throws IOException {
+		for (final Codec codec : values()) {
+			if (codec.id == id) {
+				return codec;
+			}
+		}
+		throw new IOException("Unknown codec: " + id); //$NON-NLS-1$
+	}
+	
+	/** The id written to the entry header. */
+	private final byte id;
+	
+	/**
+	 * Instantiates a new codec.
+	 *
+	 * @param id
+	 *            the id
+	 */
+	private Codec(final byte id) {
+		this.id = id;
+	}
+	
+	/**
+	 * Decodes a payload.
+	 *
+	 * @param in
+	 *            the encoded payload
+	 * @param length
+	 *            the length of the decoded payload
+	 * @param out
+	 *            receives the decoded payload
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	abstract void decode(InputStream in,
+	                     long length,
+	                     OutputStream out) throws IOException;
+	
+	/**
+	 * Encodes a payload.
+	 *
+	 * @param in
+	 *            the payload
+	 * @param length
+	 *            the length of the payload
+	 * @param out
+	 *            receives the encoded payload
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	abstract void encode(InputStream in,
+	                     long length,
+	                     OutputStream out) throws IOException;
+	
+	/**
+	 * Gets the id written to the entry header.
+	 *
+	 * @return the id
+	 */
+	byte getId() {
+		return this.id;
+	}
+}
@@ -0,0 +1,446 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * A {@link ResponseStore} that compresses entries before handing them to another store. Every entry carries a small
+ * header naming its {@link Codec}, so the codec can be chosen per entry: new entries are written with the store's
+ * default codec (fast {@link Codec#DEFLATE} unless configured otherwise) and cold entries can be rewritten with
+ * {@link Codec#LZMA} through {@link #recompress(CacheKey, Codec)}.
+ * 
+ * Payloads that are already compressed are stored as is. They are recognized by the magic bytes of common compressed
+ * formats, either at the start of the payload or, for HTTP responses, at the start of the body, and by a
+ * <code>Content-Encoding</code> header. Entries written without a header, e.g. by an earlier version, are returned
+ * unchanged.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CompressingResponseStore implements ResponseStore, Closeable {
+	
+	/** Marks entries written by this store ("IODZ"). */
+	static final int              MAGIC       = 0x494f445a;
+	
+	/** The size of the entry header: magic, codec and decoded length. */
+	static final int              HEADER      = 13;
+	
+	/** The number of leading bytes inspected to detect compressed payloads. */
+	static final int              SNIFF_SIZE  = 4096;
+	
+	/** Payloads smaller than this are not worth compressing. */
+	private static final int      MIN_SIZE    = 256;
+	
+	/** The charset of HTTP headers. */
+	private static final Charset  ASCII       = Charset.forName("US-ASCII"); //$NON-NLS-1$
+	
+	/** The magic bytes of formats that do not compress any further. */
+	private static final byte[][] COMPRESSED  = new byte[][] { { 0x1f, (byte) 0x8b }, // gzip
+	        { 0x50, 0x4b, 0x03, 0x04 }, // zip, jar
+	        { 0x42, 0x5a, 0x68 }, // bzip2
+	        { (byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00 }, // xz
+	        { 0x37, 0x7a, (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c }, // 7z
+	        { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, // zstd
+	        { (byte) 0x89, 0x50, 0x4e, 0x47 }, // png
+	        { (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // jpeg
+	        { 0x47, 0x49, 0x46, 0x38 }, // gif
+	                                          };
+	
+	/**
+	 * Checks whether the payload starting with the given bytes is compressed already.
+	 *
+	 * @param prefix
+	 *            the first bytes of the payload
+	 * @return true, if the payload should be stored as is
+	 */
+	static boolean isCompressed(final byte[] prefix) {
+		if (startsWithMagic(prefix, 0)) {
+			return true;
+		}
+		
+		final String head = new String(prefix, ASCII);
+		if (!head.startsWith("HTTP/")) { //$NON-NLS-1$
+			return false;
+		}
+		final int end = head.indexOf("\r\n\r\n"); //$NON-NLS-1$
+		final String headers = (end < 0
+		                                ? head
+		                                : head.substring(0, end)).toLowerCase(Locale.ENGLISH);
+		for (final String line : headers.split("\r\n")) { //$NON-NLS-1$
+			if (line.startsWith("content-encoding:") && !line.endsWith("identity")) { //$NON-NLS-1$ //$NON-NLS-2$
+				return true;
+			}
+		}
+		return (end >= 0) && startsWithMagic(prefix, end + 4);
+	}
+	
+	/**
+	 * Checks whether one of the {@link #COMPRESSED} magics is found at the offset.
+	 *
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the offset
+	 * @return true, if a magic matches
+	 */
+	private static boolean startsWithMagic(final byte[] data,
+	                                       final int offset) {
+		for (final byte[] magic : COMPRESSED) {
+			if ((offset + magic.length) <= data.length) {
+				int i = 0;
+				while ((i < magic.length) && (data[offset + i] == magic[i])) {
+					++i;
+				}
+				if (i == magic.length) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/** The store the encoded entries are kept in. */
+	private final ResponseStore delegate;
+	
+	/** The codec new entries are written with. */
+	private final Codec         codec;
+	
+	/** The buffers encoded entries are staged in. */
+	private final BufferPool    buffers;
+	
+	/**
+	 * Instantiates a new compressing response store that writes new entries with {@link Codec#DEFLATE}.
+	 *
+	 * @param delegate
+	 *            the store the encoded entries are kept in
+	 */
+	public CompressingResponseStore(@NotNull final ResponseStore delegate) {
+		this(delegate, Codec.DEFLATE);
+	}
+	
+	/**
+	 * Instantiates a new compressing response store.
+	 *
+	 * @param delegate
+	 *            the store the encoded entries are kept in
+	 * @param codec
+	 *            the codec new entries are written with
+	 */
+	public CompressingResponseStore(@NotNull final ResponseStore delegate, @NotNull final Codec codec) {
+		// PRECONDITIONS
+		Condition.notNull(delegate, "Argument '%s' in '%s'.", "delegate", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(codec, "Argument '%s' in '%s'.", "codec", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.delegate = delegate;
+			this.codec = codec;
+			this.buffers = BufferPool.getShared();
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.delegate instanceof Closeable) {
+			((Closeable) this.delegate).close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean contains(final CacheKey key) throws IOException {
+		return this.delegate.contains(key);
+	}
+	
+	/**
+	 * Decodes a stored entry.
+	 *
+	 * @param stored
+	 *            the stored entry
+	 * @param codec
+	 *            the codec
+	 * @param length
+	 *            the decoded length
+	 * @return the decoded response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private CachedResponse decode(final CachedResponse stored,
+	                              final Codec codec,
+	                              final long length) throws IOException {
+		final ResponseBuilder builder = new ResponseBuilder(length);
+		try {
+			codec.decode(new ResponseInputStream(stored, HEADER), length, builder);
+			return builder.build();
+		} finally {
+			builder.close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public CachedResponse get(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final CachedResponse stored = this.delegate.get(key);
+			if (stored == null) {
+				return null;
+			}
+			
+			boolean handedOut = false;
+			try {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER);
+				while (header.hasRemaining() && (stored.read(header.position(), header) >= 0)) {
+					// fill the header
+				}
+				if (header.hasRemaining() || (header.getInt(0) != MAGIC)) {
+					// written without a header
+					handedOut = true;
+					return stored;
+				}
+				
+				final Codec entryCodec = Codec.forId(header.get(4));
+				final long length = header.getLong(5);
+				if (entryCodec == Codec.NONE) {
+					handedOut = true;
+					return new OffsetResponse(stored, HEADER, length);
+				}
+				return decode(stored, entryCodec, length);
+			} finally {
+				if (!handedOut) {
+					stored.close();
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the codec new entries are written with.
+	 *
+	 * @return the codec
+	 */
+	public Codec getCodec() {
+		return this.codec;
+	}
+	
+	/**
+	 * Gets the store the encoded entries are kept in.
+	 *
+	 * @return the delegate
+	 */
+	public ResponseStore getDelegate() {
+		return this.delegate;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+	 * java.nio.channels.ReadableByteChannel, long)
+	 */
+	@Override
+	public void put(final CacheKey key,
+	                final ReadableByteChannel payload,
+	                final long length) throws IOException {
+		put(key, payload, length, this.codec);
+	}
+	
+	/**
+	 * Stores an entry with the given codec, unless the payload is compressed already.
+	 *
+	 * @param key
+	 *            the key
+	 * @param payload
+	 *            the payload
+	 * @param length
+	 *            the length of the payload
+	 * @param codec
+	 *            the codec
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void put(@NotNull final CacheKey key,
+	                @NotNull final ReadableByteChannel payload,
+	                final long length,
+	                @NotNull final Codec codec) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(payload, "Argument '%s' in '%s'.", "payload", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(codec, "Argument '%s' in '%s'.", "codec", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final byte[] prefix = new byte[(int) Math.min(SNIFF_SIZE, length)];
+			final ByteBuffer sniffed = ByteBuffer.wrap(prefix);
+			while (sniffed.hasRemaining()) {
+				if (payload.read(sniffed) < 0) {
+					throw new EOFException("Response for " + key + " ended after " + sniffed.position() + " of " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					        + length + " bytes"); //$NON-NLS-1$
+				}
+			}
+			
+			final Codec entryCodec = (length < MIN_SIZE) || isCompressed(prefix)
+			                                                                    ? Codec.NONE
+			                                                                    : codec;
+			final ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).put(entryCodec.getId()).putLong(length).flip();
+			
+			final BoundedInputStream rest = new BoundedInputStream(Channels.newInputStream(payload), length
+			        - prefix.length);
+			rest.setPropagateClose(false);
+			final InputStream in = new SequenceInputStream(new ByteArrayInputStream(prefix), rest);
+			
+			if (entryCodec == Codec.NONE) {
+				this.delegate.put(key,
+				                  Channels.newChannel(new SequenceInputStream(new ByteArrayInputStream(header.array()),
+				                                                              in)), HEADER + length);
+				return;
+			}
+			
+			final Recording recording = new Recording(this.buffers);
+			try {
+				recording.append(header);
+				final OutputStream out = new BufferedOutputStream(new OutputStream() {
+					
+					@Override
+					public void write(final byte[] b,
+					                  final int off,
+					                  final int len) throws IOException {
+						recording.append(ByteBuffer.wrap(b, off, len));
+					}
+					
+					@Override
+					public void write(final int b) throws IOException {
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+				}, SNIFF_SIZE);
+				entryCodec.encode(in, length, out);
+				out.flush();
+				this.delegate.put(key, recording, recording.size());
+			} finally {
+				recording.close();
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Rewrites an entry with another codec, e.g. {@link Codec#LZMA} for entries that are rarely replayed.
+	 *
+	 * @param key
+	 *            the key
+	 * @param codec
+	 *            the codec
+	 * @return true, if the entry exists
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public boolean recompress(@NotNull final CacheKey key,
+	                          @NotNull final Codec codec) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(codec, "Argument '%s' in '%s'.", "codec", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final CachedResponse response = get(key);
+			if (response == null) {
+				return false;
+			}
+			try {
+				put(key, Channels.newChannel(new ResponseInputStream(response, 0)), response.getSize(), codec);
+				return true;
+			} finally {
+				response.close();
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean remove(final CacheKey key) throws IOException {
+		return this.delegate.remove(key);
+	}
+}
@@ -0,0 +1,500 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A {@link ResponseStore} that splits responses into content-defined chunks and keeps every distinct chunk only once.
+ * Chunks are stored in another store under the SHA-1 of their content; the entry of a response becomes a manifest
+ * listing its chunks, from which the response is reassembled on {@link #get(CacheKey)}.
+ * 
+ * Chunk boundaries are chosen by a gear rolling hash (as in FastCDC), so responses that share a large body but differ
+ * in their headers or in a few bytes still share all chunks except the ones around the differences.
+ * 
+ * If the chunks are kept in a {@link CompressingResponseStore}, whether to compress is decided once per response from
+ * its first bytes: the chunks and the manifest of a response that is compressed already are stored as is, all other
+ * chunks with the codec of that store. A chunk is only stored if the chunk store does not
+ * {@link ResponseStore#contains(CacheKey) contain} it yet, which does not decode the present chunk.
+ * 
+ * Chunks are not reference counted: removing an entry only drops its manifest, unreferenced chunks stay until the
+ * chunk store evicts them. If a chunk of a manifest has been evicted, the entry is dropped and reported as a miss.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class DeduplicatingResponseStore implements ResponseStore, Closeable {
+	
+	/** Marks manifests written by this store ("IODC"). */
+	static final int            MAGIC       = 0x494f4443;
+	
+	/** The size of the manifest header: magic, response length and number of chunks. */
+	static final int            HEADER      = 16;
+	
+	/** The size of a manifest entry: the chunk digest and the chunk length. */
+	static final int            ENTRY       = 24;
+	
+	/** The minimum size of a chunk. */
+	static final int            MIN_CHUNK   = 2 * 1024;
+	
+	/** The size chunks are normalized to. */
+	static final int            AVG_CHUNK   = 8 * 1024;
+	
+	/** The maximum size of a chunk. */
+	static final int            MAX_CHUNK   = 64 * 1024;
+	
+	/** The cut mask used below {@link #AVG_CHUNK}; makes cuts less likely. */
+	private static final long   MASK_SMALL  = (1L << 15) - 1;
+	
+	/** The cut mask used above {@link #AVG_CHUNK}; makes cuts more likely. */
+	private static final long   MASK_LARGE  = (1L << 11) - 1;
+	
+	/** The host of the keys chunks are stored under. */
+	private static final String CHUNK_HOST  = "chunk.ioda"; //$NON-NLS-1$
+	
+	/** The gear table of the rolling hash; fixed, so chunk boundaries are stable across runs. */
+	private static final long[] GEAR        = new long[256];
+	
+	static {
+		final Random random = new Random(0x10dac4e5L);
+		for (int i = 0; i < GEAR.length; ++i) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+	
+	/**
+	 * Finds the end of the first chunk in the given data.
+	 *
+	 * @param data
+	 *            the data
+	 * @param length
+	 *            the number of valid bytes, at most {@link #MAX_CHUNK}
+	 * @return the length of the first chunk
+	 */
+	static int cut(final byte[] data,
+	               final int length) {
+		if (length <= MIN_CHUNK) {
+			return length;
+		}
+		
+		long hash = 0;
+		int i = MIN_CHUNK;
+		final int normal = Math.min(AVG_CHUNK, length);
+		for (; i < normal; ++i) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if ((hash & MASK_SMALL) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < length; ++i) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if ((hash & MASK_LARGE) == 0) {
+				return i + 1;
+			}
+		}
+		return length;
+	}
+	
+	/** The store chunks and manifests are kept in. */
+	private final ResponseStore delegate;
+	
+	/** The number of chunk bytes written to the delegate. */
+	private final AtomicLong    storedBytes = new AtomicLong();
+	
+	/** The number of chunk bytes that were found in the delegate already. */
+	private final AtomicLong    sharedBytes = new AtomicLong();
+	
+	/**
+	 * Instantiates a new deduplicating response store.
+	 *
+	 * @param delegate
+	 *            the store chunks and manifests are kept in
+	 */
+	public DeduplicatingResponseStore(@NotNull final ResponseStore delegate) {
+		// PRECONDITIONS
+		Condition.notNull(delegate, "Argument '%s' in '%s'.", "delegate", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.delegate = delegate;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.delegate instanceof Closeable) {
+			((Closeable) this.delegate).close();
+		}
+	}
+	
+	/**
+	 * Chooses the codec of the chunks of a response if the chunks are kept in a {@link CompressingResponseStore}.
+	 *
+	 * @param data
+	 *            the buffer holding the start of the response
+	 * @param length
+	 *            the number of valid bytes
+	 * @return the codec or <code>null</code> if the delegate does not compress
+	 */
+	private Codec codec(final byte[] data,
+	                    final int length) {
+		if (!(this.delegate instanceof CompressingResponseStore)) {
+			return null;
+		}
+		if (CompressingResponseStore.isCompressed(Arrays.copyOf(data, Math.min(length,
+		                                                                       CompressingResponseStore.SNIFF_SIZE)))) {
+			return Codec.NONE;
+		}
+		return ((CompressingResponseStore) this.delegate).getCodec();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean contains(final CacheKey key) throws IOException {
+		return this.delegate.contains(key);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public CachedResponse get(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final CachedResponse stored = this.delegate.get(key);
+			if (stored == null) {
+				return null;
+			}
+			
+			final ByteBuffer manifest;
+			boolean handedOut = false;
+			try {
+				final long size = stored.getSize();
+				final ByteBuffer header = ByteBuffer.allocate(HEADER);
+				read(stored, header);
+				if (header.hasRemaining() || (header.getInt(0) != MAGIC) || (size > Integer.MAX_VALUE)
+				        || (size != (HEADER + ((long) header.getInt(12) * ENTRY)))) {
+					// written without a manifest
+					handedOut = true;
+					return stored;
+				}
+				
+				manifest = ByteBuffer.allocate((int) size);
+				read(stored, manifest);
+				if (manifest.hasRemaining()) {
+					throw new EOFException("Manifest of " + key + " ended after " + manifest.position() + " of " + size //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					        + " bytes"); //$NON-NLS-1$
+				}
+			} finally {
+				if (!handedOut) {
+					stored.close();
+				}
+			}
+			
+			return reassemble(key, manifest);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the store chunks and manifests are kept in.
+	 *
+	 * @return the delegate
+	 */
+	public ResponseStore getDelegate() {
+		return this.delegate;
+	}
+	
+	/**
+	 * Gets the number of chunk bytes that did not have to be stored since an identical chunk was present.
+	 *
+	 * @return the shared bytes
+	 */
+	public long getSharedBytes() {
+		return this.sharedBytes.get();
+	}
+	
+	/**
+	 * Gets the number of chunk bytes written to the delegate.
+	 *
+	 * @return the stored bytes
+	 */
+	public long getStoredBytes() {
+		return this.storedBytes.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+	 * java.nio.channels.ReadableByteChannel, long)
+	 */
+	@Override
+	public void put(final CacheKey key,
+	                final ReadableByteChannel payload,
+	                final long length) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(payload, "Argument '%s' in '%s'.", "payload", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			if (length < (2 * MIN_CHUNK)) {
+				// a single chunk, nothing to share
+				this.delegate.put(key, payload, length);
+				return;
+			}
+			
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream manifest = new DataOutputStream(bytes);
+			manifest.writeInt(MAGIC);
+			manifest.writeLong(length);
+			manifest.writeInt(0);
+			
+			final MessageDigest digest = CacheKey.digest();
+			final byte[] window = new byte[MAX_CHUNK];
+			int filled = 0;
+			long remaining = length;
+			int chunks = 0;
+			Codec codec = null;
+			
+			while ((remaining > 0) || (filled > 0)) {
+				final ByteBuffer target = ByteBuffer.wrap(window, filled, (int) Math.min(MAX_CHUNK - filled, remaining));
+				while (target.hasRemaining()) {
+					if (payload.read(target) < 0) {
+						throw new EOFException("Response for " + key + " ended after " //$NON-NLS-1$ //$NON-NLS-2$
+						        + ((length - remaining) + (target.position() - filled)) + " of " + length + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+				remaining -= target.position() - filled;
+				filled = target.position();
+				
+				if (chunks == 0) {
+					// only the first chunk carries the headers and magic bytes of the response
+					codec = codec(window, filled);
+				}
+				
+				final int chunk = cut(window, filled);
+				digest.update(window, 0, chunk);
+				final byte[] id = digest.digest();
+				store(new CacheKey(CHUNK_HOST, 0, id), window, chunk, codec);
+				manifest.write(id);
+				manifest.writeInt(chunk);
+				++chunks;
+				
+				System.arraycopy(window, chunk, window, 0, filled - chunk);
+				filled -= chunk;
+			}
+			
+			manifest.flush();
+			final ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+			data.putInt(12, chunks);
+			// digests do not compress
+			put(key, data.array(), data.capacity(), Codec.NONE);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Puts an entry into the delegate, with the given codec if the delegate compresses.
+	 *
+	 * @param key
+	 *            the key
+	 * @param data
+	 *            the buffer holding the entry
+	 * @param length
+	 *            the length of the entry
+	 * @param codec
+	 *            the codec or <code>null</code> to leave the choice to the delegate
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void put(final CacheKey key,
+	                 final byte[] data,
+	                 final int length,
+	                 final Codec codec) throws IOException {
+		final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data, 0, length));
+		if ((codec != null) && (this.delegate instanceof CompressingResponseStore)) {
+			((CompressingResponseStore) this.delegate).put(key, channel, length, codec);
+		} else {
+			this.delegate.put(key, channel, length);
+		}
+	}
+	
+	/**
+	 * Reads the stored entry into the buffer, until it is full or the entry ends.
+	 *
+	 * @param stored
+	 *            the stored entry
+	 * @param target
+	 *            the target
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void read(final CachedResponse stored,
+	                  final ByteBuffer target) throws IOException {
+		final int start = target.position();
+		while (target.hasRemaining() && (stored.read(target.position() - start, target) >= 0)) {
+			// fill the buffer
+		}
+	}
+	
+	/**
+	 * Reassembles a response from the chunks listed in its manifest.
+	 *
+	 * @param key
+	 *            the key of the response
+	 * @param manifest
+	 *            the manifest
+	 * @return the response or <code>null</code> if a chunk is missing
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private CachedResponse reassemble(final CacheKey key,
+	                                  final ByteBuffer manifest) throws IOException {
+		final long length = manifest.getLong(4);
+		final int chunks = manifest.getInt(12);
+		manifest.position(HEADER);
+		
+		final ResponseBuilder builder = new ResponseBuilder(length);
+		try {
+			final byte[] window = new byte[MAX_CHUNK];
+			for (int i = 0; i < chunks; ++i) {
+				final byte[] id = new byte[ENTRY - 4];
+				manifest.get(id);
+				final int size = manifest.getInt();
+				
+				final CachedResponse chunk = this.delegate.get(new CacheKey(CHUNK_HOST, 0, id));
+				final ByteBuffer target = ByteBuffer.wrap(window, 0, Math.min(size, MAX_CHUNK));
+				if (chunk != null) {
+					try {
+						if (chunk.getSize() == size) {
+							read(chunk, target);
+						}
+					} finally {
+						chunk.close();
+					}
+				}
+				if ((chunk == null) || (target.position() != size)) {
+					if (Logger.logWarn()) {
+						Logger.warn("Chunk " + CacheKey.hex(id) + " of " + key + " is missing, dropping the entry."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					}
+					this.delegate.remove(key);
+					return null;
+				}
+				builder.write(window, 0, size);
+			}
+			return builder.build();
+		} finally {
+			builder.close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean remove(final CacheKey key) throws IOException {
+		return this.delegate.remove(key);
+	}
+	
+	/**
+	 * Stores a chunk unless an identical one is present.
+	 *
+	 * @param chunkKey
+	 *            the key of the chunk
+	 * @param data
+	 *            the buffer holding the chunk
+	 * @param length
+	 *            the length of the chunk
+	 * @param codec
+	 *            the codec chosen for the response or <code>null</code> to leave the choice to the delegate
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void store(final CacheKey chunkKey,
+	                   final byte[] data,
+	                   final int length,
+	                   final Codec codec) throws IOException {
+		if (this.delegate.contains(chunkKey)) {
+			this.sharedBytes.addAndGet(length);
+			return;
+		}
+		
+		put(chunkKey, data, length, codec);
+		this.storedBytes.addAndGet(length);
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * A {@link ResponseStore} that keeps one file per response. Files are spread over 256 sub directories named after the
+ * first two hex digits of {@link CacheKey#getId()}. Entries are written to a temporary file first and moved into place
+ * afterwards, so readers never see partial responses.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class DirectoryResponseStore implements ResponseStore {
+	
+	/** The suffix of temporary files. */
+	private static final String TMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+	
+	/** The root directory. */
+	private final File          directory;
+	
+	/**
+	 * Instantiates a new directory response store.
+	 *
+	 * @param directory
+	 *            the root directory of the store; created if it does not exist
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public DirectoryResponseStore(@NotNull final File directory) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(directory, "Argument '%s' in '%s'.", "directory", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create socket cache directory: " + directory.getAbsolutePath()); //$NON-NLS-1$
+			}
+			this.directory = directory;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the file an entry is stored in.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the file
+	 */
+	private File file(final CacheKey key) {
+		final String id = key.getId();
+		return new File(new File(this.directory, id.substring(0, 2)), id);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean contains(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return file(key).isFile();
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public CachedResponse get(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final FileInputStream stream;
+			try {
+				// the open channel keeps the entry readable even if it is replaced concurrently
+				stream = new FileInputStream(file(key));
+			} catch (final FileNotFoundException e) {
+				return null;
+			}
+			
+			try {
+				return new FileResponse(stream.getChannel());
+			} catch (final IOException e) {
+				stream.close();
+				throw e;
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the root directory of the store.
+	 *
+	 * @return the directory
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+	 * java.nio.channels.ReadableByteChannel, long)
+	 */
+	@Override
+	public void put(final CacheKey key,
+	                final ReadableByteChannel payload,
+	                final long length) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(payload, "Argument '%s' in '%s'.", "payload", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final File target = file(key);
+			final File parent = target.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Could not create socket cache directory: " + parent.getAbsolutePath()); //$NON-NLS-1$
+			}
+			
+			final File tmp = File.createTempFile(target.getName(), TMP_SUFFIX, parent);
+			try {
+				try (FileOutputStream stream = new FileOutputStream(tmp)) {
+					final FileChannel channel = stream.getChannel();
+					long written = 0;
+					while (written < length) {
+						final long n = channel.transferFrom(payload, written, length - written);
+						if (n <= 0) {
+							throw new EOFException("Response for " + key + " ended after " + written + " of " + length //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+							        + " bytes"); //$NON-NLS-1$
+						}
+						written += n;
+					}
+				}
+				
+				try {
+					Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					           StandardCopyOption.REPLACE_EXISTING);
+				} catch (final AtomicMoveNotSupportedException e) {
+					Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				if (tmp.exists() && !tmp.delete()) {
+					tmp.deleteOnExit();
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean remove(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return Files.deleteIfExists(file(key).toPath());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+}
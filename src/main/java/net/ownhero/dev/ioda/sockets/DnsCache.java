@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A {@link Resolver} that caches the results of another resolver. Successful lookups are kept for the positive TTL,
+ * failed lookups for the (usually much shorter) negative TTL.
+ * 
+ * Entries that are used during the last quarter of their lifetime are refreshed in the background, so hosts that are
+ * connected to regularly never expire and callers do not wait for a lookup. Entries that are not used are dropped once
+ * they expired.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class DnsCache implements Resolver, Closeable {
+	
+	/**
+	 * A cached lookup result.
+	 */
+	private static final class Entry {
+		
+		/** The addresses, <code>null</code> if the lookup failed. */
+		private final InetAddress[]  addresses;
+		
+		/** The time the entry has been resolved. */
+		private final long           resolved;
+		
+		/** The time the entry expires. */
+		private final long           expires;
+		
+		/** Whether a refresh has been scheduled. */
+		private final AtomicBoolean  refreshing = new AtomicBoolean();
+		
+		/** Whether the entry has been used since it has been resolved. */
+		private volatile boolean     used;
+		
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param addresses
+		 *            the addresses or <code>null</code>
+		 * @param resolved
+		 *            the resolved
+		 * @param ttl
+		 *            the ttl
+		 */
+		Entry(final InetAddress[] addresses, final long resolved, final long ttl) {
+			this.addresses = addresses;
+			this.resolved = resolved;
+			this.expires = resolved + ttl;
+		}
+		
+		/**
+		 * Checks whether the entry should be refreshed.
+		 *
+		 * @param now
+		 *            the now
+		 * @return true, if the entry is in the last quarter of its lifetime
+		 */
+		boolean isStale(final long now) {
+			return (now - this.resolved) >= (((this.expires - this.resolved) * 3) / 4);
+		}
+	}
+	
+	/** The default time in milliseconds successful lookups are cached. */
+	public static final long                  DEFAULT_POSITIVE_TTL = 60000L;
+	
+	/** The default time in milliseconds failed lookups are cached. */
+	public static final long                  DEFAULT_NEGATIVE_TTL = 10000L;
+	
+	/** The shared instance. */
+	private static DnsCache                   shared;
+	
+	/**
+	 * Gets the instance in front of the {@link Resolver#SYSTEM system resolver} that is shared by everything not given
+	 * a resolver of its own, so there is one set of refresh threads per process. Closing it has no effect.
+	 *
+	 * @return the shared instance
+	 */
+	public static synchronized DnsCache getShared() {
+		if (shared == null) {
+			shared = new DnsCache();
+		}
+		return shared;
+	}
+	
+	/** The resolver lookups are delegated to. */
+	private final Resolver                    delegate;
+	
+	/** The positive ttl. */
+	private final long                        positiveTtl;
+	
+	/** The negative ttl. */
+	private final long                        negativeTtl;
+	
+	/** The entries by lower case host name. */
+	private final ConcurrentMap<String, Entry> entries             = new ConcurrentHashMap<String, Entry>();
+	
+	/** Runs refreshes and the sweep. */
+	private final ScheduledExecutorService    executor;
+	
+	/** The number of lookups answered from the cache. */
+	private final AtomicLong                  hits                 = new AtomicLong();
+	
+	/** The number of lookups that had to wait for the delegate. */
+	private final AtomicLong                  misses               = new AtomicLong();
+	
+	/**
+	 * Instantiates a new DNS cache in front of the {@link Resolver#SYSTEM system resolver} with the default TTLs.
+	 */
+	public DnsCache() {
+		this(Resolver.SYSTEM);
+	}
+	
+	/**
+	 * Instantiates a new DNS cache with the default TTLs.
+	 *
+	 * @param delegate
+	 *            the resolver lookups are delegated to
+	 */
+	public DnsCache(@NotNull final Resolver delegate) {
+		this(delegate, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+	
+	/**
+	 * Instantiates a new DNS cache.
+	 *
+	 * @param delegate
+	 *            the resolver lookups are delegated to
+	 * @param positiveTtl
+	 *            the time in milliseconds successful lookups are cached
+	 * @param negativeTtl
+	 *            the time in milliseconds failed lookups are cached, 0 to not cache failures
+	 */
+	public DnsCache(@NotNull final Resolver delegate, final long positiveTtl, final long negativeTtl) {
+		// PRECONDITIONS
+		Condition.notNull(delegate, "Argument '%s' in '%s'.", "delegate", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.check(positiveTtl > 0, "Argument '%s' in '%s' has to be positive.", "positiveTtl", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		Condition.check(negativeTtl >= 0, "Argument '%s' in '%s' must not be negative.", "negativeTtl", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		
+		try {
+			this.delegate = delegate;
+			this.positiveTtl = positiveTtl;
+			this.negativeTtl = negativeTtl;
+			this.executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, getClassName() + "-refresh"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			final long period = Math.max(1000L, positiveTtl / 8);
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					sweep();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Stops the background refresh, unless this is the {@link #getShared() shared instance}.
+	 */
+	@Override
+	public void close() {
+		synchronized (DnsCache.class) {
+			if (this == shared) {
+				return;
+			}
+		}
+		this.executor.shutdownNow();
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the number of lookups answered from the cache.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+	
+	/**
+	 * Gets the number of lookups that had to wait for the delegate.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	/**
+	 * Gets the negative ttl.
+	 *
+	 * @return the negative ttl
+	 */
+	public long getNegativeTtl() {
+		return this.negativeTtl;
+	}
+	
+	/**
+	 * Gets the positive ttl.
+	 *
+	 * @return the positive ttl
+	 */
+	public long getPositiveTtl() {
+		return this.positiveTtl;
+	}
+	
+	/**
+	 * Gets the number of cached entries.
+	 *
+	 * @return the size
+	 */
+	public int getSize() {
+		return this.entries.size();
+	}
+	
+	/**
+	 * Drops the entry for the host, e.g. after connecting to the cached addresses failed.
+	 *
+	 * @param host
+	 *            the host
+	 */
+	public void invalidate(@NotNull final String host) {
+		this.entries.remove(host.toLowerCase(Locale.ENGLISH));
+	}
+	
+	/**
+	 * Looks the host up with the delegate and caches the result.
+	 *
+	 * @param name
+	 *            the normalized host name
+	 * @param host
+	 *            the host name as given by the caller
+	 * @return the entry
+	 */
+	private Entry lookup(final String name,
+	                     final String host) {
+		final Entry entry = query(host);
+		if ((entry.addresses != null) || (this.negativeTtl > 0)) {
+			this.entries.put(name, entry);
+		} else {
+			this.entries.remove(name);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Looks the host up with the delegate.
+	 *
+	 * @param host
+	 *            the host
+	 * @return the entry, not cached yet
+	 */
+	private Entry query(final String host) {
+		InetAddress[] addresses;
+		try {
+			addresses = this.delegate.resolve(host);
+		} catch (final UnknownHostException e) {
+			addresses = null;
+		}
+		
+		final long now = System.currentTimeMillis();
+		return (addresses != null) && (addresses.length > 0)
+		                                                    ? new Entry(addresses.clone(), now, this.positiveTtl)
+		                                                    : new Entry(null, now, this.negativeTtl);
+	}
+	
+	/**
+	 * Refreshes the entry in the background unless a refresh is pending already.
+	 *
+	 * @param name
+	 *            the normalized host name
+	 * @param host
+	 *            the host name as given by the caller
+	 * @param entry
+	 *            the entry
+	 */
+	private void refresh(final String name,
+	                     final String host,
+	                     final Entry entry) {
+		if (!entry.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		
+		try {
+			this.executor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					final Entry refreshed = query(host);
+					if (refreshed.addresses != null) {
+						DnsCache.this.entries.replace(name, entry, refreshed);
+					} else if (Logger.logDebug()) {
+						// keep serving the last good result until it expires
+						Logger.debug("Refreshing " + host + " failed, the cached addresses will expire."); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+			});
+		} catch (final RuntimeException e) {
+			// rejected after close; the entry expires as usual
+			entry.refreshing.set(false);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.Resolver#resolve(java.lang.String)
+	 */
+	@Override
+	public InetAddress[] resolve(@NotNull final String host) throws UnknownHostException {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final String name = host.toLowerCase(Locale.ENGLISH);
+			final long now = System.currentTimeMillis();
+			Entry entry = this.entries.get(name);
+			
+			if ((entry != null) && (now < entry.expires)) {
+				this.hits.incrementAndGet();
+				entry.used = true;
+				if ((entry.addresses != null) && entry.isStale(now)) {
+					refresh(name, host, entry);
+				}
+			} else {
+				this.misses.incrementAndGet();
+				entry = lookup(name, host);
+			}
+			
+			if (entry.addresses == null) {
+				throw new UnknownHostException(host);
+			}
+			return entry.addresses.clone();
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Refreshes stale entries that have been used since they were resolved and drops expired ones.
+	 */
+	private void sweep() {
+		final long now = System.currentTimeMillis();
+		final Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<String, Entry> mapping = iterator.next();
+			final Entry entry = mapping.getValue();
+			if (now >= entry.expires) {
+				iterator.remove();
+			} else if ((entry.addresses != null) && entry.used && entry.isStale(now)) {
+				refresh(mapping.getKey(), mapping.getKey(), entry);
+			}
+		}
+	}
+}
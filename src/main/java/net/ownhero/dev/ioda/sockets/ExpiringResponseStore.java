@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * A {@link ResponseStore} that expires entries according to the time to live the {@link CachingRules} assign to their
+ * endpoint. Every entry carries a small trailer with the time it has been stored; an entry older than its time to live
+ * is removed on lookup and reported as a miss, so the next request records a fresh response. Since the time to live is
+ * looked up when an entry is read, changing the rules applies to entries recorded earlier as well.
+ * 
+ * The stamp is appended rather than prepended, so stores below this one see the response starting with its own first
+ * bytes: a {@link CompressingResponseStore} still recognizes compressed responses by their status line, headers and
+ * magic bytes, and a {@link DeduplicatingResponseStore} cuts the same chunks as without the stamp.
+ * 
+ * Entries written without a trailer, e.g. by an earlier version, are returned unchanged for endpoints whose responses
+ * never expire and treated as expired otherwise.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class ExpiringResponseStore implements ResponseStore, Closeable {
+	
+	/** Marks entries written by this store ("IODE"). */
+	static final int            MAGIC   = 0x494f4445;
+	
+	/** The size of the entry trailer: the time the entry has been stored and magic. */
+	static final int            TRAILER = 12;
+	
+	/** The store the entries are kept in. */
+	private final ResponseStore delegate;
+	
+	/** The rules assigning the time to live. */
+	private final CachingRules  rules;
+	
+	/**
+	 * Instantiates a new expiring response store.
+	 *
+	 * @param delegate
+	 *            the store the entries are kept in
+	 * @param rules
+	 *            the rules assigning the time to live
+	 */
+	public ExpiringResponseStore(@NotNull final ResponseStore delegate, @NotNull final CachingRules rules) {
+		// PRECONDITIONS
+		Condition.notNull(delegate, "Argument '%s' in '%s'.", "delegate", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(rules, "Argument '%s' in '%s'.", "rules", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.delegate = delegate;
+			this.rules = rules;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.delegate instanceof Closeable) {
+			((Closeable) this.delegate).close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean contains(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			if (this.rules.getTtl(key.getHost(), key.getPort()) == 0) {
+				return this.delegate.contains(key);
+			}
+			// the age is only known from the entry itself
+			final CachedResponse response = get(key);
+			if (response == null) {
+				return false;
+			}
+			response.close();
+			return true;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public CachedResponse get(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final CachedResponse stored = this.delegate.get(key);
+			if (stored == null) {
+				return null;
+			}
+			
+			final long ttl = this.rules.getTtl(key.getHost(), key.getPort());
+			boolean handedOut = false;
+			try {
+				final long size = stored.getSize();
+				final ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+				if (size >= TRAILER) {
+					final long start = size - TRAILER;
+					while (trailer.hasRemaining() && (stored.read(start + trailer.position(), trailer) >= 0)) {
+						// fill the trailer
+					}
+				}
+				
+				final boolean tagged = !trailer.hasRemaining() && (trailer.getInt(8) == MAGIC);
+				if (ttl > 0) {
+					final long age = tagged
+					                       ? System.currentTimeMillis() - trailer.getLong(0)
+					                       : Long.MAX_VALUE;
+					if (age > ttl) {
+						if (Logger.logDebug()) {
+							Logger.debug("Expiring cached response for " + key); //$NON-NLS-1$
+						}
+						stored.close();
+						handedOut = true;
+						this.delegate.remove(key);
+						return null;
+					}
+				}
+				
+				handedOut = true;
+				return tagged
+				             ? new OffsetResponse(stored, 0, size - TRAILER)
+				             : stored;
+			} finally {
+				if (!handedOut) {
+					stored.close();
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the store the entries are kept in.
+	 *
+	 * @return the delegate
+	 */
+	public ResponseStore getDelegate() {
+		return this.delegate;
+	}
+	
+	/**
+	 * Gets the rules assigning the time to live.
+	 *
+	 * @return the rules
+	 */
+	public CachingRules getRules() {
+		return this.rules;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+	 * java.nio.channels.ReadableByteChannel, long)
+	 */
+	@Override
+	public void put(final CacheKey key,
+	                final ReadableByteChannel payload,
+	                final long length) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(payload, "Argument '%s' in '%s'.", "payload", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+			trailer.putLong(System.currentTimeMillis()).putInt(MAGIC).flip();
+			final BoundedInputStream in = new BoundedInputStream(Channels.newInputStream(payload), length);
+			in.setPropagateClose(false);
+			this.delegate.put(key,
+			                  Channels.newChannel(new SequenceInputStream(in, new ByteArrayInputStream(trailer.array()))),
+			                  length + TRAILER);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean remove(final CacheKey key) throws IOException {
+		return this.delegate.remove(key);
+	}
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response backed by an open file. The file may have been deleted or replaced in the meantime, the open channel
+ * keeps its content readable until the response is closed.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class FileResponse implements CachedResponse {
+	
+	/** The channel. */
+	private final FileChannel channel;
+	
+	/** The size. */
+	private final long        size;
+	
+	/**
+	 * Instantiates a new file response.
+	 *
+	 * @param channel
+	 *            the channel of the opened file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	FileResponse(final FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.size = channel.size();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#getSize()
+	 */
+	@Override
+	public long getSize() {
+		return this.size;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#read(long, java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(final long position,
+	                final ByteBuffer target) throws IOException {
+		return this.channel.read(target, position);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#transferTo(long, long, java.nio.channels.WritableByteChannel)
+	 */
+	@Override
+	public long transferTo(final long position,
+	                       final long count,
+	                       final WritableByteChannel target) throws IOException {
+		return this.channel.transferTo(position, count, target);
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+/**
+ * Decides when the bytes a client writes to a {@link CachingSocketImpl} are sent upstream. Writes are collected in a
+ * pooled buffer, so a protocol that writes a command in many small pieces costs one system call instead of one per
+ * piece; a full buffer is always sent.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public enum FlushPolicy {
+	
+	/** Every write is sent right away, like the streams of a plain socket do. */
+	IMMEDIATE,
+	
+	/**
+	 * Writes are collected until the client flushes or waits for the remote end: before a read blocks on upstream,
+	 * and whenever a write happens while a read is blocked. Request/response protocols never notice the buffering.
+	 */
+	BEFORE_READ,
+	
+	/**
+	 * Writes are collected until the client flushes, shuts down the output or closes the socket. Since Java 13 the
+	 * streams of a plain {@link java.net.Socket} do not pass flushes on to the socket implementation, so with
+	 * {@link java.net.Socket#setSocketImplFactory(java.net.SocketImplFactory)} only a full buffer, shutdown or close
+	 * sends; sockets of a {@link ReplayingSocketFactory} are not affected.
+	 */
+	EXPLICIT;
+}
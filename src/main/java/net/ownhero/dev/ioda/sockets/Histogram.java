@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with power of two buckets. Percentiles are reported as the upper bound
+ * of the bucket they fall into, so they are accurate within a factor of two, which is plenty to tell a 1 ms host from
+ * a 100 ms one at a constant memory cost.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public final class Histogram {
+	
+	/** The number of buckets: bucket <code>i</code> holds values in <code>[2^(i-1), 2^i)</code>. */
+	private static final int      BUCKETS = 64;
+	
+	/** The counts per bucket. */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	
+	/** The number of recorded values. */
+	private final AtomicLong      count   = new AtomicLong();
+	
+	/** The sum of recorded values. */
+	private final AtomicLong      sum     = new AtomicLong();
+	
+	/** The largest recorded value. */
+	private final AtomicLong      max     = new AtomicLong();
+	
+	/**
+	 * Creates a copy of the current state.
+	 *
+	 * @return the copy
+	 */
+	public Histogram copy() {
+		final Histogram copy = new Histogram();
+		for (int i = 0; i < BUCKETS; ++i) {
+			copy.buckets.set(i, this.buckets.get(i));
+		}
+		copy.count.set(this.count.get());
+		copy.sum.set(this.sum.get());
+		copy.max.set(this.max.get());
+		return copy;
+	}
+	
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+	
+	/**
+	 * Gets the largest recorded value.
+	 *
+	 * @return the max
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+	
+	/**
+	 * Gets the mean of the recorded values.
+	 *
+	 * @return the mean, 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		final long n = this.count.get();
+		return n == 0
+		             ? 0
+		             : (double) this.sum.get() / n;
+	}
+	
+	/**
+	 * Gets an upper bound for the given percentile.
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 100
+	 * @return the percentile, 0 if nothing has been recorded
+	 */
+	public long getPercentile(final double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			total += this.buckets.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		final long rank = Math.max(1, (long) Math.ceil((percentile / 100) * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				final long bound = i == 0
+				                         ? 0
+				                         : (1L << i) - 1;
+				return Math.min(bound, this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+	
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            the value
+	 */
+	public void record(final long value) {
+		final long v = Math.max(0, value);
+		this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v)));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(v);
+		
+		long current;
+		while (v > (current = this.max.get())) {
+			if (this.max.compareAndSet(current, v)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i) {
+			this.buckets.set(i, 0);
+		}
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Histogram [count=" + getCount() + ", mean=" + getMean() + ", p50=" + getPercentile(50) + ", p99=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		        + getPercentile(99) + ", max=" + getMax() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
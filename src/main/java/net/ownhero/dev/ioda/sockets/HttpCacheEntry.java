@@ -0,0 +1,532 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * The HTTP metadata of a response cached by {@link CachingHttpClient}: status line, headers, the request headers the
+ * response varies on and the local request and response times. A stored entry is the encoded metadata followed by the
+ * body:
+ * 
+ * <pre>
+ * int    magic    {@link #MAGIC}
+ * int    length   the length of the metadata
+ * byte[] metadata
+ * byte[] body
+ * </pre>
+ * 
+ * Freshness and age follow RFC 2616 section 13.2 for a private cache.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class HttpCacheEntry {
+	
+	/** Marks entries written by {@link CachingHttpClient} ("IODH"). */
+	static final int            MAGIC             = 0x494f4448;
+	
+	/** The size of magic and metadata length. */
+	private static final int    PREFIX            = 8;
+	
+	/** The upper bound for the heuristic freshness of responses without explicit expiration. */
+	private static final long   MAX_HEURISTIC     = TimeUnit.DAYS.toMillis(1);
+	
+	/** The share of the time since the last modification used as heuristic freshness. */
+	private static final double HEURISTIC_FACTOR  = 0.1;
+	
+	/** Headers of a 304 response that must not replace the stored ones. */
+	private static final String[] ENTITY_HEADERS  = { "Content-Length", "Content-Encoding", "Content-Range", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	        "Content-Type", "Transfer-Encoding" }; //$NON-NLS-1$ //$NON-NLS-2$
+	
+	/**
+	 * Gets the directives of the <code>Cache-Control</code> headers of a message, names in lower case.
+	 *
+	 * @param message
+	 *            the message
+	 * @return the directives and their values (<code>null</code> if there is none)
+	 */
+	static Map<String, String> cacheControl(final HttpMessage message) {
+		final Map<String, String> directives = new LinkedHashMap<String, String>();
+		for (final Header header : message.getHeaders("Cache-Control")) { //$NON-NLS-1$
+			for (final HeaderElement element : header.getElements()) {
+				directives.put(element.getName().toLowerCase(Locale.ENGLISH), element.getValue());
+			}
+		}
+		return directives;
+	}
+	
+	/**
+	 * Parses a delta seconds value.
+	 *
+	 * @param value
+	 *            the value, may be null
+	 * @return the value in milliseconds or -1 if it is missing or invalid
+	 */
+	static long deltaSeconds(final String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Checks whether a header describes the body and thus is kept from the stored response.
+	 *
+	 * @param name
+	 *            the name
+	 * @return true, if it is an entity header
+	 */
+	private static boolean isEntityHeader(final String name) {
+		for (final String entityHeader : ENTITY_HEADERS) {
+			if (entityHeader.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the values of all request headers with the given name, joined by commas.
+	 *
+	 * @param request
+	 *            the request
+	 * @param name
+	 *            the header name
+	 * @return the values, an empty string if there is no such header
+	 */
+	private static String joined(final HttpRequest request,
+	                             final String name) {
+		final StringBuilder value = new StringBuilder();
+		for (final Header header : request.getHeaders(name)) {
+			if (value.length() > 0) {
+				value.append(',');
+			}
+			value.append(header.getValue().trim());
+		}
+		return value.toString();
+	}
+	
+	/**
+	 * Parses an HTTP date.
+	 *
+	 * @param value
+	 *            the value, may be null
+	 * @return the time or -1 if the value is missing or invalid
+	 */
+	private static long parseDate(final String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return DateUtils.parseDate(value).getTime();
+		} catch (final DateParseException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Decodes the metadata of a stored entry.
+	 *
+	 * @param stored
+	 *            the stored entry
+	 * @return the entry or <code>null</code> if the stored entry has not been written by this class
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static HttpCacheEntry read(final CachedResponse stored) throws IOException {
+		final ByteBuffer prefix = ByteBuffer.allocate(PREFIX);
+		while (prefix.hasRemaining() && (stored.read(prefix.position(), prefix) > 0)) {
+			// fill
+		}
+		if (prefix.hasRemaining() || (prefix.getInt(0) != MAGIC)) {
+			return null;
+		}
+		final int length = prefix.getInt(4);
+		if ((length < 0) || ((PREFIX + (long) length) > stored.getSize())) {
+			return null;
+		}
+		
+		final DataInputStream in = new DataInputStream(new ResponseInputStream(stored, PREFIX));
+		final long requestTime = in.readLong();
+		final long responseTime = in.readLong();
+		final StatusLine statusLine = new BasicStatusLine(new ProtocolVersion(in.readUTF(), in.readInt(),
+		                                                                      in.readInt()), in.readInt(),
+		                                                  in.readUTF());
+		final Header[] headers = new Header[in.readInt()];
+		for (int i = 0; i < headers.length; ++i) {
+			headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+		}
+		final Map<String, String> variants = new LinkedHashMap<String, String>();
+		for (int i = in.readInt(); i > 0; --i) {
+			variants.put(in.readUTF(), in.readUTF());
+		}
+		return new HttpCacheEntry(requestTime, responseTime, statusLine, headers, variants, PREFIX + length,
+		                          stored.getSize() - PREFIX - length);
+	}
+	
+	/**
+	 * Gets the values of the request headers a response varies on.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @return the joined values by lower case header name
+	 */
+	static Map<String, String> variants(final HttpRequest request,
+	                                    final HttpMessage response) {
+		final Map<String, String> variants = new LinkedHashMap<String, String>();
+		for (final Header vary : response.getHeaders("Vary")) { //$NON-NLS-1$
+			for (final HeaderElement element : vary.getElements()) {
+				final String name = element.getName().toLowerCase(Locale.ENGLISH);
+				variants.put(name, joined(request, name));
+			}
+		}
+		return variants;
+	}
+	
+	/** When the request was sent, local clock. */
+	private final long                requestTime;
+	
+	/** When the response was received, local clock. */
+	private final long                responseTime;
+	
+	/** The status line. */
+	private final StatusLine          statusLine;
+	
+	/** The headers. */
+	private final Header[]            headers;
+	
+	/** The request header values the response varies on. */
+	private final Map<String, String> variants;
+	
+	/** The offset of the body within the stored entry. */
+	private final long                bodyOffset;
+	
+	/** The length of the body. */
+	private final long                bodyLength;
+	
+	/**
+	 * Instantiates a new entry for a response that is about to be stored.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param requestTime
+	 *            when the request was sent
+	 * @param responseTime
+	 *            when the response was received
+	 */
+	HttpCacheEntry(final HttpRequest request, final HttpResponse response, final long requestTime,
+	        final long responseTime) {
+		this(requestTime, responseTime, response.getStatusLine(), response.getAllHeaders(),
+		     variants(request, response), 0, 0);
+	}
+	
+	/**
+	 * Instantiates a new entry.
+	 *
+	 * @param requestTime
+	 *            the request time
+	 * @param responseTime
+	 *            the response time
+	 * @param statusLine
+	 *            the status line
+	 * @param headers
+	 *            the headers
+	 * @param variants
+	 *            the variants
+	 * @param bodyOffset
+	 *            the body offset
+	 * @param bodyLength
+	 *            the body length
+	 */
+	private HttpCacheEntry(final long requestTime, final long responseTime, final StatusLine statusLine,
+	        final Header[] headers, final Map<String, String> variants, final long bodyOffset, final long bodyLength) {
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+		this.statusLine = statusLine;
+		this.headers = headers;
+		this.variants = variants;
+		this.bodyOffset = bodyOffset;
+		this.bodyLength = bodyLength;
+	}
+	
+	/**
+	 * Gets the current age of the response (RFC 2616 section 13.2.3).
+	 *
+	 * @param now
+	 *            the current time
+	 * @return the age in milliseconds
+	 */
+	long age(final long now) {
+		final long apparentAge = Math.max(0, this.responseTime - date());
+		final long correctedReceivedAge = Math.max(apparentAge, Math.max(0, deltaSeconds(header("Age")))); //$NON-NLS-1$
+		final long responseDelay = this.responseTime - this.requestTime;
+		return correctedReceivedAge + responseDelay + (now - this.responseTime);
+	}
+	
+	/**
+	 * Gets the value of the <code>Date</code> header, falling back to the response time.
+	 *
+	 * @return the date
+	 */
+	private long date() {
+		final long date = parseDate(header("Date")); //$NON-NLS-1$
+		return date < 0
+		               ? this.responseTime
+		               : date;
+	}
+	
+	/**
+	 * Encodes the metadata, including magic and length, i.e. everything stored in front of the body.
+	 *
+	 * @return the encoded metadata
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	byte[] encode() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(0);
+		out.writeLong(this.requestTime);
+		out.writeLong(this.responseTime);
+		final ProtocolVersion version = this.statusLine.getProtocolVersion();
+		out.writeUTF(version.getProtocol());
+		out.writeInt(version.getMajor());
+		out.writeInt(version.getMinor());
+		out.writeInt(this.statusLine.getStatusCode());
+		out.writeUTF(this.statusLine.getReasonPhrase() != null
+		                                                      ? this.statusLine.getReasonPhrase()
+		                                                      : ""); //$NON-NLS-1$
+		out.writeInt(this.headers.length);
+		for (final Header header : this.headers) {
+			out.writeUTF(header.getName());
+			out.writeUTF(header.getValue());
+		}
+		out.writeInt(this.variants.size());
+		for (final Map.Entry<String, String> variant : this.variants.entrySet()) {
+			out.writeUTF(variant.getKey());
+			out.writeUTF(variant.getValue());
+		}
+		out.flush();
+		
+		final byte[] encoded = bytes.toByteArray();
+		ByteBuffer.wrap(encoded).putInt(4, encoded.length - PREFIX);
+		return encoded;
+	}
+	
+	/**
+	 * Gets the freshness lifetime of the response (RFC 2616 section 13.2.4): <code>max-age</code>, then
+	 * <code>Expires</code>, then a heuristic of a tenth of the time since <code>Last-Modified</code>.
+	 *
+	 * @return the freshness lifetime in milliseconds
+	 */
+	long freshnessLifetime() {
+		final Map<String, String> directives = cacheControl(toMessage());
+		final long maxAge = deltaSeconds(directives.get("max-age")); //$NON-NLS-1$
+		if (maxAge >= 0) {
+			return maxAge;
+		}
+		
+		final String expires = header("Expires"); //$NON-NLS-1$
+		if (expires != null) {
+			// an invalid date, in particular "0", means already expired
+			return Math.max(0, parseDate(expires) - date());
+		}
+		
+		final long lastModified = parseDate(header("Last-Modified")); //$NON-NLS-1$
+		if (lastModified >= 0) {
+			return Math.min(MAX_HEURISTIC, (long) ((date() - lastModified) * HEURISTIC_FACTOR));
+		}
+		return 0;
+	}
+	
+	/**
+	 * Gets the length of the body.
+	 *
+	 * @return the body length
+	 */
+	long getBodyLength() {
+		return this.bodyLength;
+	}
+	
+	/**
+	 * Gets the offset of the body within the stored entry.
+	 *
+	 * @return the body offset
+	 */
+	long getBodyOffset() {
+		return this.bodyOffset;
+	}
+	
+	/**
+	 * Gets the headers.
+	 *
+	 * @return the headers
+	 */
+	Header[] getHeaders() {
+		return this.headers.clone();
+	}
+	
+	/**
+	 * Gets the status line.
+	 *
+	 * @return the status line
+	 */
+	StatusLine getStatusLine() {
+		return this.statusLine;
+	}
+	
+	/**
+	 * Gets the first value of a header.
+	 *
+	 * @param name
+	 *            the name
+	 * @return the value or <code>null</code>
+	 */
+	String header(final String name) {
+		for (final Header header : this.headers) {
+			if (header.getName().equalsIgnoreCase(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks whether the response may be used without revalidation at the given time.
+	 *
+	 * @param now
+	 *            the current time
+	 * @param maxAge
+	 *            the maximum age the request accepts in milliseconds, -1 for any
+	 * @return true, if the response is fresh
+	 */
+	boolean isFresh(final long now,
+	                final long maxAge) {
+		final Map<String, String> directives = cacheControl(toMessage());
+		if (directives.containsKey("no-cache")) { //$NON-NLS-1$
+			return false;
+		}
+		final long age = age(now);
+		return (age < freshnessLifetime()) && ((maxAge < 0) || (age <= maxAge));
+	}
+	
+	/**
+	 * Checks whether the response must not be served stale, not even if revalidation fails.
+	 *
+	 * @return true, if the response has to be revalidated
+	 */
+	boolean mustRevalidate() {
+		return cacheControl(toMessage()).containsKey("must-revalidate"); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Checks whether the stored response was selected by request headers that match the given request.
+	 *
+	 * @param request
+	 *            the request
+	 * @return true, if the response can be used for the request
+	 */
+	boolean matches(final HttpRequest request) {
+		for (final Map.Entry<String, String> variant : this.variants.entrySet()) {
+			if (!variant.getValue().equals(joined(request, variant.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Wraps the headers in a message, to use the header parsing of HttpCore.
+	 *
+	 * @return the message
+	 */
+	private HttpMessage toMessage() {
+		final HttpResponse message = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+		message.setHeaders(this.headers);
+		return message;
+	}
+	
+	/**
+	 * Creates the entry resulting from a successful revalidation: the headers of the <code>304 Not Modified</code>
+	 * response replace the stored ones, except for those describing the body.
+	 *
+	 * @param notModified
+	 *            the 304 response
+	 * @param requestTime
+	 *            when the conditional request was sent
+	 * @param responseTime
+	 *            when the 304 response was received
+	 * @return the updated entry, its body has to be stored again
+	 */
+	HttpCacheEntry update(final HttpResponse notModified,
+	                      final long requestTime,
+	                      final long responseTime) {
+		final List<Header> merged = new ArrayList<Header>();
+		for (final Header header : this.headers) {
+			final String name = header.getName();
+			if ("Date".equalsIgnoreCase(name) || "Age".equalsIgnoreCase(name) || "Warning".equalsIgnoreCase(name)) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				// describe the old response, the new values (if any) come with the 304
+				continue;
+			}
+			if (isEntityHeader(name) || !notModified.containsHeader(name)) {
+				merged.add(header);
+			}
+		}
+		for (final Header header : notModified.getAllHeaders()) {
+			if (!isEntityHeader(header.getName())) {
+				merged.add(header);
+			}
+		}
+		if (!notModified.containsHeader("Date")) { //$NON-NLS-1$
+			merged.add(new BasicHeader("Date", DateUtils.formatDate(new Date(responseTime)))); //$NON-NLS-1$
+		}
+		return new HttpCacheEntry(requestTime, responseTime, this.statusLine,
+		                          merged.toArray(new Header[merged.size()]), this.variants, this.bodyOffset,
+		                          this.bodyLength);
+	}
+}
@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Follows the framing of an HTTP/1.x response as it is read, to tell when the response is complete without waiting for
+ * the remote end to close the connection. Responses are framed by <code>Content-Length</code>, by chunked transfer
+ * coding or have no body at all (<code>HEAD</code> requests, 1xx, 204 and 304). Interim 1xx responses are part of the
+ * exchange and followed by the final response.
+ * 
+ * Anything else is unframed and only complete at the end of the stream: responses delimited by closing the connection,
+ * protocol switches, bytes following the end of the response and everything that is not HTTP at all.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class HttpFraming {
+	
+	/**
+	 * The parts of a response.
+	 */
+	private enum State {
+		
+		/** The status line. */
+		STATUS,
+		/** The header fields. */
+		HEADERS,
+		/** A body of known length. */
+		BODY,
+		/** The size line of a chunk. */
+		CHUNK_SIZE,
+		/** The data of a chunk. */
+		CHUNK_DATA,
+		/** The line break after the data of a chunk. */
+		CHUNK_END,
+		/** The trailer fields after the last chunk. */
+		TRAILER,
+		/** The response is complete. */
+		COMPLETE,
+		/** The response is not framed. */
+		UNFRAMED;
+	}
+	
+	/** The maximum length of a status, header, chunk size or trailer line. */
+	private static final int    MAX_LINE = 8192;
+	
+	/** Whether the response answers a <code>HEAD</code> request. */
+	private final boolean       head;
+	
+	/** The line being read. */
+	private final StringBuilder line     = new StringBuilder();
+	
+	/** The state. */
+	private State               state    = State.STATUS;
+	
+	/** The status code. */
+	private int                 status;
+	
+	/** The value of the <code>Content-Length</code> header, -1 if there is none. */
+	private long                length   = -1;
+	
+	/** Whether the body is chunked. */
+	private boolean             chunked;
+	
+	/** The number of bytes left of the body or the current chunk. */
+	private long                remaining;
+	
+	/**
+	 * Instantiates a new framing.
+	 *
+	 * @param request
+	 *            the request; its position is not changed
+	 */
+	HttpFraming(final ByteBuffer request) {
+		final byte[] method = { 'H', 'E', 'A', 'D', ' ' };
+		boolean head = request.remaining() >= method.length;
+		for (int i = 0; head && (i < method.length); ++i) {
+			head = request.get(request.position() + i) == method[i];
+		}
+		this.head = head;
+	}
+	
+	/**
+	 * Concludes the header fields.
+	 */
+	private void endHeaders() {
+		if ((this.status >= 100) && (this.status < 200)) {
+			// 101 switches to another protocol, the others are followed by the final response
+			if (this.status == 101) {
+				this.state = State.UNFRAMED;
+			} else {
+				this.state = State.STATUS;
+				this.length = -1;
+				this.chunked = false;
+			}
+		} else if (this.head || (this.status == 204) || (this.status == 304)) {
+			this.state = State.COMPLETE;
+		} else if (this.chunked) {
+			this.state = State.CHUNK_SIZE;
+		} else if (this.length == 0) {
+			this.state = State.COMPLETE;
+		} else if (this.length > 0) {
+			this.remaining = this.length;
+			this.state = State.BODY;
+		} else {
+			// delimited by closing the connection
+			this.state = State.UNFRAMED;
+		}
+	}
+	
+	/**
+	 * Handles a header field.
+	 *
+	 * @param field
+	 *            the field
+	 */
+	private void header(final String field) {
+		final int colon = field.indexOf(':');
+		if (colon <= 0) {
+			this.state = State.UNFRAMED;
+			return;
+		}
+		
+		final String name = field.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+		final String value = field.substring(colon + 1).trim();
+		if ("content-length".equals(name)) { //$NON-NLS-1$
+			try {
+				final long parsed = Long.parseLong(value);
+				if ((parsed < 0) || ((this.length >= 0) && (this.length != parsed))) {
+					this.state = State.UNFRAMED;
+				} else {
+					this.length = parsed;
+				}
+			} catch (final NumberFormatException e) {
+				this.state = State.UNFRAMED;
+			}
+		} else if ("transfer-encoding".equals(name)) { //$NON-NLS-1$
+			// chunked has to be the final coding; any other coding is delimited by closing the connection
+			final String[] codings = value.toLowerCase(Locale.ENGLISH).split(","); //$NON-NLS-1$
+			this.chunked = "chunked".equals(codings[codings.length - 1].trim()); //$NON-NLS-1$
+			if (!this.chunked) {
+				this.state = State.UNFRAMED;
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the response is complete.
+	 *
+	 * @return true, if the response is complete
+	 */
+	boolean isComplete() {
+		return this.state == State.COMPLETE;
+	}
+	
+	/**
+	 * Checks whether the response is unframed, so it is only complete at the end of the stream.
+	 *
+	 * @return true, if the response is unframed
+	 */
+	boolean isUnframed() {
+		return this.state == State.UNFRAMED;
+	}
+	
+	/**
+	 * Handles a complete line.
+	 *
+	 * @param text
+	 *            the line without the line break
+	 */
+	private void line(final String text) {
+		switch (this.state) {
+			case STATUS:
+				if (!text.startsWith("HTTP/1.") || (text.length() < 12) || (text.charAt(8) != ' ')) { //$NON-NLS-1$
+					this.state = State.UNFRAMED;
+					return;
+				}
+				try {
+					this.status = Integer.parseInt(text.substring(9, 12));
+					this.state = State.HEADERS;
+				} catch (final NumberFormatException e) {
+					this.state = State.UNFRAMED;
+				}
+				break;
+			case HEADERS:
+				if (text.isEmpty()) {
+					endHeaders();
+				} else {
+					header(text);
+				}
+				break;
+			case CHUNK_SIZE:
+				final int extension = text.indexOf(';');
+				final String size = (extension < 0
+				                                   ? text
+				                                   : text.substring(0, extension)).trim();
+				try {
+					this.remaining = Long.parseLong(size, 16);
+				} catch (final NumberFormatException e) {
+					this.state = State.UNFRAMED;
+					return;
+				}
+				if (this.remaining < 0) {
+					this.state = State.UNFRAMED;
+				} else if (this.remaining == 0) {
+					this.state = State.TRAILER;
+				} else {
+					this.state = State.CHUNK_DATA;
+				}
+				break;
+			case CHUNK_END:
+				this.state = text.isEmpty()
+				                           ? State.CHUNK_SIZE
+				                           : State.UNFRAMED;
+				break;
+			case TRAILER:
+				if (text.isEmpty()) {
+					this.state = State.COMPLETE;
+				}
+				break;
+			default:
+				break;
+		}
+	}
+	
+	/**
+	 * Follows the framing over the next bytes of the response.
+	 *
+	 * @param data
+	 *            the data; its position is not changed
+	 * @return true, if the response is complete with the last of these bytes
+	 */
+	boolean update(final ByteBuffer data) {
+		int position = data.position();
+		final int limit = data.limit();
+		
+		while ((position < limit) && (this.state != State.UNFRAMED)) {
+			switch (this.state) {
+				case BODY:
+				case CHUNK_DATA:
+					final int n = (int) Math.min(this.remaining, limit - position);
+					position += n;
+					this.remaining -= n;
+					if (this.remaining == 0) {
+						this.state = this.state == State.BODY
+						                                     ? State.COMPLETE
+						                                     : State.CHUNK_END;
+					}
+					break;
+				case COMPLETE:
+					// more than the response; we cannot tell what belongs to it
+					this.state = State.UNFRAMED;
+					break;
+				default:
+					final char c = (char) (data.get(position++) & 0xff);
+					if (c == '\n') {
+						final int end = this.line.length();
+						final String text = this.line.substring(0, (end > 0) && (this.line.charAt(end - 1) == '\r')
+						                                                                                    ? end - 1
+						                                                                                    : end);
+						this.line.setLength(0);
+						line(text);
+					} else if (this.line.length() < MAX_LINE) {
+						this.line.append(c);
+					} else {
+						this.state = State.UNFRAMED;
+					}
+					break;
+			}
+		}
+		
+		return this.state == State.COMPLETE;
+	}
+}
@@ -0,0 +1,497 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.ownhero.dev.ioda.ProxyConfig;
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A {@link ProxySelector} that spreads connections over several proxies and prefers the fastest one. Every proxy is
+ * probed in the background: a probe connects to the proxy (connect latency) and does one round trip with it, a SOCKS5
+ * greeting or an HTTP <code>OPTIONS</code> request (transfer latency). Both are kept as moving averages, to which
+ * callers can add their own observations through {@link #recordConnect(ProxyConfig, long)} and
+ * {@link #recordTransfer(ProxyConfig, long)}.
+ * 
+ * Proxies that fail {@link #FAILURE_THRESHOLD} times in a row, in probes or in {@link #connectFailed(URI, SocketAddress,
+ * IOException) reported connects}, are ejected; they are selected again once a probe succeeds. Proxies that have not
+ * been measured yet are tried first.
+ * 
+ * The returned {@link Proxy} instances cannot carry credentials. Use {@link #route()} with a
+ * {@link CachingSocketFactory} to connect through authenticated proxies.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class LatencyProxySelector extends ProxySelector implements Closeable {
+	
+	/**
+	 * The state of a single proxy.
+	 */
+	private static final class Route {
+		
+		/** The configuration. */
+		private final ProxyConfig config;
+		
+		/** The proxy handed out by {@link LatencyProxySelector#select(URI)}. */
+		private final Proxy       proxy;
+		
+		/** The average connect latency in nanoseconds, negative if not measured yet. */
+		private long              connect  = -1;
+		
+		/** The average transfer latency in nanoseconds, negative if not measured yet. */
+		private long              transfer = -1;
+		
+		/** The number of consecutive failures. */
+		private int               failures;
+		
+		/**
+		 * Instantiates a new route.
+		 *
+		 * @param config
+		 *            the config
+		 */
+		Route(final ProxyConfig config) {
+			this.config = config;
+			this.proxy = new Proxy(config.useSocks()
+			                                        ? Proxy.Type.SOCKS
+			                                        : Proxy.Type.HTTP, InetSocketAddress.createUnresolved(config.getHost(),
+			                                                                                              config.getPort()));
+		}
+		
+		/**
+		 * Checks whether the route may be selected.
+		 *
+		 * @return true, if the route is not ejected
+		 */
+		boolean isHealthy() {
+			return this.failures < FAILURE_THRESHOLD;
+		}
+		
+		/**
+		 * Gets the score; lower is better.
+		 *
+		 * @return the sum of the latencies, 0 if nothing has been measured yet
+		 */
+		long score() {
+			return Math.max(this.connect, 0) + Math.max(this.transfer, 0);
+		}
+	}
+	
+	/** The default time in milliseconds between two probes of a proxy. */
+	public static final long     DEFAULT_PROBE_INTERVAL = 10000L;
+	
+	/** The default timeout of a probe in milliseconds. */
+	public static final int      DEFAULT_PROBE_TIMEOUT  = 5000;
+	
+	/** The number of consecutive failures after which a proxy is ejected. */
+	public static final int      FAILURE_THRESHOLD      = 3;
+	
+	/** The weight of a new sample in the moving averages. */
+	private static final double  WEIGHT                 = 0.3;
+	
+	/** The charset of the probe requests. */
+	private static final Charset ISO_8859_1             = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+	
+	/**
+	 * Adds a sample to a moving average.
+	 *
+	 * @param average
+	 *            the average, negative if there is none yet
+	 * @param sample
+	 *            the sample
+	 * @return the new average
+	 */
+	private static long average(final long average,
+	                            final long sample) {
+		return average < 0
+		                  ? sample
+		                  : (long) ((WEIGHT * sample) + ((1 - WEIGHT) * average));
+	}
+	
+	/** The routes. */
+	private final List<Route>              routes;
+	
+	/** The probe timeout. */
+	private final int                      probeTimeout;
+	
+	/** Runs the probes. */
+	private final ScheduledExecutorService prober;
+	
+	/**
+	 * Instantiates a new latency proxy selector with the default probe interval and timeout.
+	 *
+	 * @param proxies
+	 *            the proxies
+	 */
+	public LatencyProxySelector(@NotNull final List<ProxyConfig> proxies) {
+		this(proxies, DEFAULT_PROBE_INTERVAL, DEFAULT_PROBE_TIMEOUT);
+	}
+	
+	/**
+	 * Instantiates a new latency proxy selector.
+	 *
+	 * @param proxies
+	 *            the proxies
+	 * @param probeInterval
+	 *            the time in milliseconds between two probes of a proxy
+	 * @param probeTimeout
+	 *            the timeout of a probe in milliseconds
+	 */
+	public LatencyProxySelector(@NotNull final List<ProxyConfig> proxies, final long probeInterval,
+	        final int probeTimeout) {
+		// PRECONDITIONS
+		Condition.notNull(proxies, "Argument '%s' in '%s'.", "proxies", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.check(!proxies.isEmpty(), "Argument '%s' in '%s' must not be empty.", "proxies", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		Condition.check(probeInterval > 0, "Argument '%s' in '%s' has to be positive.", "probeInterval", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		
+		try {
+			final List<Route> list = new ArrayList<Route>(proxies.size());
+			for (final ProxyConfig proxy : proxies) {
+				list.add(new Route(proxy));
+			}
+			this.routes = Collections.unmodifiableList(list);
+			this.probeTimeout = probeTimeout;
+			this.prober = Executors.newScheduledThreadPool(Math.min(4, list.size()), new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, getClassName() + "-prober"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			for (final Route route : this.routes) {
+				this.prober.scheduleWithFixedDelay(new Runnable() {
+					
+					@Override
+					public void run() {
+						probe(route);
+					}
+				}, 0, probeInterval, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Stops probing.
+	 */
+	@Override
+	public void close() {
+		this.prober.shutdownNow();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI, java.net.SocketAddress, java.io.IOException)
+	 */
+	@Override
+	public void connectFailed(final URI uri,
+	                          final SocketAddress sa,
+	                          final IOException ioe) {
+		// PRECONDITIONS
+		Condition.notNull(sa, "Argument '%s' in '%s'.", "sa", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			if (!(sa instanceof InetSocketAddress)) {
+				return;
+			}
+			final InetSocketAddress address = (InetSocketAddress) sa;
+			for (final Route route : this.routes) {
+				if ((route.config.getPort() == address.getPort())
+				        && route.config.getHost().equalsIgnoreCase(address.getHostString())) {
+					recordFailure(route.config);
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Finds the route of the given proxy.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @return the route
+	 */
+	private Route find(final ProxyConfig proxy) {
+		for (final Route route : this.routes) {
+			if (route.config.equals(proxy)) {
+				return route;
+			}
+		}
+		throw new IllegalArgumentException("Unknown proxy " + proxy.getHost() + ":" + proxy.getPort()); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the average latency of the given proxy, connect and transfer combined.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @return the latency in nanoseconds, 0 if nothing has been measured yet
+	 */
+	public long getLatency(@NotNull final ProxyConfig proxy) {
+		final Route route = find(proxy);
+		synchronized (this) {
+			return route.score();
+		}
+	}
+	
+	/**
+	 * Checks whether the given proxy is currently selected.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @return false, if the proxy has been ejected
+	 */
+	public boolean isHealthy(@NotNull final ProxyConfig proxy) {
+		final Route route = find(proxy);
+		synchronized (this) {
+			return route.isHealthy();
+		}
+	}
+	
+	/**
+	 * Probes a proxy. The probe is a channel socket, which does not go through a {@link java.net.SocketImplFactory},
+	 * so installing a caching socket implementation never turns probes into cache lookups.
+	 *
+	 * @param route
+	 *            the route
+	 */
+	private void probe(final Route route) {
+		final ProxyConfig config = route.config;
+		try {
+			final SocketChannel channel = SocketChannel.open();
+			try {
+				final Socket socket = channel.socket();
+				final long start = System.nanoTime();
+				socket.connect(new InetSocketAddress(config.getHost(), config.getPort()), this.probeTimeout);
+				final long connected = System.nanoTime();
+				
+				socket.setSoTimeout(this.probeTimeout);
+				final OutputStream out = socket.getOutputStream();
+				final InputStream in = socket.getInputStream();
+				if (config.useSocks()) {
+					// the greeting; the proxy answers with its choice of authentication
+					out.write(new byte[] { 5, 1, 0 });
+				} else {
+					out.write(("OPTIONS * HTTP/1.1\r\nHost: " + config.getHost() + ":" + config.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+					        + "\r\nConnection: close\r\n\r\n").getBytes(ISO_8859_1)); //$NON-NLS-1$
+				}
+				out.flush();
+				if (in.read() < 0) {
+					throw new IOException("Proxy closed the connection"); //$NON-NLS-1$
+				}
+				final long answered = System.nanoTime();
+				
+				synchronized (this) {
+					if (!route.isHealthy() && Logger.logInfo()) {
+						Logger.info("Proxy " + config.getHost() + ":" + config.getPort() + " recovered."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					}
+					route.failures = 0;
+					route.connect = average(route.connect, connected - start);
+					route.transfer = average(route.transfer, answered - connected);
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (final IOException e) {
+			if (Logger.logDebug()) {
+				Logger.debug("Probe of proxy " + config.getHost() + ":" + config.getPort() + " failed: " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				        + e.getMessage());
+			}
+			recordFailure(config);
+		}
+	}
+	
+	/**
+	 * Records the time it took to connect through the given proxy.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @param nanos
+	 *            the connect time in nanoseconds
+	 */
+	public void recordConnect(@NotNull final ProxyConfig proxy,
+	                          final long nanos) {
+		final Route route = find(proxy);
+		synchronized (this) {
+			route.connect = average(route.connect, nanos);
+		}
+	}
+	
+	/**
+	 * Records a failure to connect through the given proxy.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 */
+	public void recordFailure(@NotNull final ProxyConfig proxy) {
+		final Route route = find(proxy);
+		synchronized (this) {
+			++route.failures;
+			if ((route.failures == FAILURE_THRESHOLD) && Logger.logWarn()) {
+				Logger.warn("Ejecting proxy " + proxy.getHost() + ":" + proxy.getPort() + " after " + FAILURE_THRESHOLD //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				        + " failures."); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	/**
+	 * Records the time it took to get an answer through the given proxy, e.g. the time to the first byte of a
+	 * response.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void recordTransfer(@NotNull final ProxyConfig proxy,
+	                           final long nanos) {
+		final Route route = find(proxy);
+		synchronized (this) {
+			route.transfer = average(route.transfer, nanos);
+		}
+	}
+	
+	/**
+	 * Gets the proxies in the order they should be tried: healthy ones by ascending latency, then the ejected ones by
+	 * ascending number of failures, so there is always a proxy to try.
+	 *
+	 * @return the proxies
+	 */
+	public List<ProxyConfig> route() {
+		final List<Route> ordered = new ArrayList<Route>(this.routes);
+		synchronized (this) {
+			Collections.sort(ordered, new Comparator<Route>() {
+				
+				@Override
+				public int compare(final Route r1,
+				                   final Route r2) {
+					if (r1.isHealthy() != r2.isHealthy()) {
+						return r1.isHealthy()
+						                     ? -1
+						                     : 1;
+					}
+					final long s1 = r1.isHealthy()
+					                              ? r1.score()
+					                              : r1.failures;
+					final long s2 = r2.isHealthy()
+					                              ? r2.score()
+					                              : r2.failures;
+					return s1 < s2
+					              ? -1
+					              : (s1 == s2
+					                         ? 0
+					                         : 1);
+				}
+			});
+		}
+		
+		final List<ProxyConfig> result = new ArrayList<ProxyConfig>(ordered.size());
+		for (final Route route : ordered) {
+			result.add(route.config);
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 */
+	@Override
+	public List<Proxy> select(final URI uri) {
+		// PRECONDITIONS
+		Condition.notNull(uri, "Argument '%s' in '%s'.", "uri", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			// plain sockets can only be tunneled through SOCKS proxies
+			final boolean socket = "socket".equalsIgnoreCase(uri.getScheme()); //$NON-NLS-1$
+			final List<Proxy> result = new LinkedList<Proxy>();
+			for (final ProxyConfig config : route()) {
+				final Route route = find(config);
+				if (!socket || config.useSocks()) {
+					result.add(route.proxy);
+				}
+			}
+			if (result.isEmpty()) {
+				result.add(Proxy.NO_PROXY);
+			}
+			return result;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+}
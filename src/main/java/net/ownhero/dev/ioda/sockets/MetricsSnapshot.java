@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable point in time copy of the counters and histograms of a {@link SocketMetrics}. Latencies are in
+ * microseconds.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public final class MetricsSnapshot {
+	
+	/**
+	 * The latencies observed for a single host.
+	 */
+	public static final class Host {
+		
+		/** The connect latency. */
+		private final Histogram connectLatency;
+		
+		/** The time to first byte. */
+		private final Histogram timeToFirstByte;
+		
+		/**
+		 * Instantiates a new host.
+		 *
+		 * @param connectLatency
+		 *            the connect latency
+		 * @param timeToFirstByte
+		 *            the time to first byte
+		 */
+		Host(final Histogram connectLatency, final Histogram timeToFirstByte) {
+			this.connectLatency = connectLatency;
+			this.timeToFirstByte = timeToFirstByte;
+		}
+		
+		/**
+		 * Gets the connect latency in microseconds.
+		 *
+		 * @return the connect latency
+		 */
+		public Histogram getConnectLatency() {
+			return this.connectLatency;
+		}
+		
+		/**
+		 * Gets the time in microseconds from forwarding a request to the first byte of the response.
+		 *
+		 * @return the time to first byte
+		 */
+		public Histogram getTimeToFirstByte() {
+			return this.timeToFirstByte;
+		}
+	}
+	
+	/** The hits. */
+	private final long              hits;
+	
+	/** The misses. */
+	private final long              misses;
+	
+	/** The bytes from cache. */
+	private final long              bytesFromCache;
+	
+	/** The bytes from upstream. */
+	private final long              bytesFromUpstream;
+	
+	/** The leases. */
+	private final long              leases;
+	
+	/** The reuses. */
+	private final long              reuses;
+	
+	/** The connect latency. */
+	private final Histogram         connectLatency;
+	
+	/** The time to first byte. */
+	private final Histogram         timeToFirstByte;
+	
+	/** The hosts. */
+	private final Map<String, Host> hosts;
+	
+	/**
+	 * Instantiates a new metrics snapshot.
+	 *
+	 * @param hits
+	 *            the hits
+	 * @param misses
+	 *            the misses
+	 * @param bytesFromCache
+	 *            the bytes from cache
+	 * @param bytesFromUpstream
+	 *            the bytes from upstream
+	 * @param leases
+	 *            the leases
+	 * @param reuses
+	 *            the reuses
+	 * @param connectLatency
+	 *            the connect latency
+	 * @param timeToFirstByte
+	 *            the time to first byte
+	 * @param hosts
+	 *            the hosts
+	 */
+	MetricsSnapshot(final long hits, final long misses, final long bytesFromCache, final long bytesFromUpstream,
+	        final long leases, final long reuses, final Histogram connectLatency, final Histogram timeToFirstByte,
+	        final Map<String, Host> hosts) {
+		this.hits = hits;
+		this.misses = misses;
+		this.bytesFromCache = bytesFromCache;
+		this.bytesFromUpstream = bytesFromUpstream;
+		this.leases = leases;
+		this.reuses = reuses;
+		this.connectLatency = connectLatency;
+		this.timeToFirstByte = timeToFirstByte;
+		this.hosts = Collections.unmodifiableMap(hosts);
+	}
+	
+	/**
+	 * Gets the number of bytes replayed from the cache.
+	 *
+	 * @return the bytes from cache
+	 */
+	public long getBytesFromCache() {
+		return this.bytesFromCache;
+	}
+	
+	/**
+	 * Gets the number of bytes read from upstream connections.
+	 *
+	 * @return the bytes from upstream
+	 */
+	public long getBytesFromUpstream() {
+		return this.bytesFromUpstream;
+	}
+	
+	/**
+	 * Gets the connect latency in microseconds over all hosts.
+	 *
+	 * @return the connect latency
+	 */
+	public Histogram getConnectLatency() {
+		return this.connectLatency;
+	}
+	
+	/**
+	 * Gets the share of requests answered from the cache.
+	 *
+	 * @return the hit ratio between 0 and 1
+	 */
+	public double getHitRatio() {
+		final long requests = this.hits + this.misses;
+		return requests == 0
+		                    ? 0
+		                    : (double) this.hits / requests;
+	}
+	
+	/**
+	 * Gets the number of requests answered from the cache.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return this.hits;
+	}
+	
+	/**
+	 * Gets the latencies per host.
+	 *
+	 * @return the hosts
+	 */
+	public Map<String, Host> getHosts() {
+		return this.hosts;
+	}
+	
+	/**
+	 * Gets the number of connections leased from a pool.
+	 *
+	 * @return the leases
+	 */
+	public long getLeases() {
+		return this.leases;
+	}
+	
+	/**
+	 * Gets the number of requests forwarded upstream.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return this.misses;
+	}
+	
+	/**
+	 * Gets the share of leases served by an idle connection.
+	 *
+	 * @return the reuse rate between 0 and 1
+	 */
+	public double getReuseRate() {
+		return this.leases == 0
+		                       ? 0
+		                       : (double) this.reuses / this.leases;
+	}
+	
+	/**
+	 * Gets the number of leases served by an idle connection.
+	 *
+	 * @return the reuses
+	 */
+	public long getReuses() {
+		return this.reuses;
+	}
+	
+	/**
+	 * Gets the time in microseconds from forwarding a request to the first byte of the response over all hosts.
+	 *
+	 * @return the time to first byte
+	 */
+	public Histogram getTimeToFirstByte() {
+		return this.timeToFirstByte;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MetricsSnapshot [hits=" + this.hits + ", misses=" + this.misses + ", bytesFromCache=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		        + this.bytesFromCache + ", bytesFromUpstream=" + this.bytesFromUpstream + ", leases=" + this.leases //$NON-NLS-1$ //$NON-NLS-2$
+		        + ", reuses=" + this.reuses + ", connectLatency=" + this.connectLatency + ", timeToFirstByte=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		        + this.timeToFirstByte + "]"; //$NON-NLS-1$
+	}
+}
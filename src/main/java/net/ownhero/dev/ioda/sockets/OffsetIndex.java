@@ -0,0 +1,503 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A compact hash table mapping the leading 128 bits of a {@link CacheKey#idBytes() key id} to a record location. The
+ * table uses open addressing with linear probing over a memory-mapped file of 24 byte slots (high half, low half,
+ * location), i.e. no objects per entry. A location of 0 marks an empty slot, so valid locations have to be non-zero.
+ * 
+ * Since the table lives in the file, an existing index can be {@link #open(File, int, int) opened} without reading it;
+ * pages are faulted in by the lookups that touch them. The file is named after the capacity and replaced by a new file
+ * whenever the table grows.
+ * 
+ * The class is not thread safe.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class OffsetIndex {
+	
+	/** Returned if there is no entry. */
+	static final long           NONE             = 0L;
+	
+	/** The file prefix. */
+	static final String         PREFIX           = "index."; //$NON-NLS-1$
+	
+	/** The file suffix. */
+	static final String         SUFFIX           = ".map";   //$NON-NLS-1$
+	
+	/** The size of a slot in bytes. */
+	private static final int    SLOT             = 24;
+	
+	/** The initial capacity. */
+	private static final int    INITIAL_CAPACITY = 1024;
+	
+	/** The largest capacity whose table still fits into a single mapping. */
+	private static final int    MAX_CAPACITY     = Integer.highestOneBit(Integer.MAX_VALUE / SLOT);
+	
+	/** The maximum load factor. */
+	private static final double MAX_LOAD         = 0.7;
+	
+	/**
+	 * Creates a new, empty index in the directory. Index files left in the directory are deleted.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @return the index
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static OffsetIndex create(final File directory) throws IOException {
+		delete(directory, null);
+		final File file = file(directory, INITIAL_CAPACITY);
+		return new OffsetIndex(directory, file, map(file, INITIAL_CAPACITY, true), INITIAL_CAPACITY, 0);
+	}
+	
+	/**
+	 * Deletes the index files in the directory.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param keep
+	 *            a file to keep, may be null
+	 */
+	private static void delete(final File directory,
+	                           final File keep) {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			
+			@Override
+			public boolean accept(final File dir,
+			                      final String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			if (!file.equals(keep) && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the file of the index with the given capacity.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param capacity
+	 *            the capacity
+	 * @return the file
+	 */
+	private static File file(final File directory,
+	                         final int capacity) {
+		return new File(directory, PREFIX + capacity + SUFFIX);
+	}
+	
+	/**
+	 * Maps the table of the given capacity.
+	 *
+	 * @param file
+	 *            the file
+	 * @param capacity
+	 *            the capacity
+	 * @param create
+	 *            whether the file is created (or truncated) instead of opened
+	 * @return the mapping
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static MappedByteBuffer map(final File file,
+	                                    final int capacity,
+	                                    final boolean create) throws IOException {
+		final long size = (long) capacity * SLOT;
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			if (create) {
+				// a sparse file of zeros, i.e. all slots empty
+				raf.setLength(0);
+				raf.setLength(size);
+			} else if (raf.length() != size) {
+				throw new IOException("Index " + file + " has " + raf.length() + " bytes, expected " + size); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+			// the mapping stays valid after the channel has been closed
+			return raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Opens an existing index. Nothing but the mapping is set up, the table is read on demand.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param capacity
+	 *            the capacity the index has been written with
+	 * @param size
+	 *            the number of entries the index has been written with, or -1 if it is not known and the entries have
+	 *            to be counted
+	 * @return the index
+	 * @throws IOException
+	 *             if the file is missing or does not match the capacity
+	 */
+	static OffsetIndex open(final File directory,
+	                        final int capacity,
+	                        final int size) throws IOException {
+		if ((capacity < INITIAL_CAPACITY) || (capacity > MAX_CAPACITY) || (Integer.bitCount(capacity) != 1)
+		        || (size < -1) || (size > capacity)) {
+			throw new IOException("Invalid index capacity " + capacity + " or size " + size); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		final File file = file(directory, capacity);
+		if (!file.isFile()) {
+			throw new IOException("Missing index " + file); //$NON-NLS-1$
+		}
+		final OffsetIndex index = new OffsetIndex(directory, file, map(file, capacity, false), capacity,
+		                                          Math.max(size, 0));
+		if (size < 0) {
+			for (int slot = 0; slot < capacity; ++slot) {
+				if (index.location(slot) != NONE) {
+					++index.size;
+				}
+			}
+		}
+		delete(directory, file);
+		return index;
+	}
+	
+	/**
+	 * Reads the leading bytes of an id as a big endian long.
+	 *
+	 * @param id
+	 *            the id
+	 * @param offset
+	 *            the offset
+	 * @return the long
+	 */
+	static long toLong(final byte[] id,
+	                   final int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; ++i) {
+			value = (value << 8) | (id[offset + i] & 0xff);
+		}
+		return value;
+	}
+	
+	/** The directory. */
+	private final File       directory;
+	
+	/** The file. */
+	private File             file;
+	
+	/** The mapping. */
+	private MappedByteBuffer mapping;
+	
+	/** The slots as high half, low half and location. */
+	private LongBuffer       table;
+	
+	/** The capacity. */
+	private int              capacity;
+	
+	/** The size. */
+	private int              size;
+	
+	/**
+	 * Instantiates a new offset index.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param file
+	 *            the file
+	 * @param mapping
+	 *            the mapping
+	 * @param capacity
+	 *            the capacity
+	 * @param size
+	 *            the size
+	 */
+	private OffsetIndex(final File directory, final File file, final MappedByteBuffer mapping, final int capacity,
+	        final int size) {
+		this.directory = directory;
+		this.file = file;
+		this.mapping = mapping;
+		this.table = mapping.asLongBuffer();
+		this.capacity = capacity;
+		this.size = size;
+	}
+	
+	/**
+	 * Gets the capacity.
+	 *
+	 * @return the capacity
+	 */
+	int capacity() {
+		return this.capacity;
+	}
+	
+	/**
+	 * Finds the slot of the given id, or the empty slot it would be inserted at.
+	 *
+	 * @param high
+	 *            the high half
+	 * @param low
+	 *            the low half
+	 * @return the slot
+	 */
+	private int find(final long high,
+	                 final long low) {
+		final int mask = this.capacity - 1;
+		int slot = home(high, mask);
+		while ((location(slot) != NONE) && ((high(slot) != high) || (low(slot) != low))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Writes the table back to the file.
+	 */
+	void force() {
+		this.mapping.force();
+	}
+	
+	/**
+	 * Gets the location stored for the id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the location or {@link #NONE}
+	 */
+	long get(final byte[] id) {
+		return location(find(toLong(id, 0), toLong(id, 8)));
+	}
+	
+	/**
+	 * Gets the high half stored in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the high half
+	 */
+	private long high(final int slot) {
+		return this.table.get(3 * slot);
+	}
+	
+	/**
+	 * Gets the preferred slot of an id.
+	 *
+	 * @param high
+	 *            the high half
+	 * @param mask
+	 *            the mask
+	 * @return the slot
+	 */
+	private int home(final long high,
+	                 final int mask) {
+		// ids are digests, any bits are uniformly distributed
+		return (int) (high ^ (high >>> 32)) & mask;
+	}
+	
+	/**
+	 * Gets the location stored in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the location
+	 */
+	private long location(final int slot) {
+		return this.table.get((3 * slot) + 2);
+	}
+	
+	/**
+	 * Gets the low half stored in a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @return the low half
+	 */
+	private long low(final int slot) {
+		return this.table.get((3 * slot) + 1);
+	}
+	
+	/**
+	 * Stores the location for the id.
+	 *
+	 * @param id
+	 *            the id
+	 * @param location
+	 *            the location, must not be {@link #NONE}
+	 * @return the previous location or {@link #NONE}
+	 * @throws IOException
+	 *             if the table had to grow and the new file could not be created
+	 */
+	long put(final byte[] id,
+	         final long location) throws IOException {
+		if ((this.size + 1) > (this.capacity * MAX_LOAD)) {
+			resize(this.capacity * 2);
+		}
+		return put(toLong(id, 0), toLong(id, 8), location);
+	}
+	
+	/**
+	 * Stores the location for the id halves. The table must have room.
+	 *
+	 * @param high
+	 *            the high half
+	 * @param low
+	 *            the low half
+	 * @param location
+	 *            the location
+	 * @return the previous location or {@link #NONE}
+	 */
+	private long put(final long high,
+	                 final long low,
+	                 final long location) {
+		final int slot = find(high, low);
+		final long previous = location(slot);
+		if (previous == NONE) {
+			++this.size;
+		}
+		set(slot, high, low, location);
+		return previous;
+	}
+	
+	/**
+	 * Removes the entry for the id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the removed location or {@link #NONE}
+	 */
+	long remove(final byte[] id) {
+		int slot = find(toLong(id, 0), toLong(id, 8));
+		final long previous = location(slot);
+		if (previous == NONE) {
+			return NONE;
+		}
+		
+		// backward shift deletion keeps probe sequences intact without tombstones
+		final int mask = this.capacity - 1;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (location(next) == NONE) {
+				break;
+			}
+			final int home = home(high(next), mask);
+			final boolean movable = slot <= next
+			                                    ? (home <= slot) || (home > next)
+			                                    : (home <= slot) && (home > next);
+			if (movable) {
+				set(slot, high(next), low(next), location(next));
+				slot = next;
+			}
+		}
+		set(slot, 0L, 0L, NONE);
+		--this.size;
+		return previous;
+	}
+	
+	/**
+	 * Replaces the location of the id only if it currently is the expected one.
+	 *
+	 * @param id
+	 *            the id
+	 * @param expected
+	 *            the expected location
+	 * @param location
+	 *            the new location
+	 * @return true, if the location has been replaced
+	 */
+	boolean replace(final byte[] id,
+	                final long expected,
+	                final long location) {
+		final int slot = find(toLong(id, 0), toLong(id, 8));
+		if ((location(slot) == NONE) || (location(slot) != expected)) {
+			return false;
+		}
+		this.table.put((3 * slot) + 2, location);
+		return true;
+	}
+	
+	/**
+	 * Rehashes into a new file of the given capacity and deletes the old one.
+	 *
+	 * @param capacity
+	 *            the capacity
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void resize(final int capacity) throws IOException {
+		if (capacity > MAX_CAPACITY) {
+			throw new IOException("Index exceeds " + (int) (MAX_CAPACITY * MAX_LOAD) + " entries"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		final File oldFile = this.file;
+		final LongBuffer old = this.table;
+		final int oldCapacity = this.capacity;
+		
+		this.file = file(this.directory, capacity);
+		this.mapping = map(this.file, capacity, true);
+		this.table = this.mapping.asLongBuffer();
+		this.capacity = capacity;
+		this.size = 0;
+		
+		for (int i = 0; i < oldCapacity; ++i) {
+			final long location = old.get((3 * i) + 2);
+			if (location != NONE) {
+				put(old.get(3 * i), old.get((3 * i) + 1), location);
+			}
+		}
+		if (!oldFile.delete()) {
+			oldFile.deleteOnExit();
+		}
+	}
+	
+	/**
+	 * Writes a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param high
+	 *            the high half
+	 * @param low
+	 *            the low half
+	 * @param location
+	 *            the location
+	 */
+	private void set(final int slot,
+	                 final long high,
+	                 final long low,
+	                 final long location) {
+		this.table.put(3 * slot, high);
+		this.table.put((3 * slot) + 1, low);
+		this.table.put((3 * slot) + 2, location);
+	}
+	
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return this.size;
+	}
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A view of the payload of a stored response, without the header or trailer written by a wrapping store.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class OffsetResponse implements CachedResponse {
+	
+	/** The stored response. */
+	private final CachedResponse stored;
+	
+	/** The offset of the payload. */
+	private final long           offset;
+	
+	/** The size of the payload. */
+	private final long           size;
+	
+	/**
+	 * Instantiates a new offset response.
+	 *
+	 * @param stored
+	 *            the stored response
+	 * @param offset
+	 *            the offset of the payload
+	 * @param size
+	 *            the size of the payload
+	 */
+	OffsetResponse(final CachedResponse stored, final long offset, final long size) {
+		this.stored = stored;
+		this.offset = offset;
+		this.size = size;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.stored.close();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#getSize()
+	 */
+	@Override
+	public long getSize() {
+		return this.size;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#read(long, java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(final long position,
+	                final ByteBuffer target) throws IOException {
+		if (position >= this.size) {
+			return -1;
+		}
+		// the stored response may continue behind the payload, e.g. with a trailer
+		final int limit = target.limit();
+		if (target.remaining() > (this.size - position)) {
+			target.limit(target.position() + (int) (this.size - position));
+		}
+		try {
+			return this.stored.read(this.offset + position, target);
+		} finally {
+			target.limit(limit);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.CachedResponse#transferTo(long, long,
+	 * java.nio.channels.WritableByteChannel)
+	 */
+	@Override
+	public long transferTo(final long position,
+	                       final long count,
+	                       final WritableByteChannel target) throws IOException {
+		if (position >= this.size) {
+			return 0;
+		}
+		return this.stored.transferTo(this.offset + position, Math.min(count, this.size - position), target);
+	}
+}
+
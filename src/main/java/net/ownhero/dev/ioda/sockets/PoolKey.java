@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.net.InetAddress;
+import java.util.Locale;
+
+import net.ownhero.dev.ioda.ProxyConfig;
+import net.ownhero.dev.kanuni.annotations.simple.NotNegative;
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * Identifies the connections in a {@link SocketPool} that are interchangeable: same remote host, same port, same
+ * local address and same proxy, if the connection is tunneled through one.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public final class PoolKey {
+	
+	/** The host as given by the caller (name or address literal). */
+	private final String      host;
+	
+	/** The remote address, if the caller already resolved it. */
+	private final InetAddress address;
+	
+	/** The port. */
+	private final int         port;
+	
+	/** The local address, <code>null</code> for any. */
+	private final InetAddress localAddress;
+	
+	/** The proxy the connection is tunneled through, <code>null</code> for a direct connection. */
+	private final ProxyConfig proxy;
+	
+	/**
+	 * Instantiates a new pool key for an already resolved address.
+	 *
+	 * @param address
+	 *            the remote address
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 */
+	public PoolKey(@NotNull final InetAddress address, @NotNegative final int port, final InetAddress localAddress) {
+		this(address, port, localAddress, null);
+	}
+	
+	/**
+	 * Instantiates a new pool key for an already resolved address, reached through the given proxy.
+	 *
+	 * @param address
+	 *            the remote address
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 * @param proxy
+	 *            the proxy, <code>null</code> for a direct connection
+	 */
+	public PoolKey(@NotNull final InetAddress address, @NotNegative final int port, final InetAddress localAddress,
+	        final ProxyConfig proxy) {
+		this(address.getHostAddress(), address, port, localAddress, proxy);
+	}
+	
+	/**
+	 * Instantiates a new pool key for a host name that is resolved on connect.
+	 *
+	 * @param host
+	 *            the host
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 */
+	public PoolKey(@NotNull final String host, @NotNegative final int port, final InetAddress localAddress) {
+		this(host, port, localAddress, null);
+	}
+	
+	/**
+	 * Instantiates a new pool key for a host name, reached through the given proxy. Host names of SOCKS tunnels are
+	 * resolved by the proxy.
+	 *
+	 * @param host
+	 *            the host
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 * @param proxy
+	 *            the proxy, <code>null</code> for a direct connection
+	 */
+	public PoolKey(@NotNull final String host, @NotNegative final int port, final InetAddress localAddress,
+	        final ProxyConfig proxy) {
+		this(host.toLowerCase(Locale.ENGLISH), null, port, localAddress, proxy);
+	}
+	
+	/**
+	 * Instantiates a new pool key for a host name that has been resolved already, so a tunnel still asks the proxy
+	 * for the name.
+	 *
+	 * @param host
+	 *            the host
+	 * @param address
+	 *            the address, <code>null</code> to resolve the host on connect
+	 * @param port
+	 *            the port
+	 * @param localAddress
+	 *            the local address, <code>null</code> for any
+	 * @param proxy
+	 *            the proxy, <code>null</code> for a direct connection
+	 */
+	PoolKey(final String host, final InetAddress address, final int port, final InetAddress localAddress,
+	        final ProxyConfig proxy) {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.host = host;
+			this.address = address;
+			this.port = port;
+			this.localAddress = localAddress;
+			this.proxy = proxy;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PoolKey)) {
+			return false;
+		}
+		final PoolKey other = (PoolKey) obj;
+		return (this.port == other.port) && this.host.equals(other.host)
+		        && (this.localAddress == null
+		                                     ? other.localAddress == null
+		                                     : this.localAddress.equals(other.localAddress))
+		        && (this.proxy == null
+		                              ? other.proxy == null
+		                              : this.proxy.equals(other.proxy));
+	}
+	
+	/**
+	 * Gets the remote address.
+	 *
+	 * @return the address or <code>null</code> if the key has been created from a host name
+	 */
+	public InetAddress getAddress() {
+		return this.address;
+	}
+	
+	/**
+	 * Gets the host.
+	 *
+	 * @return the host
+	 */
+	public String getHost() {
+		return this.host;
+	}
+	
+	/**
+	 * Gets the local address.
+	 *
+	 * @return the local address or <code>null</code> for any
+	 */
+	public InetAddress getLocalAddress() {
+		return this.localAddress;
+	}
+	
+	/**
+	 * Gets the port.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return this.port;
+	}
+	
+	/**
+	 * Gets the proxy the connection is tunneled through.
+	 *
+	 * @return the proxy or <code>null</code> for a direct connection
+	 */
+	public ProxyConfig getProxy() {
+		return this.proxy;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = (prime * result) + this.host.hashCode();
+		result = (prime * result) + this.port;
+		result = (prime * result) + (this.localAddress == null
+		                                                      ? 0
+		                                                      : this.localAddress.hashCode());
+		result = (prime * result) + (this.proxy == null
+		                                               ? 0
+		                                               : this.proxy.hashCode());
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.host + ":" + this.port + (this.localAddress == null //$NON-NLS-1$
+		                                                               ? "" //$NON-NLS-1$
+		                                                               : " via " + this.localAddress.getHostAddress()) //$NON-NLS-1$
+		        + (this.proxy == null
+		                             ? "" //$NON-NLS-1$
+		                             : " through " + this.proxy.getHost() + ":" + this.proxy.getPort()); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
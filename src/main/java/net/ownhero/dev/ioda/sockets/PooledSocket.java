@@ -0,0 +1,748 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connected socket leased from a {@link SocketPool}. Closing it hands the underlying connection back to the pool
+ * instead of closing it, unless the connection has been shut down or an I/O error occurred on it. Use
+ * {@link #discard()} to close the connection for real, e.g. after a protocol error that leaves the stream in an
+ * undefined state.
+ * 
+ * Streams obtained from a pooled socket stop working once the socket has been closed, so a stale reference can never
+ * interfere with the next lease of the same connection.
+ * 
+ * Options changed during a lease are restored before the connection is pooled again. Changing a buffer size keeps the
+ * connection from being pooled at all, as the kernel stops tuning the size automatically from then on.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class PooledSocket extends Socket {
+	
+	/**
+	 * Input stream that refuses to work after the lease ended.
+	 */
+	private final class LeasedInputStream extends FilterInputStream {
+		
+		/**
+		 * Instantiates a new leased input stream.
+		 *
+		 * @param in
+		 *            the in
+		 */
+		LeasedInputStream(final InputStream in) {
+			super(in);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#available()
+		 */
+		@Override
+		public int available() throws IOException {
+			ensureLeased();
+			return super.available();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			PooledSocket.this.close();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			ensureLeased();
+			try {
+				return super.read();
+			} catch (final IOException e) {
+				PooledSocket.this.broken = true;
+				throw e;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b,
+		                final int off,
+		                final int len) throws IOException {
+			ensureLeased();
+			try {
+				final int n = super.read(b, off, len);
+				if (n < 0) {
+					// the remote end closed the connection, nothing left to reuse
+					PooledSocket.this.broken = true;
+				}
+				return n;
+			} catch (final IOException e) {
+				PooledSocket.this.broken = true;
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Output stream that refuses to work after the lease ended.
+	 */
+	private final class LeasedOutputStream extends FilterOutputStream {
+		
+		/**
+		 * Instantiates a new leased output stream.
+		 *
+		 * @param out
+		 *            the out
+		 */
+		LeasedOutputStream(final OutputStream out) {
+			super(out);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			PooledSocket.this.close();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterOutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException {
+			ensureLeased();
+			try {
+				this.out.flush();
+			} catch (final IOException e) {
+				PooledSocket.this.broken = true;
+				throw e;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b,
+		                  final int off,
+		                  final int len) throws IOException {
+			ensureLeased();
+			try {
+				this.out.write(b, off, len);
+			} catch (final IOException e) {
+				PooledSocket.this.broken = true;
+				throw e;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+	}
+	
+	/**
+	 * The options of a connection that a lease may change and that are restored before the connection is pooled
+	 * again.
+	 */
+	private static final class Options {
+		
+		/** SO_KEEPALIVE. */
+		private final boolean keepAlive;
+		
+		/** SO_OOBINLINE. */
+		private final boolean oobInline;
+		
+		/** SO_REUSEADDR. */
+		private final boolean reuseAddress;
+		
+		/** SO_LINGER, -1 if disabled. */
+		private final int     soLinger;
+		
+		/** SO_TIMEOUT. */
+		private final int     soTimeout;
+		
+		/** TCP_NODELAY. */
+		private final boolean tcpNoDelay;
+		
+		/** IP_TOS. */
+		private final int     trafficClass;
+		
+		/**
+		 * Captures the options of the given socket.
+		 *
+		 * @param socket
+		 *            the socket
+		 * @throws SocketException
+		 *             the socket exception
+		 */
+		Options(final Socket socket) throws SocketException {
+			this.keepAlive = socket.getKeepAlive();
+			this.oobInline = socket.getOOBInline();
+			this.reuseAddress = socket.getReuseAddress();
+			this.soLinger = socket.getSoLinger();
+			this.soTimeout = socket.getSoTimeout();
+			this.tcpNoDelay = socket.getTcpNoDelay();
+			this.trafficClass = socket.getTrafficClass();
+		}
+		
+		/**
+		 * Applies the captured options to the given socket.
+		 *
+		 * @param socket
+		 *            the socket
+		 * @throws SocketException
+		 *             the socket exception
+		 */
+		void restore(final Socket socket) throws SocketException {
+			socket.setKeepAlive(this.keepAlive);
+			socket.setOOBInline(this.oobInline);
+			socket.setReuseAddress(this.reuseAddress);
+			socket.setSoLinger(this.soLinger >= 0, Math.max(this.soLinger, 0));
+			socket.setSoTimeout(this.soTimeout);
+			socket.setTcpNoDelay(this.tcpNoDelay);
+			socket.setTrafficClass(this.trafficClass);
+		}
+	}
+	
+	/** The pool. */
+	private final SocketPool    pool;
+	
+	/** The key. */
+	private final PoolKey       key;
+	
+	/** The channel. */
+	private final SocketChannel channel;
+	
+	/** The socket of the channel. */
+	private final Socket        socket;
+	
+	/** Whether the lease ended. */
+	private final AtomicBoolean closed = new AtomicBoolean();
+	
+	/** Whether the connection must not be reused. */
+	volatile boolean            broken;
+	
+	/** The input stream. */
+	private InputStream         inputStream;
+	
+	/** The output stream. */
+	private OutputStream        outputStream;
+	
+	/** The options of the pooled connection, captured before the lease changes the first one. */
+	private Options             pooledOptions;
+	
+	/**
+	 * Instantiates a new pooled socket.
+	 *
+	 * @param pool
+	 *            the pool
+	 * @param key
+	 *            the key
+	 * @param channel
+	 *            the connected channel
+	 * @throws SocketException
+	 *             the socket exception
+	 */
+	PooledSocket(final SocketPool pool, final PoolKey key, final SocketChannel channel) throws SocketException {
+		// bypass any installed SocketImplFactory, all calls are delegated to the channel socket
+		super((SocketImpl) null);
+		this.pool = pool;
+		this.key = key;
+		this.channel = channel;
+		this.socket = channel.socket();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#bind(java.net.SocketAddress)
+	 */
+	@Override
+	public void bind(final SocketAddress bindpoint) throws IOException {
+		throw new SocketException("Pooled sockets are already bound"); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Makes sure the lease is still active and captures the options of the pooled connection before the first one is
+	 * changed.
+	 *
+	 * @throws SocketException
+	 *             if the socket has been closed
+	 */
+	private synchronized void changeOption() throws SocketException {
+		ensureLeased();
+		if (this.pooledOptions == null) {
+			this.pooledOptions = new Options(this.socket);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// a stream close may race a socket close; only one of them must end the lease
+		if (!this.closed.compareAndSet(false, true)) {
+			return;
+		}
+		
+		if (this.broken || this.socket.isInputShutdown() || this.socket.isOutputShutdown()) {
+			this.pool.discard(this);
+		} else {
+			this.pool.release(this);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#connect(java.net.SocketAddress, int)
+	 */
+	@Override
+	public void connect(final SocketAddress endpoint,
+	                    final int timeout) throws IOException {
+		throw new SocketException("Pooled sockets are already connected"); //$NON-NLS-1$
+	}
+	
+	/**
+	 * Closes the connection for real instead of returning it to the pool.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void discard() throws IOException {
+		this.broken = true;
+		close();
+	}
+	
+	/**
+	 * Makes sure the lease is still active.
+	 *
+	 * @throws SocketException
+	 *             if the socket has been closed
+	 */
+	private void ensureLeased() throws SocketException {
+		if (this.closed.get()) {
+			throw new SocketException("Socket closed"); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Gets the underlying channel.
+	 *
+	 * @return the channel
+	 */
+	SocketChannel getConnection() {
+		return this.channel;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getInetAddress()
+	 */
+	@Override
+	public InetAddress getInetAddress() {
+		return this.socket.getInetAddress();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		ensureLeased();
+		if (this.inputStream == null) {
+			this.inputStream = new LeasedInputStream(this.socket.getInputStream());
+		}
+		return this.inputStream;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getKeepAlive()
+	 */
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return this.socket.getKeepAlive();
+	}
+	
+	/**
+	 * Gets the pool key of the connection.
+	 *
+	 * @return the key
+	 */
+	public PoolKey getKey() {
+		return this.key;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getLocalAddress()
+	 */
+	@Override
+	public InetAddress getLocalAddress() {
+		return this.socket.getLocalAddress();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort() {
+		return this.socket.getLocalPort();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getLocalSocketAddress()
+	 */
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return this.socket.getLocalSocketAddress();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getOOBInline()
+	 */
+	@Override
+	public boolean getOOBInline() throws SocketException {
+		return this.socket.getOOBInline();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		ensureLeased();
+		if (this.outputStream == null) {
+			this.outputStream = new LeasedOutputStream(this.socket.getOutputStream());
+		}
+		return this.outputStream;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getPort()
+	 */
+	@Override
+	public int getPort() {
+		return this.socket.getPort();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getReceiveBufferSize()
+	 */
+	@Override
+	public int getReceiveBufferSize() throws SocketException {
+		return this.socket.getReceiveBufferSize();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getRemoteSocketAddress()
+	 */
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return this.socket.getRemoteSocketAddress();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getReuseAddress()
+	 */
+	@Override
+	public boolean getReuseAddress() throws SocketException {
+		return this.socket.getReuseAddress();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getSendBufferSize()
+	 */
+	@Override
+	public int getSendBufferSize() throws SocketException {
+		return this.socket.getSendBufferSize();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getSoLinger()
+	 */
+	@Override
+	public int getSoLinger() throws SocketException {
+		return this.socket.getSoLinger();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return this.socket.getSoTimeout();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getTcpNoDelay()
+	 */
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return this.socket.getTcpNoDelay();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#getTrafficClass()
+	 */
+	@Override
+	public int getTrafficClass() throws SocketException {
+		return this.socket.getTrafficClass();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#isBound()
+	 */
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return this.closed.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#isInputShutdown()
+	 */
+	@Override
+	public boolean isInputShutdown() {
+		return this.socket.isInputShutdown();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#isOutputShutdown()
+	 */
+	@Override
+	public boolean isOutputShutdown() {
+		return this.socket.isOutputShutdown();
+	}
+	
+	/**
+	 * Restores the options the lease changed, so the connection can be pooled again.
+	 *
+	 * @throws SocketException
+	 *             the socket exception
+	 */
+	synchronized void restoreOptions() throws SocketException {
+		if (this.pooledOptions != null) {
+			this.pooledOptions.restore(this.socket);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#sendUrgentData(int)
+	 */
+	@Override
+	public void sendUrgentData(final int data) throws IOException {
+		ensureLeased();
+		this.socket.sendUrgentData(data);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setKeepAlive(boolean)
+	 */
+	@Override
+	public void setKeepAlive(final boolean on) throws SocketException {
+		changeOption();
+		this.socket.setKeepAlive(on);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setOOBInline(boolean)
+	 */
+	@Override
+	public void setOOBInline(final boolean on) throws SocketException {
+		changeOption();
+		this.socket.setOOBInline(on);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setPerformancePreferences(int, int, int)
+	 */
+	@Override
+	public void setPerformancePreferences(final int connectionTime,
+	                                      final int latency,
+	                                      final int bandwidth) {
+		// the connection has been established already
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setReceiveBufferSize(int)
+	 */
+	@Override
+	public void setReceiveBufferSize(final int size) throws SocketException {
+		ensureLeased();
+		// once set, the size is no longer tuned by the kernel; that cannot be undone for the next lease
+		this.broken = true;
+		this.socket.setReceiveBufferSize(size);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setReuseAddress(boolean)
+	 */
+	@Override
+	public void setReuseAddress(final boolean on) throws SocketException {
+		changeOption();
+		this.socket.setReuseAddress(on);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setSendBufferSize(int)
+	 */
+	@Override
+	public void setSendBufferSize(final int size) throws SocketException {
+		ensureLeased();
+		// once set, the size is no longer tuned by the kernel; that cannot be undone for the next lease
+		this.broken = true;
+		this.socket.setSendBufferSize(size);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setSoLinger(boolean, int)
+	 */
+	@Override
+	public void setSoLinger(final boolean on,
+	                        final int linger) throws SocketException {
+		changeOption();
+		this.socket.setSoLinger(on, linger);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(final int timeout) throws SocketException {
+		changeOption();
+		this.socket.setSoTimeout(timeout);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setTcpNoDelay(boolean)
+	 */
+	@Override
+	public void setTcpNoDelay(final boolean on) throws SocketException {
+		changeOption();
+		this.socket.setTcpNoDelay(on);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#setTrafficClass(int)
+	 */
+	@Override
+	public void setTrafficClass(final int tc) throws SocketException {
+		changeOption();
+		this.socket.setTrafficClass(tc);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#shutdownInput()
+	 */
+	@Override
+	public void shutdownInput() throws IOException {
+		ensureLeased();
+		this.socket.shutdownInput();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#shutdownOutput()
+	 */
+	@Override
+	public void shutdownOutput() throws IOException {
+		ensureLeased();
+		this.socket.shutdownOutput();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.net.Socket#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PooledSocket [key=" + this.key + ", socket=" + this.socket + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
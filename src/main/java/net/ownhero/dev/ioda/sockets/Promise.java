@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} that is completed from outside, e.g. by the thread that finishes an asynchronous connect. The first
+ * of {@link #complete(Object)}, {@link #fail(Throwable)} and {@link #cancel(boolean)} decides the outcome; later calls
+ * have no effect.
+ *
+ * @param <V>
+ *            the type of the result
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class Promise<V> implements Future<V> {
+	
+	/**
+	 * The state of a promise.
+	 */
+	private enum State {
+		
+		/** Not completed yet. */
+		PENDING,
+		/** Completed with a result. */
+		COMPLETED,
+		/** Completed with a failure. */
+		FAILED,
+		/** Cancelled. */
+		CANCELLED;
+	}
+	
+	/**
+	 * Waits for the promise and unwraps failures into {@link IOException}s. Waiting callers that are interrupted
+	 * cancel the promise.
+	 *
+	 * @param <V>
+	 *            the type of the result
+	 * @param promise
+	 *            the promise
+	 * @return the result
+	 * @throws IOException
+	 *             if the promise failed or the caller has been interrupted
+	 */
+	static <V> V await(final Promise<V> promise) throws IOException {
+		try {
+			return promise.get();
+		} catch (final InterruptedException e) {
+			promise.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting"); //$NON-NLS-1$
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/** Released once the outcome has been decided. */
+	private final CountDownLatch done  = new CountDownLatch(1);
+	
+	/** The state. Guarded by the monitor. */
+	private State                state = State.PENDING;
+	
+	/** The result. Guarded by the monitor. */
+	private V                    value;
+	
+	/** The failure. Guarded by the monitor. */
+	private Throwable            failure;
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		// there is nothing running to interrupt
+		return decide(State.CANCELLED, null, null);
+	}
+	
+	/**
+	 * Completes the promise with a result.
+	 *
+	 * @param value
+	 *            the value
+	 * @return false, if the promise has been cancelled or completed before; the caller still owns the value then
+	 */
+	boolean complete(final V value) {
+		return decide(State.COMPLETED, value, null);
+	}
+	
+	/**
+	 * Decides the outcome unless it has been decided already.
+	 *
+	 * @param outcome
+	 *            the outcome
+	 * @param result
+	 *            the result
+	 * @param cause
+	 *            the failure
+	 * @return true, if this call decided the outcome
+	 */
+	private boolean decide(final State outcome,
+	                       final V result,
+	                       final Throwable cause) {
+		synchronized (this) {
+			if (this.state != State.PENDING) {
+				return false;
+			}
+			this.state = outcome;
+			this.value = result;
+			this.failure = cause;
+		}
+		this.done.countDown();
+		return true;
+	}
+	
+	/**
+	 * Completes the promise with a failure.
+	 *
+	 * @param failure
+	 *            the failure
+	 */
+	void fail(final Throwable failure) {
+		decide(State.FAILED, null, failure);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		this.done.await();
+		return outcome();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public V get(final long timeout,
+	             final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!this.done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return outcome();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public synchronized boolean isCancelled() {
+		return this.state == State.CANCELLED;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public synchronized boolean isDone() {
+		return this.state != State.PENDING;
+	}
+	
+	/**
+	 * Reports the decided outcome.
+	 *
+	 * @return the result
+	 * @throws ExecutionException
+	 *             if the promise failed
+	 */
+	private synchronized V outcome() throws ExecutionException {
+		switch (this.state) {
+			case COMPLETED:
+				return this.value;
+			case FAILED:
+				throw new ExecutionException(this.failure);
+			default:
+				throw new CancellationException();
+		}
+	}
+}
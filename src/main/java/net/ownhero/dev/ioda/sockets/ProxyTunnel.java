@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import net.ownhero.dev.ioda.ProxyConfig;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Turns a connection to a proxy into a tunnel to the destination, either by a SOCKS5 handshake (RFC 1928, with
+ * username/password authentication as in RFC 1929) or by an HTTP <code>CONNECT</code> request. Once established, the
+ * tunnel behaves like a direct connection to the destination and can be pooled like one.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class ProxyTunnel {
+	
+	/** The charset of the handshakes. */
+	private static final Charset ISO_8859_1          = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+	
+	/** The SOCKS version. */
+	private static final int     SOCKS_VERSION       = 5;
+	
+	/** SOCKS: no authentication required. */
+	private static final int     SOCKS_NO_AUTH       = 0;
+	
+	/** SOCKS: username/password authentication. */
+	private static final int     SOCKS_PASSWORD_AUTH = 2;
+	
+	/** SOCKS: the CONNECT command. */
+	private static final int     SOCKS_CONNECT       = 1;
+	
+	/** SOCKS: IPv4 address type. */
+	private static final int     SOCKS_IPV4          = 1;
+	
+	/** SOCKS: domain name address type. */
+	private static final int     SOCKS_DOMAIN        = 3;
+	
+	/** SOCKS: IPv6 address type. */
+	private static final int     SOCKS_IPV6          = 4;
+	
+	/** SOCKS: the maximum length of a username, password or domain name, as it is sent in a single byte. */
+	private static final int     SOCKS_MAX_LENGTH    = 255;
+	
+	/** The maximum size of the response header of an HTTP proxy. */
+	private static final int     MAX_HEADER_SIZE     = 8192;
+	
+	/**
+	 * Checks that a field of the SOCKS handshake fits into its length byte.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @param field
+	 *            the name of the field
+	 * @param value
+	 *            the encoded value
+	 * @return the value
+	 * @throws ProtocolException
+	 *             if the value is longer than 255 bytes
+	 */
+	private static byte[] checkLength(final ProxyConfig proxy,
+	                                  final String field,
+	                                  final byte[] value) throws ProtocolException {
+		if (value.length > SOCKS_MAX_LENGTH) {
+			throw new ProtocolException("The " + field + " for SOCKS proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			        + " has " + value.length + " bytes, at most " + SOCKS_MAX_LENGTH + " are allowed"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		return value;
+	}
+	
+	/**
+	 * Checks whether the proxy is configured with credentials.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @return true, if a username is set
+	 */
+	private static boolean hasCredentials(final ProxyConfig proxy) {
+		return (proxy.getUsername() != null) && !proxy.getUsername().isEmpty();
+	}
+	
+	/**
+	 * Performs the handshake on a connection to the given proxy, so that the connection leads to the destination
+	 * afterwards.
+	 *
+	 * @param socket
+	 *            the socket connected to the proxy
+	 * @param proxy
+	 *            the proxy
+	 * @param host
+	 *            the destination host (name or address literal)
+	 * @param address
+	 *            the destination address, <code>null</code> to let the proxy resolve the host
+	 * @param port
+	 *            the destination port
+	 * @param timeout
+	 *            the timeout for the handshake in milliseconds, 0 for none
+	 * @throws IOException
+	 *             if the proxy refuses the tunnel or fails to answer
+	 */
+	static void open(final Socket socket,
+	                 final ProxyConfig proxy,
+	                 final String host,
+	                 final InetAddress address,
+	                 final int port,
+	                 final int timeout) throws IOException {
+		final int previous = socket.getSoTimeout();
+		socket.setSoTimeout(timeout);
+		try {
+			// the streams must not be closed, that would close the socket
+			final InputStream in = socket.getInputStream();
+			final OutputStream out = socket.getOutputStream();
+			if (proxy.useSocks()) {
+				openSocks(in, out, proxy, host, address, port);
+			} else {
+				openHttp(in, out, proxy, host, port);
+			}
+		} finally {
+			socket.setSoTimeout(previous);
+		}
+	}
+	
+	/**
+	 * Sends an HTTP <code>CONNECT</code> request and reads the response header. The header is read byte by byte, so
+	 * nothing sent by the destination is consumed.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @param out
+	 *            the output stream
+	 * @param proxy
+	 *            the proxy
+	 * @param host
+	 *            the host
+	 * @param port
+	 *            the port
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void openHttp(final InputStream in,
+	                             final OutputStream out,
+	                             final ProxyConfig proxy,
+	                             final String host,
+	                             final int port) throws IOException {
+		final String authority = (host.indexOf(':') >= 0
+		                                                ? "[" + host + "]" //$NON-NLS-1$ //$NON-NLS-2$
+		                                                : host) + ":" + port; //$NON-NLS-1$
+		final StringBuilder request = new StringBuilder();
+		request.append("CONNECT ").append(authority).append(" HTTP/1.1\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		request.append("Host: ").append(authority).append("\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		request.append("Proxy-Connection: Keep-Alive\r\n"); //$NON-NLS-1$
+		if (hasCredentials(proxy)) {
+			final String credentials = proxy.getUsername() + ":" + (proxy.getPassword() != null //$NON-NLS-1$
+			                                                                                   ? proxy.getPassword()
+			                                                                                   : ""); //$NON-NLS-1$
+			request.append("Proxy-Authorization: Basic ") //$NON-NLS-1$
+			       .append(Base64.encodeBase64String(credentials.getBytes(ISO_8859_1))).append("\r\n"); //$NON-NLS-1$
+		}
+		request.append("\r\n"); //$NON-NLS-1$
+		out.write(request.toString().getBytes(ISO_8859_1));
+		out.flush();
+		
+		final StringBuilder header = new StringBuilder();
+		while ((header.length() < 4) || !header.substring(header.length() - 4).equals("\r\n\r\n")) { //$NON-NLS-1$
+			final int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+				        + " closed the connection during CONNECT to " + authority); //$NON-NLS-1$
+			}
+			if (header.length() >= MAX_HEADER_SIZE) {
+				throw new ProtocolException("Response of proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+				        + " to CONNECT exceeds " + MAX_HEADER_SIZE + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			header.append((char) b);
+		}
+		
+		final String status = header.substring(0, header.indexOf("\r\n")); //$NON-NLS-1$
+		final String[] parts = status.split(" ", 3); //$NON-NLS-1$
+		if ((parts.length < 2) || !parts[0].startsWith("HTTP/") || !parts[1].startsWith("2")) { //$NON-NLS-1$ //$NON-NLS-2$
+			throw new ProtocolException("Proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+			        + " refused CONNECT to " + authority + ": " + status); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+	
+	/**
+	 * Performs a SOCKS5 handshake.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @param out
+	 *            the output stream
+	 * @param proxy
+	 *            the proxy
+	 * @param host
+	 *            the host
+	 * @param address
+	 *            the address, <code>null</code> to send the host name
+	 * @param port
+	 *            the port
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred; a {@link ProtocolException} if the credentials or the
+	 *             host name do not fit into the handshake.
+	 */
+	private static void openSocks(final InputStream in,
+	                              final OutputStream out,
+	                              final ProxyConfig proxy,
+	                              final String host,
+	                              final InetAddress address,
+	                              final int port) throws IOException {
+		final boolean authenticate = hasCredentials(proxy);
+		// check everything that goes into a length byte before talking to the proxy
+		byte[] username = null;
+		byte[] password = null;
+		if (authenticate) {
+			username = checkLength(proxy, "username", proxy.getUsername().getBytes(ISO_8859_1)); //$NON-NLS-1$
+			password = checkLength(proxy, "password", (proxy.getPassword() != null //$NON-NLS-1$
+			                                                                     ? proxy.getPassword()
+			                                                                     : "").getBytes(ISO_8859_1)); //$NON-NLS-1$
+		}
+		final byte[] name = address == null
+		                                   ? checkLength(proxy, "host name", host.getBytes(ISO_8859_1)) //$NON-NLS-1$
+		                                   : null;
+		
+		if (authenticate) {
+			out.write(new byte[] { SOCKS_VERSION, 2, SOCKS_NO_AUTH, SOCKS_PASSWORD_AUTH });
+		} else {
+			out.write(new byte[] { SOCKS_VERSION, 1, SOCKS_NO_AUTH });
+		}
+		out.flush();
+		
+		final byte[] choice = readFully(in, 2);
+		if (choice[0] != SOCKS_VERSION) {
+			throw new ProtocolException("Proxy " + proxy.getHost() + ":" + proxy.getPort() + " does not speak SOCKS5"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		if ((choice[1] == SOCKS_PASSWORD_AUTH) && authenticate) {
+			final byte[] request = new byte[3 + username.length + password.length];
+			request[0] = 1;
+			request[1] = (byte) username.length;
+			System.arraycopy(username, 0, request, 2, username.length);
+			request[2 + username.length] = (byte) password.length;
+			System.arraycopy(password, 0, request, 3 + username.length, password.length);
+			out.write(request);
+			out.flush();
+			
+			if (readFully(in, 2)[1] != 0) {
+				throw new ProtocolException("Proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+				        + " rejected the credentials of " + proxy.getUsername()); //$NON-NLS-1$
+			}
+		} else if (choice[1] != SOCKS_NO_AUTH) {
+			throw new ProtocolException("Proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+			        + " offers no supported authentication method"); //$NON-NLS-1$
+		}
+		
+		final byte[] destination;
+		final int type;
+		if (address != null) {
+			destination = address.getAddress();
+			type = address instanceof Inet4Address
+			                                      ? SOCKS_IPV4
+			                                      : SOCKS_IPV6;
+		} else {
+			destination = new byte[1 + name.length];
+			destination[0] = (byte) name.length;
+			System.arraycopy(name, 0, destination, 1, name.length);
+			type = SOCKS_DOMAIN;
+		}
+		final byte[] request = new byte[6 + destination.length];
+		request[0] = SOCKS_VERSION;
+		request[1] = SOCKS_CONNECT;
+		request[3] = (byte) type;
+		System.arraycopy(destination, 0, request, 4, destination.length);
+		request[4 + destination.length] = (byte) (port >>> 8);
+		request[5 + destination.length] = (byte) port;
+		out.write(request);
+		out.flush();
+		
+		final byte[] reply = readFully(in, 4);
+		if (reply[1] != 0) {
+			throw new ProtocolException("Proxy " + proxy.getHost() + ":" + proxy.getPort() + " refused CONNECT to " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			        + host + ":" + port + " with SOCKS reply " + reply[1]); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		// skip the bound address and port
+		switch (reply[3]) {
+			case SOCKS_IPV4:
+				readFully(in, 4 + 2);
+				break;
+			case SOCKS_IPV6:
+				readFully(in, 16 + 2);
+				break;
+			case SOCKS_DOMAIN:
+				readFully(in, (readFully(in, 1)[0] & 0xff) + 2);
+				break;
+			default:
+				throw new ProtocolException("Proxy " + proxy.getHost() + ":" + proxy.getPort() //$NON-NLS-1$ //$NON-NLS-2$
+				        + " sent unknown address type " + reply[3]); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Reads exactly the given number of bytes.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @param length
+	 *            the length
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] readFully(final InputStream in,
+	                                final int length) throws IOException {
+		final byte[] data = new byte[length];
+		int read = 0;
+		while (read < length) {
+			final int n = in.read(data, read, length - read);
+			if (n < 0) {
+				throw new EOFException("Proxy closed the connection during the SOCKS handshake"); //$NON-NLS-1$
+			}
+			read += n;
+		}
+		return data;
+	}
+	
+	/**
+	 * Instantiates a new proxy tunnel.
+	 */
+	private ProxyTunnel() {
+		// utility class
+	}
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A response recorded by a {@link CachingSocketImpl}. The first bytes are kept in a pooled direct buffer; larger
+ * responses spill into a temporary file, so recording neither grows the heap nor copies payloads through byte arrays.
+ * Once complete, the recording is handed to {@link ResponseStore#put(CacheKey, ReadableByteChannel, long)} as a
+ * channel.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class Recording implements ReadableByteChannel {
+	
+	/** The buffer pool. */
+	private final BufferPool buffers;
+	
+	/** The in-memory part. */
+	private ByteBuffer       memory;
+	
+	/** The spill file. */
+	private File             file;
+	
+	/** The spill channel. */
+	private FileChannel      spill;
+	
+	/** The number of recorded bytes. */
+	private long             size;
+	
+	/** The read position when the recording is consumed as a channel. */
+	private long             position;
+	
+	/** Whether the recording has been closed. */
+	private boolean          closed;
+	
+	/**
+	 * Instantiates a new recording.
+	 *
+	 * @param buffers
+	 *            the buffer pool
+	 */
+	Recording(final BufferPool buffers) {
+		this.buffers = buffers;
+		this.memory = buffers.acquire();
+	}
+	
+	/**
+	 * Appends the remaining bytes of the given buffer; the buffer's position is not changed.
+	 *
+	 * @param source
+	 *            the source
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void append(final ByteBuffer source) throws IOException {
+		final ByteBuffer data = source.duplicate();
+		this.size += data.remaining();
+		
+		if ((this.spill == null) && (data.remaining() <= this.memory.remaining())) {
+			this.memory.put(data);
+			return;
+		}
+		
+		if (this.spill == null) {
+			this.file = File.createTempFile("ioda-", ".rec"); //$NON-NLS-1$ //$NON-NLS-2$
+			this.spill = new RandomAccessFile(this.file, "rw").getChannel(); //$NON-NLS-1$
+			this.memory.flip();
+			while (this.memory.hasRemaining()) {
+				this.spill.write(this.memory);
+			}
+			this.memory.clear();
+		}
+		while (data.hasRemaining()) {
+			this.spill.write(data);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		
+		this.buffers.release(this.memory);
+		this.memory = null;
+		try {
+			if (this.spill != null) {
+				this.spill.close();
+			}
+		} finally {
+			if ((this.file != null) && !this.file.delete()) {
+				this.file.deleteOnExit();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return !this.closed;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(final ByteBuffer target) throws IOException {
+		if (this.position >= this.size) {
+			return -1;
+		}
+		
+		if (this.spill != null) {
+			final int n = this.spill.read(target, this.position);
+			if (n > 0) {
+				this.position += n;
+			}
+			return n;
+		}
+		
+		final ByteBuffer data = this.memory.duplicate();
+		data.flip();
+		data.position((int) this.position);
+		if (data.remaining() > target.remaining()) {
+			data.limit(data.position() + target.remaining());
+		}
+		final int n = data.remaining();
+		target.put(data);
+		this.position += n;
+		return n;
+	}
+	
+	/**
+	 * Gets the number of recorded bytes.
+	 *
+	 * @return the size
+	 */
+	long size() {
+		return this.size;
+	}
+}
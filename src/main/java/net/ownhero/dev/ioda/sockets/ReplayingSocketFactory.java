@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedList;
+
+import javax.net.SocketFactory;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * A {@link SocketFactory} creating sockets backed by a {@link CachingSocketImpl} of the given
+ * {@link CachingSocketImplFactory}, without installing it for the whole JVM. Hand it to the clients whose traffic
+ * should be recorded and replayed, e.g. an HTTP client; all other sockets of the JVM are not affected.
+ * 
+ * Connections the factory's {@link CachingRules} exclude are plain {@link Socket}s and do not touch the cache at all.
+ * Host names of cached connections are only resolved once a request misses the cache.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class ReplayingSocketFactory extends SocketFactory {
+	
+	/**
+	 * A socket using a given {@link CachingSocketImpl}.
+	 */
+	private static final class ReplayingSocket extends Socket {
+		
+		/** The impl. */
+		private final CachingSocketImpl impl;
+		
+		/**
+		 * Instantiates a new replaying socket.
+		 *
+		 * @param impl
+		 *            the impl
+		 * @throws SocketException
+		 *             Signals that a socket exception has occurred.
+		 */
+		ReplayingSocket(final CachingSocketImpl impl) throws SocketException {
+			super(impl);
+			this.impl = impl;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.net.Socket#getOutputStream()
+		 */
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			// checks the state of the socket; newer JDKs wrap the stream of the impl without passing flush() on, which
+			// would never send the writes collected under FlushPolicy.EXPLICIT
+			super.getOutputStream();
+			return this.impl.getOutputStream();
+		}
+	}
+	
+	/** The factory the socket implementations are taken from. */
+	private final CachingSocketImplFactory factory;
+	
+	/**
+	 * Instantiates a new replaying socket factory.
+	 *
+	 * @param factory
+	 *            the factory the socket implementations are taken from
+	 */
+	public ReplayingSocketFactory(@NotNull final CachingSocketImplFactory factory) {
+		// PRECONDITIONS
+		Condition.notNull(factory, "Argument '%s' in '%s'.", "factory", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.factory = factory;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Connects a new socket, bypassing the cache if the rules exclude the endpoint.
+	 *
+	 * @param remote
+	 *            the remote endpoint, possibly unresolved
+	 * @param local
+	 *            the local endpoint or <code>null</code>
+	 * @return the connected socket
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private Socket connect(final InetSocketAddress remote,
+	                       final InetSocketAddress local) throws IOException {
+		final boolean cached = this.factory.getRules().isCached(remote.getHostString(), remote.getPort());
+		final Socket socket = cached
+		                            ? createSocket()
+		                            : new Socket();
+		boolean connected = false;
+		try {
+			if (local != null) {
+				socket.bind(local);
+			}
+			if (cached || !remote.isUnresolved()) {
+				socket.connect(remote);
+			} else {
+				socket.connect(new InetSocketAddress(remote.getHostString(), remote.getPort()));
+			}
+			connected = true;
+			return socket;
+		} finally {
+			if (!connected) {
+				socket.close();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see javax.net.SocketFactory#createSocket()
+	 */
+	@Override
+	public Socket createSocket() throws IOException {
+		// PRECONDITIONS
+		
+		try {
+			return new ReplayingSocket(this.factory.createSocketImpl());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see javax.net.SocketFactory#createSocket(java.net.InetAddress, int)
+	 */
+	@Override
+	public Socket createSocket(final InetAddress host,
+	                           final int port) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return connect(new InetSocketAddress(host, port), null);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see javax.net.SocketFactory#createSocket(java.net.InetAddress, int, java.net.InetAddress, int)
+	 */
+	@Override
+	public Socket createSocket(final InetAddress address,
+	                           final int port,
+	                           final InetAddress localAddress,
+	                           final int localPort) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(address, "Argument '%s' in '%s'.", "address", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see javax.net.SocketFactory#createSocket(java.lang.String, int)
+	 */
+	@Override
+	public Socket createSocket(final String host,
+	                           final int port) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return connect(InetSocketAddress.createUnresolved(host, port), null);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see javax.net.SocketFactory#createSocket(java.lang.String, int, java.net.InetAddress, int)
+	 */
+	@Override
+	public Socket createSocket(final String host,
+	                           final int port,
+	                           final InetAddress localHost,
+	                           final int localPort) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(host, "Argument '%s' in '%s'.", "host", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return connect(InetSocketAddress.createUnresolved(host, port), new InetSocketAddress(localHost, localPort));
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the factory the socket implementations are taken from.
+	 *
+	 * @return the factory
+	 */
+	public CachingSocketImplFactory getFactory() {
+		return this.factory;
+	}
+}
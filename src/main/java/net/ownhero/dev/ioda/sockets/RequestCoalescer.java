@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * Coalesces concurrent cache misses for the same {@link CacheKey}: the first socket to miss becomes the leader and
+ * fetches the response from upstream, every other socket that misses for the same key while the leader is in flight
+ * waits for it and replays the stored response afterwards. If the leader fails to store a response, the waiting
+ * sockets go upstream on their own.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class RequestCoalescer {
+	
+	/**
+	 * An upstream fetch in progress.
+	 */
+	static final class Flight {
+		
+		/** Released when the leader is done. */
+		private final CountDownLatch done = new CountDownLatch(1);
+		
+		/**
+		 * Waits for the leader.
+		 *
+		 * @param millis
+		 *            the maximum time to wait
+		 * @return true, if the leader is done; false, if the time elapsed
+		 * @throws InterruptedIOException
+		 *             if the thread has been interrupted
+		 */
+		boolean await(final long millis) throws InterruptedIOException {
+			try {
+				return this.done.await(millis, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				final InterruptedIOException exception = new InterruptedIOException(
+				                                                                    "Interrupted while waiting for a concurrent request"); //$NON-NLS-1$
+				exception.initCause(e);
+				throw exception;
+			}
+		}
+	}
+	
+	/** The default time a socket waits for the leader before it goes upstream itself. */
+	public static final long                    DEFAULT_TIMEOUT = 30000L;
+	
+	/** The flights in progress. */
+	private final ConcurrentMap<CacheKey, Flight> flights         = new ConcurrentHashMap<CacheKey, Flight>();
+	
+	/** The time a socket waits for the leader. */
+	private final long                          timeout;
+	
+	/** The number of requests that waited for a leader. */
+	private final AtomicLong                    coalesced       = new AtomicLong();
+	
+	/**
+	 * Instantiates a new request coalescer with the {@link #DEFAULT_TIMEOUT default timeout}.
+	 */
+	public RequestCoalescer() {
+		this(DEFAULT_TIMEOUT);
+	}
+	
+	/**
+	 * Instantiates a new request coalescer.
+	 *
+	 * @param timeout
+	 *            the time in milliseconds a socket waits for the leader before it goes upstream itself
+	 */
+	public RequestCoalescer(final long timeout) {
+		// PRECONDITIONS
+		Condition.check(timeout > 0, "Argument '%s' in '%s' has to be positive.", "timeout", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.timeout = timeout;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Starts a flight for the key unless one is in progress.
+	 *
+	 * @param key
+	 *            the key
+	 * @return <code>null</code> if the caller is the leader and has to call {@link #end(CacheKey)} eventually,
+	 *         otherwise the flight to wait for
+	 */
+	Flight begin(@NotNull final CacheKey key) {
+		final Flight flight = this.flights.putIfAbsent(key, new Flight());
+		if (flight != null) {
+			this.coalesced.incrementAndGet();
+		}
+		return flight;
+	}
+	
+	/**
+	 * Ends the flight for the key and releases the sockets waiting for it.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	void end(@NotNull final CacheKey key) {
+		final Flight flight = this.flights.remove(key);
+		if (flight != null) {
+			flight.done.countDown();
+		}
+	}
+	
+	/**
+	 * Gets the number of requests that waited for a concurrent identical request instead of going upstream.
+	 *
+	 * @return the coalesced count
+	 */
+	public long getCoalesced() {
+		return this.coalesced.get();
+	}
+	
+	/**
+	 * Gets the number of flights in progress.
+	 *
+	 * @return the in flight count
+	 */
+	public int getInFlight() {
+		return this.flights.size();
+	}
+	
+	/**
+	 * Gets the time in milliseconds a socket waits for the leader.
+	 *
+	 * @return the timeout
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names for the connections opened by {@link SocketPool}. Implementations have to be thread-safe.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public interface Resolver {
+	
+	/** Resolves names through {@link InetAddress#getAllByName(String)}. */
+	Resolver SYSTEM = new Resolver() {
+		
+		@Override
+		public InetAddress[] resolve(final String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+	
+	/**
+	 * Resolves the host name.
+	 *
+	 * @param host
+	 *            the host name or address literal
+	 * @return the addresses, never empty
+	 * @throws UnknownHostException
+	 *             if the name cannot be resolved
+	 */
+	InetAddress[] resolve(String host) throws UnknownHostException;
+}
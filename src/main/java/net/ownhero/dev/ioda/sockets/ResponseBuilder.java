@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Collects a response of known length that is produced as a stream, e.g. while decoding or reassembling a stored
+ * entry. Responses up to {@link #HEAP_LIMIT} are kept on the heap, larger ones in an unlinked temporary file.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class ResponseBuilder extends OutputStream {
+	
+	/** Responses up to this size are kept on the heap. */
+	static final int               HEAP_LIMIT = 1024 * 1024;
+	
+	/** The heap buffer, if the response is small enough. */
+	private final byte[]           heap;
+	
+	/** The number of bytes in the heap buffer. */
+	private int                    count;
+	
+	/** The temporary file, if the response is too large for the heap. */
+	private final RandomAccessFile file;
+	
+	/** The stream writing to the temporary file. */
+	private final OutputStream     out;
+	
+	/** Whether the response has been handed out. */
+	private boolean                built;
+	
+	/**
+	 * Instantiates a new response builder.
+	 *
+	 * @param length
+	 *            the length of the response
+	 * @throws IOException
+	 *             if the temporary file cannot be created
+	 */
+	ResponseBuilder(final long length) throws IOException {
+		if (length <= HEAP_LIMIT) {
+			this.heap = new byte[(int) length];
+			this.file = null;
+			this.out = null;
+		} else {
+			final File temp = File.createTempFile("ioda-", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+			this.heap = null;
+			this.file = new RandomAccessFile(temp, "rw"); //$NON-NLS-1$
+			if (!temp.delete()) {
+				temp.deleteOnExit();
+			}
+			this.out = new BufferedOutputStream(Channels.newOutputStream(this.file.getChannel()));
+		}
+	}
+	
+	/**
+	 * Hands out the collected response. The caller becomes responsible for closing it.
+	 *
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	CachedResponse build() throws IOException {
+		if (this.heap != null) {
+			this.built = true;
+			return new BufferResponse(ByteBuffer.wrap(this.heap, 0, this.count));
+		}
+		
+		this.out.flush();
+		final FileResponse response = new FileResponse(this.file.getChannel());
+		this.built = true;
+		return response;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!this.built && (this.file != null)) {
+			this.file.close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(final byte[] b,
+	                  final int off,
+	                  final int len) throws IOException {
+		if (this.heap == null) {
+			this.out.write(b, off, len);
+			return;
+		}
+		
+		if (len > (this.heap.length - this.count)) {
+			throw new IOException("Response exceeds its length of " + this.heap.length + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		System.arraycopy(b, off, this.heap, this.count, len);
+		this.count += len;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(final int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a {@link CachedResponse} sequentially, starting at a given position. Closing the stream does not close the
+ * response.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class ResponseInputStream extends InputStream {
+	
+	/** The response. */
+	private final CachedResponse response;
+	
+	/** The position. */
+	private long                 position;
+	
+	/**
+	 * Instantiates a new response input stream.
+	 *
+	 * @param response
+	 *            the response
+	 * @param position
+	 *            the position to start at
+	 */
+	ResponseInputStream(final CachedResponse response, final long position) {
+		this.response = response;
+		this.position = position;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		final byte[] b = new byte[1];
+		return read(b, 0, 1) < 0
+		                        ? -1
+		                        : b[0] & 0xff;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(final byte[] b,
+	                final int off,
+	                final int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		final int n = this.response.read(this.position, ByteBuffer.wrap(b, off, len));
+		if (n > 0) {
+			this.position += n;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Persists the responses recorded by {@link CachingSocketImpl} instances. Implementations have to be thread safe since a
+ * single store is shared by all sockets created through one {@link CachingSocketImplFactory}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public interface ResponseStore {
+	
+	/**
+	 * Checks whether an entry for the given key is present without reading or decoding it. An entry that is reported
+	 * may still turn out to be missing on {@link #get(CacheKey)}, e.g. if it is evicted or has expired in the meantime.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true, if an entry is present
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	boolean contains(CacheKey key) throws IOException;
+	
+	/**
+	 * Looks up the response recorded for the given key.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the cached response or <code>null</code> if there is none; the caller has to close it
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	CachedResponse get(CacheKey key) throws IOException;
+	
+	/**
+	 * Stores the response for the given key, replacing any previous entry.
+	 *
+	 * @param key
+	 *            the key
+	 * @param payload
+	 *            the channel providing the response, positioned at its first byte
+	 * @param length
+	 *            the length of the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void put(CacheKey key,
+	         ReadableByteChannel payload,
+	         long length) throws IOException;
+	
+	/**
+	 * Removes the entry for the given key, if any.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true, if an entry has been removed
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	boolean remove(CacheKey key) throws IOException;
+}
@@ -0,0 +1,620 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped segment file of a {@link SegmentResponseStore}. The file is mapped once with its full
+ * capacity; records are appended sequentially and read through views of the mapping.
+ * 
+ * A record consists of a 40 byte header followed by the payload, padded to a multiple of 8 bytes:
+ * 
+ * <pre>
+ * int    magic    {@link #MAGIC} once the record is complete
+ * int    flags    {@link #FLAG_PENDING}, {@link #FLAG_LIVE} or {@link #FLAG_DEAD}
+ * int    length   the payload length
+ * byte[] id       the {@link CacheKey#idBytes() key id} (20 bytes)
+ * int    checksum CRC32 of length, id and payload
+ * int    unused
+ * </pre>
+ * 
+ * Flags and length are written when space is reserved, checksum and magic after the payload. A header with flags 0
+ * marks the end of the segment. Records are never moved or rewritten, only flagged dead; the space is reclaimed by
+ * compacting the whole segment.
+ * 
+ * Pages of the mapping reach the disk in any order, so after a crash the tail of a segment may hold records whose
+ * magic made it to the disk but parts of the payload did not. {@link #recover(int, Visitor)} detects those by their
+ * checksum and truncates the segment before the first one.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class Segment implements Closeable {
+	
+	/**
+	 * Receives the records found by {@link Segment#scan(Visitor)}.
+	 */
+	interface Visitor {
+		
+		/**
+		 * Visits a record.
+		 *
+		 * @param offset
+		 *            the offset of the record
+		 * @param complete
+		 *            whether the record is complete and live
+		 * @param id
+		 *            the id
+		 * @param length
+		 *            the payload length
+		 */
+		void visit(int offset,
+		           boolean complete,
+		           byte[] id,
+		           int length);
+	}
+	
+	/** The magic number marking a complete record ("IODB"; "IODA" records had no checksum). */
+	static final int  MAGIC        = 0x494f4442;
+	
+	/** The flag of a record that is being written. */
+	static final int  FLAG_PENDING = 1;
+	
+	/** The flag of a live record. */
+	static final int  FLAG_LIVE    = 2;
+	
+	/** The flag of a removed or superseded record. */
+	static final int  FLAG_DEAD    = 3;
+	
+	/** The length of the id. */
+	static final int  ID_LENGTH    = 20;
+	
+	/** The header size. */
+	static final int  HEADER       = 40;
+	
+	/** The file suffix. */
+	static final String SUFFIX     = ".seg";   //$NON-NLS-1$
+	
+	/** The record alignment. */
+	private static final int ALIGNMENT = 8;
+	
+	/** The offset of the checksum within the header. */
+	private static final int CHECKSUM  = 32;
+	
+	/**
+	 * Gets the location of a record.
+	 *
+	 * @param segment
+	 *            the segment id
+	 * @param offset
+	 *            the offset
+	 * @return the location
+	 */
+	static long location(final int segment,
+	                     final int offset) {
+		return ((long) segment << 32) | (offset & 0xffffffffL);
+	}
+	
+	/**
+	 * Checks whether the header at the offset has never been written. A header that is only partially zero has been
+	 * torn.
+	 *
+	 * @param view
+	 *            the view of the mapping
+	 * @param offset
+	 *            the offset
+	 * @return true, if all header bytes are zero
+	 */
+	private static boolean isEmpty(final ByteBuffer view,
+	                               final int offset) {
+		for (int i = 0; i < HEADER; i += 8) {
+			if (view.getLong(offset + i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the offset part of a location.
+	 *
+	 * @param location
+	 *            the location
+	 * @return the offset
+	 */
+	static int offset(final long location) {
+		return (int) location;
+	}
+	
+	/**
+	 * Opens (or creates) the segment with the given id.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param id
+	 *            the id
+	 * @param capacity
+	 *            the capacity for new segments
+	 * @return the segment
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static Segment open(final File directory,
+	                    final int id,
+	                    final int capacity) throws IOException {
+		final File file = new File(directory, String.format("%08d", id) + SUFFIX); //$NON-NLS-1$
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long size = Math.max(channel.size(), capacity);
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Segment too large: " + file); //$NON-NLS-1$
+			}
+			return new Segment(id, file, channel, channel.map(MapMode.READ_WRITE, 0, size));
+		} catch (final IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gets the size of a record with the given payload length.
+	 *
+	 * @param length
+	 *            the payload length
+	 * @return the record size
+	 */
+	static int recordSize(final int length) {
+		return ((HEADER + length + ALIGNMENT) - 1) & -ALIGNMENT;
+	}
+	
+	/**
+	 * Gets the segment part of a location.
+	 *
+	 * @param location
+	 *            the location
+	 * @return the segment id
+	 */
+	static int segment(final long location) {
+		return (int) (location >>> 32);
+	}
+	
+	/** The id. */
+	private final int              id;
+	
+	/** The file. */
+	private final File             file;
+	
+	/** The channel. */
+	private final FileChannel      channel;
+	
+	/** The mapping. */
+	private final MappedByteBuffer mapping;
+	
+	/** The offset new records are appended at. */
+	private int                    writeOffset;
+	
+	/** The bytes occupied by live records. */
+	private long                   liveBytes;
+	
+	/** The bytes occupied by dead and incomplete records. */
+	private long                   deadBytes;
+	
+	/** The number of records that have been reserved but neither published nor marked dead. */
+	private int                    pending;
+	
+	/** Whether the mapping has been modified since the last {@link #force()}. */
+	private volatile boolean       dirty;
+	
+	/**
+	 * Instantiates a new segment.
+	 *
+	 * @param id
+	 *            the id
+	 * @param file
+	 *            the file
+	 * @param channel
+	 *            the channel
+	 * @param mapping
+	 *            the mapping
+	 */
+	private Segment(final int id, final File file, final FileChannel channel, final MappedByteBuffer mapping) {
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+		this.mapping = mapping;
+	}
+	
+	/**
+	 * Accounts a record as dead.
+	 *
+	 * @param length
+	 *            the payload length
+	 */
+	void addDead(final int length) {
+		this.deadBytes += recordSize(length);
+	}
+	
+	/**
+	 * Accounts a record as live.
+	 *
+	 * @param length
+	 *            the payload length
+	 */
+	void addLive(final int length) {
+		this.liveBytes += recordSize(length);
+	}
+	
+	/**
+	 * Computes the checksum of the record at the offset.
+	 *
+	 * @param offset
+	 *            the offset
+	 * @param length
+	 *            the payload length
+	 * @return the checksum
+	 */
+	private int checksum(final int offset,
+	                     final int length) {
+		final CRC32 crc = new CRC32();
+		final byte[] chunk = new byte[Math.min(8192, Math.max(ID_LENGTH + 4, length))];
+		final ByteBuffer view = this.mapping.duplicate();
+		view.position(offset + 8);
+		view.get(chunk, 0, ID_LENGTH + 4);
+		crc.update(chunk, 0, ID_LENGTH + 4);
+		
+		view.limit(offset + HEADER + length);
+		view.position(offset + HEADER);
+		while (view.hasRemaining()) {
+			final int n = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return (int) crc.getValue();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// the mapping stays valid until it is garbage collected, so outstanding views remain readable
+		this.channel.close();
+	}
+	
+	/**
+	 * Closes the segment and deletes its file.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void delete() throws IOException {
+		close();
+		if (!this.file.delete()) {
+			this.file.deleteOnExit();
+		}
+	}
+	
+	/**
+	 * Writes the modified pages of the mapping to the disk.
+	 */
+	void force() {
+		this.mapping.force();
+	}
+	
+	/**
+	 * Gets the number of records that are still being written.
+	 *
+	 * @return the pending records
+	 */
+	int getPending() {
+		return this.pending;
+	}
+	
+	/**
+	 * Gets the bytes occupied by dead and incomplete records.
+	 *
+	 * @return the dead bytes
+	 */
+	long getDeadBytes() {
+		return this.deadBytes;
+	}
+	
+	/**
+	 * Gets the id.
+	 *
+	 * @return the id
+	 */
+	int getId() {
+		return this.id;
+	}
+	
+	/**
+	 * Gets the bytes occupied by live records.
+	 *
+	 * @return the live bytes
+	 */
+	long getLiveBytes() {
+		return this.liveBytes;
+	}
+	
+	/**
+	 * Gets the offset new records are appended at.
+	 *
+	 * @return the write offset
+	 */
+	int getWriteOffset() {
+		return this.writeOffset;
+	}
+	
+	/**
+	 * Checks whether a record with the given payload length still fits.
+	 *
+	 * @param length
+	 *            the payload length
+	 * @return true, if there is room
+	 */
+	boolean hasRoom(final int length) {
+		return (this.writeOffset + (long) recordSize(length)) <= this.mapping.capacity();
+	}
+	
+	/**
+	 * Checks whether the record at the offset belongs to the id.
+	 *
+	 * @param offset
+	 *            the offset
+	 * @param id
+	 *            the id
+	 * @return true, if the record has been written for the id
+	 */
+	boolean holds(final int offset,
+	              final byte[] id) {
+		// anything past the write offset has been truncated after a crash and will be overwritten
+		if (offset >= this.writeOffset) {
+			return false;
+		}
+		final byte[] stored = new byte[ID_LENGTH];
+		final ByteBuffer view = this.mapping.duplicate();
+		view.position(offset + 12);
+		view.get(stored);
+		return Arrays.equals(stored, id);
+	}
+	
+	/**
+	 * Checks whether the record at the offset is complete, live and belongs to the id.
+	 *
+	 * @param offset
+	 *            the offset
+	 * @param id
+	 *            the id
+	 * @return true, if the record is readable
+	 */
+	boolean isLive(final int offset,
+	               final byte[] id) {
+		return (offset < this.writeOffset) && (this.mapping.getInt(offset) == MAGIC)
+		        && (this.mapping.getInt(offset + 4) == FLAG_LIVE) && holds(offset, id);
+	}
+	
+	/**
+	 * Gets the payload length of the record at the offset.
+	 *
+	 * @param offset
+	 *            the offset
+	 * @return the length
+	 */
+	int length(final int offset) {
+		return this.mapping.getInt(offset + 8);
+	}
+	
+	/**
+	 * Flags the record at the offset as dead.
+	 *
+	 * @param offset
+	 *            the offset
+	 */
+	void markDead(final int offset) {
+		final int flags = this.mapping.getInt(offset + 4);
+		if (flags == FLAG_DEAD) {
+			return;
+		}
+		final int length = length(offset);
+		if (flags == FLAG_LIVE) {
+			this.liveBytes -= recordSize(length);
+		} else if (flags == FLAG_PENDING) {
+			--this.pending;
+		}
+		this.mapping.putInt(offset + 4, FLAG_DEAD);
+		this.deadBytes += recordSize(length);
+		this.dirty = true;
+	}
+	
+	/**
+	 * Gets a view of the payload of the record at the offset.
+	 *
+	 * @param offset
+	 *            the offset of the record
+	 * @return the payload view
+	 */
+	ByteBuffer payload(final int offset) {
+		final ByteBuffer view = this.mapping.duplicate();
+		view.position(offset + HEADER);
+		view.limit(offset + HEADER + length(offset));
+		return view.slice();
+	}
+	
+	/**
+	 * Marks the record at the offset as complete.
+	 *
+	 * @param offset
+	 *            the offset
+	 */
+	void publish(final int offset) {
+		this.mapping.putInt(offset + 4, FLAG_LIVE);
+		this.mapping.putInt(offset, MAGIC);
+		this.liveBytes += recordSize(length(offset));
+		--this.pending;
+		this.dirty = true;
+	}
+	
+	/**
+	 * Recovers the records from the given offset on, e.g. the tail written after the last commit. Complete records are
+	 * verified against their checksum; the segment is truncated before the first record that is torn, i.e. whose
+	 * header is invalid or whose checksum does not match. The write offset is positioned after the last valid record.
+	 *
+	 * @param from
+	 *            the offset of the first record to recover
+	 * @param visitor
+	 *            the visitor, called for the valid records
+	 * @return true, if a torn record has been truncated
+	 */
+	boolean recover(final int from,
+	                final Visitor visitor) {
+		final ByteBuffer view = this.mapping.duplicate();
+		final int capacity = view.capacity();
+		int offset = from;
+		
+		while ((offset + HEADER) <= capacity) {
+			final int magic = view.getInt(offset);
+			final int flags = view.getInt(offset + 4);
+			final int length = view.getInt(offset + 8);
+			if (isEmpty(view, offset)) {
+				break;
+			}
+			if ((flags < FLAG_PENDING) || (flags > FLAG_DEAD) || (length < 0)
+			        || ((offset + (long) recordSize(length)) > capacity) || ((magic != 0) && (magic != MAGIC))
+			        || ((magic == MAGIC) && (view.getInt(offset + CHECKSUM) != checksum(offset, length)))) {
+				// torn (or written by an incompatible version), everything from here on is lost; older records may
+				// follow, they must not be mistaken for records appended here later
+				for (int i = offset; (i + 8) <= capacity; i += 8) {
+					if (view.getLong(i) != 0) {
+						view.putLong(i, 0);
+					}
+				}
+				this.writeOffset = offset;
+				this.dirty = true;
+				return true;
+			}
+			
+			final byte[] recordId = new byte[ID_LENGTH];
+			view.position(offset + 12);
+			view.get(recordId);
+			visitor.visit(offset, (magic == MAGIC) && (flags == FLAG_LIVE), recordId, length);
+			offset += recordSize(length);
+		}
+		
+		this.writeOffset = offset;
+		return false;
+	}
+	
+	/**
+	 * Reserves space for a record and writes its header, except for the magic.
+	 *
+	 * @param id
+	 *            the id
+	 * @param length
+	 *            the payload length
+	 * @return the offset of the record
+	 */
+	int reserve(final byte[] id,
+	            final int length) {
+		final int offset = this.writeOffset;
+		this.writeOffset += recordSize(length);
+		
+		final ByteBuffer view = this.mapping.duplicate();
+		view.position(offset + 12);
+		view.put(id, 0, ID_LENGTH);
+		this.mapping.putInt(offset + 8, length);
+		this.mapping.putInt(offset + 4, FLAG_PENDING);
+		++this.pending;
+		this.dirty = true;
+		return offset;
+	}
+	
+	/**
+	 * Restores the write offset and the counters saved by a previous {@link #scan(Visitor) scan} instead of scanning
+	 * the records again.
+	 *
+	 * @param writeOffset
+	 *            the write offset
+	 * @param liveBytes
+	 *            the live bytes
+	 * @param deadBytes
+	 *            the dead bytes
+	 * @return true, if the values fit the segment
+	 */
+	boolean restore(final int writeOffset,
+	                final long liveBytes,
+	                final long deadBytes) {
+		if ((writeOffset < 0) || (writeOffset > this.mapping.capacity()) || (liveBytes < 0) || (deadBytes < 0)
+		        || ((liveBytes + deadBytes) != writeOffset)) {
+			return false;
+		}
+		this.writeOffset = writeOffset;
+		this.liveBytes = liveBytes;
+		this.deadBytes = deadBytes;
+		return true;
+	}
+	
+	/**
+	 * Scans the records up to the write offset, without verifying them.
+	 *
+	 * @param visitor
+	 *            the visitor
+	 */
+	void scan(final Visitor visitor) {
+		final ByteBuffer view = this.mapping.duplicate();
+		int offset = 0;
+		
+		while (offset < this.writeOffset) {
+			final int flags = view.getInt(offset + 4);
+			final int length = view.getInt(offset + 8);
+			
+			final byte[] recordId = new byte[ID_LENGTH];
+			view.position(offset + 12);
+			view.get(recordId);
+			visitor.visit(offset, (view.getInt(offset) == MAGIC) && (flags == FLAG_LIVE), recordId, length);
+			offset += recordSize(length);
+		}
+	}
+	
+	/**
+	 * Clears the modified flag.
+	 *
+	 * @return true, if the mapping has been modified since the last call
+	 */
+	boolean takeDirty() {
+		final boolean modified = this.dirty;
+		this.dirty = false;
+		return modified;
+	}
+	
+	/**
+	 * Writes the checksum of the record at the offset, once its payload is complete.
+	 *
+	 * @param offset
+	 *            the offset
+	 */
+	void writeChecksum(final int offset) {
+		this.mapping.putInt(offset + CHECKSUM, checksum(offset, length(offset)));
+	}
+}
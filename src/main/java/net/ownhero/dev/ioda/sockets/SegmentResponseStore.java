@@ -0,0 +1,1206 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A {@link ResponseStore} that appends responses to memory-mapped segment files (see {@link Segment}) instead of
+ * creating a file per response. A memory-mapped {@link OffsetIndex} maps key ids to record locations, so a lookup is a
+ * hash probe followed by a read from the mapping, and a write is a sequential append to the active segment.
+ * 
+ * Removed and superseded records are only flagged dead. A background task compacts sealed segments whose share of
+ * dead bytes exceeds {@link #DEFAULT_COMPACTION_THRESHOLD}: live records are copied to the active segment and the old
+ * file is deleted. Once the segment files exceed the maximum size, the oldest segments are dropped as a whole.
+ * 
+ * Writes are group committed: every {@link #DEFAULT_COMMIT_INTERVAL} milliseconds the segments written to and the index
+ * are forced to the disk in one go and a small checkpoint records, per segment, the offset up to which all records are
+ * complete together with its counters. A put does not wait for the commit, so a crash loses at most the responses of
+ * the last interval. Every record carries a checksum; the next open maps the index as it is and only scans the records
+ * behind the committed offsets, truncating a segment at the first torn record. On {@link #close()} (or when the JVM
+ * shuts down) the checkpoint is marked clean and nothing has to be scanned. Without a usable checkpoint the index is
+ * rebuilt from the record headers.
+ * 
+ * A store locks its directory exclusively until it is closed; opening a second store on the same directory, in this or
+ * another JVM, fails.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class SegmentResponseStore implements ResponseStore, Closeable {
+	
+	/** The default segment size. */
+	public static final int                 DEFAULT_SEGMENT_SIZE         = 128 * 1024 * 1024;
+	
+	/** The default upper bound for the size of all segment files. */
+	public static final long                DEFAULT_MAX_SIZE             = 16L * DEFAULT_SEGMENT_SIZE;
+	
+	/** The share of dead bytes that makes a sealed segment eligible for compaction. */
+	public static final double              DEFAULT_COMPACTION_THRESHOLD = 0.5;
+	
+	/** The default interval of group commits in milliseconds. */
+	public static final long                DEFAULT_COMMIT_INTERVAL      = 200;
+	
+	/** The interval of the background compaction in seconds. */
+	private static final long               COMPACTION_INTERVAL          = 60;
+	
+	/** The time in seconds to wait for a running compaction or commit when closing. */
+	private static final long               SHUTDOWN_TIMEOUT             = 60;
+	
+	/** The name of the checkpoint file. */
+	private static final String             CHECKPOINT                   = "index.chk";  //$NON-NLS-1$
+	
+	/** The magic number of the checkpoint ("IODK"). */
+	private static final int                CHECKPOINT_MAGIC             = 0x494f444b;
+	
+	/** The name of the file locked by the store owning the directory. */
+	private static final String             LOCK                         = "store.lock"; //$NON-NLS-1$
+	
+	/** The directory. */
+	private final File                      directory;
+	
+	/** The segment size. */
+	private final int                       segmentSize;
+	
+	/** The upper bound for the size of all segment files. */
+	private final long                      maxSize;
+	
+	/** The exclusive lock on the directory, held until the store is closed. */
+	private final FileLock                  directoryLock;
+	
+	/** Guards the index, the segment table and the segment counters. */
+	private final ReadWriteLock             lock                         = new ReentrantReadWriteLock();
+	
+	/** The index. */
+	private OffsetIndex                     index;
+	
+	/** The segments by id. */
+	private final TreeMap<Integer, Segment> segments                     = new TreeMap<Integer, Segment>();
+	
+	/** The segment new records are appended to. */
+	private Segment                         active;
+	
+	/** The compactor. */
+	private final ScheduledExecutorService  compactor;
+	
+	/** The committer. */
+	private final ScheduledExecutorService  committer;
+	
+	/** Serializes commits and guards {@link #committed}. */
+	private final Object                    commitLock                   = new Object();
+	
+	/** The write offset, live bytes and dead bytes of each segment as of the last commit. */
+	private final TreeMap<Integer, long[]>  committed                    = new TreeMap<Integer, long[]>();
+	
+	/** Closes the store when the JVM shuts down, so the next start finds a checkpoint. */
+	private final Thread                    shutdownHook;
+	
+	/** Whether the store has been closed. */
+	private boolean                         closed;
+	
+	/**
+	 * Instantiates a new segment response store with the default segment size.
+	 *
+	 * @param directory
+	 *            the directory; created if it does not exist
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SegmentResponseStore(@NotNull final File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+	}
+	
+	/**
+	 * Instantiates a new segment response store.
+	 *
+	 * @param directory
+	 *            the directory; created if it does not exist
+	 * @param segmentSize
+	 *            the size of newly created segments, which is also the upper bound for a single response
+	 * @param maxSize
+	 *            the upper bound for the size of all segment files; at least one segment is always kept
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SegmentResponseStore(@NotNull final File directory, final int segmentSize, final long maxSize)
+	        throws IOException {
+		this(directory, segmentSize, maxSize, DEFAULT_COMMIT_INTERVAL);
+	}
+	
+	/**
+	 * Instantiates a new segment response store.
+	 *
+	 * @param directory
+	 *            the directory; created if it does not exist
+	 * @param segmentSize
+	 *            the size of newly created segments, which is also the upper bound for a single response
+	 * @param maxSize
+	 *            the upper bound for the size of all segment files; at least one segment is always kept
+	 * @param commitInterval
+	 *            the interval of group commits in milliseconds, i.e. the window of responses a crash may lose
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public SegmentResponseStore(@NotNull final File directory, final int segmentSize, final long maxSize,
+	        final long commitInterval) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(directory, "Argument '%s' in '%s'.", "directory", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.check(segmentSize > Segment.HEADER, "Argument '%s' in '%s' has to exceed the record header.", //$NON-NLS-1$
+		                "segmentSize", getClass().getSimpleName()); //$NON-NLS-1$
+		Condition.check(commitInterval > 0, "Argument '%s' in '%s' has to be positive.", "commitInterval", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create socket cache directory: " + directory.getAbsolutePath()); //$NON-NLS-1$
+			}
+			this.directory = directory;
+			this.segmentSize = segmentSize;
+			this.maxSize = maxSize;
+			this.directoryLock = lock(directory);
+			boolean loaded = false;
+			try {
+				load();
+				// from now on the segments are written to, the checkpoint must not claim a clean state any longer
+				commit();
+				loaded = true;
+			} finally {
+				if (!loaded) {
+					close(this.segments.values());
+					this.directoryLock.channel().close();
+				}
+			}
+			
+			this.compactor = Executors.newSingleThreadScheduledExecutor(daemon("compactor")); //$NON-NLS-1$
+			this.compactor.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (final IOException e) {
+						if (Logger.logWarn()) {
+							Logger.warn("Compaction of " + SegmentResponseStore.this.directory + " failed: " //$NON-NLS-1$ //$NON-NLS-2$
+							        + e.getMessage());
+						}
+					}
+				}
+			}, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+			
+			this.committer = Executors.newSingleThreadScheduledExecutor(daemon("committer")); //$NON-NLS-1$
+			this.committer.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						commit();
+					} catch (final IOException e) {
+						if (Logger.logWarn()) {
+							Logger.warn("Commit of " + SegmentResponseStore.this.directory + " failed: " //$NON-NLS-1$ //$NON-NLS-2$
+							        + e.getMessage());
+						}
+					}
+				}
+			}, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+			
+			this.shutdownHook = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						close();
+					} catch (final IOException e) {
+						if (Logger.logWarn()) {
+							Logger.warn("Closing " + SegmentResponseStore.this.directory + " failed: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+						}
+					}
+				}
+			}, getClassName() + "-shutdown"); //$NON-NLS-1$
+			Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Waits for the running task of a background executor that has been shut down. The task is not interrupted, as an
+	 * interrupt during I/O would close the channel it works on.
+	 *
+	 * @param executor
+	 *            the executor
+	 * @param task
+	 *            the name of the task
+	 */
+	private void awaitTermination(final ScheduledExecutorService executor,
+	                              final String task) {
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS) && Logger.logWarn()) {
+				Logger.warn("The " + task + " of " + this.directory + " did not finish within " + SHUTDOWN_TIMEOUT //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				        + " seconds."); //$NON-NLS-1$
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// running tasks finish, scheduled ones are cancelled
+		this.compactor.shutdown();
+		this.committer.shutdown();
+		awaitTermination(this.compactor, "compactor"); //$NON-NLS-1$
+		awaitTermination(this.committer, "committer"); //$NON-NLS-1$
+		try {
+			Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+		} catch (final IllegalStateException e) {
+			// called by the hook itself
+		}
+		
+		this.lock.writeLock().lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		
+		try {
+			commit(true);
+		} finally {
+			this.lock.writeLock().lock();
+			try {
+				close(this.segments.values());
+			} finally {
+				this.lock.writeLock().unlock();
+				// closing the channel releases the lock
+				this.directoryLock.channel().close();
+			}
+		}
+	}
+	
+	/**
+	 * Makes the records written so far durable: the segments written to and the index are forced to the disk and the
+	 * checkpoint is rewritten. This is done every commit interval, so concurrent writers share a single sync.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void commit() throws IOException {
+		commit(false);
+	}
+	
+	/**
+	 * Forces the modified segments and the index to the disk and rewrites the checkpoint. The committed offset of a
+	 * segment that still has records being written is left as it was, the records behind it are recovered on open.
+	 *
+	 * @param closing
+	 *            whether this is the final commit of {@link #close()}; the checkpoint is only marked clean then
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void commit(final boolean closing) throws IOException {
+		synchronized (this.commitLock) {
+			final List<Segment> modified = new LinkedList<Segment>();
+			boolean clean = closing;
+			final int capacity;
+			final int size;
+			
+			this.lock.readLock().lock();
+			try {
+				if (this.closed && !closing) {
+					return;
+				}
+				for (final Segment segment : this.segments.values()) {
+					if (segment.takeDirty()) {
+						modified.add(segment);
+					}
+					if (segment.getPending() == 0) {
+						this.committed.put(segment.getId(), new long[] { segment.getWriteOffset(),
+						        segment.getLiveBytes(), segment.getDeadBytes() });
+					} else {
+						clean = false;
+					}
+				}
+				this.committed.keySet().retainAll(this.segments.keySet());
+				this.index.force();
+				capacity = this.index.capacity();
+				size = this.index.size();
+			} finally {
+				this.lock.readLock().unlock();
+			}
+			
+			for (final Segment segment : modified) {
+				segment.force();
+			}
+			
+			final File temp = new File(this.directory, CHECKPOINT + ".tmp"); //$NON-NLS-1$
+			final FileOutputStream file = new FileOutputStream(temp);
+			try {
+				final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+				final DataOutputStream out = new DataOutputStream(checked);
+				out.writeInt(CHECKPOINT_MAGIC);
+				out.writeBoolean(clean);
+				out.writeInt(capacity);
+				out.writeInt(size);
+				out.writeInt(this.committed.size());
+				for (final Map.Entry<Integer, long[]> entry : this.committed.entrySet()) {
+					out.writeInt(entry.getKey());
+					out.writeInt((int) entry.getValue()[0]);
+					out.writeLong(entry.getValue()[1]);
+					out.writeLong(entry.getValue()[2]);
+				}
+				out.writeLong(checked.getChecksum().getValue());
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+			
+			final File checkpoint = new File(this.directory, CHECKPOINT);
+			if (!temp.renameTo(checkpoint) && (!checkpoint.delete() || !temp.renameTo(checkpoint))) {
+				throw new IOException("Could not write checkpoint " + checkpoint); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	/**
+	 * Compacts all sealed segments whose share of dead bytes exceeds {@link #DEFAULT_COMPACTION_THRESHOLD}.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void compact() throws IOException {
+		final List<Segment> candidates = new LinkedList<Segment>();
+		
+		this.lock.readLock().lock();
+		try {
+			for (final Segment segment : this.segments.values()) {
+				final long total = segment.getLiveBytes() + segment.getDeadBytes();
+				if ((segment != this.active) && (segment.getPending() == 0) && (total > 0)
+				        && (segment.getDeadBytes() >= (total * DEFAULT_COMPACTION_THRESHOLD))) {
+					candidates.add(segment);
+				}
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		
+		for (final Segment segment : candidates) {
+			compact(segment);
+		}
+	}
+	
+	/**
+	 * Moves the live records of a sealed segment to the active segment and deletes it.
+	 *
+	 * @param segment
+	 *            the segment
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void compact(final Segment segment) throws IOException {
+		final List<Integer> offsets = new ArrayList<Integer>();
+		final List<byte[]> ids = new ArrayList<byte[]>();
+		
+		this.lock.readLock().lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			segment.scan(new Segment.Visitor() {
+				
+				@Override
+				public void visit(final int offset,
+				                  final boolean complete,
+				                  final byte[] id,
+				                  final int length) {
+					if (complete
+					        && (SegmentResponseStore.this.index.get(id) == Segment.location(segment.getId(), offset))) {
+						offsets.add(offset);
+						ids.add(id);
+					}
+				}
+			});
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		
+		for (int i = 0; i < offsets.size(); ++i) {
+			final int offset = offsets.get(i);
+			final byte[] id = ids.get(i);
+			final ByteBuffer payload = segment.payload(offset);
+			final long moved = reserve(id, payload.remaining());
+			final Segment target = segment(moved);
+			target.payload(Segment.offset(moved)).put(payload);
+			target.writeChecksum(Segment.offset(moved));
+			
+			this.lock.writeLock().lock();
+			try {
+				target.publish(Segment.offset(moved));
+				if (!this.index.replace(id, Segment.location(segment.getId(), offset), moved)) {
+					// superseded or removed while we were copying
+					target.markDead(Segment.offset(moved));
+				}
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+		
+		this.lock.writeLock().lock();
+		try {
+			if (this.segments.remove(segment.getId()) == null) {
+				// evicted in the meantime
+				return;
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		segment.delete();
+		
+		if (Logger.logDebug()) {
+			Logger.debug("Compacted segment " + segment.getId() + ", moved " + offsets.size() + " records."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Creates a thread factory for the daemon threads of the background tasks.
+	 *
+	 * @param task
+	 *            the name of the task
+	 * @return the thread factory
+	 */
+	private ThreadFactory daemon(final String task) {
+		return new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, getClassName() + "-" + task); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean contains(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return contains(key.idBytes());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Checks whether a live record is stored under the given key id.
+	 *
+	 * @param id
+	 *            the id, see {@link CacheKey#idBytes()}
+	 * @return true, if the record is present
+	 */
+	boolean contains(final byte[] id) {
+		this.lock.readLock().lock();
+		try {
+			final long location = this.index.get(id);
+			if (location == OffsetIndex.NONE) {
+				return false;
+			}
+			final Segment segment = this.segments.get(Segment.segment(location));
+			return (segment != null) && segment.isLive(Segment.offset(location), id);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public CachedResponse get(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			return get(key.idBytes());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Looks up the response stored under the given key id.
+	 *
+	 * @param id
+	 *            the id, see {@link CacheKey#idBytes()}
+	 * @return the cached response or <code>null</code> if there is none
+	 */
+	CachedResponse get(final byte[] id) {
+		this.lock.readLock().lock();
+		try {
+			final long location = this.index.get(id);
+			if (location == OffsetIndex.NONE) {
+				return null;
+			}
+			final Segment segment = this.segments.get(Segment.segment(location));
+			final int offset = Segment.offset(location);
+			if ((segment == null) || !segment.isLive(offset, id)) {
+				return null;
+			}
+			return new BufferResponse(segment.payload(offset));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the directory.
+	 *
+	 * @return the directory
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+	
+	/**
+	 * Gets the number of entries. After a crash this may include entries whose records have been lost with a torn
+	 * record, until they are stored again or removed.
+	 *
+	 * @return the number of entries
+	 */
+	public int getEntryCount() {
+		this.lock.readLock().lock();
+		try {
+			return this.index.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the upper bound for the size of all segment files.
+	 *
+	 * @return the max size
+	 */
+	public long getMaxSize() {
+		return this.maxSize;
+	}
+	
+	/**
+	 * Gets the number of segment files.
+	 *
+	 * @return the segment count
+	 */
+	public int getSegmentCount() {
+		this.lock.readLock().lock();
+		try {
+			return this.segments.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the ids of all entries, in the order they have been written.
+	 *
+	 * @return the ids
+	 */
+	List<byte[]> ids() {
+		final List<byte[]> ids = new ArrayList<byte[]>();
+		
+		this.lock.readLock().lock();
+		try {
+			for (final Segment segment : this.segments.values()) {
+				segment.scan(new Segment.Visitor() {
+					
+					@Override
+					public void visit(final int offset,
+					                  final boolean complete,
+					                  final byte[] id,
+					                  final int length) {
+						if (complete
+						        && (SegmentResponseStore.this.index.get(id) == Segment.location(segment.getId(), offset))) {
+							ids.add(id);
+						}
+					}
+				});
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		return ids;
+	}
+	
+	/**
+	 * Creates the visitor that indexes the records found while recovering a segment.
+	 *
+	 * @param segment
+	 *            the segment
+	 * @param failure
+	 *            receives the exception if the index could not grow
+	 * @return the visitor
+	 */
+	private Segment.Visitor indexer(final Segment segment,
+	                                final IOException[] failure) {
+		return new Segment.Visitor() {
+			
+			@Override
+			public void visit(final int offset,
+			                  final boolean complete,
+			                  final byte[] id,
+			                  final int length) {
+				if (!complete) {
+					segment.addDead(length);
+					return;
+				}
+				segment.addLive(length);
+				final long location = Segment.location(segment.getId(), offset);
+				try {
+					final long previous = SegmentResponseStore.this.index.put(id, location);
+					if ((previous != OffsetIndex.NONE) && (previous != location)) {
+						markDead(previous, id);
+					}
+				} catch (final IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Opens the existing segments and the index. The index is restored from the checkpoint if there is a usable one, and
+	 * rebuilt from the record headers otherwise.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void load() throws IOException {
+		final File[] files = this.directory.listFiles(new FilenameFilter() {
+			
+			@Override
+			public boolean accept(final File dir,
+			                      final String name) {
+				return name.matches("\\d{8}\\" + Segment.SUFFIX); //$NON-NLS-1$
+			}
+		});
+		if (files == null) {
+			throw new IOException("Could not list socket cache directory: " + this.directory.getAbsolutePath()); //$NON-NLS-1$
+		}
+		Arrays.sort(files);
+		
+		final File checkpoint = new File(this.directory, CHECKPOINT);
+		if (checkpoint.isFile() && restore(checkpoint, files)) {
+			if (Logger.logDebug()) {
+				Logger.debug("Restored index of " + this.directory + " with " + this.index.size() + " entries."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+			return;
+		}
+		
+		this.index = OffsetIndex.create(this.directory);
+		final IOException[] failure = new IOException[1];
+		for (final File file : files) {
+			final int id = Integer.parseInt(file.getName().substring(0, 8));
+			final Segment segment = Segment.open(this.directory, id, this.segmentSize);
+			this.segments.put(id, segment);
+			recover(segment, failure);
+			this.active = segment;
+		}
+		if (failure[0] != null) {
+			close(this.segments.values());
+			throw failure[0];
+		}
+	}
+	
+	/**
+	 * Closes the given segments, ignoring failures.
+	 *
+	 * @param segments
+	 *            the segments
+	 */
+	private static void close(final Iterable<Segment> segments) {
+		for (final Segment segment : segments) {
+			try {
+				segment.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Takes the exclusive lock on the directory. Two stores writing to the same segments and checkpoint, e.g. in two
+	 * JVMs using the default directory, would destroy each other's records.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @return the lock
+	 * @throws IOException
+	 *             if another store holds the lock
+	 */
+	private static FileLock lock(final File directory) throws IOException {
+		final FileChannel channel = new RandomAccessFile(new File(directory, LOCK), "rw").getChannel(); //$NON-NLS-1$
+		FileLock lock = null;
+		try {
+			lock = channel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+			// held by another store of this JVM
+		} finally {
+			if (lock == null) {
+				channel.close();
+			}
+		}
+		if (lock == null) {
+			throw new IOException("Socket cache directory is in use by another store: " + directory.getAbsolutePath()); //$NON-NLS-1$
+		}
+		return lock;
+	}
+	
+	/**
+	 * Indexes the records of a segment behind its write offset and truncates it at the first torn record.
+	 *
+	 * @param segment
+	 *            the segment
+	 * @param failure
+	 *            receives the exception if the index could not grow
+	 */
+	private void recover(final Segment segment,
+	                     final IOException[] failure) {
+		final int from = segment.getWriteOffset();
+		if (segment.recover(from, indexer(segment, failure)) && Logger.logWarn()) {
+			Logger.warn("Truncated segment " + segment.getId() + " of " + this.directory + " at torn record " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			        + segment.getWriteOffset() + "."); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Restores the segment counters and the index from a checkpoint and recovers the records written after it. The
+	 * checkpoint is only used if it is intact, all segments it lists exist and no older segment is missing from it.
+	 *
+	 * @param checkpoint
+	 *            the checkpoint
+	 * @param files
+	 *            the segment files, sorted
+	 * @return true, if the index has been restored
+	 */
+	private boolean restore(final File checkpoint,
+	                        final File[] files) {
+		try {
+			final CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(checkpoint)),
+			                                                          new CRC32());
+			final DataInputStream in = new DataInputStream(checked);
+			try {
+				if (in.readInt() != CHECKPOINT_MAGIC) {
+					throw new IOException("Not a checkpoint"); //$NON-NLS-1$
+				}
+				final boolean clean = in.readBoolean();
+				final int capacity = in.readInt();
+				final int size = in.readInt();
+				final int count = in.readInt();
+				if ((count < 0) || (count > files.length)) {
+					throw new IOException("Checkpoint lists " + count + " segments, found " + files.length); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				
+				final TreeMap<Integer, long[]> listed = new TreeMap<Integer, long[]>();
+				for (int i = 0; i < count; ++i) {
+					listed.put(in.readInt(), new long[] { in.readInt(), in.readLong(), in.readLong() });
+				}
+				final long expected = checked.getChecksum().getValue();
+				if (in.readLong() != expected) {
+					throw new IOException("Checksum mismatch"); //$NON-NLS-1$
+				}
+				
+				final int last = listed.isEmpty()
+				                                 ? 0
+				                                 : listed.lastKey();
+				int found = 0;
+				for (final File file : files) {
+					final int id = Integer.parseInt(file.getName().substring(0, 8));
+					if (listed.containsKey(id)) {
+						++found;
+					} else if (id < last) {
+						// dropped or compacted after the commit, the index may point into it
+						throw new IOException("Segment " + file.getName() + " is not in the checkpoint"); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+				if (found != count) {
+					throw new IOException("Checkpoint lists " + count + " segments, found " + found); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				
+				// the index of an unclean shutdown may have been written partially, its size is not known
+				this.index = OffsetIndex.open(this.directory, capacity, clean
+				                                                             ? size
+				                                                             : -1);
+				for (final File file : files) {
+					final int id = Integer.parseInt(file.getName().substring(0, 8));
+					final Segment segment = Segment.open(this.directory, id, this.segmentSize);
+					this.segments.put(id, segment);
+					final long[] counters = listed.get(id);
+					if ((counters != null) && !segment.restore((int) counters[0], counters[1], counters[2])) {
+						throw new IOException("Counters of segment " + id + " do not match"); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+				
+				final IOException[] failure = new IOException[1];
+				for (final Segment segment : this.segments.values()) {
+					recover(segment, failure);
+				}
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+				this.active = this.segments.isEmpty()
+				                                     ? null
+				                                     : this.segments.lastEntry().getValue();
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			if (Logger.logWarn()) {
+				Logger.warn("Ignoring checkpoint " + checkpoint + ", rebuilding the index: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		close(this.segments.values());
+		this.segments.clear();
+		return false;
+	}
+	
+	/**
+	 * Detaches the oldest sealed segments until the segment files fit into the maximum size. Reads miss on a detached
+	 * segment right away; its index entries and file are dropped by {@link #evict(Segment)} outside the write lock. Has
+	 * to be called with the write lock held.
+	 *
+	 * @param evicted
+	 *            the list the detached segments are added to
+	 */
+	private void detachOldest(final List<Segment> evicted) {
+		while ((((long) this.segments.size() * this.segmentSize) > this.maxSize) && (this.segments.size() > 1)) {
+			final Segment oldest = this.segments.firstEntry().getValue();
+			if (oldest.getPending() > 0) {
+				// still being written to, try again on the next roll over
+				return;
+			}
+			this.segments.remove(oldest.getId());
+			evicted.add(oldest);
+		}
+	}
+	
+	/**
+	 * Drops a detached segment: its records are collected without holding the write lock, the index entries still
+	 * pointing into it are removed under the lock and the file is deleted.
+	 *
+	 * @param segment
+	 *            the segment
+	 */
+	private void evict(final Segment segment) {
+		final List<byte[]> ids = new ArrayList<byte[]>();
+		final List<Integer> offsets = new ArrayList<Integer>();
+		segment.scan(new Segment.Visitor() {
+			
+			@Override
+			public void visit(final int offset,
+			                  final boolean complete,
+			                  final byte[] id,
+			                  final int length) {
+				if (complete) {
+					ids.add(id);
+					offsets.add(offset);
+				}
+			}
+		});
+		
+		int dropped = 0;
+		this.lock.writeLock().lock();
+		try {
+			// after close, restoring the checkpoint skips entries pointing into missing segments
+			if (!this.closed) {
+				for (int i = 0; i < ids.size(); ++i) {
+					final byte[] id = ids.get(i);
+					if (this.index.get(id) == Segment.location(segment.getId(), offsets.get(i))) {
+						this.index.remove(id);
+						++dropped;
+					}
+				}
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		
+		try {
+			segment.delete();
+		} catch (final IOException e) {
+			if (Logger.logWarn()) {
+				Logger.warn("Deleting evicted segment " + segment.getId() + " failed: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		
+		if (Logger.logDebug()) {
+			Logger.debug("Evicted segment " + segment.getId() + " with " + dropped + " live records."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Flags the record at the location dead if it belongs to the id. Has to be called with the write lock held.
+	 *
+	 * @param location
+	 *            the location
+	 * @param id
+	 *            the id the index maps to the location
+	 * @return true, if the record has been flagged
+	 */
+	private boolean markDead(final long location,
+	                         final byte[] id) {
+		final Segment segment = this.segments.get(Segment.segment(location));
+		final int offset = Segment.offset(location);
+		if ((segment == null) || !segment.holds(offset, id)) {
+			// restored from the index of a crash, the record has been truncated and its space may be reused
+			return false;
+		}
+		segment.markDead(offset);
+		return true;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+	 * java.nio.channels.ReadableByteChannel, long)
+	 */
+	@Override
+	public void put(final CacheKey key,
+	                final ReadableByteChannel payload,
+	                final long length) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(payload, "Argument '%s' in '%s'.", "payload", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			put(key.idBytes(), payload, length);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Stores the response under the given key id, replacing any previous entry.
+	 *
+	 * @param id
+	 *            the id, see {@link CacheKey#idBytes()}
+	 * @param payload
+	 *            the channel providing the response, positioned at its first byte
+	 * @param length
+	 *            the length of the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void put(final byte[] id,
+	         final ReadableByteChannel payload,
+	         final long length) throws IOException {
+		if ((length + Segment.HEADER) > this.segmentSize) {
+			throw new IOException("Response " + CacheKey.hex(id) + " exceeds the segment size of " + this.segmentSize //$NON-NLS-1$ //$NON-NLS-2$
+			        + " bytes"); //$NON-NLS-1$
+		}
+		
+		final long location = reserve(id, (int) length);
+		final Segment segment = segment(location);
+		final int offset = Segment.offset(location);
+		
+		// the payload is read straight into the mapping
+		final ByteBuffer target = segment.payload(offset);
+		boolean complete = false;
+		try {
+			while (target.hasRemaining()) {
+				if (payload.read(target) < 0) {
+					throw new EOFException("Response " + CacheKey.hex(id) + " ended after " + target.position() + " of " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					        + length + " bytes"); //$NON-NLS-1$
+				}
+			}
+			segment.writeChecksum(offset);
+			complete = true;
+		} finally {
+			this.lock.writeLock().lock();
+			try {
+				if (complete) {
+					segment.publish(offset);
+					final long previous = this.index.put(id, location);
+					if (previous != OffsetIndex.NONE) {
+						markDead(previous, id);
+					}
+				} else {
+					segment.markDead(offset);
+				}
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean remove(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.lock.writeLock().lock();
+			try {
+				final byte[] id = key.idBytes();
+				final long location = this.index.remove(id);
+				return (location != OffsetIndex.NONE) && markDead(location, id);
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Reserves space for a record in the active segment, starting a new segment if it is full.
+	 *
+	 * @param id
+	 *            the id
+	 * @param length
+	 *            the payload length
+	 * @return the location of the record
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private long reserve(final byte[] id,
+	                     final int length) throws IOException {
+		final List<Segment> evicted = new LinkedList<Segment>();
+		try {
+			this.lock.writeLock().lock();
+			try {
+				if (this.closed) {
+					throw new IOException(getClassName() + " has been closed"); //$NON-NLS-1$
+				}
+				if ((this.active == null) || !this.active.hasRoom(length)) {
+					final int next = this.segments.isEmpty()
+					                                        ? 1
+					                                        : this.segments.lastKey() + 1;
+					this.active = Segment.open(this.directory, next, this.segmentSize);
+					this.segments.put(next, this.active);
+					detachOldest(evicted);
+				}
+				return Segment.location(this.active.getId(), this.active.reserve(id, length));
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		} finally {
+			// scanning the evicted segments must not block readers and writers
+			for (final Segment segment : evicted) {
+				evict(segment);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the segment of a location that has been reserved by the caller, i.e. cannot have been compacted away.
+	 *
+	 * @param location
+	 *            the location
+	 * @return the segment
+	 */
+	private Segment segment(final long location) {
+		this.lock.readLock().lock();
+		try {
+			return this.segments.get(Segment.segment(location));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * Counters and latency histograms of the socket caching layer: cache hits and misses, bytes replayed from the cache
+ * and read from upstream, pool leases and reuses, connect latency and time to first byte, the latter two also per
+ * host. {@link CachingSocketImpl} and {@link SocketPool} report to the instance they have been created with, the
+ * {@link #getShared() shared instance} by default, which is registered with the platform MBean server.
+ * 
+ * Use {@link #snapshot()} to read the metrics programmatically.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class SocketMetrics implements SocketMetricsMBean {
+	
+	/** The JMX domain. */
+	public static final String                     DOMAIN           = "net.ownhero.dev.ioda.sockets"; //$NON-NLS-1$
+	
+	/** The maximum number of hosts latencies are tracked for. */
+	private static final int                       MAX_HOSTS        = 1024;
+	
+	/** The number of hosts reported by {@link #getSlowestHosts()}. */
+	private static final int                       SLOWEST_HOSTS    = 10;
+	
+	/** The shared instance. */
+	private static SocketMetrics                   shared;
+	
+	/**
+	 * Gets the instance used unless a component is given its own. It is registered as
+	 * <code>net.ownhero.dev.ioda.sockets:type=SocketMetrics,name=shared</code> on first use.
+	 *
+	 * @return the shared instance
+	 */
+	public static synchronized SocketMetrics getShared() {
+		if (shared == null) {
+			shared = new SocketMetrics();
+			try {
+				shared.register("shared"); //$NON-NLS-1$
+			} catch (final JMException e) {
+				if (Logger.logWarn()) {
+					Logger.warn("Could not register socket metrics with JMX: " + e.getMessage()); //$NON-NLS-1$
+				}
+			}
+		}
+		return shared;
+	}
+	
+	/**
+	 * Converts microseconds to milliseconds.
+	 *
+	 * @param micros
+	 *            the micros
+	 * @return the milliseconds
+	 */
+	private static double millis(final double micros) {
+		return micros / 1000;
+	}
+	
+	/** The hits. */
+	private final AtomicLong                       hits             = new AtomicLong();
+	
+	/** The misses. */
+	private final AtomicLong                       misses           = new AtomicLong();
+	
+	/** The bytes from cache. */
+	private final AtomicLong                       bytesFromCache   = new AtomicLong();
+	
+	/** The bytes from upstream. */
+	private final AtomicLong                       bytesFromUpstream = new AtomicLong();
+	
+	/** The leases. */
+	private final AtomicLong                       leases           = new AtomicLong();
+	
+	/** The reuses. */
+	private final AtomicLong                       reuses           = new AtomicLong();
+	
+	/** The connect latency in microseconds. */
+	private final Histogram                        connectLatency   = new Histogram();
+	
+	/** The time to first byte in microseconds. */
+	private final Histogram                        timeToFirstByte  = new Histogram();
+	
+	/** The per host histograms, connect latency first. */
+	private final ConcurrentMap<String, Histogram[]> hosts          = new ConcurrentHashMap<String, Histogram[]>();
+	
+	/**
+	 * Gets the histograms of the host, creating them unless {@link #MAX_HOSTS} hosts are tracked already.
+	 *
+	 * @param host
+	 *            the host
+	 * @return the histograms or <code>null</code>
+	 */
+	private Histogram[] host(final String host) {
+		Histogram[] histograms = this.hosts.get(host);
+		if ((histograms == null) && (this.hosts.size() < MAX_HOSTS)) {
+			final Histogram[] created = new Histogram[] { new Histogram(), new Histogram() };
+			histograms = this.hosts.putIfAbsent(host, created);
+			if (histograms == null) {
+				histograms = created;
+			}
+		}
+		return histograms;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getBytesFromCache()
+	 */
+	@Override
+	public long getBytesFromCache() {
+		return this.bytesFromCache.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getBytesFromUpstream()
+	 */
+	@Override
+	public long getBytesFromUpstream() {
+		return this.bytesFromUpstream.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getConnectLatencyMean()
+	 */
+	@Override
+	public double getConnectLatencyMean() {
+		return millis(this.connectLatency.getMean());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getConnectLatencyP99()
+	 */
+	@Override
+	public double getConnectLatencyP99() {
+		return millis(this.connectLatency.getPercentile(99));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getHitRatio()
+	 */
+	@Override
+	public double getHitRatio() {
+		final long hit = this.hits.get();
+		final long requests = hit + this.misses.get();
+		return requests == 0
+		                    ? 0
+		                    : (double) hit / requests;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getHits()
+	 */
+	@Override
+	public long getHits() {
+		return this.hits.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getLeases()
+	 */
+	@Override
+	public long getLeases() {
+		return this.leases.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getMisses()
+	 */
+	@Override
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getReuseRate()
+	 */
+	@Override
+	public double getReuseRate() {
+		final long leased = this.leases.get();
+		return leased == 0
+		                  ? 0
+		                  : (double) this.reuses.get() / leased;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getSlowestHosts()
+	 */
+	@Override
+	public String[] getSlowestHosts() {
+		final Map<String, MetricsSnapshot.Host> snapshots = snapshot().getHosts();
+		final List<String> names = new ArrayList<String>(snapshots.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			
+			@Override
+			public int compare(final String o1,
+			                   final String o2) {
+				return Long.compare(snapshots.get(o2).getTimeToFirstByte().getPercentile(99),
+				                    snapshots.get(o1).getTimeToFirstByte().getPercentile(99));
+			}
+		});
+		
+		final String[] result = new String[Math.min(SLOWEST_HOSTS, names.size())];
+		for (int i = 0; i < result.length; ++i) {
+			final MetricsSnapshot.Host host = snapshots.get(names.get(i));
+			result[i] = names.get(i) + ": ttfb p99=" + millis(host.getTimeToFirstByte().getPercentile(99)) //$NON-NLS-1$
+			        + "ms, connect p99=" + millis(host.getConnectLatency().getPercentile(99)) + "ms"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getTimeToFirstByteMean()
+	 */
+	@Override
+	public double getTimeToFirstByteMean() {
+		return millis(this.timeToFirstByte.getMean());
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#getTimeToFirstByteP99()
+	 */
+	@Override
+	public double getTimeToFirstByteP99() {
+		return millis(this.timeToFirstByte.getPercentile(99));
+	}
+	
+	/**
+	 * Records bytes replayed from the cache.
+	 *
+	 * @param bytes
+	 *            the bytes
+	 */
+	void recordCacheBytes(final long bytes) {
+		this.bytesFromCache.addAndGet(bytes);
+	}
+	
+	/**
+	 * Records a completed connect.
+	 *
+	 * @param host
+	 *            the host
+	 * @param nanos
+	 *            the time the connect took in nanoseconds
+	 */
+	void recordConnect(final String host,
+	                   final long nanos) {
+		final long micros = nanos / 1000;
+		this.connectLatency.record(micros);
+		final Histogram[] histograms = host(host);
+		if (histograms != null) {
+			histograms[0].record(micros);
+		}
+	}
+	
+	/**
+	 * Records the arrival of the first response byte.
+	 *
+	 * @param host
+	 *            the host
+	 * @param nanos
+	 *            the time since the request has been forwarded in nanoseconds
+	 */
+	void recordFirstByte(final String host,
+	                     final long nanos) {
+		final long micros = nanos / 1000;
+		this.timeToFirstByte.record(micros);
+		final Histogram[] histograms = host(host);
+		if (histograms != null) {
+			histograms[1].record(micros);
+		}
+	}
+	
+	/**
+	 * Records a request answered from the cache.
+	 */
+	void recordHit() {
+		this.hits.incrementAndGet();
+	}
+	
+	/**
+	 * Records a connection lease.
+	 *
+	 * @param reused
+	 *            whether an idle connection has been handed out
+	 */
+	void recordLease(final boolean reused) {
+		this.leases.incrementAndGet();
+		if (reused) {
+			this.reuses.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Records a request forwarded upstream.
+	 */
+	void recordMiss() {
+		this.misses.incrementAndGet();
+	}
+	
+	/**
+	 * Records bytes read from upstream.
+	 *
+	 * @param bytes
+	 *            the bytes
+	 */
+	void recordUpstreamBytes(final long bytes) {
+		this.bytesFromUpstream.addAndGet(bytes);
+	}
+	
+	/**
+	 * Registers this instance with the platform MBean server as
+	 * <code>net.ownhero.dev.ioda.sockets:type=SocketMetrics,name=&lt;name&gt;</code>.
+	 *
+	 * @param name
+	 *            the name
+	 * @return the object name
+	 * @throws JMException
+	 *             if the registration failed, e.g. because the name is taken
+	 */
+	public ObjectName register(@NotNull final String name) throws JMException {
+		// PRECONDITIONS
+		Condition.notNull(name, "Argument '%s' in '%s'.", "name", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final ObjectName objectName = new ObjectName(DOMAIN + ":type=SocketMetrics,name=" + ObjectName.quote(name)); //$NON-NLS-1$
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, objectName);
+			return objectName;
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.SocketMetricsMBean#reset()
+	 */
+	@Override
+	public void reset() {
+		this.hits.set(0);
+		this.misses.set(0);
+		this.bytesFromCache.set(0);
+		this.bytesFromUpstream.set(0);
+		this.leases.set(0);
+		this.reuses.set(0);
+		this.connectLatency.reset();
+		this.timeToFirstByte.reset();
+		this.hosts.clear();
+	}
+	
+	/**
+	 * Takes a snapshot of all counters and histograms.
+	 *
+	 * @return the snapshot
+	 */
+	public MetricsSnapshot snapshot() {
+		final Map<String, MetricsSnapshot.Host> hostSnapshots = new HashMap<String, MetricsSnapshot.Host>();
+		for (final Map.Entry<String, Histogram[]> entry : this.hosts.entrySet()) {
+			hostSnapshots.put(entry.getKey(), new MetricsSnapshot.Host(entry.getValue()[0].copy(),
+			                                                           entry.getValue()[1].copy()));
+		}
+		return new MetricsSnapshot(this.hits.get(), this.misses.get(), this.bytesFromCache.get(),
+		                           this.bytesFromUpstream.get(), this.leases.get(), this.reuses.get(),
+		                           this.connectLatency.copy(), this.timeToFirstByte.copy(), hostSnapshots);
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+/**
+ * The management interface of {@link SocketMetrics}. Latencies are reported in milliseconds.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public interface SocketMetricsMBean {
+	
+	/**
+	 * Gets the number of bytes replayed from the cache.
+	 *
+	 * @return the bytes from cache
+	 */
+	long getBytesFromCache();
+	
+	/**
+	 * Gets the number of bytes read from upstream connections.
+	 *
+	 * @return the bytes from upstream
+	 */
+	long getBytesFromUpstream();
+	
+	/**
+	 * Gets the mean connect latency.
+	 *
+	 * @return the mean connect latency
+	 */
+	double getConnectLatencyMean();
+	
+	/**
+	 * Gets the 99th percentile of the connect latency.
+	 *
+	 * @return the connect latency p99
+	 */
+	double getConnectLatencyP99();
+	
+	/**
+	 * Gets the number of requests answered from the cache.
+	 *
+	 * @return the hits
+	 */
+	long getHits();
+	
+	/**
+	 * Gets the share of requests answered from the cache.
+	 *
+	 * @return the hit ratio
+	 */
+	double getHitRatio();
+	
+	/**
+	 * Gets the number of connections leased from a pool.
+	 *
+	 * @return the leases
+	 */
+	long getLeases();
+	
+	/**
+	 * Gets the number of requests forwarded upstream.
+	 *
+	 * @return the misses
+	 */
+	long getMisses();
+	
+	/**
+	 * Gets the share of leases served by an idle connection.
+	 *
+	 * @return the reuse rate
+	 */
+	double getReuseRate();
+	
+	/**
+	 * Gets the hosts with the highest time to first byte, slowest first.
+	 *
+	 * @return the slowest hosts with their latencies
+	 */
+	String[] getSlowestHosts();
+	
+	/**
+	 * Gets the mean time from forwarding a request to the first byte of the response.
+	 *
+	 * @return the mean time to first byte
+	 */
+	double getTimeToFirstByteMean();
+	
+	/**
+	 * Gets the 99th percentile of the time to first byte.
+	 *
+	 * @return the time to first byte p99
+	 */
+	double getTimeToFirstByteP99();
+	
+	/**
+	 * Clears all counters and histograms.
+	 */
+	void reset();
+}
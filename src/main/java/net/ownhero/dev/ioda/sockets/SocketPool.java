@@ -0,0 +1,948 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A bounded pool of connected sockets, grouped by {@link PoolKey}. Every key may have at most
+ * {@link #getMaxPerHost()} connections, leased and idle ones combined; callers exceeding the limit wait for a
+ * connection to be released. Idle connections are checked for a remote close before they are handed out again and are
+ * closed by a background sweep once they have been idle for {@link #getIdleTimeout()} milliseconds.
+ * 
+ * Connections are {@link SocketChannel}s, so the pool neither depends on nor interferes with an installed
+ * {@link java.net.SocketImplFactory}. Host names are resolved through a {@link Resolver} when a new connection is
+ * opened. Keys with a {@link PoolKey#getProxy() proxy} are connected through a SOCKS5 or HTTP <code>CONNECT</code>
+ * tunnel, which stays open and is reused like a direct connection.
+ * 
+ * New connections are opened by a single selector thread; if a host has several addresses, connects to them race and
+ * the first to succeed is used. {@link #leaseAsync(PoolKey)} exposes this without blocking the caller, so a single
+ * thread can keep any number of connects in flight.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class SocketPool {
+	
+	/**
+	 * The connections of a single key.
+	 */
+	private static final class Group {
+		
+		/** The idle connections, most recently released first. */
+		private final Deque<Idle>   idle    = new ArrayDeque<Idle>();
+		
+		/** The callers of {@link SocketPool#leaseAsync(PoolKey)} waiting for a free slot, oldest first. */
+		private final Deque<Waiter> waiters = new ArrayDeque<Waiter>();
+		
+		/** The number of leased connections, including the ones currently connecting. */
+		private int                 leased;
+	}
+	
+	/**
+	 * An idle connection.
+	 */
+	private static final class Idle {
+		
+		/** The channel. */
+		private final SocketChannel channel;
+		
+		/** The time the connection has been released. */
+		private final long          since;
+		
+		/**
+		 * Instantiates a new idle entry.
+		 *
+		 * @param channel
+		 *            the channel
+		 * @param since
+		 *            the since
+		 */
+		Idle(final SocketChannel channel, final long since) {
+			this.channel = channel;
+			this.since = since;
+		}
+	}
+	
+	/**
+	 * A caller of {@link SocketPool#leaseAsync(PoolKey)} waiting for a free slot.
+	 */
+	private static final class Waiter {
+		
+		/** The promise. */
+		private final Promise<PooledSocket> promise;
+		
+		/** The time the wait times out. */
+		private final long                  deadline;
+		
+		/**
+		 * Instantiates a new waiter.
+		 *
+		 * @param promise
+		 *            the promise
+		 * @param deadline
+		 *            the deadline
+		 */
+		Waiter(final Promise<PooledSocket> promise, final long deadline) {
+			this.promise = promise;
+			this.deadline = deadline;
+		}
+	}
+	
+	/** The default maximum number of connections per key. */
+	public static final int         DEFAULT_MAX_PER_HOST    = 8;
+	
+	/** The default idle timeout in milliseconds. */
+	public static final long        DEFAULT_IDLE_TIMEOUT    = 30000L;
+	
+	/** The default time in milliseconds to wait for a connection when the limit is reached. */
+	public static final long        DEFAULT_LEASE_TIMEOUT   = 60000L;
+	
+	/** The default connect timeout in milliseconds, 0 for none. */
+	public static final int         DEFAULT_CONNECT_TIMEOUT = 0;
+	
+	/**
+	 * Closes a channel, logging failures.
+	 *
+	 * @param channel
+	 *            the channel
+	 */
+	private static void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			if (Logger.logDebug()) {
+				Logger.debug("Could not close pooled connection: " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	/** The groups. */
+	private final Map<PoolKey, Group> groups = new HashMap<PoolKey, Group>();
+	
+	/** The maximum number of connections per key. */
+	private final int                 maxPerHost;
+	
+	/** The idle timeout. */
+	private final long                idleTimeout;
+	
+	/** The lease timeout. */
+	private final long                leaseTimeout;
+	
+	/** The connect timeout. */
+	private final int                 connectTimeout;
+	
+	/** The resolver. */
+	private final Resolver            resolver;
+	
+	/** The metrics. */
+	private final SocketMetrics       metrics;
+	
+	/** The evictor. */
+	private final ScheduledExecutorService evictor;
+	
+	/** Opens new connections; created on first use. */
+	private AsyncConnector            connector;
+	
+	/** Runs the proxy handshakes of asynchronous leases; created on first use. */
+	private ExecutorService           handshakes;
+	
+	/** Whether the pool has been closed. */
+	private boolean                   closed;
+	
+	/**
+	 * Instantiates a new socket pool with default settings.
+	 */
+	public SocketPool() {
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT, DEFAULT_LEASE_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+	}
+	
+	/**
+	 * Instantiates a new socket pool.
+	 *
+	 * @param maxPerHost
+	 *            the maximum number of connections (leased and idle) per key
+	 * @param idleTimeout
+	 *            the time in milliseconds after which idle connections are closed
+	 * @param leaseTimeout
+	 *            the time in milliseconds to wait for a connection when the limit is reached
+	 * @param connectTimeout
+	 *            the connect timeout in milliseconds, 0 for none
+	 */
+	public SocketPool(final int maxPerHost, final long idleTimeout, final long leaseTimeout, final int connectTimeout) {
+		this(maxPerHost, idleTimeout, leaseTimeout, connectTimeout, Resolver.SYSTEM);
+	}
+	
+	/**
+	 * Instantiates a new socket pool.
+	 *
+	 * @param maxPerHost
+	 *            the maximum number of connections (leased and idle) per key
+	 * @param idleTimeout
+	 *            the time in milliseconds after which idle connections are closed
+	 * @param leaseTimeout
+	 *            the time in milliseconds to wait for a connection when the limit is reached
+	 * @param connectTimeout
+	 *            the connect timeout in milliseconds, 0 for none
+	 * @param resolver
+	 *            the resolver host names are resolved with
+	 */
+	public SocketPool(final int maxPerHost, final long idleTimeout, final long leaseTimeout, final int connectTimeout,
+	        @NotNull final Resolver resolver) {
+		this(maxPerHost, idleTimeout, leaseTimeout, connectTimeout, resolver, SocketMetrics.getShared());
+	}
+	
+	/**
+	 * Instantiates a new socket pool.
+	 *
+	 * @param maxPerHost
+	 *            the maximum number of connections (leased and idle) per key
+	 * @param idleTimeout
+	 *            the time in milliseconds after which idle connections are closed
+	 * @param leaseTimeout
+	 *            the time in milliseconds to wait for a connection when the limit is reached
+	 * @param connectTimeout
+	 *            the connect timeout in milliseconds, 0 for none
+	 * @param resolver
+	 *            the resolver host names are resolved with
+	 * @param metrics
+	 *            the metrics leases and connects are reported to
+	 */
+	public SocketPool(final int maxPerHost, final long idleTimeout, final long leaseTimeout, final int connectTimeout,
+	        @NotNull final Resolver resolver, @NotNull final SocketMetrics metrics) {
+		// PRECONDITIONS
+		Condition.notNull(resolver, "Argument '%s' in '%s'.", "resolver", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.notNull(metrics, "Argument '%s' in '%s'.", "metrics", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.check(maxPerHost > 0, "Argument '%s' in '%s' has to be positive.", "maxPerHost", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		Condition.check(idleTimeout > 0, "Argument '%s' in '%s' has to be positive.", "idleTimeout", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		
+		try {
+			this.maxPerHost = maxPerHost;
+			this.idleTimeout = idleTimeout;
+			this.leaseTimeout = leaseTimeout;
+			this.connectTimeout = connectTimeout;
+			this.resolver = resolver;
+			this.metrics = metrics;
+			this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, getClassName() + "-evictor"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			final long period = Math.max(1000L, idleTimeout / 2);
+			this.evictor.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Closes all idle connections and stops the background eviction. Leased connections are closed when they are
+	 * released, pending asynchronous leases fail.
+	 */
+	public void close() {
+		final List<SocketChannel> victims = new LinkedList<SocketChannel>();
+		final List<Waiter> waiters = new LinkedList<Waiter>();
+		synchronized (this) {
+			this.closed = true;
+			for (final Group group : this.groups.values()) {
+				for (final Idle idle : group.idle) {
+					victims.add(idle.channel);
+				}
+				group.idle.clear();
+				waiters.addAll(group.waiters);
+				group.waiters.clear();
+			}
+			notifyAll();
+			if (this.connector != null) {
+				this.connector.close();
+			}
+			if (this.handshakes != null) {
+				this.handshakes.shutdown();
+			}
+		}
+		this.evictor.shutdownNow();
+		
+		for (final Waiter waiter : waiters) {
+			waiter.promise.fail(new IOException(getClassName() + " has been closed")); //$NON-NLS-1$
+		}
+		
+		for (final SocketChannel channel : victims) {
+			closeQuietly(channel);
+		}
+	}
+	
+	/**
+	 * Opens a new connection for the given key, racing the addresses of the host. Connections of keys with a proxy
+	 * are tunnels, established once and then pooled like direct connections, so the proxy handshake is not repeated
+	 * on reuse. Also used for connections that are not pooled at all, e.g. because they are bound to a local port.
+	 *
+	 * @param key
+	 *            the key
+	 * @param localPort
+	 *            the local port, 0 for any
+	 * @param timeout
+	 *            the timeout for connecting and the proxy handshake in milliseconds, 0 for none
+	 * @return the connected channel
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	SocketChannel connect(final PoolKey key,
+	                      final int localPort,
+	                      final int timeout) throws IOException {
+		final Promise<SocketChannel> promise = new Promise<SocketChannel>();
+		final long start = System.nanoTime();
+		race(key, localPort, timeout, new AsyncConnector.Callback() {
+			
+			@Override
+			public void connected(final SocketChannel channel) {
+				if (!promise.complete(channel)) {
+					closeQuietly(channel);
+				}
+			}
+			
+			@Override
+			public void failed(final IOException failure) {
+				promise.fail(failure);
+			}
+		});
+		final SocketChannel channel = Promise.await(promise);
+		
+		boolean connected = false;
+		try {
+			if (key.getProxy() != null) {
+				ProxyTunnel.open(channel.socket(), key.getProxy(), key.getHost(), key.getAddress(), key.getPort(),
+				                 timeout);
+			}
+			this.metrics.recordConnect(key.getHost(), System.nanoTime() - start);
+			connected = true;
+			return channel;
+		} finally {
+			if (!connected) {
+				closeQuietly(channel);
+			}
+		}
+	}
+	
+	/**
+	 * Opens a new connection for the given key without blocking and completes the promise with it. The slot for the
+	 * connection has to be reserved already; it is freed if connecting fails.
+	 *
+	 * @param key
+	 *            the key
+	 * @param promise
+	 *            the promise
+	 */
+	private void connectAsync(final PoolKey key,
+	                          final Promise<PooledSocket> promise) {
+		final long start = System.nanoTime();
+		try {
+			race(key, 0, this.connectTimeout, new AsyncConnector.Callback() {
+				
+				@Override
+				public void connected(final SocketChannel channel) {
+					if (key.getProxy() == null) {
+						SocketPool.this.metrics.recordConnect(key.getHost(), System.nanoTime() - start);
+						deliver(key, channel, promise);
+						return;
+					}
+					
+					try {
+						handshakes().execute(new Runnable() {
+							
+							@Override
+							public void run() {
+								try {
+									ProxyTunnel.open(channel.socket(), key.getProxy(), key.getHost(), key.getAddress(),
+									                 key.getPort(), SocketPool.this.connectTimeout);
+								} catch (final IOException e) {
+									closeQuietly(channel);
+									failed(e);
+									return;
+								}
+								SocketPool.this.metrics.recordConnect(key.getHost(), System.nanoTime() - start);
+								deliver(key, channel, promise);
+							}
+						});
+					} catch (final RejectedExecutionException e) {
+						closeQuietly(channel);
+						failed(new IOException(getClassName() + " has been closed")); //$NON-NLS-1$
+					}
+				}
+				
+				@Override
+				public void failed(final IOException failure) {
+					freeSlot(key);
+					promise.fail(failure);
+				}
+			});
+		} catch (final IOException e) {
+			freeSlot(key);
+			promise.fail(e);
+		}
+	}
+	
+	/**
+	 * Gets the connector, creating it on first use.
+	 *
+	 * @return the connector
+	 * @throws IOException
+	 *             if the pool has been closed or the connector cannot be created
+	 */
+	private synchronized AsyncConnector connector() throws IOException {
+		if (this.closed) {
+			throw new IOException(getClassName() + " has been closed"); //$NON-NLS-1$
+		}
+		if (this.connector == null) {
+			this.connector = new AsyncConnector(getClassName() + "-connector"); //$NON-NLS-1$
+		}
+		return this.connector;
+	}
+	
+	/**
+	 * Hands a connection to the caller of an asynchronous lease. If the caller cancelled the lease in the meantime,
+	 * the connection is returned to the pool.
+	 *
+	 * @param key
+	 *            the key
+	 * @param channel
+	 *            the channel
+	 * @param promise
+	 *            the promise
+	 */
+	private void deliver(final PoolKey key,
+	                     final SocketChannel channel,
+	                     final Promise<PooledSocket> promise) {
+		final PooledSocket socket;
+		try {
+			socket = new PooledSocket(this, key, channel);
+		} catch (final SocketException e) {
+			closeQuietly(channel);
+			freeSlot(key);
+			promise.fail(e);
+			return;
+		}
+		if (!promise.complete(socket)) {
+			release(socket);
+		}
+	}
+	
+	/**
+	 * Closes the connection of the given socket and frees its slot.
+	 *
+	 * @param socket
+	 *            the socket
+	 */
+	void discard(final PooledSocket socket) {
+		closeQuietly(socket.getConnection());
+		freeSlot(socket.getKey());
+	}
+	
+	/**
+	 * Gets the metrics leases and connects are reported to.
+	 *
+	 * @return the metrics
+	 */
+	public SocketMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Gets the resolver host names are resolved with.
+	 *
+	 * @return the resolver
+	 */
+	public Resolver getResolver() {
+		return this.resolver;
+	}
+	
+	/**
+	 * Closes all connections that have been idle for longer than the idle timeout.
+	 */
+	public void evictIdle() {
+		final List<SocketChannel> victims = new LinkedList<SocketChannel>();
+		final List<Map.Entry<PoolKey, Waiter>> freed = new LinkedList<Map.Entry<PoolKey, Waiter>>();
+		final List<Waiter> expired = new LinkedList<Waiter>();
+		final long now = System.currentTimeMillis();
+		final long deadline = now - this.idleTimeout;
+		
+		synchronized (this) {
+			final Iterator<Map.Entry<PoolKey, Group>> groupIterator = this.groups.entrySet().iterator();
+			while (groupIterator.hasNext()) {
+				final Map.Entry<PoolKey, Group> entry = groupIterator.next();
+				final Group group = entry.getValue();
+				// oldest entries are at the tail
+				while (!group.idle.isEmpty() && (group.idle.peekLast().since < deadline)) {
+					victims.add(group.idle.removeLast().channel);
+					// the slot of an evicted connection can serve a waiting caller
+					final Waiter waiter = pollWaiter(group);
+					if (waiter != null) {
+						++group.leased;
+						freed.add(new AbstractMap.SimpleEntry<PoolKey, Waiter>(entry.getKey(), waiter));
+					}
+				}
+				final Iterator<Waiter> waiterIterator = group.waiters.iterator();
+				while (waiterIterator.hasNext()) {
+					final Waiter waiter = waiterIterator.next();
+					if (waiter.deadline <= now) {
+						waiterIterator.remove();
+						expired.add(waiter);
+					}
+				}
+				if (group.idle.isEmpty() && (group.leased == 0) && group.waiters.isEmpty()) {
+					groupIterator.remove();
+				}
+			}
+			if (!victims.isEmpty()) {
+				notifyAll();
+			}
+		}
+		
+		for (final SocketChannel channel : victims) {
+			closeQuietly(channel);
+		}
+		for (final Waiter waiter : expired) {
+			waiter.promise.fail(new SocketTimeoutException("Timed out waiting for a pooled connection")); //$NON-NLS-1$
+		}
+		for (final Map.Entry<PoolKey, Waiter> entry : freed) {
+			connectAsync(entry.getKey(), entry.getValue().promise);
+		}
+	}
+	
+	/**
+	 * Frees the slot of a connection that has been closed or could not be opened. If a caller of
+	 * {@link #leaseAsync(PoolKey)} is waiting, the slot is passed on to it and a new connection is opened.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	private void freeSlot(final PoolKey key) {
+		final Waiter waiter;
+		synchronized (this) {
+			final Group group = this.groups.get(key);
+			--group.leased;
+			notifyAll();
+			waiter = this.closed
+			                    ? null
+			                    : pollWaiter(group);
+			if (waiter != null) {
+				++group.leased;
+			}
+		}
+		if (waiter != null) {
+			connectAsync(key, waiter.promise);
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the number of idle connections.
+	 *
+	 * @return the idle count
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (final Group group : this.groups.values()) {
+			count += group.idle.size();
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the idle timeout.
+	 *
+	 * @return the idle timeout in milliseconds
+	 */
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+	
+	/**
+	 * Gets the number of leased connections.
+	 *
+	 * @return the leased count
+	 */
+	public synchronized int getLeasedCount() {
+		int count = 0;
+		for (final Group group : this.groups.values()) {
+			count += group.leased;
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the maximum number of connections per key.
+	 *
+	 * @return the max per host
+	 */
+	public int getMaxPerHost() {
+		return this.maxPerHost;
+	}
+	
+	/**
+	 * Checks whether an idle connection can be reused, i.e. the remote end neither closed it nor sent unsolicited
+	 * data.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @return true, if the connection is usable
+	 */
+	private boolean isReusable(final SocketChannel channel) {
+		if (!channel.isOpen() || !channel.isConnected()) {
+			return false;
+		}
+		
+		try {
+			channel.configureBlocking(false);
+			try {
+				return channel.read(ByteBuffer.allocate(1)) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Leases a connection for the given key, reusing an idle one if possible.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the socket; closing it returns the connection to the pool
+	 * @throws IOException
+	 *             if no connection could be established or the lease timed out
+	 */
+	public PooledSocket lease(@NotNull final PoolKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final long deadline = System.currentTimeMillis() + this.leaseTimeout;
+			
+			while (true) {
+				SocketChannel candidate = null;
+				
+				synchronized (this) {
+					Group group;
+					
+					while (true) {
+						if (this.closed) {
+							throw new IOException(getClassName() + " has been closed"); //$NON-NLS-1$
+						}
+						
+						group = this.groups.get(key);
+						if (group == null) {
+							group = new Group();
+							this.groups.put(key, group);
+						}
+						
+						final Idle idle = group.idle.pollFirst();
+						if (idle != null) {
+							candidate = idle.channel;
+							break;
+						}
+						if (group.leased < this.maxPerHost) {
+							break;
+						}
+						
+						final long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							throw new SocketTimeoutException("Timed out waiting for a pooled connection to " + key); //$NON-NLS-1$
+						}
+						try {
+							wait(remaining);
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SocketTimeoutException("Interrupted while waiting for a pooled connection to " //$NON-NLS-1$
+							        + key);
+						}
+					}
+					
+					// reserve the slot before checking the idle connection or connecting outside of the monitor
+					++group.leased;
+				}
+				
+				if (candidate == null) {
+					break;
+				}
+				if (isReusable(candidate)) {
+					this.metrics.recordLease(true);
+					return new PooledSocket(this, key, candidate);
+				}
+				closeQuietly(candidate);
+				freeSlot(key);
+			}
+			
+			boolean connected = false;
+			try {
+				final PooledSocket socket = new PooledSocket(this, key, connect(key, 0, this.connectTimeout));
+				this.metrics.recordLease(false);
+				connected = true;
+				return socket;
+			} finally {
+				if (!connected) {
+					freeSlot(key);
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Leases a connection for the given key without blocking. An idle connection is handed out immediately; otherwise
+	 * a new connection is opened in the background, or, if the limit of the key is reached, the lease waits for a
+	 * connection to be released. Waiting leases time out after the lease timeout, checked whenever idle connections
+	 * are evicted.
+	 * 
+	 * Host names are resolved by the calling thread; with a {@link DnsCache} that usually does not block.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the future socket; closing it returns the connection to the pool
+	 */
+	public Future<PooledSocket> leaseAsync(@NotNull final PoolKey key) {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final Promise<PooledSocket> promise = new Promise<PooledSocket>();
+			
+			while (true) {
+				SocketChannel candidate = null;
+				
+				synchronized (this) {
+					if (this.closed) {
+						promise.fail(new IOException(getClassName() + " has been closed")); //$NON-NLS-1$
+						return promise;
+					}
+					
+					Group group = this.groups.get(key);
+					if (group == null) {
+						group = new Group();
+						this.groups.put(key, group);
+					}
+					
+					final Idle idle = group.idle.pollFirst();
+					if (idle != null) {
+						candidate = idle.channel;
+					} else if (group.leased >= this.maxPerHost) {
+						group.waiters.addLast(new Waiter(promise, System.currentTimeMillis() + this.leaseTimeout));
+						return promise;
+					}
+					
+					// reserve the slot before checking the idle connection or connecting outside of the monitor
+					++group.leased;
+				}
+				
+				if (candidate == null) {
+					this.metrics.recordLease(false);
+					connectAsync(key, promise);
+					return promise;
+				}
+				if (isReusable(candidate)) {
+					this.metrics.recordLease(true);
+					deliver(key, candidate, promise);
+					return promise;
+				}
+				closeQuietly(candidate);
+				freeSlot(key);
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the executor running the proxy handshakes of asynchronous leases, creating it on first use.
+	 *
+	 * @return the executor
+	 */
+	private synchronized ExecutorService handshakes() {
+		if (this.handshakes == null) {
+			this.handshakes = Executors.newCachedThreadPool(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, getClassName() + "-handshake"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			if (this.closed) {
+				this.handshakes.shutdown();
+			}
+		}
+		return this.handshakes;
+	}
+	
+	/**
+	 * Removes the oldest waiting caller that has not given up yet.
+	 *
+	 * @param group
+	 *            the group
+	 * @return the waiter or <code>null</code>
+	 */
+	private Waiter pollWaiter(final Group group) {
+		Waiter waiter;
+		while (((waiter = group.waiters.pollFirst()) != null) && waiter.promise.isDone()) {
+			// cancelled
+		}
+		return waiter;
+	}
+	
+	/**
+	 * Starts connecting to the proxy or the remote host of the given key, racing all of its addresses.
+	 *
+	 * @param key
+	 *            the key
+	 * @param localPort
+	 *            the local port, 0 for any
+	 * @param timeout
+	 *            the connect timeout in milliseconds, 0 for none
+	 * @param callback
+	 *            the callback
+	 * @throws IOException
+	 *             if the host cannot be resolved
+	 */
+	private void race(final PoolKey key,
+	                  final int localPort,
+	                  final int timeout,
+	                  final AsyncConnector.Callback callback) throws IOException {
+		final List<InetAddress> addresses;
+		final int port;
+		if (key.getProxy() != null) {
+			addresses = AsyncConnector.interleave(this.resolver.resolve(key.getProxy().getHost()));
+			port = key.getProxy().getPort();
+		} else {
+			addresses = key.getAddress() != null
+			                                    ? Collections.singletonList(key.getAddress())
+			                                    : AsyncConnector.interleave(this.resolver.resolve(key.getHost()));
+			port = key.getPort();
+		}
+		connector().connect(addresses, port, key.getLocalAddress(), localPort, timeout, callback);
+	}
+	
+	/**
+	 * Returns the connection of the given socket to the pool.
+	 *
+	 * @param socket
+	 *            the socket
+	 */
+	void release(final PooledSocket socket) {
+		final SocketChannel channel = socket.getConnection();
+		
+		try {
+			// do not leak the previous lease's settings into the next one
+			socket.restoreOptions();
+		} catch (final IOException e) {
+			discard(socket);
+			return;
+		}
+		
+		final Waiter waiter;
+		synchronized (this) {
+			final Group group = this.groups.get(socket.getKey());
+			--group.leased;
+			notifyAll();
+			if (this.closed) {
+				waiter = null;
+			} else {
+				waiter = pollWaiter(group);
+				if (waiter == null) {
+					group.idle.addFirst(new Idle(channel, System.currentTimeMillis()));
+					return;
+				}
+				++group.leased;
+			}
+		}
+		
+		if (waiter != null) {
+			// hand the connection straight to the oldest waiting lease
+			this.metrics.recordLease(true);
+			deliver(socket.getKey(), channel, waiter.promise);
+			return;
+		}
+		closeQuietly(channel);
+	}
+}
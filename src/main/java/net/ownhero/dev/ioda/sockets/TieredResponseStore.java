@@ -0,0 +1,557 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.ownhero.dev.kanuni.annotations.simple.NotNegative;
+import net.ownhero.dev.kanuni.annotations.simple.NotNull;
+import net.ownhero.dev.kanuni.conditions.Condition;
+
+/**
+ * A {@link ResponseStore} that keeps frequently replayed responses in memory in front of a persistent store. There are
+ * three tiers, each with its own byte budget:
+ * <ul>
+ * <li>the heap tier, an LRU of small responses backed by byte arrays,</li>
+ * <li>the off-heap tier, an LRU of larger responses backed by direct buffers,</li>
+ * <li>the disk tier, the wrapped store, which holds every response and enforces its own budget.</li>
+ * </ul>
+ * New responses are only written to disk. A response is promoted into memory once it has been read from disk
+ * {@link #PROMOTION_THRESHOLD} times. Responses evicted from the heap tier are demoted to the off-heap tier and small
+ * responses that are hit in the off-heap tier move back to the heap tier, so the hottest entries stay on the heap while
+ * the memory used by the cache never exceeds the configured budgets.
+ * 
+ * Every write and removal advances a generation. A response read from disk is only promoted if no write or removal
+ * happened while it was read, so a read racing with a write never puts the old response back into memory after the
+ * write cleared it.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class TieredResponseStore implements ResponseStore, Closeable {
+	
+	/**
+	 * A size bounded LRU of buffers.
+	 */
+	private static final class Tier {
+		
+		/** The entries in access order. */
+		private final LinkedHashMap<CacheKey, ByteBuffer> entries = new LinkedHashMap<CacheKey, ByteBuffer>(16, 0.75f,
+		                                                                                                    true);
+		
+		/** The byte budget. */
+		private final long                                budget;
+		
+		/** The largest entry accepted. */
+		private final long                                entryLimit;
+		
+		/** Whether entries are kept in direct buffers. */
+		private final boolean                             direct;
+		
+		/** The bytes in use. */
+		private long                                      used;
+		
+		/**
+		 * Instantiates a new tier.
+		 *
+		 * @param budget
+		 *            the budget
+		 * @param entryLimit
+		 *            the entry limit
+		 * @param direct
+		 *            whether to use direct buffers
+		 */
+		Tier(final long budget, final long entryLimit, final boolean direct) {
+			this.budget = budget;
+			this.entryLimit = Math.min(entryLimit, budget);
+			this.direct = direct;
+		}
+		
+		/**
+		 * Checks whether an entry of the given size is accepted.
+		 *
+		 * @param size
+		 *            the size
+		 * @return true, if successful
+		 */
+		boolean accepts(final long size) {
+			return size <= this.entryLimit;
+		}
+		
+		/**
+		 * Checks whether the tier holds an entry without marking it as recently used.
+		 *
+		 * @param key
+		 *            the key
+		 * @return true, if the entry is present
+		 */
+		boolean contains(final CacheKey key) {
+			return this.entries.containsKey(key);
+		}
+		
+		/**
+		 * Copies the remaining bytes of the source into a buffer owned by this tier.
+		 *
+		 * @param source
+		 *            the source
+		 * @return the copy
+		 */
+		ByteBuffer copy(final ByteBuffer source) {
+			final ByteBuffer copy = this.direct
+			                                   ? ByteBuffer.allocateDirect(source.remaining())
+			                                   : ByteBuffer.allocate(source.remaining());
+			copy.put(source.duplicate());
+			copy.flip();
+			return copy;
+		}
+		
+		/**
+		 * Gets the entry and marks it as recently used.
+		 *
+		 * @param key
+		 *            the key
+		 * @return the entry or <code>null</code>
+		 */
+		ByteBuffer get(final CacheKey key) {
+			return this.entries.get(key);
+		}
+		
+		/**
+		 * Adds an entry, evicting the least recently used entries until it fits into the budget.
+		 *
+		 * @param key
+		 *            the key
+		 * @param buffer
+		 *            the buffer; has to be owned by this tier
+		 * @param evicted
+		 *            receives the evicted entries
+		 */
+		void put(final CacheKey key,
+		         final ByteBuffer buffer,
+		         final Map<CacheKey, ByteBuffer> evicted) {
+			remove(key);
+			final Iterator<Entry<CacheKey, ByteBuffer>> iterator = this.entries.entrySet().iterator();
+			while (((this.used + buffer.remaining()) > this.budget) && iterator.hasNext()) {
+				final Entry<CacheKey, ByteBuffer> eldest = iterator.next();
+				iterator.remove();
+				this.used -= eldest.getValue().remaining();
+				evicted.put(eldest.getKey(), eldest.getValue());
+			}
+			this.entries.put(key, buffer);
+			this.used += buffer.remaining();
+		}
+		
+		/**
+		 * Removes the entry.
+		 *
+		 * @param key
+		 *            the key
+		 * @return the removed entry or <code>null</code>
+		 */
+		ByteBuffer remove(final CacheKey key) {
+			final ByteBuffer buffer = this.entries.remove(key);
+			if (buffer != null) {
+				this.used -= buffer.remaining();
+			}
+			return buffer;
+		}
+	}
+	
+	/** The default budget of the heap tier. */
+	public static final long             DEFAULT_HEAP_BUDGET          = 16L * 1024 * 1024;
+	
+	/** The default budget of the off-heap tier. */
+	public static final long             DEFAULT_OFF_HEAP_BUDGET      = 64L * 1024 * 1024;
+	
+	/** The largest response kept on the heap. */
+	public static final int              HEAP_ENTRY_LIMIT             = 16 * 1024;
+	
+	/** The largest response kept off-heap. */
+	public static final int              OFF_HEAP_ENTRY_LIMIT         = 1024 * 1024;
+	
+	/** The number of reads from disk after which a response is promoted into memory. */
+	public static final int              PROMOTION_THRESHOLD          = 2;
+	
+	/** The number of disk resident responses whose reads are counted. */
+	private static final int             TRACKED_FREQUENCIES          = 4096;
+	
+	/** The disk tier. */
+	private final ResponseStore          disk;
+	
+	/** The heap tier. */
+	private final Tier                   heap;
+	
+	/** The off-heap tier. */
+	private final Tier                   offHeap;
+	
+	/** The read counts of recently read, disk resident responses. */
+	private final Map<CacheKey, Integer> frequencies;
+	
+	/** The number of writes and removals so far. */
+	private long                         generation;
+	
+	/**
+	 * Instantiates a new tiered response store with the default budgets.
+	 *
+	 * @param disk
+	 *            the disk tier
+	 */
+	public TieredResponseStore(@NotNull final ResponseStore disk) {
+		this(disk, DEFAULT_HEAP_BUDGET, DEFAULT_OFF_HEAP_BUDGET);
+	}
+	
+	/**
+	 * Instantiates a new tiered response store.
+	 *
+	 * @param disk
+	 *            the disk tier
+	 * @param heapBudget
+	 *            the budget of the heap tier in bytes; 0 disables the tier
+	 * @param offHeapBudget
+	 *            the budget of the off-heap tier in bytes; 0 disables the tier
+	 */
+	public TieredResponseStore(@NotNull final ResponseStore disk, @NotNegative final long heapBudget,
+	        @NotNegative final long offHeapBudget) {
+		// PRECONDITIONS
+		Condition.notNull(disk, "Argument '%s' in '%s'.", "disk", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		Condition.check(heapBudget >= 0, "Argument '%s' in '%s' must not be negative.", "heapBudget", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		Condition.check(offHeapBudget >= 0, "Argument '%s' in '%s' must not be negative.", "offHeapBudget", //$NON-NLS-1$ //$NON-NLS-2$
+		                getClass().getSimpleName());
+		
+		try {
+			this.disk = disk;
+			this.heap = new Tier(heapBudget, HEAP_ENTRY_LIMIT, false);
+			this.offHeap = new Tier(offHeapBudget, OFF_HEAP_ENTRY_LIMIT, true);
+			this.frequencies = new LinkedHashMap<CacheKey, Integer>(16, 0.75f, true) {
+				
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected boolean removeEldestEntry(final Entry<CacheKey, Integer> eldest) {
+					return size() > TRACKED_FREQUENCIES;
+				}
+			};
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			this.heap.entries.clear();
+			this.heap.used = 0;
+			this.offHeap.entries.clear();
+			this.offHeap.used = 0;
+			this.frequencies.clear();
+		}
+		if (this.disk instanceof Closeable) {
+			((Closeable) this.disk).close();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean contains(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			synchronized (this) {
+				if (this.heap.contains(key) || this.offHeap.contains(key)) {
+					return true;
+				}
+			}
+			return this.disk.contains(key);
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public CachedResponse get(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			final long read;
+			synchronized (this) {
+				ByteBuffer buffer = this.heap.get(key);
+				if (buffer != null) {
+					return new BufferResponse(buffer.duplicate());
+				}
+				
+				buffer = this.offHeap.get(key);
+				if (buffer != null) {
+					if (this.heap.accepts(buffer.remaining())) {
+						// hit again after it has been demoted, move it back
+						this.offHeap.remove(key);
+						buffer = this.heap.copy(buffer);
+						store(key, buffer);
+					}
+					return new BufferResponse(buffer.duplicate());
+				}
+				read = this.generation;
+			}
+			
+			final CachedResponse response = this.disk.get(key);
+			if ((response == null) || !promote(key, response.getSize())) {
+				return response;
+			}
+			
+			final ByteBuffer buffer;
+			try {
+				buffer = load(response);
+			} finally {
+				response.close();
+			}
+			synchronized (this) {
+				// a concurrent write may have replaced what we read; it is still a valid answer, but not to keep
+				if (this.generation == read) {
+					store(key, buffer);
+				}
+			}
+			return new BufferResponse(buffer.duplicate());
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Gets the simple name of the class.
+	 * 
+	 * @return the simple name of the class.
+	 */
+	public final String getClassName() {
+		// PRECONDITIONS
+		
+		final StringBuilder builder = new StringBuilder();
+		
+		try {
+			final LinkedList<Class<?>> list = new LinkedList<Class<?>>();
+			Class<?> clazz = getClass();
+			list.add(clazz);
+			
+			while ((clazz = clazz.getEnclosingClass()) != null) {
+				list.addFirst(clazz);
+			}
+			
+			for (final Class<?> c : list) {
+				if (builder.length() > 0) {
+					builder.append('.');
+				}
+				
+				builder.append(c.getSimpleName());
+			}
+			
+			return builder.toString();
+		} finally {
+			// POSTCONDITIONS
+			Condition.notNull(builder,
+			                  "Local variable '%s' in '%s:%s'.", "builder", getClass().getSimpleName(), "getHandle"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+	
+	/**
+	 * Gets the disk tier.
+	 *
+	 * @return the disk tier
+	 */
+	public ResponseStore getDisk() {
+		return this.disk;
+	}
+	
+	/**
+	 * Gets the number of responses in the heap tier.
+	 *
+	 * @return the heap entry count
+	 */
+	public synchronized int getHeapEntryCount() {
+		return this.heap.entries.size();
+	}
+	
+	/**
+	 * Gets the bytes used by the heap tier.
+	 *
+	 * @return the heap size
+	 */
+	public synchronized long getHeapSize() {
+		return this.heap.used;
+	}
+	
+	/**
+	 * Gets the number of responses in the off-heap tier.
+	 *
+	 * @return the off-heap entry count
+	 */
+	public synchronized int getOffHeapEntryCount() {
+		return this.offHeap.entries.size();
+	}
+	
+	/**
+	 * Gets the bytes used by the off-heap tier.
+	 *
+	 * @return the off-heap size
+	 */
+	public synchronized long getOffHeapSize() {
+		return this.offHeap.used;
+	}
+	
+	/**
+	 * Reads a disk resident response into a buffer of the tier it belongs to.
+	 *
+	 * @param response
+	 *            the response
+	 * @return the buffer, ready to be read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private ByteBuffer load(final CachedResponse response) throws IOException {
+		final int size = (int) response.getSize();
+		final ByteBuffer buffer = this.heap.accepts(size)
+		                                                 ? ByteBuffer.allocate(size)
+		                                                 : ByteBuffer.allocateDirect(size);
+		while (buffer.hasRemaining()) {
+			if (response.read(buffer.position(), buffer) < 0) {
+				throw new EOFException("Cached response ended after " + buffer.position() + " of " + size + " bytes"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Counts a read of a disk resident response and decides whether it is promoted into memory.
+	 *
+	 * @param key
+	 *            the key
+	 * @param size
+	 *            the size of the response
+	 * @return true, if the response should be promoted
+	 */
+	private synchronized boolean promote(final CacheKey key,
+	                                     final long size) {
+		if (!this.heap.accepts(size) && !this.offHeap.accepts(size)) {
+			return false;
+		}
+		final Integer count = this.frequencies.get(key);
+		final int reads = count == null
+		                               ? 1
+		                               : count + 1;
+		if (reads < PROMOTION_THRESHOLD) {
+			this.frequencies.put(key, reads);
+			return false;
+		}
+		this.frequencies.remove(key);
+		return true;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+	 * java.nio.channels.ReadableByteChannel, long)
+	 */
+	@Override
+	public void put(final CacheKey key,
+	                final ReadableByteChannel payload,
+	                final long length) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			this.disk.put(key, payload, length);
+			synchronized (this) {
+				// the memory tiers would otherwise keep serving the old response
+				++this.generation;
+				this.heap.remove(key);
+				this.offHeap.remove(key);
+				this.frequencies.remove(key);
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+	 */
+	@Override
+	public boolean remove(final CacheKey key) throws IOException {
+		// PRECONDITIONS
+		Condition.notNull(key, "Argument '%s' in '%s'.", "key", getClass().getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		try {
+			try {
+				return this.disk.remove(key);
+			} finally {
+				synchronized (this) {
+					++this.generation;
+					this.heap.remove(key);
+					this.offHeap.remove(key);
+					this.frequencies.remove(key);
+				}
+			}
+		} finally {
+			// POSTCONDITIONS
+		}
+	}
+	
+	/**
+	 * Stores a buffer in the heap tier if it is small enough and in the off-heap tier otherwise. Entries evicted from
+	 * the heap tier are demoted to the off-heap tier. Has to be called while holding the monitor.
+	 *
+	 * @param key
+	 *            the key
+	 * @param buffer
+	 *            the buffer
+	 */
+	private void store(final CacheKey key,
+	                   final ByteBuffer buffer) {
+		final Map<CacheKey, ByteBuffer> evicted = new LinkedHashMap<CacheKey, ByteBuffer>();
+		if (this.heap.accepts(buffer.remaining()) && !buffer.isDirect()) {
+			this.heap.put(key, buffer, evicted);
+			// entries evicted from the off-heap tier are still on disk
+			final Map<CacheKey, ByteBuffer> dropped = new LinkedHashMap<CacheKey, ByteBuffer>();
+			for (final Entry<CacheKey, ByteBuffer> entry : evicted.entrySet()) {
+				if (this.offHeap.accepts(entry.getValue().remaining())) {
+					this.offHeap.put(entry.getKey(), this.offHeap.copy(entry.getValue()), dropped);
+				}
+			}
+		} else if (this.offHeap.accepts(buffer.remaining())) {
+			this.offHeap.put(key, buffer.isDirect()
+			                                       ? buffer
+			                                       : this.offHeap.copy(buffer), evicted);
+		}
+	}
+}
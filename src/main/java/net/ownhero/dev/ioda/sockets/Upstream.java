@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.net.SocketException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The upstream connection of a {@link CachingSocketImpl}. Reads and writes go straight to the {@link SocketChannel}.
+ * As long as no read timeout is requested the channel stays in blocking mode; the first timed read switches it to
+ * non-blocking mode and from then on readiness is awaited through selectors, one for each direction so a blocked
+ * reader never stalls a writer.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+final class Upstream implements Closeable {
+	
+	/** The channel. */
+	private final SocketChannel channel;
+	
+	/** The read selector, opened on the first timed read. */
+	private Selector            readSelector;
+	
+	/** The write selector, opened on the first write in non-blocking mode. */
+	private Selector            writeSelector;
+	
+	/**
+	 * Instantiates a new upstream.
+	 *
+	 * @param channel
+	 *            the connected channel
+	 */
+	Upstream(final SocketChannel channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Gets the channel.
+	 *
+	 * @return the channel
+	 */
+	SocketChannel channel() {
+		return this.channel;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.channel.close();
+		} finally {
+			synchronized (this) {
+				if (this.readSelector != null) {
+					this.readSelector.close();
+				}
+				if (this.writeSelector != null) {
+					this.writeSelector.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads from the channel.
+	 *
+	 * @param target
+	 *            the buffer to read into
+	 * @param timeout
+	 *            the read timeout in milliseconds, 0 for none
+	 * @return the number of bytes read or -1 at end of stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	int read(final ByteBuffer target,
+	         final int timeout) throws IOException {
+		final Selector selector;
+		synchronized (this) {
+			if ((timeout == 0) && this.channel.isBlocking()) {
+				selector = null;
+			} else {
+				if (this.readSelector == null) {
+					this.readSelector = Selector.open();
+					this.channel.configureBlocking(false);
+					this.channel.register(this.readSelector, SelectionKey.OP_READ);
+				}
+				selector = this.readSelector;
+			}
+		}
+		
+		if (selector == null) {
+			return this.channel.read(target);
+		}
+		
+		try {
+			while (true) {
+				final int n = this.channel.read(target);
+				if (n != 0) {
+					return n;
+				}
+				if ((selector.select(timeout) == 0) && (timeout > 0)) {
+					throw new SocketTimeoutException("Read timed out"); //$NON-NLS-1$
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (final ClosedSelectorException e) {
+			// close() ran concurrently
+			throw new SocketException("Socket closed"); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Writes all remaining bytes of the buffer.
+	 *
+	 * @param source
+	 *            the buffer
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void write(final ByteBuffer source) throws IOException {
+		while (source.hasRemaining()) {
+			if (this.channel.write(source) == 0) {
+				final Selector selector;
+				synchronized (this) {
+					if (this.writeSelector == null) {
+						this.writeSelector = Selector.open();
+						this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+					}
+					selector = this.writeSelector;
+				}
+				try {
+					selector.select();
+					selector.selectedKeys().clear();
+				} catch (final ClosedSelectorException e) {
+					// close() ran concurrently
+					throw new SocketException("Socket closed"); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the address racing of {@link AsyncConnector}. Addresses on the loopback network other than the one the
+ * {@link LoopbackServer} is bound to refuse connections.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class AsyncConnectorTest {
+	
+	/**
+	 * Creates an address.
+	 *
+	 * @param address
+	 *            the address literal
+	 * @return the address
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static InetAddress address(final String address) throws IOException {
+		return InetAddress.getByName(address);
+	}
+	
+	/** The server. */
+	private LoopbackServer server;
+	
+	/** The connector under test. */
+	private AsyncConnector connector;
+	
+	/**
+	 * Connects to the given addresses at the port of the server.
+	 *
+	 * @param addresses
+	 *            the addresses
+	 * @param localPort
+	 *            the local port, 0 for any
+	 * @return the promise of the connected channel
+	 */
+	private Promise<SocketChannel> connect(final List<InetAddress> addresses,
+	                                       final int localPort) {
+		final Promise<SocketChannel> promise = new Promise<SocketChannel>();
+		this.connector.connect(addresses, this.server.getPort(), null, localPort, 5000, new AsyncConnector.Callback() {
+			
+			@Override
+			public void connected(final SocketChannel channel) {
+				if (!promise.complete(channel)) {
+					try {
+						channel.close();
+					} catch (final IOException e) {
+						// ignore
+					}
+				}
+			}
+			
+			@Override
+			public void failed(final IOException failure) {
+				promise.fail(failure);
+			}
+		});
+		return promise;
+	}
+	
+	/**
+	 * Starts the server and the connector.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LoopbackServer(LoopbackServer.fixed(""), false);
+		this.connector = new AsyncConnector("test-connector");
+	}
+	
+	/**
+	 * Stops the connector and the server.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		this.connector.close();
+		this.server.close();
+	}
+	
+	/**
+	 * A race fails with the last failure if no address accepts the connection.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAllRefused() throws Exception {
+		final Promise<SocketChannel> promise = connect(Arrays.asList(address("127.0.0.2"), address("127.0.0.3")), 0);
+		try {
+			promise.get(5, TimeUnit.SECONDS);
+			fail("Expected the connect to fail");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof ConnectException);
+		}
+	}
+	
+	/**
+	 * Addresses are tried in order until one accepts the connection; the winner is handed out in blocking mode.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFallback() throws Exception {
+		final SocketChannel channel = connect(Arrays.asList(address("127.0.0.2"), address("127.0.0.3"),
+		                                                    this.server.getAddress()), 0).get(5, TimeUnit.SECONDS);
+		try {
+			assertTrue(channel.isConnected());
+			assertTrue(channel.isBlocking());
+			assertEquals(this.server.getAddress(), channel.socket().getInetAddress());
+			assertEquals(1, this.server.awaitConnections(1));
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Address families alternate, starting with the family of the first address.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testInterleave() throws Exception {
+		final InetAddress v4a = address("192.0.2.1");
+		final InetAddress v4b = address("192.0.2.2");
+		final InetAddress v4c = address("192.0.2.3");
+		final InetAddress v6a = address("2001:db8::1");
+		final InetAddress v6b = address("2001:db8::2");
+		
+		assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v4c),
+		             AsyncConnector.interleave(new InetAddress[] { v6a, v6b, v4a, v4b, v4c }));
+		assertEquals(Arrays.asList(v4a, v6a, v4b, v6b, v4c),
+		             AsyncConnector.interleave(new InetAddress[] { v4a, v4b, v4c, v6a, v6b }));
+	}
+	
+	/**
+	 * A race bound to a local port tries one address after the other, each bound to that port.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLocalPort() throws Exception {
+		final ServerSocket free = new ServerSocket(0);
+		final int localPort = free.getLocalPort();
+		free.close();
+		
+		final SocketChannel channel = connect(Arrays.asList(address("127.0.0.2"), this.server.getAddress()), localPort).get(5,
+		                                                                                                                   TimeUnit.SECONDS);
+		try {
+			assertEquals(localPort, channel.socket().getLocalPort());
+			assertEquals(this.server.getAddress(), channel.socket().getInetAddress());
+		} finally {
+			channel.close();
+		}
+	}
+}
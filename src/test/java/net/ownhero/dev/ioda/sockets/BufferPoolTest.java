@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BufferPool}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class BufferPoolTest {
+	
+	/**
+	 * Tests that buffers are allocated direct and with the configured size.
+	 */
+	@Test
+	public void testAcquire() {
+		final BufferPool pool = new BufferPool(16, 2);
+		final ByteBuffer buffer = pool.acquire();
+		
+		assertTrue(buffer.isDirect());
+		assertEquals(16, buffer.capacity());
+		assertEquals(0, buffer.position());
+		assertEquals(16, buffer.limit());
+	}
+	
+	/**
+	 * Tests that heap buffers and buffers of a different size are not retained.
+	 */
+	@Test
+	public void testForeignBuffers() {
+		final BufferPool pool = new BufferPool(16, 2);
+		final ByteBuffer heap = ByteBuffer.allocate(16);
+		final ByteBuffer other = ByteBuffer.allocateDirect(32);
+		
+		pool.release(heap);
+		pool.release(other);
+		
+		final ByteBuffer first = pool.acquire();
+		final ByteBuffer second = pool.acquire();
+		assertNotSame(heap, first);
+		assertNotSame(other, first);
+		assertNotSame(heap, second);
+		assertNotSame(other, second);
+		assertEquals(16, first.capacity());
+		assertEquals(16, second.capacity());
+	}
+	
+	/**
+	 * Tests that no more than the maximum number of idle buffers are retained.
+	 */
+	@Test
+	public void testMaxRetained() {
+		final BufferPool pool = new BufferPool(16, 2);
+		final ByteBuffer[] buffers = { pool.acquire(), pool.acquire(), pool.acquire() };
+		for (final ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		
+		final Set<ByteBuffer> reused = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+		for (int i = 0; i < buffers.length; ++i) {
+			final ByteBuffer buffer = pool.acquire();
+			for (final ByteBuffer released : buffers) {
+				if (released == buffer) {
+					reused.add(buffer);
+				}
+			}
+		}
+		assertEquals(2, reused.size());
+	}
+	
+	/**
+	 * Tests that a released buffer is handed out again, cleared.
+	 */
+	@Test
+	public void testReuse() {
+		final BufferPool pool = new BufferPool(16, 2);
+		final ByteBuffer buffer = pool.acquire();
+		buffer.put((byte) 1).put((byte) 2).flip();
+		pool.release(buffer);
+		
+		final ByteBuffer reused = pool.acquire();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(16, reused.limit());
+		assertNotSame(buffer, pool.acquire());
+	}
+}
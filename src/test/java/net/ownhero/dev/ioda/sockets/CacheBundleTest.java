@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests exporting and merging {@link CacheBundle}s.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CacheBundleTest {
+	
+	/** The number of entries in the source store. */
+	private static final int ENTRIES = 4;
+	
+	/**
+	 * Flips the bits of a byte in the file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param position
+	 *            the position of the byte
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void corrupt(final File file,
+	                            final long position) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			final int value = raf.read();
+			raf.seek(position);
+			raf.write(~value);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Finds the first occurrence of the pattern in a file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param pattern
+	 *            the pattern
+	 * @return the offset
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static int indexOf(final File file,
+	                           final byte[] pattern) throws IOException {
+		final byte[] data = Files.readAllBytes(file.toPath());
+		for (int i = 0; i <= (data.length - pattern.length); ++i) {
+			if (Arrays.equals(pattern, Arrays.copyOfRange(data, i, i + pattern.length))) {
+				return i;
+			}
+		}
+		throw new AssertionError("Pattern not found in " + file);
+	}
+	
+	/**
+	 * Creates the key of the given entry.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @return the key
+	 */
+	private static CacheKey key(final int entry) {
+		final byte[] bytes = ("GET /" + entry + " HTTP/1.1\r\n\r\n").getBytes();
+		return CacheKey.create("host", 80, bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Stores a response.
+	 *
+	 * @param store
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @param data
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void put(final ResponseStore store,
+	                        final CacheKey key,
+	                        final byte[] data) throws IOException {
+		store.put(key, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+	}
+	
+	/**
+	 * Reads a stored response completely.
+	 *
+	 * @param store
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @return the bytes or <code>null</code> if there is no response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final ResponseStore store,
+	                           final CacheKey key) throws IOException {
+		final CachedResponse response = store.get(key);
+		if (response == null) {
+			return null;
+		}
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) response.getSize());
+			while (buffer.hasRemaining() && (response.read(buffer.position(), buffer) >= 0)) {
+				// fill the buffer
+			}
+			assertFalse(buffer.hasRemaining());
+			return buffer.array();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder       folder = new TemporaryFolder();
+	
+	/** The responses of the entries: compressible, random and empty ones. */
+	private byte[][]             responses;
+	
+	/** The store the bundles are exported from. */
+	private SegmentResponseStore source;
+	
+	/** The store the bundles are merged into. */
+	private SegmentResponseStore target;
+	
+	/**
+	 * Asserts that the target store holds exactly the entries of the source store.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void assertMerged() throws IOException {
+		for (int i = 0; i < ENTRIES; ++i) {
+			assertArrayEquals(this.responses[i], read(this.target, key(i)));
+		}
+	}
+	
+	/**
+	 * Exports the source store.
+	 *
+	 * @param codec
+	 *            the codec
+	 * @return the bundle
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private File export(final Codec codec) throws IOException {
+		final File bundle = new File(this.folder.getRoot(), "cache.bundle");
+		assertEquals(ENTRIES, CacheBundle.export(this.source, bundle, codec));
+		assertFalse(new File(bundle.getPath() + ".tmp").exists());
+		return bundle;
+	}
+	
+	/**
+	 * Fills the source store and opens an empty target store.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		final byte[] random = new byte[50000];
+		new Random(0).nextBytes(random);
+		final byte[] text = new byte[100000];
+		for (int i = 0; i < text.length; ++i) {
+			text[i] = (byte) ('a' + (i % 7));
+		}
+		this.responses = new byte[][] { text, random, new byte[0], "HTTP/1.1 200 OK\r\n\r\n".getBytes() };
+		
+		this.source = new SegmentResponseStore(this.folder.newFolder("source"));
+		for (int i = 0; i < ENTRIES; ++i) {
+			put(this.source, key(i), this.responses[i]);
+		}
+		this.target = new SegmentResponseStore(this.folder.newFolder("target"));
+	}
+	
+	/**
+	 * Closes the stores.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		try {
+			this.source.close();
+		} finally {
+			this.target.close();
+		}
+	}
+	
+	/**
+	 * A corrupt entry is skipped, the others are merged.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCorruptEntry() throws IOException {
+		final File bundle = export(Codec.NONE);
+		corrupt(bundle, indexOf(bundle, Arrays.copyOf(this.responses[1], 64)) + 1000);
+		
+		assertEquals(ENTRIES - 1, CacheBundle.merge(bundle, this.target));
+		assertNull(read(this.target, key(1)));
+		assertArrayEquals(this.responses[0], read(this.target, key(0)));
+		assertArrayEquals(this.responses[2], read(this.target, key(2)));
+		assertArrayEquals(this.responses[3], read(this.target, key(3)));
+	}
+	
+	/**
+	 * A bundle with a corrupt index is rejected.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCorruptIndex() throws IOException {
+		final File bundle = export(Codec.DEFLATE);
+		// the last byte of the index precedes the trailer
+		corrupt(bundle, bundle.length() - 25);
+		
+		try {
+			CacheBundle.merge(bundle, this.target);
+			fail("Corrupt index merged");
+		} catch (final IOException e) {
+			// expected
+		}
+		assertNull(read(this.target, key(0)));
+	}
+	
+	/**
+	 * Entries the target store already holds are kept.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testExisting() throws IOException {
+		final File bundle = export(Codec.DEFLATE);
+		final byte[] existing = "HTTP/1.1 304 Not Modified\r\n\r\n".getBytes();
+		put(this.target, key(0), existing);
+		
+		assertEquals(ENTRIES - 1, CacheBundle.merge(bundle, this.target));
+		assertArrayEquals(existing, read(this.target, key(0)));
+		for (int i = 1; i < ENTRIES; ++i) {
+			assertArrayEquals(this.responses[i], read(this.target, key(i)));
+		}
+		assertEquals(0, CacheBundle.merge(bundle, this.target));
+	}
+	
+	/**
+	 * A file that is no bundle is rejected.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testNotABundle() throws IOException {
+		final File file = this.folder.newFile("response");
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write(this.responses[0]);
+		} finally {
+			raf.close();
+		}
+		
+		try {
+			CacheBundle.merge(file, this.target);
+			fail("File merged as a bundle");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Entries survive a round trip through a deflated bundle; incompressible ones are stored as is.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRoundTripDeflate() throws IOException {
+		final File bundle = export(Codec.DEFLATE);
+		assertEquals(ENTRIES, CacheBundle.merge(bundle, this.target));
+		assertMerged();
+	}
+	
+	/**
+	 * Entries survive a round trip through an LZMA compressed bundle.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRoundTripLzma() throws IOException {
+		final File bundle = export(Codec.LZMA);
+		assertEquals(ENTRIES, CacheBundle.merge(bundle, this.target));
+		assertMerged();
+	}
+	
+	/**
+	 * Entries survive a round trip through an uncompressed bundle.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRoundTripNone() throws IOException {
+		final File bundle = export(Codec.NONE);
+		assertEquals(ENTRIES, CacheBundle.merge(bundle, this.target));
+		assertMerged();
+	}
+	
+	/**
+	 * A truncated bundle is rejected.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testTruncated() throws IOException {
+		final File bundle = export(Codec.DEFLATE);
+		final RandomAccessFile raf = new RandomAccessFile(bundle, "rw");
+		try {
+			raf.setLength(bundle.length() - 10);
+		} finally {
+			raf.close();
+		}
+		
+		try {
+			CacheBundle.merge(bundle, this.target);
+			fail("Truncated bundle merged");
+		} catch (final IOException e) {
+			// expected
+		}
+		assertNull(read(this.target, key(0)));
+	}
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link CachingHttpClient} against a {@link LoopbackServer} serving a resource with an <code>ETag</code>.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CachingHttpClientTest {
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder        folder       = new TemporaryFolder();
+	
+	/** The version of the resource. */
+	private final AtomicInteger   version      = new AtomicInteger(1);
+	
+	/** The <code>Cache-Control</code> header of the responses. */
+	private volatile String       cacheControl = "max-age=0";
+	
+	/** The server. */
+	private LoopbackServer        server;
+	
+	/** The client. */
+	private CachingHttpClient     client;
+	
+	/**
+	 * Executes a request and reads the body.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the body
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private String execute(final HttpUriRequest request) throws IOException {
+		final HttpResponse response = this.client.execute(request);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		return EntityUtils.toString(response.getEntity());
+	}
+	
+	/**
+	 * Executes a <code>GET</code> request for the resource and reads the body.
+	 *
+	 * @return the body
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private String get() throws IOException {
+		return execute(new HttpGet(uri()));
+	}
+	
+	/**
+	 * Gets the last request received by the server.
+	 *
+	 * @return the request
+	 */
+	private String lastRequest() {
+		return this.server.getRequests().get(this.server.getRequests().size() - 1);
+	}
+	
+	/**
+	 * Starts a server answering conditional requests for the current version with <code>304 Not Modified</code>, and
+	 * creates the client.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LoopbackServer(new LoopbackServer.Handler() {
+			
+			@Override
+			public byte[] respond(final String request) {
+				final String etag = "\"v" + CachingHttpClientTest.this.version.get() + "\"";
+				final String headers = "ETag: " + etag + "\r\nCache-Control: "
+				        + CachingHttpClientTest.this.cacheControl + "\r\nConnection: close\r\n";
+				if (request.contains("\r\nIf-None-Match: " + etag + "\r\n")) {
+					return ("HTTP/1.1 304 Not Modified\r\n" + headers + "\r\n").getBytes(LoopbackServer.ASCII);
+				}
+				final String body = "body " + etag;
+				return ("HTTP/1.1 200 OK\r\n" + headers + "Content-Type: text/plain\r\nContent-Length: "
+				        + body.length() + "\r\n\r\n" + body).getBytes(LoopbackServer.ASCII);
+			}
+		}, false);
+		this.client = new CachingHttpClient(new DefaultHttpClient(),
+		                                    new DirectoryResponseStore(this.folder.newFolder("store")));
+	}
+	
+	/**
+	 * Stops the client and the server.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		this.client.getConnectionManager().shutdown();
+		this.server.close();
+	}
+	
+	/**
+	 * A changed resource replaces the stored response.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testChanged() throws IOException {
+		assertEquals("body \"v1\"", get());
+		this.version.set(2);
+		assertEquals("body \"v2\"", get());
+		assertTrue(lastRequest().contains("If-None-Match: \"v1\""));
+		assertEquals(0, this.client.getRevalidations());
+		
+		assertEquals("body \"v2\"", get());
+		assertTrue(lastRequest().contains("If-None-Match: \"v2\""));
+		assertEquals(1, this.client.getRevalidations());
+		assertEquals(3, this.server.getRequests().size());
+	}
+	
+	/**
+	 * Fresh responses are served without contacting the server.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testFresh() throws IOException {
+		this.cacheControl = "max-age=60";
+		assertEquals("body \"v1\"", get());
+		assertEquals("body \"v1\"", get());
+		assertEquals(1, this.server.getRequests().size());
+		assertEquals(1, this.client.getHits());
+		assertEquals(1, this.client.getMisses());
+	}
+	
+	/**
+	 * Unsafe requests invalidate the stored response.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testInvalidation() throws IOException {
+		this.cacheControl = "max-age=60";
+		assertEquals("body \"v1\"", get());
+		execute(new HttpPost(uri()));
+		assertEquals("body \"v1\"", get());
+		assertEquals(3, this.server.getRequests().size());
+		assertFalse(lastRequest().contains("If-None-Match"));
+	}
+	
+	/**
+	 * A stale response is revalidated and served from the store on <code>304 Not Modified</code>.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testNotModified() throws IOException {
+		assertEquals("body \"v1\"", get());
+		assertFalse(lastRequest().contains("If-None-Match"));
+		
+		assertEquals("body \"v1\"", get());
+		assertTrue(lastRequest().contains("If-None-Match: \"v1\""));
+		assertEquals(2, this.server.getRequests().size());
+		assertEquals(1, this.client.getRevalidations());
+		
+		final HttpResponse response = this.client.execute(new HttpGet(uri()));
+		assertEquals("text/plain", response.getEntity().getContentType().getValue());
+		assertEquals("\"v1\"", response.getFirstHeader("ETag").getValue());
+		EntityUtils.consume(response.getEntity());
+		assertEquals(2, this.client.getRevalidations());
+	}
+	
+	/**
+	 * Gets the URI of the resource.
+	 *
+	 * @return the URI
+	 */
+	private String uri() {
+		return "http://" + this.server.getAddress().getHostAddress() + ":" + this.server.getPort() + "/resource";
+	}
+}
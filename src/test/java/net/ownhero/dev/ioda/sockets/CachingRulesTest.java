@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CachingRules}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CachingRulesTest {
+	
+	/**
+	 * Without rules nothing is cached.
+	 */
+	@Test
+	public void testEmpty() {
+		final CachingRules rules = new CachingRules();
+		assertFalse(rules.isCached("example.com", 80));
+		assertNull(rules.match("example.com", 80));
+		assertEquals(0, rules.getTtl("example.com", 80));
+	}
+	
+	/**
+	 * The first matching rule wins.
+	 */
+	@Test
+	public void testFirstMatchWins() {
+		final CachingRules rules = new CachingRules().exclude("db.example.com").include("*.example.com", 1000)
+		                                             .include("*");
+		assertFalse(rules.isCached("db.example.com", 5432));
+		assertTrue(rules.isCached("www.example.com", 80));
+		assertEquals(1000, rules.getTtl("www.example.com", 80));
+		assertTrue(rules.isCached("example.org", 80));
+		assertEquals(0, rules.getTtl("example.org", 80));
+		assertEquals(0, rules.getTtl("db.example.com", 5432));
+	}
+	
+	/**
+	 * Invalid ports and times to live are rejected.
+	 */
+	@Test
+	public void testInvalid() {
+		for (final String spec : new String[] { "host:http", "host@soon", ":80" }) {
+			try {
+				CachingRules.parse(spec);
+				throw new AssertionError("Parsed invalid rules: " + spec);
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+	
+	/**
+	 * Patterns match host names case insensitively, with wildcards and optional ports.
+	 */
+	@Test
+	public void testMatching() {
+		final CachingRules rules = new CachingRules().include("API.example.com:8080").include("static-*.cdn.test")
+		                                             .include("[::1]");
+		assertTrue(rules.isCached("api.EXAMPLE.com", 8080));
+		assertFalse(rules.isCached("api.example.com", 80));
+		assertTrue(rules.isCached("static-1.cdn.test", 443));
+		assertTrue(rules.isCached("static-.cdn.test", 443));
+		assertFalse(rules.isCached("static-1.cdn.test.evil", 443));
+		assertFalse(rules.isCached("static-1xcdnxtest", 443));
+		assertTrue(rules.isCached("[::1]", 80));
+	}
+	
+	/**
+	 * Parses the documented syntax.
+	 */
+	@Test
+	public void testParse() {
+		final CachingRules rules = CachingRules.parse(" !db.internal:5432 , *.example.com@3600,, localhost , *@60 ");
+		assertEquals(4, rules.getRules().size());
+		assertFalse(rules.isCached("db.internal", 5432));
+		assertTrue(rules.isCached("db.internal", 80));
+		assertEquals(60000, rules.getTtl("db.internal", 80));
+		assertEquals(3600000, rules.getTtl("www.example.com", 443));
+		assertTrue(rules.isCached("localhost", 1));
+		assertEquals(0, rules.getTtl("localhost", 1));
+		assertEquals("!db.internal:5432, *.example.com@3600, localhost, *@60", rules.toString());
+		assertEquals(rules.toString(), CachingRules.parse(rules.toString()).toString());
+	}
+}
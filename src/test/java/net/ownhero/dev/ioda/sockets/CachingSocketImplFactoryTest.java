@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the system properties of {@link CachingSocketImplFactory}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CachingSocketImplFactoryTest {
+	
+	/**
+	 * Clears the properties.
+	 */
+	@After
+	public void tearDown() {
+		System.clearProperty(CachingSocketImplFactory.FLUSH_POLICY_PROPERTY);
+	}
+	
+	/**
+	 * Tests that policies are looked up by name, ignoring case and surrounding blanks.
+	 */
+	@Test
+	public void testFlushPolicy() {
+		System.setProperty(CachingSocketImplFactory.FLUSH_POLICY_PROPERTY, " explicit ");
+		assertEquals(FlushPolicy.EXPLICIT, CachingSocketImplFactory.getDefaultFlushPolicy());
+		
+		System.setProperty(CachingSocketImplFactory.FLUSH_POLICY_PROPERTY, "IMMEDIATE");
+		assertEquals(FlushPolicy.IMMEDIATE, CachingSocketImplFactory.getDefaultFlushPolicy());
+	}
+	
+	/**
+	 * Tests that {@link FlushPolicy#BEFORE_READ} is used if the property is not set.
+	 */
+	@Test
+	public void testFlushPolicyUnset() {
+		assertEquals(FlushPolicy.BEFORE_READ, CachingSocketImplFactory.getDefaultFlushPolicy());
+	}
+	
+	/**
+	 * Tests that {@link FlushPolicy#BEFORE_READ} is used if the property does not name a policy.
+	 */
+	@Test
+	public void testFlushPolicyUnknown() {
+		System.setProperty(CachingSocketImplFactory.FLUSH_POLICY_PROPERTY, "sometimes");
+		assertEquals(FlushPolicy.BEFORE_READ, CachingSocketImplFactory.getDefaultFlushPolicy());
+	}
+}
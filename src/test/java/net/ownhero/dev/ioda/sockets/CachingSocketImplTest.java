@@ -0,0 +1,600 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests recording and replaying of {@link CachingSocketImpl} against a {@link LoopbackServer}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CachingSocketImplTest {
+	
+	/** The response of the server. */
+	private static final String RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+	
+	/** A chunked response. */
+	private static final String CHUNKED  = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n";
+	
+	/** The answer of the counting server. */
+	private static final String OK       = "ok";
+	
+	/** The length of the request prefix written by {@link #writeLarge(Socket)}. */
+	private static final int    PREFIX   = 10;
+	
+	/** The number of bytes {@link #writeLarge(Socket)} leaves in the write buffer. */
+	private static final int    TAIL     = 1000;
+	
+	/** The total number of bytes written by {@link #writeLarge(Socket)}. */
+	private static final int    TOTAL    = PREFIX + CachingSocketImpl.MAX_REQUEST_SIZE + TAIL;
+	
+	/**
+	 * Waits until the given number of bytes has been received.
+	 *
+	 * @param received
+	 *            the number of bytes received so far
+	 * @param expected
+	 *            the number of bytes expected
+	 * @return the number of bytes received when the wait ended
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static int awaitReceived(final AtomicInteger received,
+	                                 final int expected) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((received.get() < expected) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		return received.get();
+	}
+	
+	/**
+	 * Writes a request too large to be cached: a short prefix followed by a write larger than the write buffer. All but
+	 * the last {@link #TAIL} bytes are sent upstream right away.
+	 *
+	 * @param socket
+	 *            the socket
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeLarge(final Socket socket) throws IOException {
+		socket.getOutputStream().write(new byte[PREFIX]);
+		socket.getOutputStream().write(new byte[CachingSocketImpl.MAX_REQUEST_SIZE + TAIL]);
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder      folder   = new TemporaryFolder();
+	
+	/** The server. */
+	private LoopbackServer      server;
+	
+	/** The raw server socket of tests that need to see the bytes as they arrive. */
+	private ServerSocket        serverSocket;
+	
+	/** The executor of the raw server socket. */
+	private ExecutorService     executor;
+	
+	
+	/**
+	 * Connects to the server socket through a factory with the flush policy selected by
+	 * {@link CachingSocketImplFactory#FLUSH_POLICY_PROPERTY}.
+	 *
+	 * @param policy
+	 *            the flush policy
+	 * @return the socket
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private Socket connect(final FlushPolicy policy) throws IOException {
+		final CachingSocketImplFactory factory;
+		System.setProperty(CachingSocketImplFactory.FLUSH_POLICY_PROPERTY, policy.name());
+		try {
+			factory = factory(CachingRules.all());
+		} finally {
+			System.clearProperty(CachingSocketImplFactory.FLUSH_POLICY_PROPERTY);
+		}
+		assertEquals(policy, factory.getFlushPolicy());
+		return new ReplayingSocketFactory(factory).createSocket(this.serverSocket.getInetAddress(),
+		                                                        this.serverSocket.getLocalPort());
+	}
+	
+	
+	/**
+	 * Sends a request over a socket of the given factory and reads the response until the connection is closed.
+	 *
+	 * @param factory
+	 *            the factory
+	 * @param request
+	 *            the request
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private String exchange(final CachingSocketImplFactory factory,
+	                        final String request) throws IOException {
+		final Socket socket = new ReplayingSocketFactory(factory).createSocket(this.server.getAddress(),
+		                                                                       this.server.getPort());
+		try {
+			socket.getOutputStream().write(request.getBytes(LoopbackServer.ASCII));
+			final InputStream in = socket.getInputStream();
+			final ByteArrayOutputStream response = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[3];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				response.write(buffer, 0, n);
+			}
+			return new String(response.toByteArray(), LoopbackServer.ASCII);
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Sends a request over a connection kept alive and reads a response of the given length.
+	 *
+	 * @param socket
+	 *            the socket
+	 * @param request
+	 *            the request
+	 * @param length
+	 *            the length of the response
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private String exchange(final Socket socket,
+	                        final String request,
+	                        final int length) throws IOException {
+		socket.getOutputStream().write(request.getBytes(LoopbackServer.ASCII));
+		return read(socket, length);
+	}
+	
+	/**
+	 * Creates a factory storing responses in a new directory.
+	 *
+	 * @param rules
+	 *            the rules
+	 * @return the factory
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private CachingSocketImplFactory factory(final CachingRules rules) throws IOException {
+		return new CachingSocketImplFactory(new DirectoryResponseStore(this.folder.newFolder()), rules);
+	}
+	
+	/**
+	 * Reads a response of the given length.
+	 *
+	 * @param socket
+	 *            the socket
+	 * @param length
+	 *            the length of the response
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private String read(final Socket socket,
+	                    final int length) throws IOException {
+		final InputStream in = socket.getInputStream();
+		final byte[] response = new byte[length];
+		int read = 0;
+		while (read < length) {
+			final int n = in.read(response, read, length - read);
+			if (n < 0) {
+				throw new EOFException("Connection closed within the response");
+			}
+			read += n;
+		}
+		return new String(response, LoopbackServer.ASCII);
+	}
+	
+	/**
+	 * Accepts a single connection, counts the bytes received on it and answers {@link #OK} once the given number of
+	 * bytes has arrived.
+	 *
+	 * @param received
+	 *            the number of bytes received so far
+	 * @param expected
+	 *            the number of bytes expected
+	 * @return the future of the connection
+	 */
+	private Future<Void> receive(final AtomicInteger received,
+	                             final int expected) {
+		return this.executor.submit(new Callable<Void>() {
+			
+			@Override
+			public Void call() throws IOException {
+				final Socket socket = CachingSocketImplTest.this.serverSocket.accept();
+				try {
+					final InputStream in = socket.getInputStream();
+					final byte[] buffer = new byte[8192];
+					int n;
+					while ((received.get() < expected) && ((n = in.read(buffer)) >= 0)) {
+						received.addAndGet(n);
+					}
+					socket.getOutputStream().write(OK.getBytes(LoopbackServer.ASCII));
+					// wait for the client to close the connection
+					in.read();
+				} finally {
+					socket.close();
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Starts the servers.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LoopbackServer(LoopbackServer.fixed(RESPONSE), false);
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.executor = Executors.newCachedThreadPool();
+	}
+	
+	/**
+	 * Stops the servers.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		this.executor.shutdownNow();
+		this.serverSocket.close();
+		this.server.close();
+	}
+	
+	/**
+	 * Concurrent identical requests are sent to the server once.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCoalescing() throws Exception {
+		this.server.close();
+		this.server = new LoopbackServer(new LoopbackServer.Handler() {
+			
+			@Override
+			public byte[] respond(final String request) throws Exception {
+				// give the other requests time to arrive
+				Thread.sleep(300);
+				return RESPONSE.getBytes(LoopbackServer.ASCII);
+			}
+		}, false);
+		
+		final CachingSocketImplFactory factory = factory(CachingRules.all());
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<String>> responses = new ArrayList<Future<String>>();
+		final ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			for (int i = 0; i < 5; ++i) {
+				responses.add(executor.submit(new Callable<String>() {
+					
+					@Override
+					public String call() throws Exception {
+						start.await();
+						return exchange(factory, "GET / HTTP/1.1\r\n\r\n");
+					}
+				}));
+			}
+			start.countDown();
+			for (final Future<String> response : responses) {
+				assertEquals(RESPONSE, response.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, this.server.getConnections());
+	}
+	
+	/**
+	 * Different requests are recorded separately.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testDifferentRequests() throws IOException {
+		final CachingSocketImplFactory factory = factory(CachingRules.all());
+		assertEquals(RESPONSE, exchange(factory, "GET /a HTTP/1.1\r\n\r\n"));
+		assertEquals(RESPONSE, exchange(factory, "GET /b HTTP/1.1\r\n\r\n"));
+		assertEquals(RESPONSE, exchange(factory, "GET /a HTTP/1.1\r\n\r\n"));
+		assertEquals(2, this.server.getConnections());
+	}
+	
+	/**
+	 * Connections the rules exclude are passed through.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testExcluded() throws IOException {
+		final CachingSocketImplFactory factory = factory(new CachingRules().exclude(this.server.getAddress()
+		                                                                                       .getHostAddress()));
+		assertEquals(RESPONSE, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(RESPONSE, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(2, this.server.getConnections());
+	}
+	
+	
+	/**
+	 * With {@link FlushPolicy#BEFORE_READ} pending writes are sent once the client reads.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFlushBeforeRead() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final Future<Void> connection = receive(received, TOTAL);
+		final Socket socket = connect(FlushPolicy.BEFORE_READ);
+		try {
+			writeLarge(socket);
+			assertEquals(TOTAL - TAIL, awaitReceived(received, TOTAL - TAIL));
+			Thread.sleep(200);
+			assertEquals(TOTAL - TAIL, received.get());
+			
+			assertEquals(OK, read(socket, OK.length()));
+			assertEquals(TOTAL, received.get());
+		} finally {
+			socket.close();
+		}
+		connection.get();
+	}
+	
+	/**
+	 * With {@link FlushPolicy#EXPLICIT} pending writes are sent on flush only.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFlushExplicit() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final Future<Void> connection = receive(received, TOTAL);
+		final Socket socket = connect(FlushPolicy.EXPLICIT);
+		try {
+			writeLarge(socket);
+			assertEquals(TOTAL - TAIL, awaitReceived(received, TOTAL - TAIL));
+			Thread.sleep(200);
+			assertEquals(TOTAL - TAIL, received.get());
+			
+			socket.getOutputStream().flush();
+			assertEquals(TOTAL, awaitReceived(received, TOTAL));
+			assertEquals(OK, read(socket, OK.length()));
+		} finally {
+			socket.close();
+		}
+		connection.get();
+	}
+	
+	/**
+	 * With {@link FlushPolicy#IMMEDIATE} every write is sent right away.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFlushImmediate() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final Future<Void> connection = receive(received, TOTAL);
+		final Socket socket = connect(FlushPolicy.IMMEDIATE);
+		try {
+			writeLarge(socket);
+			assertEquals(TOTAL, awaitReceived(received, TOTAL));
+			assertEquals(OK, read(socket, OK.length()));
+		} finally {
+			socket.close();
+		}
+		connection.get();
+	}
+	
+	/**
+	 * Responses delimited by closing the connection are not stored unless they have been read to the end.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testIncompleteResponse() throws IOException {
+		final String unframed = "HTTP/1.0 200 OK\r\n\r\nhello";
+		this.server.close();
+		this.server = new LoopbackServer(LoopbackServer.fixed(unframed), false);
+		
+		final CachingSocketImplFactory factory = factory(CachingRules.all());
+		final Socket socket = new ReplayingSocketFactory(factory).createSocket(this.server.getAddress(),
+		                                                                       this.server.getPort());
+		try {
+			socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(LoopbackServer.ASCII));
+			assertEquals('H', socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+		
+		assertEquals(unframed, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(unframed, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(2, this.server.getConnections());
+	}
+	
+	/**
+	 * Exchanges on a connection kept alive are recorded and replayed one by one, without waiting for the server to
+	 * close the connection.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testKeepAlive() throws IOException {
+		this.server.close();
+		this.server = new LoopbackServer(new LoopbackServer.Handler() {
+			
+			@Override
+			public byte[] respond(final String request) {
+				return (request.startsWith("GET /chunked ")
+				                                           ? CHUNKED
+				                                           : RESPONSE).getBytes(LoopbackServer.ASCII);
+			}
+		}, true);
+		
+		final ReplayingSocketFactory factory = new ReplayingSocketFactory(factory(CachingRules.all()));
+		Socket socket = factory.createSocket(this.server.getAddress(), this.server.getPort());
+		try {
+			assertEquals(RESPONSE, exchange(socket, "GET /a HTTP/1.1\r\n\r\n", RESPONSE.length()));
+			assertEquals(CHUNKED, exchange(socket, "GET /chunked HTTP/1.1\r\n\r\n", CHUNKED.length()));
+			// replayed, then the next miss goes over the same upstream connection
+			assertEquals(RESPONSE, exchange(socket, "GET /a HTTP/1.1\r\n\r\n", RESPONSE.length()));
+			assertEquals(RESPONSE, exchange(socket, "GET /b HTTP/1.1\r\n\r\n", RESPONSE.length()));
+		} finally {
+			socket.close();
+		}
+		assertEquals(1, this.server.getConnections());
+		assertEquals(3, this.server.getRequests().size());
+		
+		this.server.close();
+		socket = factory.createSocket(this.server.getAddress(), this.server.getPort());
+		try {
+			assertEquals(CHUNKED, exchange(socket, "GET /chunked HTTP/1.1\r\n\r\n", CHUNKED.length()));
+			assertEquals(RESPONSE, exchange(socket, "GET /b HTTP/1.1\r\n\r\n", RESPONSE.length()));
+			assertEquals(RESPONSE, exchange(socket, "GET /a HTTP/1.1\r\n\r\n", RESPONSE.length()));
+		} finally {
+			socket.close();
+		}
+		assertEquals(1, this.server.getConnections());
+	}
+	
+	
+	/**
+	 * Small reads are served from the read-ahead buffer, which is refilled across a response larger than the buffer.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReadAhead() throws Exception {
+		final byte[] payload = new byte[3 * BufferPool.DEFAULT_BUFFER_SIZE + 17];
+		for (int i = 0; i < payload.length; ++i) {
+			payload[i] = (byte) (i % 251);
+		}
+		final Future<Void> connection = this.executor.submit(new Callable<Void>() {
+			
+			@Override
+			public Void call() throws IOException {
+				final Socket socket = CachingSocketImplTest.this.serverSocket.accept();
+				try {
+					final InputStream in = socket.getInputStream();
+					final byte[] buffer = new byte[8192];
+					int received = 0;
+					int n;
+					while ((received < TOTAL) && ((n = in.read(buffer)) >= 0)) {
+						received += n;
+					}
+					socket.getOutputStream().write(payload);
+				} finally {
+					socket.close();
+				}
+				return null;
+			}
+		});
+		
+		// a request too large to be cached makes the connection pass through
+		final Socket socket = connect(FlushPolicy.BEFORE_READ);
+		try {
+			writeLarge(socket);
+			final InputStream in = socket.getInputStream();
+			final ByteArrayOutputStream response = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[7];
+			int b;
+			// alternate single bytes with small arrays
+			while ((b = in.read()) >= 0) {
+				response.write(b);
+				final int n = in.read(buffer);
+				if (n < 0) {
+					break;
+				}
+				response.write(buffer, 0, n);
+			}
+			assertArrayEquals(payload, response.toByteArray());
+		} finally {
+			socket.close();
+		}
+		connection.get();
+	}
+	
+	/**
+	 * A recorded response is replayed without connecting to the server.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRecordAndReplay() throws IOException {
+		final CachingSocketImplFactory factory = factory(CachingRules.all());
+		assertEquals(RESPONSE, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(1, this.server.getConnections());
+		assertEquals("GET / HTTP/1.1\r\n\r\n", this.server.getRequests().get(0));
+		
+		this.server.close();
+		assertEquals(RESPONSE, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(1, this.server.getConnections());
+	}
+	
+	/**
+	 * Responses cut short by the server closing the connection are not stored.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testTruncatedResponse() throws IOException {
+		final String truncated = "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello";
+		this.server.close();
+		this.server = new LoopbackServer(LoopbackServer.fixed(truncated), false);
+		
+		final CachingSocketImplFactory factory = factory(CachingRules.all());
+		assertEquals(truncated, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(truncated, exchange(factory, "GET / HTTP/1.1\r\n\r\n"));
+		assertEquals(2, this.server.getConnections());
+	}
+}
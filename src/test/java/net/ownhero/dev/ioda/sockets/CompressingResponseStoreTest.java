@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link CompressingResponseStore} on top of a {@link DirectoryResponseStore}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class CompressingResponseStoreTest {
+	
+	/**
+	 * Creates a compressible text of about the given length.
+	 *
+	 * @param length
+	 *            the minimum length
+	 * @return the text
+	 */
+	private static byte[] text(final int length) {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < length; ++i) {
+			text.append("line ").append(i).append(" of a compressible response\n");
+		}
+		return text.toString().getBytes();
+	}
+	
+	/**
+	 * Creates the key of the given request to <code>host:80</code>.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the key
+	 */
+	private static CacheKey key(final String request) {
+		final byte[] bytes = request.getBytes();
+		return CacheKey.create("host", 80, bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Reads a response completely and closes it.
+	 *
+	 * @param response
+	 *            the response
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final CachedResponse response) throws IOException {
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) response.getSize());
+			while (buffer.hasRemaining() && (response.read(buffer.position(), buffer) >= 0)) {
+				// fill the buffer
+			}
+			assertFalse(buffer.hasRemaining());
+			return buffer.array();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder           folder = new TemporaryFolder();
+	
+	/** The store the entries are kept in. */
+	private ResponseStore            disk;
+	
+	/** The store. */
+	private CompressingResponseStore store;
+	
+	/**
+	 * Gets the codec an entry has been stored with and checks the decoded length in its header.
+	 *
+	 * @param key
+	 *            the key
+	 * @param length
+	 *            the decoded length
+	 * @return the codec
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private Codec codec(final CacheKey key,
+	                    final int length) throws IOException {
+		final ByteBuffer header = ByteBuffer.wrap(read(this.disk.get(key)));
+		assertEquals(CompressingResponseStore.MAGIC, header.getInt(0));
+		assertEquals(length, header.getLong(5));
+		return Codec.forId(header.get(4));
+	}
+	
+	/**
+	 * Stores a response with the default codec.
+	 *
+	 * @param key
+	 *            the key
+	 * @param data
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void put(final CacheKey key,
+	                 final byte[] data) throws IOException {
+		this.store.put(key, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+	}
+	
+	/**
+	 * Creates the stores.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.disk = new DirectoryResponseStore(this.folder.newFolder("disk"));
+		this.store = new CompressingResponseStore(this.disk);
+	}
+	
+	/**
+	 * Payloads that are compressed already are stored as is.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCompressedPayload() throws IOException {
+		final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		final GZIPOutputStream out = new GZIPOutputStream(gzip);
+		out.write(text(8192));
+		out.close();
+		put(key("gzip"), gzip.toByteArray());
+		assertEquals(Codec.NONE, codec(key("gzip"), gzip.size()));
+		assertArrayEquals(gzip.toByteArray(), read(this.store.get(key("gzip"))));
+		
+		final ByteArrayOutputStream http = new ByteArrayOutputStream();
+		http.write("HTTP/1.1 200 OK\r\nContent-Encoding: br\r\n\r\n".getBytes());
+		http.write(text(8192));
+		put(key("http"), http.toByteArray());
+		assertEquals(Codec.NONE, codec(key("http"), http.size()));
+		assertArrayEquals(http.toByteArray(), read(this.store.get(key("http"))));
+		
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write("HTTP/1.1 200 OK\r\nContent-Length: ".getBytes());
+		body.write(String.valueOf(gzip.size()).getBytes());
+		body.write("\r\n\r\n".getBytes());
+		body.write(gzip.toByteArray());
+		put(key("body"), body.toByteArray());
+		assertEquals(Codec.NONE, codec(key("body"), body.size()));
+	}
+	
+	/**
+	 * Entries without a header are returned unchanged.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testLegacyEntry() throws IOException {
+		final byte[] data = text(1000);
+		this.disk.put(key("legacy"), Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+		assertTrue(this.store.contains(key("legacy")));
+		assertArrayEquals(data, read(this.store.get(key("legacy"))));
+	}
+	
+	/**
+	 * Entries can be rewritten with another codec.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRecompress() throws IOException {
+		final byte[] data = text(50000);
+		put(key("a"), data);
+		assertEquals(Codec.DEFLATE, codec(key("a"), data.length));
+		
+		assertTrue(this.store.recompress(key("a"), Codec.LZMA));
+		assertEquals(Codec.LZMA, codec(key("a"), data.length));
+		assertArrayEquals(data, read(this.store.get(key("a"))));
+		assertFalse(this.store.recompress(key("missing"), Codec.LZMA));
+	}
+	
+	/**
+	 * Responses are restored by every codec, also when read from an offset.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final byte[] data = text(100000);
+		for (final Codec codec : Codec.values()) {
+			final CacheKey key = key(codec.name());
+			this.store.put(key, Channels.newChannel(new ByteArrayInputStream(data)), data.length, codec);
+			assertEquals(codec, codec(key, data.length));
+			if (codec != Codec.NONE) {
+				assertTrue(read(this.disk.get(key)).length < (data.length / 2));
+			}
+			assertArrayEquals(data, read(this.store.get(key)));
+			
+			final CachedResponse response = this.store.get(key);
+			try {
+				assertEquals(data.length, response.getSize());
+				final ByteBuffer buffer = ByteBuffer.allocate(100);
+				while (buffer.hasRemaining() && (response.read(50000 + buffer.position(), buffer) >= 0)) {
+					// fill the buffer
+				}
+				assertArrayEquals(Arrays.copyOfRange(data, 50000, 50100), buffer.array());
+			} finally {
+				response.close();
+			}
+		}
+	}
+	
+	/**
+	 * Small payloads are not compressed.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testSmallPayload() throws IOException {
+		final byte[] data = "HTTP/1.1 204 No Content\r\n\r\n".getBytes();
+		put(key("small"), data);
+		assertEquals(Codec.NONE, codec(key("small"), data.length));
+		assertArrayEquals(data, read(this.store.get(key("small"))));
+	}
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link DeduplicatingResponseStore} on top of a {@link CompressingResponseStore}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class DeduplicatingResponseStoreTest {
+	
+	/**
+	 * A compressing store that records the entries written to it and counts the entries read.
+	 */
+	private static final class RecordingStore extends CompressingResponseStore {
+		
+		/** The keys of the written entries. */
+		private final List<CacheKey> keys   = new ArrayList<CacheKey>();
+		
+		/** The codecs the entries have been written with. */
+		private final List<Codec>    codecs = new ArrayList<Codec>();
+		
+		/** The number of entries read. */
+		private int                  gets;
+		
+		/**
+		 * Instantiates a new recording store.
+		 *
+		 * @param delegate
+		 *            the store the encoded entries are kept in
+		 */
+		RecordingStore(final ResponseStore delegate) {
+			super(delegate);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.CompressingResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+		 */
+		@Override
+		public CachedResponse get(final CacheKey key) throws IOException {
+			++this.gets;
+			return super.get(key);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.CompressingResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+		 * java.nio.channels.ReadableByteChannel, long, net.ownhero.dev.ioda.sockets.Codec)
+		 */
+		@Override
+		public void put(final CacheKey key,
+		                final ReadableByteChannel payload,
+		                final long length,
+		                final Codec codec) throws IOException {
+			this.keys.add(key);
+			this.codecs.add(codec);
+			super.put(key, payload, length, codec);
+		}
+		
+		/**
+		 * Forgets the recorded entries.
+		 */
+		void reset() {
+			this.keys.clear();
+			this.codecs.clear();
+			this.gets = 0;
+		}
+	}
+	
+	/**
+	 * Creates an HTTP response with the given header and body.
+	 *
+	 * @param header
+	 *            the value of the <code>Date</code> header
+	 * @param body
+	 *            the body
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] http(final String header,
+	                           final byte[] body) throws IOException {
+		final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		response.write(("HTTP/1.1 200 OK\r\nDate: " + header + "\r\nContent-Length: " + body.length + "\r\n\r\n")
+		        .getBytes());
+		response.write(body);
+		return response.toByteArray();
+	}
+	
+	/**
+	 * Creates the key of the given request to <code>host:80</code>.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the key
+	 */
+	private static CacheKey key(final String request) {
+		final byte[] bytes = request.getBytes();
+		return CacheKey.create("host", 80, bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Reads a response completely and closes it.
+	 *
+	 * @param response
+	 *            the response
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final CachedResponse response) throws IOException {
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) response.getSize());
+			while (buffer.hasRemaining() && (response.read(buffer.position(), buffer) >= 0)) {
+				// fill the buffer
+			}
+			assertFalse(buffer.hasRemaining());
+			return buffer.array();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Creates a text of random words, which compresses but does not repeat.
+	 *
+	 * @param length
+	 *            the length
+	 * @return the text
+	 */
+	private static byte[] text(final int length) {
+		final Random random = new Random(length);
+		final byte[] text = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			text[i] = (byte) (random.nextInt(8) == 0
+			                                        ? ' '
+			                                        : 'a' + random.nextInt(26));
+		}
+		return text;
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder             folder = new TemporaryFolder();
+	
+	/** The store the chunks are kept in. */
+	private RecordingStore             chunks;
+	
+	/** The store. */
+	private DeduplicatingResponseStore store;
+	
+	/**
+	 * Stores a response.
+	 *
+	 * @param key
+	 *            the key
+	 * @param data
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void put(final CacheKey key,
+	                 final byte[] data) throws IOException {
+		this.store.put(key, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+	}
+	
+	/**
+	 * Creates the stores.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.chunks = new RecordingStore(new DirectoryResponseStore(this.folder.newFolder("chunks")));
+		this.store = new DeduplicatingResponseStore(this.chunks);
+	}
+	
+	/**
+	 * The codec is chosen once per response: chunks of a compressed response are stored as is, the chunks of other
+	 * responses with the default codec and manifests always as is.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCodecPerResponse() throws IOException {
+		final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		final GZIPOutputStream out = new GZIPOutputStream(gzip);
+		final byte[] noise = new byte[100000];
+		new Random(0).nextBytes(noise);
+		out.write(noise);
+		out.close();
+		final byte[] compressed = gzip.toByteArray();
+		put(key("gzip"), compressed);
+		assertTrue(this.chunks.codecs.size() > 3);
+		for (final Codec codec : this.chunks.codecs) {
+			assertEquals(Codec.NONE, codec);
+		}
+		assertArrayEquals(compressed, read(this.store.get(key("gzip"))));
+		
+		this.chunks.reset();
+		put(key("text"), http("today", text(100000)));
+		final int last = this.chunks.codecs.size() - 1;
+		assertTrue(last > 3);
+		for (int i = 0; i < last; ++i) {
+			assertEquals(Codec.DEFLATE, this.chunks.codecs.get(i));
+		}
+		assertEquals(key("text"), this.chunks.keys.get(last));
+		assertEquals(Codec.NONE, this.chunks.codecs.get(last));
+	}
+	
+	/**
+	 * A missing chunk drops the entry.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testMissingChunk() throws IOException {
+		put(key("a"), text(50000));
+		assertTrue(this.chunks.remove(this.chunks.keys.get(1)));
+		assertNull(this.store.get(key("a")));
+		assertFalse(this.store.contains(key("a")));
+	}
+	
+	/**
+	 * Responses are reassembled from their chunks.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		for (final int length : new int[] { 0, 100, 2 * DeduplicatingResponseStore.MIN_CHUNK,
+		        DeduplicatingResponseStore.MAX_CHUNK + 1, 300000 }) {
+			final byte[] data = text(length);
+			put(key("r" + length), data);
+			assertTrue(this.store.contains(key("r" + length)));
+			assertArrayEquals(data, read(this.store.get(key("r" + length))));
+		}
+		
+		assertTrue(this.store.remove(key("r300000")));
+		assertFalse(this.store.contains(key("r300000")));
+		assertNull(this.store.get(key("r300000")));
+		assertArrayEquals(text(100), read(this.store.get(key("r100"))));
+	}
+	
+	/**
+	 * Responses differing only in their headers share the chunks of the body, and chunks that are present already are
+	 * neither read nor written again.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testSharedChunks() throws IOException {
+		final byte[] body = text(200000);
+		put(key("a"), http("yesterday", body));
+		final long stored = this.store.getStoredBytes();
+		assertEquals(0, this.store.getSharedBytes());
+		
+		this.chunks.reset();
+		put(key("b"), http("today", body));
+		assertTrue(this.store.getSharedBytes() > 150000);
+		assertTrue((this.store.getStoredBytes() - stored) < 50000);
+		assertEquals(0, this.chunks.gets);
+		assertArrayEquals(http("today", body), read(this.store.get(key("b"))));
+		assertArrayEquals(http("yesterday", body), read(this.store.get(key("a"))));
+		
+		this.chunks.reset();
+		put(key("c"), http("today", body));
+		assertEquals(1, this.chunks.keys.size());
+		assertEquals(key("c"), this.chunks.keys.get(0));
+		assertEquals(0, this.chunks.gets);
+	}
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the TTLs, the refresh ahead of expiry and invalidation of {@link DnsCache} in front of a stub resolver.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class DnsCacheTest {
+	
+	/**
+	 * A resolver answering with configurable addresses and counting its lookups.
+	 */
+	private static final class StubResolver implements Resolver {
+		
+		/** The addresses, <code>null</code> to fail lookups. */
+		private volatile InetAddress[] addresses;
+		
+		/** The number of lookups. */
+		private final AtomicInteger    lookups = new AtomicInteger();
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.Resolver#resolve(java.lang.String)
+		 */
+		@Override
+		public InetAddress[] resolve(final String host) throws UnknownHostException {
+			this.lookups.incrementAndGet();
+			final InetAddress[] result = this.addresses;
+			if (result == null) {
+				throw new UnknownHostException(host);
+			}
+			return result;
+		}
+	}
+	
+	/** The host name used throughout. */
+	private static final String HOST     = "example.org";
+	
+	/** The first address. */
+	private static final byte[] FIRST    = { 10, 0, 0, 1 };
+	
+	/** The second address. */
+	private static final byte[] SECOND   = { 10, 0, 0, 2 };
+	
+	/**
+	 * Creates an address.
+	 *
+	 * @param address
+	 *            the raw address
+	 * @return the addresses
+	 * @throws UnknownHostException
+	 *             never
+	 */
+	private static InetAddress[] addresses(final byte[] address) throws UnknownHostException {
+		return new InetAddress[] { InetAddress.getByAddress(HOST, address) };
+	}
+	
+	/** The resolver. */
+	private final StubResolver  resolver = new StubResolver();
+	
+	/** The cache under test. */
+	private DnsCache            cache;
+	
+	/**
+	 * Resolves {@link #HOST} and expects the lookup to fail.
+	 */
+	private void assertUnknown() {
+		try {
+			this.cache.resolve(HOST);
+			fail("Expected the lookup to fail");
+		} catch (final UnknownHostException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Waits up to five seconds for the resolver to have been asked the given number of times.
+	 *
+	 * @param count
+	 *            the number of lookups
+	 * @throws InterruptedException
+	 *             if the thread has been interrupted
+	 */
+	private void awaitLookups(final int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((this.resolver.lookups.get() < count) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, this.resolver.lookups.get());
+	}
+	
+	/**
+	 * Stops the cache.
+	 */
+	@After
+	public void tearDown() {
+		if (this.cache != null) {
+			this.cache.close();
+		}
+	}
+	
+	/**
+	 * Dropping an entry makes the next lookup go to the resolver, regardless of the case of the host name.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testInvalidate() throws Exception {
+		this.resolver.addresses = addresses(FIRST);
+		this.cache = new DnsCache(this.resolver);
+		
+		this.cache.resolve(HOST);
+		assertEquals(1, this.cache.getSize());
+		this.cache.invalidate("Example.ORG");
+		assertEquals(0, this.cache.getSize());
+		
+		this.resolver.addresses = addresses(SECOND);
+		assertArrayEquals(SECOND, this.cache.resolve(HOST)[0].getAddress());
+		assertEquals(2, this.resolver.lookups.get());
+		assertEquals(2, this.cache.getMisses());
+	}
+	
+	/**
+	 * Failed lookups are cached for the negative TTL, and not at all if it is 0.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testNegativeTtl() throws Exception {
+		this.cache = new DnsCache(this.resolver, 60000L, 300L);
+		assertUnknown();
+		assertUnknown();
+		assertEquals(1, this.resolver.lookups.get());
+		assertEquals(1, this.cache.getHits());
+		
+		Thread.sleep(400);
+		this.resolver.addresses = addresses(FIRST);
+		assertArrayEquals(FIRST, this.cache.resolve(HOST)[0].getAddress());
+		assertEquals(2, this.resolver.lookups.get());
+		
+		this.cache.close();
+		this.resolver.addresses = null;
+		this.cache = new DnsCache(this.resolver, 60000L, 0L);
+		assertUnknown();
+		assertUnknown();
+		assertEquals(4, this.resolver.lookups.get());
+		assertEquals(0, this.cache.getSize());
+	}
+	
+	/**
+	 * Successful lookups are answered from the cache until the positive TTL elapsed.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPositiveTtl() throws Exception {
+		this.resolver.addresses = addresses(FIRST);
+		this.cache = new DnsCache(this.resolver, 300L, 100L);
+		
+		assertArrayEquals(FIRST, this.cache.resolve(HOST)[0].getAddress());
+		this.resolver.addresses = addresses(SECOND);
+		assertArrayEquals(FIRST, this.cache.resolve("EXAMPLE.org")[0].getAddress());
+		assertEquals(1, this.resolver.lookups.get());
+		assertEquals(1, this.cache.getHits());
+		assertEquals(1, this.cache.getMisses());
+		
+		Thread.sleep(400);
+		assertArrayEquals(SECOND, this.cache.resolve(HOST)[0].getAddress());
+		assertEquals(2, this.resolver.lookups.get());
+		assertEquals(2, this.cache.getMisses());
+	}
+	
+	/**
+	 * An entry used during the last quarter of its lifetime is refreshed in the background: the caller gets the cached
+	 * addresses right away and later callers the refreshed ones, without ever missing.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRefreshAhead() throws Exception {
+		this.resolver.addresses = addresses(FIRST);
+		this.cache = new DnsCache(this.resolver, 1000L, 100L);
+		final long resolved = System.currentTimeMillis();
+		this.cache.resolve(HOST);
+		
+		this.resolver.addresses = addresses(SECOND);
+		Thread.sleep(800);
+		assertArrayEquals(FIRST, this.cache.resolve(HOST)[0].getAddress());
+		awaitLookups(2);
+		assertArrayEquals(SECOND, this.cache.resolve(HOST)[0].getAddress());
+		
+		// the refreshed entry outlives the original one
+		Thread.sleep(Math.max(0, (resolved + 1100) - System.currentTimeMillis()));
+		assertArrayEquals(SECOND, this.cache.resolve(HOST)[0].getAddress());
+		assertEquals(2, this.resolver.lookups.get());
+		assertEquals(1, this.cache.getMisses());
+	}
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link ExpiringResponseStore}, alone and as the top of the default store of {@link CachingSocketImplFactory}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class ExpiringResponseStoreTest {
+	
+	/**
+	 * Creates the key of the given request to <code>host:80</code>.
+	 *
+	 * @param host
+	 *            the host
+	 * @param request
+	 *            the request
+	 * @return the key
+	 */
+	private static CacheKey key(final String host,
+	                            final String request) {
+		final byte[] bytes = request.getBytes();
+		return CacheKey.create(host, 80, bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Reads a response completely and closes it.
+	 *
+	 * @param response
+	 *            the response
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final CachedResponse response) throws IOException {
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) response.getSize());
+			while (buffer.hasRemaining() && (response.read(buffer.position(), buffer) >= 0)) {
+				// fill the buffer
+			}
+			assertFalse(buffer.hasRemaining());
+			return buffer.array();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder         folder = new TemporaryFolder();
+	
+	/** The disk store. */
+	private SegmentResponseStore   disk;
+	
+	/** The rules. */
+	private CachingRules           rules;
+	
+	/** The store under test. */
+	private ExpiringResponseStore  store;
+	
+	/**
+	 * Puts the given bytes into a store.
+	 *
+	 * @param target
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @param data
+	 *            the data
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void put(final ResponseStore target,
+	                 final CacheKey key,
+	                 final byte[] data) throws IOException {
+		target.put(key, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+	}
+	
+	/**
+	 * Sets up a store keeping entries for <code>short.test</code> for 50 milliseconds and all others forever.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.disk = new SegmentResponseStore(this.folder.newFolder("disk"), 1 << 20, 1 << 24);
+		this.rules = new CachingRules().include("short.test", 50).include("*");
+		this.store = new ExpiringResponseStore(this.disk, this.rules);
+	}
+	
+	/**
+	 * Tear down.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		this.store.close();
+	}
+	
+	/**
+	 * A response that has been compressed already passes the whole default store without being deflated again, since
+	 * the expiry stamp does not hide its headers from the {@link CompressingResponseStore}.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCompressedResponseIsStoredAsIsByDefaultStore() throws IOException {
+		final Random random = new Random(0);
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; ++i) {
+			text.append(random.nextInt()).append(' ');
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(text.toString().getBytes());
+		gzip.close();
+		final byte[] body = bytes.toByteArray();
+		
+		bytes.reset();
+		bytes.write(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes());
+		bytes.write(body);
+		final byte[] response = bytes.toByteArray();
+		assertTrue(response.length < (2 * DeduplicatingResponseStore.MIN_CHUNK));
+		
+		final CachingSocketImplFactory factory = new CachingSocketImplFactory(this.folder.newFolder("default"),
+		                                                                      CachingRules.all());
+		final ExpiringResponseStore expiring = (ExpiringResponseStore) factory.getStore();
+		try {
+			final TieredResponseStore tiered = (TieredResponseStore) expiring.getDelegate();
+			final DeduplicatingResponseStore deduplicating = (DeduplicatingResponseStore) tiered.getDisk();
+			final CompressingResponseStore compressing = (CompressingResponseStore) deduplicating.getDelegate();
+			final CacheKey key = key("example.com", "GET /gzip");
+			put(expiring, key, response);
+			
+			final ByteBuffer header = ByteBuffer.wrap(read(compressing.getDelegate().get(key)),
+			                                          0, CompressingResponseStore.HEADER);
+			assertEquals(CompressingResponseStore.MAGIC, header.getInt(0));
+			assertEquals(Codec.NONE.getId(), header.get(4));
+			assertEquals(response.length + ExpiringResponseStore.TRAILER, header.getLong(5));
+			assertArrayEquals(response, read(expiring.get(key)));
+		} finally {
+			expiring.close();
+		}
+	}
+	
+	/**
+	 * Entries of endpoints with a time to live are dropped once they are older.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testExpiredEntryIsRemoved() throws Exception {
+		final CacheKey key = key("short.test", "GET /");
+		put(this.store, key, "fresh".getBytes());
+		assertArrayEquals("fresh".getBytes(), read(this.store.get(key)));
+		assertTrue(this.store.contains(key));
+		
+		Thread.sleep(100);
+		assertFalse(this.store.contains(key));
+		assertNull(this.store.get(key));
+		assertFalse(this.disk.contains(key));
+	}
+	
+	/**
+	 * Entries written without a trailer are served unchanged when they never expire and are misses otherwise.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testLegacyEntries() throws IOException {
+		final CacheKey forever = key("forever.test", "GET /");
+		final CacheKey expiring = key("short.test", "GET /");
+		put(this.disk, forever, "legacy".getBytes());
+		put(this.disk, expiring, "legacy".getBytes());
+		
+		assertArrayEquals("legacy".getBytes(), read(this.store.get(forever)));
+		assertNull(this.store.get(expiring));
+	}
+	
+	/**
+	 * The payload is returned without the trailer, also when read in one large buffer.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final CacheKey key = key("forever.test", "GET /");
+		put(this.store, key, "payload".getBytes());
+		
+		final CachedResponse response = this.store.get(key);
+		assertNotNull(response);
+		assertEquals(7, response.getSize());
+		final ByteBuffer large = ByteBuffer.allocate(64);
+		assertEquals(7, response.read(0, large));
+		assertEquals(-1, response.read(7, large));
+		response.close();
+		assertArrayEquals("payload".getBytes(), read(this.store.get(key)));
+		
+		assertTrue(this.store.remove(key));
+		assertNull(this.store.get(key));
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Histogram}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class HistogramTest {
+	
+	/**
+	 * Tests that a copy is independent of the original.
+	 */
+	@Test
+	public void testCopy() {
+		final Histogram histogram = new Histogram();
+		histogram.record(10);
+		final Histogram copy = histogram.copy();
+		histogram.record(1000);
+		
+		assertEquals(1, copy.getCount());
+		assertEquals(10, copy.getMax());
+		assertEquals(2, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+	}
+	
+	/**
+	 * Tests an empty histogram.
+	 */
+	@Test
+	public void testEmpty() {
+		final Histogram histogram = new Histogram();
+		
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(99));
+	}
+	
+	/**
+	 * Tests that negative values are recorded as zero.
+	 */
+	@Test
+	public void testNegative() {
+		final Histogram histogram = new Histogram();
+		histogram.record(-5);
+		
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(100));
+	}
+	
+	/**
+	 * Tests that percentiles report the upper bound of their power-of-two bucket, capped by the maximum.
+	 */
+	@Test
+	public void testPercentiles() {
+		final Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100; ++i) {
+			histogram.record(i);
+		}
+		
+		assertEquals(100, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5, histogram.getMean(), 1e-9);
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+		assertEquals(100, histogram.getPercentile(100));
+	}
+	
+	/**
+	 * Tests that reset clears all values.
+	 */
+	@Test
+	public void testReset() {
+		final Histogram histogram = new Histogram();
+		histogram.record(42);
+		histogram.reset();
+		
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.ownhero.dev.ioda.ProxyConfig;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the ordering, ejection and recovery of the proxies of a {@link LatencyProxySelector}. The proxies are
+ * {@link LoopbackServer}s answering the probes.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class LatencyProxySelectorTest {
+	
+	/** The answer to a probe. */
+	private static final String        RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+	
+	/** The servers standing in for the proxies. */
+	private final List<LoopbackServer> servers  = new ArrayList<LoopbackServer>();
+	
+	/** The selector under test. */
+	private LatencyProxySelector       selector;
+	
+	/**
+	 * Waits up to five seconds for the proxy to become healthy or ejected.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @param healthy
+	 *            whether to wait for the proxy to be healthy
+	 * @throws InterruptedException
+	 *             if the thread has been interrupted
+	 */
+	private void awaitHealthy(final ProxyConfig proxy,
+	                          final boolean healthy) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((this.selector.isHealthy(proxy) != healthy) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertEquals(healthy, this.selector.isHealthy(proxy));
+	}
+	
+	/**
+	 * Waits up to five seconds for every proxy to have been probed successfully.
+	 *
+	 * @param proxies
+	 *            the proxies
+	 * @throws InterruptedException
+	 *             if the thread has been interrupted
+	 */
+	private void awaitProbed(final ProxyConfig... proxies) throws InterruptedException {
+		for (final ProxyConfig proxy : proxies) {
+			final long deadline = System.currentTimeMillis() + 5000;
+			while ((this.selector.getLatency(proxy) == 0) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			assertTrue(this.selector.getLatency(proxy) > 0);
+		}
+	}
+	
+	/**
+	 * Starts a server answering probes and returns a proxy configuration pointing to it.
+	 *
+	 * @param handler
+	 *            the handler
+	 * @return the proxy
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private ProxyConfig proxy(final LoopbackServer.Handler handler) throws IOException {
+		final LoopbackServer server = new LoopbackServer(handler, false);
+		this.servers.add(server);
+		return new ProxyConfig(server.getAddress().getHostAddress(), server.getPort(), false);
+	}
+	
+	/**
+	 * Stops the selector and the servers.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		if (this.selector != null) {
+			this.selector.close();
+		}
+		for (final LoopbackServer server : this.servers) {
+			server.close();
+		}
+	}
+	
+	/**
+	 * Proxies failing too often are tried last, healthy ones first, and ejected ones by their number of failures.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFailover() throws Exception {
+		final ProxyConfig a = proxy(LoopbackServer.fixed(RESPONSE));
+		final ProxyConfig b = proxy(LoopbackServer.fixed(RESPONSE));
+		this.selector = new LatencyProxySelector(Arrays.asList(a, b), TimeUnit.HOURS.toMillis(1), 1000);
+		awaitProbed(a, b);
+		this.selector.recordConnect(b, TimeUnit.SECONDS.toNanos(1));
+		assertEquals(Arrays.asList(a, b), this.selector.route());
+		
+		// reported by a client of the selector, e.g. java.net.Socket
+		final InetSocketAddress address = InetSocketAddress.createUnresolved(a.getHost(), a.getPort());
+		for (int i = 0; i < LatencyProxySelector.FAILURE_THRESHOLD; ++i) {
+			assertTrue(this.selector.isHealthy(a));
+			this.selector.connectFailed(new URI("http://example.org/"), address, new ConnectException());
+		}
+		assertFalse(this.selector.isHealthy(a));
+		assertEquals(Arrays.asList(b, a), this.selector.route());
+		
+		// with every proxy ejected, the one that failed least comes first
+		for (int i = 0; i <= LatencyProxySelector.FAILURE_THRESHOLD; ++i) {
+			this.selector.recordFailure(b);
+		}
+		assertEquals(Arrays.asList(a, b), this.selector.route());
+		assertEquals(2, this.selector.select(new URI("http://example.org/")).size());
+	}
+	
+	/**
+	 * Proxies are ordered by their measured latencies; plain sockets are only routed through SOCKS proxies.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testOrdering() throws Exception {
+		final ProxyConfig a = proxy(LoopbackServer.fixed(RESPONSE));
+		final ProxyConfig b = proxy(LoopbackServer.fixed(RESPONSE));
+		final ProxyConfig c = proxy(LoopbackServer.fixed(RESPONSE));
+		this.selector = new LatencyProxySelector(Arrays.asList(a, b, c), TimeUnit.HOURS.toMillis(1), 1000);
+		awaitProbed(a, b, c);
+		
+		this.selector.recordConnect(a, TimeUnit.SECONDS.toNanos(3));
+		this.selector.recordConnect(b, TimeUnit.SECONDS.toNanos(1));
+		this.selector.recordTransfer(c, TimeUnit.SECONDS.toNanos(2));
+		assertEquals(Arrays.asList(b, c, a), this.selector.route());
+		
+		final List<Proxy> selected = this.selector.select(new URI("http://example.org/"));
+		assertEquals(3, selected.size());
+		assertEquals(Proxy.Type.HTTP, selected.get(0).type());
+		assertEquals(b.getPort(), ((InetSocketAddress) selected.get(0).address()).getPort());
+		assertEquals(Arrays.asList(Proxy.NO_PROXY), this.selector.select(new URI("socket://example.org:80")));
+	}
+	
+	/**
+	 * A proxy failing its probes is ejected and selected again once a probe succeeds.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		final boolean[] failing = { true };
+		final ProxyConfig a = proxy(new LoopbackServer.Handler() {
+			
+			@Override
+			public byte[] respond(final String request) {
+				// closing without an answer fails the probe
+				synchronized (failing) {
+					return failing[0]
+					                 ? new byte[0]
+					                 : RESPONSE.getBytes(LoopbackServer.ASCII);
+				}
+			}
+		});
+		this.selector = new LatencyProxySelector(Arrays.asList(a), 50, 1000);
+		awaitHealthy(a, false);
+		
+		synchronized (failing) {
+			failing[0] = false;
+		}
+		awaitHealthy(a, true);
+		assertTrue(this.selector.getLatency(a) > 0);
+	}
+}
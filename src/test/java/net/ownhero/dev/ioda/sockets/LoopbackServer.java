@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ownhero.dev.kisa.Logger;
+
+/**
+ * A server on the loopback interface answering requests with the responses of a {@link Handler}. A request is
+ * everything up to the first empty line. The server closes the connection after every response unless it keeps
+ * connections alive and the request does not ask for <code>Connection: close</code>.
+ * 
+ * Shared by the tests and the benchmarks of the socket layer, which get it through the test jar.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class LoopbackServer implements Closeable {
+	
+	/**
+	 * Answers requests.
+	 */
+	public interface Handler {
+		
+		/**
+		 * Answers a request.
+		 *
+		 * @param request
+		 *            the request including the terminating empty line
+		 * @return the response
+		 * @throws Exception
+		 *             if the request cannot be answered; the connection is closed
+		 */
+		byte[] respond(String request) throws Exception;
+	}
+	
+	/** The charset of requests and responses. */
+	public static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	/**
+	 * Creates a handler answering every request with the given response.
+	 *
+	 * @param response
+	 *            the response
+	 * @return the handler
+	 */
+	public static Handler fixed(final String response) {
+		return new Handler() {
+			
+			@Override
+			public byte[] respond(final String request) {
+				return response.getBytes(ASCII);
+			}
+		};
+	}
+	
+	/**
+	 * Checks whether a request asks the server to close the connection after the response.
+	 *
+	 * @param request
+	 *            the request
+	 * @return true, if the request has a <code>Connection: close</code> header
+	 */
+	private static boolean isClose(final String request) {
+		return request.toLowerCase(Locale.ENGLISH).contains("\nconnection: close\r");
+	}
+	
+	/**
+	 * Reads a request.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the request or <code>null</code> if the connection was closed before a request
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readRequest(final InputStream in) throws IOException {
+		final ByteArrayOutputStream request = new ByteArrayOutputStream();
+		int newlines = 0;
+		while (newlines < 2) {
+			final int b = in.read();
+			if (b < 0) {
+				if (request.size() == 0) {
+					return null;
+				}
+				throw new EOFException("Connection closed within a request");
+			}
+			request.write(b);
+			if (b == '\n') {
+				++newlines;
+			} else if (b != '\r') {
+				newlines = 0;
+			}
+		}
+		return new String(request.toByteArray(), ASCII);
+	}
+	
+	/** The server socket. */
+	private final ServerSocket    server;
+	
+	/** Runs the acceptor and the connections. */
+	private final ExecutorService executor;
+	
+	/** The handler. */
+	private final Handler         handler;
+	
+	/** Whether connections stay open after a response. */
+	private final boolean         keepAlive;
+	
+	/** The number of accepted connections. */
+	private final AtomicInteger   connections = new AtomicInteger();
+	
+	/** The received requests, <code>null</code> if they are not recorded. */
+	private final List<String>    requests;
+	
+	/**
+	 * Instantiates a new server on an ephemeral port that records the requests it receives.
+	 *
+	 * @param handler
+	 *            the handler
+	 * @param keepAlive
+	 *            whether connections stay open after a response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public LoopbackServer(final Handler handler, final boolean keepAlive) throws IOException {
+		this(handler, keepAlive, true);
+	}
+	
+	/**
+	 * Instantiates a new server on an ephemeral port.
+	 *
+	 * @param handler
+	 *            the handler
+	 * @param keepAlive
+	 *            whether connections stay open after a response
+	 * @param record
+	 *            whether the requests are recorded for {@link #getRequests()}; long running servers should not
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public LoopbackServer(final Handler handler, final boolean keepAlive, final boolean record) throws IOException {
+		this.server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+		this.handler = handler;
+		this.keepAlive = keepAlive;
+		this.requests = record
+		                      ? new CopyOnWriteArrayList<String>()
+		                      : null;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "loopback-server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+	
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	private void accept() {
+		try {
+			while (true) {
+				final Socket socket = this.server.accept();
+				this.connections.incrementAndGet();
+				socket.setTcpNoDelay(true);
+				try {
+					this.executor.execute(new Runnable() {
+						
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					});
+				} catch (final RejectedExecutionException e) {
+					// closed while accepting
+					socket.close();
+					return;
+				}
+			}
+		} catch (final IOException e) {
+			// closed
+		}
+	}
+	
+	/**
+	 * Waits up to five seconds for the given number of connections to be accepted, since clients may be connected
+	 * before the server accepted them.
+	 *
+	 * @param count
+	 *            the number of connections
+	 * @return the number of accepted connections
+	 * @throws InterruptedException
+	 *             if the thread has been interrupted
+	 */
+	public int awaitConnections(final int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while ((this.connections.get() < count) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		return this.connections.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.server.close();
+		this.executor.shutdownNow();
+	}
+	
+	/**
+	 * Gets the address.
+	 *
+	 * @return the address
+	 */
+	public InetAddress getAddress() {
+		return this.server.getInetAddress();
+	}
+	
+	/**
+	 * Gets the number of accepted connections.
+	 *
+	 * @return the number of accepted connections
+	 */
+	public int getConnections() {
+		return this.connections.get();
+	}
+	
+	/**
+	 * Gets the port.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+	
+	/**
+	 * Gets the received requests.
+	 *
+	 * @return the received requests
+	 */
+	public List<String> getRequests() {
+		if (this.requests == null) {
+			throw new IllegalStateException("Requests are not recorded");
+		}
+		return this.requests;
+	}
+	
+	/**
+	 * Serves the requests of a connection.
+	 *
+	 * @param socket
+	 *            the socket
+	 */
+	private void serve(final Socket socket) {
+		try {
+			// the stream is owned by this connection, so reading ahead cannot take bytes from anybody else
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+			final OutputStream out = socket.getOutputStream();
+			String request;
+			do {
+				request = readRequest(in);
+				if (request == null) {
+					return;
+				}
+				if (this.requests != null) {
+					this.requests.add(request);
+				}
+				out.write(this.handler.respond(request));
+				out.flush();
+			} while (this.keepAlive && !isClose(request));
+		} catch (final SocketException e) {
+			// reset by the client
+		} catch (final Exception e) {
+			if (Logger.logWarn()) {
+				Logger.warn("Loopback server failed to answer: " + e.getMessage());
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
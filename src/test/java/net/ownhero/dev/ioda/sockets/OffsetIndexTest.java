@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link OffsetIndex}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class OffsetIndexTest {
+	
+	/**
+	 * Creates an id from its halves.
+	 *
+	 * @param high
+	 *            the high half
+	 * @param low
+	 *            the low half
+	 * @return the id
+	 */
+	private static byte[] id(final long high,
+	                         final long low) {
+		return ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/** The directory of the index. */
+	private File           directory;
+	
+	/** The ids of the tests. */
+	private byte[][]       ids;
+	
+	/**
+	 * Lists the index files in the directory.
+	 *
+	 * @return the names of the files, sorted
+	 */
+	private String[] indexFiles() {
+		final String[] names = this.directory.list();
+		Arrays.sort(names);
+		return names;
+	}
+	
+	/**
+	 * Creates the directory and random ids.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.directory = this.folder.newFolder("index");
+		final Random random = new Random(42);
+		this.ids = new byte[2000][];
+		for (int i = 0; i < this.ids.length; ++i) {
+			this.ids[i] = id(random.nextLong(), random.nextLong());
+		}
+	}
+	
+	/**
+	 * Removing an entry from the middle of a probe sequence keeps the following entries reachable.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCollisions() throws IOException {
+		final OffsetIndex index = OffsetIndex.create(this.directory);
+		// same high half, same home slot
+		final byte[][] colliding = new byte[5][];
+		for (int i = 0; i < colliding.length; ++i) {
+			colliding[i] = id(7L, i);
+			index.put(colliding[i], 100 + i);
+		}
+		
+		assertEquals(102, index.remove(colliding[2]));
+		assertEquals(100, index.remove(colliding[0]));
+		assertEquals(OffsetIndex.NONE, index.get(colliding[0]));
+		assertEquals(OffsetIndex.NONE, index.get(colliding[2]));
+		assertEquals(101, index.get(colliding[1]));
+		assertEquals(103, index.get(colliding[3]));
+		assertEquals(104, index.get(colliding[4]));
+		assertEquals(3, index.size());
+	}
+	
+	/**
+	 * After a crash that happened between a resize and the next checkpoint, the capacity of the checkpoint no longer
+	 * has a file; opening fails, so the store rebuilds the index instead of reading a stale table.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCrashAfterResize() throws IOException {
+		final OffsetIndex index = OffsetIndex.create(this.directory);
+		index.put(this.ids[0], 1);
+		index.force();
+		final int checkpointed = index.capacity();
+		
+		for (int i = 1; i < this.ids.length; ++i) {
+			index.put(this.ids[i], i + 1);
+		}
+		assertTrue(index.capacity() > checkpointed);
+		
+		try {
+			OffsetIndex.open(this.directory, checkpointed, 1);
+			fail("Opened the index with the capacity before the resize");
+		} catch (final IOException e) {
+			// expected
+		}
+		
+		// the table written after the resize is complete, even without knowing its size
+		final OffsetIndex reopened = OffsetIndex.open(this.directory, index.capacity(), -1);
+		assertEquals(this.ids.length, reopened.size());
+		for (int i = 0; i < this.ids.length; ++i) {
+			assertEquals(i + 1, reopened.get(this.ids[i]));
+		}
+	}
+	
+	/**
+	 * Entries are stored, replaced only if they have the expected location and removed.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testPutGetRemove() throws IOException {
+		final OffsetIndex index = OffsetIndex.create(this.directory);
+		assertEquals(OffsetIndex.NONE, index.put(this.ids[0], 10));
+		assertEquals(10, index.put(this.ids[0], 11));
+		assertEquals(11, index.get(this.ids[0]));
+		assertEquals(OffsetIndex.NONE, index.get(this.ids[1]));
+		assertEquals(1, index.size());
+		
+		assertFalse(index.replace(this.ids[0], 10, 12));
+		assertFalse(index.replace(this.ids[1], OffsetIndex.NONE, 12));
+		assertTrue(index.replace(this.ids[0], 11, 12));
+		assertEquals(12, index.get(this.ids[0]));
+		
+		assertEquals(12, index.remove(this.ids[0]));
+		assertEquals(OffsetIndex.NONE, index.remove(this.ids[0]));
+		assertEquals(0, index.size());
+	}
+	
+	/**
+	 * A reopened index has the entries that have been written, and the index files of other capacities are deleted.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testReopen() throws IOException {
+		final OffsetIndex index = OffsetIndex.create(this.directory);
+		for (int i = 0; i < 100; ++i) {
+			index.put(this.ids[i], i + 1);
+		}
+		index.remove(this.ids[0]);
+		index.force();
+		
+		// left behind by a resize that crashed before deleting the old file
+		final File stale = new File(this.directory, OffsetIndex.PREFIX + (2 * index.capacity()) + OffsetIndex.SUFFIX);
+		assertTrue(stale.createNewFile());
+		
+		final OffsetIndex reopened = OffsetIndex.open(this.directory, index.capacity(), index.size());
+		assertEquals(99, reopened.size());
+		assertEquals(OffsetIndex.NONE, reopened.get(this.ids[0]));
+		for (int i = 1; i < 100; ++i) {
+			assertEquals(i + 1, reopened.get(this.ids[i]));
+		}
+		assertEquals(Arrays.asList(OffsetIndex.PREFIX + index.capacity() + OffsetIndex.SUFFIX),
+		             Arrays.asList(indexFiles()));
+	}
+	
+	/**
+	 * The table grows into a new file, keeping all entries, and the old file is deleted.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testResize() throws IOException {
+		final OffsetIndex index = OffsetIndex.create(this.directory);
+		final int initial = index.capacity();
+		for (int i = 0; i < this.ids.length; ++i) {
+			index.put(this.ids[i], i + 1);
+		}
+		
+		assertEquals(this.ids.length, index.size());
+		assertTrue(index.capacity() >= (this.ids.length / 0.7));
+		assertTrue(index.capacity() > initial);
+		for (int i = 0; i < this.ids.length; ++i) {
+			assertEquals(i + 1, index.get(this.ids[i]));
+		}
+		assertEquals(Arrays.asList(OffsetIndex.PREFIX + index.capacity() + OffsetIndex.SUFFIX),
+		             Arrays.asList(indexFiles()));
+	}
+}
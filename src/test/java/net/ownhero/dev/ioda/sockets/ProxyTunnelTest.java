@@ -0,0 +1,544 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.ownhero.dev.ioda.ProxyConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the SOCKS5 and HTTP <code>CONNECT</code> handshakes of {@link ProxyTunnel} against a scripted proxy.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class ProxyTunnelTest {
+	
+	/**
+	 * The proxy side of a handshake.
+	 */
+	private interface Script {
+		
+		/**
+		 * Plays the proxy.
+		 *
+		 * @param in
+		 *            the input stream of the proxy
+		 * @param out
+		 *            the output stream of the proxy
+		 * @return the bytes the proxy received
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		byte[] run(DataInputStream in,
+		           OutputStream out) throws IOException;
+	}
+	
+	/** The bytes the proxy sends through an established tunnel. */
+	private static final byte[] PAYLOAD = { 'h', 'i' };
+	
+	/** The successful SOCKS reply, bound to 0.0.0.0:0. */
+	private static final byte[] SOCKS_OK = { 5, 0, 0, 1, 0, 0, 0, 0, 0, 0 };
+	
+	/**
+	 * Concatenates byte arrays.
+	 *
+	 * @param parts
+	 *            the parts
+	 * @return the bytes
+	 */
+	private static byte[] bytes(final byte[]... parts) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (final byte[] part : parts) {
+			bytes.write(part, 0, part.length);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Encodes a string as it is sent in a handshake.
+	 *
+	 * @param string
+	 *            the string
+	 * @return the bytes
+	 */
+	private static byte[] bytes(final String string) {
+		return string.getBytes(LoopbackServer.ASCII);
+	}
+	
+	/**
+	 * Creates a string of the given length.
+	 *
+	 * @param length
+	 *            the length
+	 * @return the string
+	 */
+	private static String longString(final int length) {
+		final char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+	
+	/**
+	 * Reads the given number of bytes.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @param length
+	 *            the length
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final DataInputStream in,
+	                           final int length) throws IOException {
+		final byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+	
+	/**
+	 * Reads an HTTP request header.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the header
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readHeader(final DataInputStream in) throws IOException {
+		final StringBuilder header = new StringBuilder();
+		while (!header.toString().endsWith("\r\n\r\n")) {
+			header.append((char) in.readUnsignedByte());
+		}
+		return header.toString();
+	}
+	
+	/**
+	 * Reads until the client closes the connection.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] readToEnd(final DataInputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			bytes.write(b);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/** The listening socket of the proxy. */
+	private ServerSocket    server;
+	
+	/** The executor running the proxy. */
+	private ExecutorService executor;
+	
+	/** The client socket. */
+	private Socket          client;
+	
+	/** The proxy side of the last handshake. */
+	private Future<byte[]>  proxy;
+	
+	/**
+	 * Asserts that the handshake fails with a {@link ProtocolException}.
+	 *
+	 * @param config
+	 *            the proxy config
+	 * @param host
+	 *            the destination host
+	 * @param address
+	 *            the destination address, <code>null</code> to let the proxy resolve the host
+	 * @param script
+	 *            the proxy side
+	 * @return the bytes the proxy received
+	 * @throws Exception
+	 *             the exception
+	 */
+	private byte[] assertRefused(final ProxyConfig config,
+	                             final String host,
+	                             final InetAddress address,
+	                             final Script script) throws Exception {
+		try {
+			tunnel(config, host, address, script);
+			fail("Expected the handshake to fail");
+		} catch (final ProtocolException e) {
+			// expected
+		}
+		this.client.close();
+		return this.proxy.get(5, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Asserts that the tunnel is established and leads to the payload of the proxy.
+	 *
+	 * @param config
+	 *            the proxy config
+	 * @param host
+	 *            the destination host
+	 * @param address
+	 *            the destination address, <code>null</code> to let the proxy resolve the host
+	 * @param script
+	 *            the proxy side
+	 * @return the bytes the proxy received
+	 * @throws Exception
+	 *             the exception
+	 */
+	private byte[] assertTunnel(final ProxyConfig config,
+	                            final String host,
+	                            final InetAddress address,
+	                            final Script script) throws Exception {
+		tunnel(config, host, address, script);
+		final byte[] payload = new byte[PAYLOAD.length];
+		new DataInputStream(this.client.getInputStream()).readFully(payload);
+		assertArrayEquals(PAYLOAD, payload);
+		return this.proxy.get(5, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Starts the proxy.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		this.executor = Executors.newSingleThreadExecutor();
+	}
+	
+	/**
+	 * Stops the proxy.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		if (this.client != null) {
+			this.client.close();
+		}
+		this.server.close();
+		this.executor.shutdownNow();
+	}
+	
+	/**
+	 * Credentials are sent as basic proxy authorization.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHttpAuthorization() throws Exception {
+		final byte[] received = assertTunnel(new ProxyConfig("proxy", 3128, "user", "secret", false), "example.org",
+		                                     null, new Script() {
+			
+			                                     @Override
+			                                     public byte[] run(final DataInputStream in,
+			                                                       final OutputStream out) throws IOException {
+				                                     final String header = readHeader(in);
+				                                     out.write(bytes("HTTP/1.1 200 OK\r\n\r\n"));
+				                                     out.write(PAYLOAD);
+				                                     return bytes(header);
+			                                     }
+		                                     });
+		// user:secret
+		assertTrue(new String(received, LoopbackServer.ASCII).contains("Proxy-Authorization: Basic dXNlcjpzZWNyZXQ=\r\n"));
+	}
+	
+	/**
+	 * A <code>CONNECT</code> request is answered with a header the tunnel does not pass on.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHttpConnect() throws Exception {
+		final byte[] received = assertTunnel(new ProxyConfig("proxy", 3128, false), "::1", null, new Script() {
+			
+			@Override
+			public byte[] run(final DataInputStream in,
+			                  final OutputStream out) throws IOException {
+				final String header = readHeader(in);
+				out.write(bytes("HTTP/1.1 200 Connection established\r\nVia: proxy\r\n\r\n"));
+				out.write(PAYLOAD);
+				return bytes(header);
+			}
+		});
+		final String header = new String(received, LoopbackServer.ASCII);
+		assertTrue(header, header.startsWith("CONNECT [::1]:443 HTTP/1.1\r\nHost: [::1]:443\r\n"));
+		assertTrue(header, !header.contains("Proxy-Authorization"));
+	}
+	
+	/**
+	 * A status other than 2xx refuses the tunnel.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testHttpRefused() throws Exception {
+		assertRefused(new ProxyConfig("proxy", 3128, false), "example.org", null, new Script() {
+			
+			@Override
+			public byte[] run(final DataInputStream in,
+			                  final OutputStream out) throws IOException {
+				final String header = readHeader(in);
+				out.write(bytes("HTTP/1.1 407 Proxy Authentication Required\r\n\r\n"));
+				return bytes(header);
+			}
+		});
+	}
+	
+	/**
+	 * Credentials are sent if the proxy asks for them, followed by the address of a resolved destination.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksAuthentication() throws Exception {
+		final byte[] received = assertTunnel(new ProxyConfig("proxy", 1080, "user", "secret", true), "example.org",
+		                                     InetAddress.getByName("192.0.2.1"), new Script() {
+			
+			                                     @Override
+			                                     public byte[] run(final DataInputStream in,
+			                                                       final OutputStream out) throws IOException {
+				                                     final byte[] greeting = read(in, 4);
+				                                     out.write(new byte[] { 5, 2 });
+				                                     final byte[] credentials = read(in, 3 + 4 + 6);
+				                                     out.write(new byte[] { 1, 0 });
+				                                     final byte[] request = read(in, 10);
+				                                     out.write(SOCKS_OK);
+				                                     out.write(PAYLOAD);
+				                                     return bytes(greeting, credentials, request);
+			                                     }
+		                                     });
+		assertArrayEquals(bytes(new byte[] { 5, 2, 0, 2 }, new byte[] { 1, 4 }, bytes("user"), new byte[] { 6 },
+		                        bytes("secret"), new byte[] { 5, 1, 0, 1, (byte) 192, 0, 2, 1, 0, 80 }), received);
+	}
+	
+	/**
+	 * A host name that does not fit into the request is rejected before anything is sent to the proxy.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksHostTooLong() throws Exception {
+		final byte[] received = assertRefused(new ProxyConfig("proxy", 1080, true), longString(256), null,
+		                                      new Script() {
+			
+			                                      @Override
+			                                      public byte[] run(final DataInputStream in,
+			                                                        final OutputStream out) throws IOException {
+				                                      return readToEnd(in);
+			                                      }
+		                                      });
+		assertEquals(0, received.length);
+	}
+	
+	/**
+	 * A proxy that requires authentication refuses a client without credentials.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksNoAcceptableMethod() throws Exception {
+		assertRefused(new ProxyConfig("proxy", 1080, true), "example.org", null, new Script() {
+			
+			@Override
+			public byte[] run(final DataInputStream in,
+			                  final OutputStream out) throws IOException {
+				final byte[] greeting = read(in, 3);
+				out.write(new byte[] { 5, (byte) 0xff });
+				return greeting;
+			}
+		});
+	}
+	
+	/**
+	 * Without credentials, the host name is sent for the proxy to resolve; the bound address is skipped.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksNoAuthentication() throws Exception {
+		final byte[] received = assertTunnel(new ProxyConfig("proxy", 1080, true), "example.org", null, new Script() {
+			
+			@Override
+			public byte[] run(final DataInputStream in,
+			                  final OutputStream out) throws IOException {
+				final byte[] greeting = read(in, 3);
+				out.write(new byte[] { 5, 0 });
+				final byte[] request = read(in, 5 + 11 + 2);
+				// bound to a domain name
+				out.write(bytes(new byte[] { 5, 0, 0, 3, 5 }, bytes("proxy"), new byte[] { 0, 80 }));
+				out.write(PAYLOAD);
+				return bytes(greeting, request);
+			}
+		});
+		assertArrayEquals(bytes(new byte[] { 5, 1, 0 }, new byte[] { 5, 1, 0, 3, 11 }, bytes("example.org"),
+		                        new byte[] { 0, 80 }), received);
+	}
+	
+	/**
+	 * A password that does not fit into the authentication request is rejected before anything is sent to the proxy.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksPasswordTooLong() throws Exception {
+		final byte[] received = assertRefused(new ProxyConfig("proxy", 1080, "user", longString(256), true),
+		                                      "example.org", null, new Script() {
+			
+			                                      @Override
+			                                      public byte[] run(final DataInputStream in,
+			                                                        final OutputStream out) throws IOException {
+				                                      return readToEnd(in);
+			                                      }
+		                                      });
+		assertEquals(0, received.length);
+	}
+	
+	/**
+	 * A SOCKS reply other than success refuses the tunnel.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksRefused() throws Exception {
+		assertRefused(new ProxyConfig("proxy", 1080, true), "example.org", null, new Script() {
+			
+			@Override
+			public byte[] run(final DataInputStream in,
+			                  final OutputStream out) throws IOException {
+				final byte[] greeting = read(in, 3);
+				out.write(new byte[] { 5, 0 });
+				final byte[] request = read(in, 5 + 11 + 2);
+				// connection refused
+				out.write(new byte[] { 5, 5, 0, 1, 0, 0, 0, 0, 0, 0 });
+				return bytes(greeting, request);
+			}
+		});
+	}
+	
+	/**
+	 * Rejected credentials refuse the tunnel before the destination is sent.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksRejectedCredentials() throws Exception {
+		final byte[] received = assertRefused(new ProxyConfig("proxy", 1080, "user", "wrong", true), "example.org",
+		                                      null, new Script() {
+			
+			                                      @Override
+			                                      public byte[] run(final DataInputStream in,
+			                                                        final OutputStream out) throws IOException {
+				                                      final byte[] greeting = read(in, 4);
+				                                      out.write(new byte[] { 5, 2 });
+				                                      final byte[] credentials = read(in, 3 + 4 + 5);
+				                                      out.write(new byte[] { 1, 1 });
+				                                      return bytes(greeting, credentials, readToEnd(in));
+			                                      }
+		                                      });
+		assertEquals(4 + 3 + 4 + 5, received.length);
+	}
+	
+	/**
+	 * A username that does not fit into the authentication request is rejected before anything is sent to the proxy.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSocksUsernameTooLong() throws Exception {
+		final byte[] received = assertRefused(new ProxyConfig("proxy", 1080, longString(256), "secret", true),
+		                                      "example.org", null, new Script() {
+			
+			                                      @Override
+			                                      public byte[] run(final DataInputStream in,
+			                                                        final OutputStream out) throws IOException {
+				                                      return readToEnd(in);
+			                                      }
+		                                      });
+		assertEquals(0, received.length);
+	}
+	
+	/**
+	 * Connects to the proxy and performs the handshake to port 80 (SOCKS) or 443 (HTTP).
+	 *
+	 * @param config
+	 *            the proxy config
+	 * @param host
+	 *            the destination host
+	 * @param address
+	 *            the destination address, <code>null</code> to let the proxy resolve the host
+	 * @param script
+	 *            the proxy side
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void tunnel(final ProxyConfig config,
+	                    final String host,
+	                    final InetAddress address,
+	                    final Script script) throws IOException {
+		this.proxy = this.executor.submit(new Callable<byte[]>() {
+			
+			@Override
+			public byte[] call() throws Exception {
+				final Socket socket = ProxyTunnelTest.this.server.accept();
+				try {
+					return script.run(new DataInputStream(socket.getInputStream()), socket.getOutputStream());
+				} finally {
+					socket.close();
+				}
+			}
+		});
+		this.client = new Socket(this.server.getInetAddress(), this.server.getLocalPort());
+		ProxyTunnel.open(this.client, config, host, address, config.useSocks()
+		                                                                      ? 80
+		                                                                      : 443, 5000);
+	}
+}
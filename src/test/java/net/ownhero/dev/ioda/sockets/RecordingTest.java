@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Recording}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class RecordingTest {
+	
+	/**
+	 * Creates a payload of the given length.
+	 *
+	 * @param length
+	 *            the length
+	 * @param seed
+	 *            the value of the first byte
+	 * @return the payload
+	 */
+	private static byte[] payload(final int length,
+	                              final int seed) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) (seed + i);
+		}
+		return data;
+	}
+	
+	/**
+	 * Reads the recording to its end through a small buffer.
+	 *
+	 * @param recording
+	 *            the recording
+	 * @return the bytes read
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] readFully(final Recording recording) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ByteBuffer target = ByteBuffer.allocate(5);
+		while (recording.read(target) >= 0) {
+			target.flip();
+			out.write(target.array(), 0, target.limit());
+			target.clear();
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Tests that append leaves the position of the source untouched.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testAppendKeepsPosition() throws IOException {
+		final Recording recording = new Recording(new BufferPool(16, 1));
+		try {
+			final ByteBuffer source = ByteBuffer.wrap(payload(12, 0));
+			source.position(4);
+			recording.append(source);
+			
+			assertEquals(4, source.position());
+			assertEquals(12, source.limit());
+			assertEquals(8, recording.size());
+			
+			final byte[] expected = new byte[8];
+			System.arraycopy(payload(12, 0), 4, expected, 0, 8);
+			assertArrayEquals(expected, readFully(recording));
+		} finally {
+			recording.close();
+		}
+	}
+	
+	/**
+	 * Tests that closing returns the memory buffer to the pool.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testClose() throws IOException {
+		final BufferPool pool = new BufferPool(16, 1);
+		final ByteBuffer buffer = pool.acquire();
+		pool.release(buffer);
+		
+		final Recording recording = new Recording(pool);
+		recording.append(ByteBuffer.wrap(payload(40, 0)));
+		recording.close();
+		recording.close();
+		
+		assertFalse(recording.isOpen());
+		assertSame(buffer, pool.acquire());
+	}
+	
+	/**
+	 * Tests a recording that fits into memory.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testInMemory() throws IOException {
+		final Recording recording = new Recording(new BufferPool(16, 1));
+		try {
+			recording.append(ByteBuffer.wrap(payload(10, 0)));
+			recording.append(ByteBuffer.wrap(payload(6, 10)));
+			
+			assertEquals(16, recording.size());
+			assertArrayEquals(payload(16, 0), readFully(recording));
+			assertEquals(-1, recording.read(ByteBuffer.allocate(1)));
+		} finally {
+			recording.close();
+		}
+	}
+	
+	/**
+	 * Tests a recording that outgrows its memory buffer and spills to a file.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testSpill() throws IOException {
+		final Recording recording = new Recording(new BufferPool(16, 1));
+		try {
+			recording.append(ByteBuffer.wrap(payload(10, 0)));
+			recording.append(ByteBuffer.wrap(payload(20, 10)));
+			recording.append(ByteBuffer.wrap(payload(3, 30)));
+			
+			assertEquals(33, recording.size());
+			assertArrayEquals(payload(33, 0), readFully(recording));
+			assertEquals(-1, recording.read(ByteBuffer.allocate(1)));
+		} finally {
+			recording.close();
+		}
+	}
+}
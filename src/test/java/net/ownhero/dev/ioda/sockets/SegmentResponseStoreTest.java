@@ -0,0 +1,476 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link SegmentResponseStore}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class SegmentResponseStoreTest {
+	
+	/** The segment size of the tests. */
+	private static final int SEGMENT_SIZE = 4096;
+	
+	/**
+	 * Copies the files of a store directory while the store is open, which leaves the copy in the state of a crash.
+	 *
+	 * @param source
+	 *            the source directory
+	 * @param target
+	 *            the target directory
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void copy(final File source,
+	                         final File target) throws IOException {
+		for (final File file : source.listFiles()) {
+			Files.copy(file.toPath(), new File(target, file.getName()).toPath());
+		}
+	}
+	
+	/**
+	 * Finds the first occurrence of the pattern in a file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param pattern
+	 *            the pattern
+	 * @return the offset
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static int indexOf(final File file,
+	                           final byte[] pattern) throws IOException {
+		final byte[] data = Files.readAllBytes(file.toPath());
+		for (int i = 0; i <= (data.length - pattern.length); ++i) {
+			if (Arrays.equals(pattern, Arrays.copyOfRange(data, i, i + pattern.length))) {
+				return i;
+			}
+		}
+		throw new AssertionError("Pattern not found in " + file);
+	}
+	
+	/**
+	 * Creates the key of the given request to <code>host:80</code>.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the key
+	 */
+	private static CacheKey key(final String request) {
+		final byte[] bytes = request.getBytes();
+		return CacheKey.create("host", 80, bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Creates a payload of the given length.
+	 *
+	 * @param length
+	 *            the length
+	 * @param value
+	 *            the value of all bytes
+	 * @return the payload
+	 */
+	private static byte[] payload(final int length,
+	                              final int value) {
+		final byte[] payload = new byte[length];
+		Arrays.fill(payload, (byte) value);
+		return payload;
+	}
+	
+	/**
+	 * Stores a response.
+	 *
+	 * @param store
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @param data
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void put(final ResponseStore store,
+	                        final CacheKey key,
+	                        final byte[] data) throws IOException {
+		store.put(key, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+	}
+	
+	/**
+	 * Reads a stored response completely.
+	 *
+	 * @param store
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @return the bytes or <code>null</code> if there is no response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final ResponseStore store,
+	                           final CacheKey key) throws IOException {
+		final CachedResponse response = store.get(key);
+		if (response == null) {
+			return null;
+		}
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) response.getSize());
+			while (buffer.hasRemaining() && (response.read(buffer.position(), buffer) >= 0)) {
+				// fill the buffer
+			}
+			assertFalse(buffer.hasRemaining());
+			return buffer.array();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder       folder = new TemporaryFolder();
+	
+	/** The directory of the store. */
+	private File                 directory;
+	
+	/** The store. */
+	private SegmentResponseStore store;
+	
+	/**
+	 * Opens the store in a new directory; it only commits when asked to.
+	 *
+	 * @return the store
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private SegmentResponseStore crashable() throws IOException {
+		this.directory = this.folder.newFolder("store");
+		this.store = new SegmentResponseStore(this.directory, SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+		return this.store;
+	}
+	
+	/**
+	 * Opens the store in the directory, which is created by the first call.
+	 *
+	 * @param maxSize
+	 *            the maximum size
+	 * @return the store
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private SegmentResponseStore open(final long maxSize) throws IOException {
+		if (this.directory == null) {
+			this.directory = this.folder.newFolder("store");
+		}
+		this.store = new SegmentResponseStore(this.directory, SEGMENT_SIZE, maxSize);
+		return this.store;
+	}
+	
+	/**
+	 * Closes the store.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		if (this.store != null) {
+			this.store.close();
+		}
+	}
+	
+	/**
+	 * Compaction moves the live records out of a mostly dead segment.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCompaction() throws IOException {
+		final SegmentResponseStore store = open(Long.MAX_VALUE);
+		for (int i = 0; i < 4; ++i) {
+			put(store, key("r" + i), payload(1000, i));
+		}
+		assertEquals(2, store.getSegmentCount());
+		assertTrue(new File(this.directory, "00000001.seg").exists());
+		assertTrue(store.remove(key("r0")));
+		assertTrue(store.remove(key("r1")));
+		assertFalse(store.remove(key("r1")));
+		
+		store.compact();
+		assertFalse(new File(this.directory, "00000001.seg").exists());
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(2, store.getEntryCount());
+		assertArrayEquals(payload(1000, 2), read(store, key("r2")));
+		assertArrayEquals(payload(1000, 3), read(store, key("r3")));
+		assertNull(read(store, key("r0")));
+	}
+	
+	/**
+	 * After a crash the index is restored from the checkpoint and the intact records written after the last commit
+	 * are recovered; without a usable checkpoint the index is rebuilt from the records.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCrashRecovery() throws IOException {
+		final SegmentResponseStore store = crashable();
+		for (int i = 0; i < 5; ++i) {
+			put(store, key("r" + i), payload(100, i));
+		}
+		store.remove(key("r1"));
+		store.commit();
+		put(store, key("r5"), payload(100, 5));
+		store.remove(key("r2"));
+		
+		final File crashed = this.folder.newFolder("crashed");
+		copy(this.directory, crashed);
+		final File rebuilt = this.folder.newFolder("rebuilt");
+		copy(this.directory, rebuilt);
+		Files.write(new File(rebuilt, "index.chk").toPath(), new byte[] { 1, 2, 3 });
+		
+		for (final File directory : new File[] { crashed, rebuilt }) {
+			final SegmentResponseStore recovered = new SegmentResponseStore(directory, SEGMENT_SIZE, Long.MAX_VALUE);
+			try {
+				assertNull(read(recovered, key("r1")));
+				assertArrayEquals(payload(100, 0), read(recovered, key("r0")));
+				assertArrayEquals(payload(100, 4), read(recovered, key("r4")));
+				assertArrayEquals(payload(100, 5), read(recovered, key("r5")));
+				
+				put(recovered, key("r6"), payload(100, 6));
+				assertArrayEquals(payload(100, 6), read(recovered, key("r6")));
+			} finally {
+				recovered.close();
+			}
+		}
+	}
+	
+	/**
+	 * A crash after the index grew past the capacity of the last checkpoint rebuilds the index from the records; once
+	 * a checkpoint has been written after the resize, the grown index is restored.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCrashRecoveryAfterResize() throws IOException {
+		final SegmentResponseStore store = crashable();
+		put(store, key("r0"), payload(8, 0));
+		store.commit();
+		// grows the index beyond its initial capacity
+		for (int i = 1; i < 1000; ++i) {
+			put(store, key("r" + i), payload(8, i));
+		}
+		
+		final File resized = this.folder.newFolder("resized");
+		copy(this.directory, resized);
+		store.commit();
+		put(store, key("r1000"), payload(8, 1000));
+		final File committed = this.folder.newFolder("committed");
+		copy(this.directory, committed);
+		
+		final int[] expected = { 1000, 1001 };
+		final File[] directories = { resized, committed };
+		for (int d = 0; d < directories.length; ++d) {
+			final SegmentResponseStore recovered = new SegmentResponseStore(directories[d], SEGMENT_SIZE, Long.MAX_VALUE);
+			try {
+				assertEquals(expected[d], recovered.getEntryCount());
+				for (int i = 0; i < expected[d]; ++i) {
+					assertArrayEquals(payload(8, i), read(recovered, key("r" + i)));
+				}
+			} finally {
+				recovered.close();
+			}
+		}
+	}
+	
+	/**
+	 * The oldest segments are dropped once the maximum size is exceeded.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testEviction() throws IOException {
+		final SegmentResponseStore store = open(3 * SEGMENT_SIZE);
+		for (int i = 0; i < 20; ++i) {
+			put(store, key("r" + i), payload(1000, i));
+		}
+		assertEquals(3, store.getSegmentCount());
+		assertFalse(store.contains(key("r0")));
+		assertNull(read(store, key("r0")));
+		assertTrue(store.contains(key("r19")));
+		assertArrayEquals(payload(1000, 19), read(store, key("r19")));
+		
+		// the index entries of the evicted records are gone as well
+		int live = 0;
+		for (int i = 0; i < 20; ++i) {
+			if (store.contains(key("r" + i))) {
+				++live;
+			}
+		}
+		assertEquals(live, store.getEntryCount());
+	}
+	
+	/**
+	 * A second store cannot be opened on a directory in use.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testLocked() throws IOException {
+		open(Long.MAX_VALUE);
+		try {
+			new SegmentResponseStore(this.directory, SEGMENT_SIZE, Long.MAX_VALUE).close();
+			throw new AssertionError("Opened a directory in use");
+		} catch (final IOException e) {
+			// expected
+		}
+		
+		this.store.close();
+		open(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Stores, replaces and removes responses.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testPutGetRemove() throws IOException {
+		final SegmentResponseStore store = open(Long.MAX_VALUE);
+		assertNull(read(store, key("a")));
+		assertFalse(store.contains(key("a")));
+		
+		put(store, key("a"), "first".getBytes());
+		put(store, key("b"), new byte[0]);
+		assertTrue(store.contains(key("a")));
+		assertArrayEquals("first".getBytes(), read(store, key("a")));
+		assertArrayEquals(new byte[0], read(store, key("b")));
+		
+		put(store, key("a"), "second".getBytes());
+		assertArrayEquals("second".getBytes(), read(store, key("a")));
+		assertEquals(2, store.getEntryCount());
+		
+		assertTrue(store.remove(key("a")));
+		assertFalse(store.contains(key("a")));
+		assertNull(read(store, key("a")));
+		assertEquals(1, store.getEntryCount());
+	}
+	
+	/**
+	 * Responses survive closing and reopening the store.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testReopen() throws IOException {
+		SegmentResponseStore store = open(Long.MAX_VALUE);
+		for (int i = 0; i < 10; ++i) {
+			put(store, key("r" + i), payload(100 * i, i));
+		}
+		store.remove(key("r3"));
+		put(store, key("r4"), "replaced".getBytes());
+		store.close();
+		
+		store = open(Long.MAX_VALUE);
+		assertEquals(9, store.getEntryCount());
+		assertNull(read(store, key("r3")));
+		assertArrayEquals("replaced".getBytes(), read(store, key("r4")));
+		assertArrayEquals(payload(900, 9), read(store, key("r9")));
+		
+		put(store, key("r10"), "after".getBytes());
+		assertArrayEquals("after".getBytes(), read(store, key("r10")));
+	}
+	
+	/**
+	 * A segment is truncated before the first record whose payload did not make it to the disk.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testTornRecord() throws IOException {
+		final SegmentResponseStore store = crashable();
+		for (int i = 0; i < 3; ++i) {
+			put(store, key("r" + i), payload(100, i));
+		}
+		store.commit();
+		put(store, key("torn"), "payload of the torn record".getBytes());
+		put(store, key("after"), payload(100, 9));
+		
+		final File crashed = this.folder.newFolder("crashed");
+		copy(this.directory, crashed);
+		final File segment = new File(crashed, "00000001.seg");
+		final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(indexOf(segment, "torn record".getBytes()));
+			file.write('T');
+		} finally {
+			file.close();
+		}
+		
+		SegmentResponseStore recovered = new SegmentResponseStore(crashed, SEGMENT_SIZE, Long.MAX_VALUE);
+		try {
+			assertNull(read(recovered, key("torn")));
+			assertNull(read(recovered, key("after")));
+			assertFalse(recovered.contains(key("after")));
+			assertArrayEquals(payload(100, 2), read(recovered, key("r2")));
+			
+			// reuses the space of the lost records, which the index still maps them to
+			put(recovered, key("new"), "new".getBytes());
+			put(recovered, key("new2"), payload(100, 8));
+			assertFalse(recovered.remove(key("after")));
+			put(recovered, key("torn"), "again".getBytes());
+			assertArrayEquals("new".getBytes(), read(recovered, key("new")));
+			assertArrayEquals(payload(100, 8), read(recovered, key("new2")));
+			assertArrayEquals("again".getBytes(), read(recovered, key("torn")));
+		} finally {
+			recovered.close();
+		}
+		
+		recovered = new SegmentResponseStore(crashed, SEGMENT_SIZE, Long.MAX_VALUE);
+		try {
+			assertArrayEquals("new".getBytes(), read(recovered, key("new")));
+			assertArrayEquals(payload(100, 8), read(recovered, key("new2")));
+			assertArrayEquals("again".getBytes(), read(recovered, key("torn")));
+			assertNull(read(recovered, key("after")));
+		} finally {
+			recovered.close();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SocketMetrics}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class SocketMetricsTest {
+	
+	/**
+	 * Tests the cache counters and the hit ratio.
+	 */
+	@Test
+	public void testCache() {
+		final SocketMetrics metrics = new SocketMetrics();
+		assertEquals(0, metrics.getHitRatio(), 0);
+		
+		metrics.recordHit();
+		metrics.recordHit();
+		metrics.recordHit();
+		metrics.recordMiss();
+		metrics.recordCacheBytes(100);
+		metrics.recordCacheBytes(50);
+		metrics.recordUpstreamBytes(30);
+		
+		assertEquals(3, metrics.getHits());
+		assertEquals(1, metrics.getMisses());
+		assertEquals(0.75, metrics.getHitRatio(), 1e-9);
+		assertEquals(150, metrics.getBytesFromCache());
+		assertEquals(30, metrics.getBytesFromUpstream());
+	}
+	
+	/**
+	 * Tests that latencies are recorded in microseconds and reported in milliseconds.
+	 */
+	@Test
+	public void testLatencies() {
+		final SocketMetrics metrics = new SocketMetrics();
+		metrics.recordConnect("a", 2000000);
+		metrics.recordConnect("a", 4000000);
+		metrics.recordFirstByte("a", 6000000);
+		
+		assertEquals(3, metrics.getConnectLatencyMean(), 1e-9);
+		assertEquals(4, metrics.getConnectLatencyP99(), 1e-9);
+		assertEquals(6, metrics.getTimeToFirstByteMean(), 1e-9);
+		assertEquals(6, metrics.getTimeToFirstByteP99(), 1e-9);
+	}
+	
+	/**
+	 * Tests the lease counters and the reuse rate.
+	 */
+	@Test
+	public void testLeases() {
+		final SocketMetrics metrics = new SocketMetrics();
+		assertEquals(0, metrics.getReuseRate(), 0);
+		
+		metrics.recordLease(false);
+		metrics.recordLease(true);
+		metrics.recordLease(true);
+		metrics.recordLease(true);
+		
+		assertEquals(4, metrics.getLeases());
+		assertEquals(0.75, metrics.getReuseRate(), 1e-9);
+	}
+	
+	/**
+	 * Tests that the metrics are readable through the platform MBean server.
+	 *
+	 * @throws JMException
+	 *             the JMX exception
+	 */
+	@Test
+	public void testRegister() throws JMException {
+		final SocketMetrics metrics = new SocketMetrics();
+		metrics.recordHit();
+		
+		final ObjectName name = metrics.register("SocketMetricsTest");
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertEquals(SocketMetrics.DOMAIN, name.getDomain());
+			assertEquals(1L, server.getAttribute(name, "Hits"));
+			server.invoke(name, "reset", null, null);
+			assertEquals(0, metrics.getHits());
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+	
+	/**
+	 * Tests that reset clears counters, latencies and hosts.
+	 */
+	@Test
+	public void testReset() {
+		final SocketMetrics metrics = new SocketMetrics();
+		metrics.recordHit();
+		metrics.recordMiss();
+		metrics.recordLease(true);
+		metrics.recordConnect("a", 1000000);
+		metrics.reset();
+		
+		final MetricsSnapshot snapshot = metrics.snapshot();
+		assertEquals(0, snapshot.getHits());
+		assertEquals(0, snapshot.getMisses());
+		assertEquals(0, snapshot.getLeases());
+		assertEquals(0, snapshot.getConnectLatency().getCount());
+		assertTrue(snapshot.getHosts().isEmpty());
+	}
+	
+	/**
+	 * Tests that the slowest hosts are ordered by their time to first byte.
+	 */
+	@Test
+	public void testSlowestHosts() {
+		final SocketMetrics metrics = new SocketMetrics();
+		metrics.recordFirstByte("fast", 1000000);
+		metrics.recordFirstByte("slow", 100000000);
+		metrics.recordFirstByte("medium", 10000000);
+		
+		final String[] slowest = metrics.getSlowestHosts();
+		assertEquals(3, slowest.length);
+		final String[] names = new String[slowest.length];
+		for (int i = 0; i < slowest.length; ++i) {
+			names[i] = slowest[i].substring(0, slowest[i].indexOf(':'));
+		}
+		assertArrayEquals(new String[] { "slow", "medium", "fast" }, names);
+	}
+	
+	/**
+	 * Tests that a snapshot is not affected by later records.
+	 */
+	@Test
+	public void testSnapshot() {
+		final SocketMetrics metrics = new SocketMetrics();
+		metrics.recordHit();
+		metrics.recordLease(true);
+		metrics.recordConnect("a", 1000000);
+		metrics.recordFirstByte("a", 2000000);
+		
+		final MetricsSnapshot snapshot = metrics.snapshot();
+		metrics.recordHit();
+		metrics.recordMiss();
+		metrics.recordConnect("a", 1000000);
+		metrics.recordConnect("b", 1000000);
+		
+		assertEquals(1, snapshot.getHits());
+		assertEquals(0, snapshot.getMisses());
+		assertEquals(1, snapshot.getHitRatio(), 0);
+		assertEquals(1, snapshot.getLeases());
+		assertEquals(1, snapshot.getReuses());
+		assertEquals(1, snapshot.getConnectLatency().getCount());
+		assertEquals(1, snapshot.getTimeToFirstByte().getCount());
+		assertEquals(1, snapshot.getHosts().size());
+		assertEquals(1, snapshot.getHosts().get("a").getConnectLatency().getCount());
+		assertEquals(2000, snapshot.getHosts().get("a").getTimeToFirstByte().getMax());
+	}
+}
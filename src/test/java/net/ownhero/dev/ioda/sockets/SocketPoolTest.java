@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests leasing and releasing connections of a {@link SocketPool} to a {@link LoopbackServer}.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class SocketPoolTest {
+	
+	/** The server. */
+	private LoopbackServer server;
+	
+	/** The key of the server. */
+	private PoolKey        key;
+	
+	/** The pool. */
+	private SocketPool     pool;
+	
+	/**
+	 * Creates the pool.
+	 *
+	 * @param maxPerHost
+	 *            the maximum number of connections per key
+	 * @param idleTimeout
+	 *            the idle timeout
+	 * @param leaseTimeout
+	 *            the lease timeout
+	 * @return the pool
+	 */
+	private SocketPool pool(final int maxPerHost,
+	                        final long idleTimeout,
+	                        final long leaseTimeout) {
+		this.pool = new SocketPool(maxPerHost, idleTimeout, leaseTimeout, 1000);
+		return this.pool;
+	}
+	
+	/**
+	 * Reads the response of the server until it closes the connection, leaving a stale connection behind.
+	 *
+	 * @param socket
+	 *            the socket
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void readToClose(final PooledSocket socket) throws IOException {
+		socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(LoopbackServer.ASCII));
+		final InputStream in = socket.getInputStream();
+		while (in.read() >= 0) {
+			// read until the server closes the connection
+		}
+	}
+	
+	/**
+	 * Starts the server.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.server = new LoopbackServer(LoopbackServer.fixed("HTTP/1.1 204 No Content\r\n\r\n"), false);
+		this.key = new PoolKey(this.server.getAddress(), this.server.getPort(), null);
+	}
+	
+	/**
+	 * Closes the pool and stops the server.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@After
+	public void tearDown() throws IOException {
+		if (this.pool != null) {
+			this.pool.close();
+		}
+		this.server.close();
+	}
+	
+	/**
+	 * Connections whose buffer sizes have been changed are not pooled again.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBufferSize() throws Exception {
+		final SocketPool pool = pool(2, 10000, 1000);
+		final PooledSocket socket = pool.lease(this.key);
+		socket.setReceiveBufferSize(4096);
+		socket.close();
+		assertEquals(0, pool.getLeasedCount());
+		assertEquals(0, pool.getIdleCount());
+		
+		pool.lease(this.key).close();
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(2, this.server.awaitConnections(2));
+	}
+	
+	/**
+	 * Closing a socket from several threads at once releases the connection once.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConcurrentClose() throws Exception {
+		final SocketPool pool = pool(2, 10000, 1000);
+		for (int i = 0; i < 20; ++i) {
+			final PooledSocket socket = pool.lease(this.key);
+			final CountDownLatch start = new CountDownLatch(1);
+			final Thread[] closers = new Thread[4];
+			for (int j = 0; j < closers.length; ++j) {
+				closers[j] = new Thread() {
+					
+					@Override
+					public void run() {
+						try {
+							start.await();
+							socket.close();
+						} catch (final Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				closers[j].start();
+			}
+			start.countDown();
+			for (final Thread closer : closers) {
+				closer.join();
+			}
+			assertEquals(0, pool.getLeasedCount());
+			assertEquals(1, pool.getIdleCount());
+		}
+		assertEquals(1, this.server.awaitConnections(1));
+	}
+	
+	/**
+	 * Discarded connections are closed instead of being returned.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDiscard() throws Exception {
+		final SocketPool pool = pool(2, 10000, 1000);
+		final PooledSocket socket = pool.lease(this.key);
+		socket.discard();
+		assertTrue(socket.isClosed());
+		assertEquals(0, pool.getLeasedCount());
+		assertEquals(0, pool.getIdleCount());
+		
+		pool.lease(this.key).close();
+		assertEquals(2, this.server.awaitConnections(2));
+	}
+	
+	/**
+	 * Connections idle longer than the timeout are evicted.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testIdleEviction() throws Exception {
+		final SocketPool pool = pool(2, 50, 1000);
+		pool.lease(this.key).close();
+		assertEquals(1, pool.getIdleCount());
+		
+		Thread.sleep(100);
+		pool.evictIdle();
+		assertEquals(0, pool.getIdleCount());
+		
+		pool.lease(this.key).close();
+		assertEquals(2, this.server.awaitConnections(2));
+	}
+	
+	/**
+	 * Released connections are reused.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLeaseAndRelease() throws Exception {
+		final SocketPool pool = pool(2, 10000, 1000);
+		final PooledSocket first = pool.lease(this.key);
+		assertEquals(1, pool.getLeasedCount());
+		final int localPort = first.getLocalPort();
+		first.close();
+		first.close();
+		assertTrue(first.isClosed());
+		assertEquals(0, pool.getLeasedCount());
+		assertEquals(1, pool.getIdleCount());
+		
+		final PooledSocket second = pool.lease(this.key);
+		assertFalse(second.isClosed());
+		assertEquals(localPort, second.getLocalPort());
+		assertEquals(0, pool.getIdleCount());
+		second.close();
+		assertEquals(1, this.server.awaitConnections(1));
+	}
+	
+	/**
+	 * Callers exceeding the limit wait for a connection to be released and time out otherwise.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMaxPerHost() throws Exception {
+		final SocketPool pool = pool(1, 10000, 200);
+		final PooledSocket first = pool.lease(this.key);
+		try {
+			pool.lease(this.key);
+			throw new AssertionError("Leased more connections than allowed");
+		} catch (final SocketTimeoutException e) {
+			// expected
+		}
+		
+		final Thread releaser = new Thread() {
+			
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					first.close();
+				} catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		releaser.start();
+		final PooledSocket second = pool.lease(this.key);
+		releaser.join();
+		assertEquals(1, pool.getLeasedCount());
+		second.close();
+		assertEquals(1, this.server.awaitConnections(1));
+	}
+	
+	/**
+	 * Options changed during a lease are reset before the connection is leased again.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testOptionsRestored() throws Exception {
+		final SocketPool pool = pool(2, 10000, 1000);
+		final PooledSocket first = pool.lease(this.key);
+		final boolean keepAlive = first.getKeepAlive();
+		final int soLinger = first.getSoLinger();
+		final int soTimeout = first.getSoTimeout();
+		final boolean tcpNoDelay = first.getTcpNoDelay();
+		final int localPort = first.getLocalPort();
+		first.setKeepAlive(!keepAlive);
+		first.setSoLinger(true, 7);
+		first.setSoTimeout(1234);
+		first.setTcpNoDelay(!tcpNoDelay);
+		first.close();
+		
+		final PooledSocket second = pool.lease(this.key);
+		try {
+			assertEquals(localPort, second.getLocalPort());
+			assertEquals(keepAlive, second.getKeepAlive());
+			assertEquals(soLinger, second.getSoLinger());
+			assertEquals(soTimeout, second.getSoTimeout());
+			assertEquals(tcpNoDelay, second.getTcpNoDelay());
+		} finally {
+			second.close();
+		}
+		assertEquals(1, this.server.awaitConnections(1));
+	}
+	
+	/**
+	 * Connections the server closed are not handed out again.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRemoteClose() throws Exception {
+		final SocketPool pool = pool(2, 10000, 1000);
+		final PooledSocket socket = pool.lease(this.key);
+		readToClose(socket);
+		socket.close();
+		
+		pool.lease(this.key).close();
+		assertEquals(2, this.server.awaitConnections(2));
+	}
+	
+	/**
+	 * The slot of a connection the server closed is passed on to a new connection, even if the limit is reached.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRemoteCloseAtLimit() throws Exception {
+		final SocketPool pool = pool(1, 10000, 200);
+		PooledSocket socket = pool.lease(this.key);
+		readToClose(socket);
+		socket.close();
+		pool.lease(this.key).close();
+		
+		socket = pool.lease(this.key);
+		readToClose(socket);
+		socket.close();
+		pool.leaseAsync(this.key).get(1, TimeUnit.SECONDS).close();
+		
+		assertEquals(0, pool.getLeasedCount());
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(3, this.server.awaitConnections(3));
+	}
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright 2012 Kim Herzig, Sascha Just
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package net.ownhero.dev.ioda.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests promotion, demotion and invalidation of the memory tiers of {@link TieredResponseStore} in front of an
+ * in-memory disk tier.
+ *
+ * @author Sascha Just <sascha.just@st.cs.uni-saarland.de>
+ */
+public class TieredResponseStoreTest {
+	
+	/**
+	 * A disk tier keeping responses in memory and counting reads. Reading the payload of a response can be held up.
+	 */
+	private static final class MemoryStore implements ResponseStore {
+		
+		/** The responses. */
+		private final Map<CacheKey, byte[]> responses = new ConcurrentHashMap<CacheKey, byte[]>();
+		
+		/** The number of reads. */
+		private final AtomicInteger         reads     = new AtomicInteger();
+		
+		/** Counted down by a held up read of a payload, <code>null</code> if reads are not held up. */
+		private volatile CountDownLatch     held;
+		
+		/** Releases held up reads. */
+		private volatile CountDownLatch     release;
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.ResponseStore#contains(net.ownhero.dev.ioda.sockets.CacheKey)
+		 */
+		@Override
+		public boolean contains(final CacheKey key) {
+			return this.responses.containsKey(key);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.ResponseStore#get(net.ownhero.dev.ioda.sockets.CacheKey)
+		 */
+		@Override
+		public CachedResponse get(final CacheKey key) {
+			this.reads.incrementAndGet();
+			final byte[] response = this.responses.get(key);
+			if (response == null) {
+				return null;
+			}
+			
+			final CachedResponse buffer = new BufferResponse(ByteBuffer.wrap(response));
+			final CountDownLatch latch = this.held;
+			if (latch == null) {
+				return buffer;
+			}
+			return new CachedResponse() {
+				
+				@Override
+				public void close() throws IOException {
+					buffer.close();
+				}
+				
+				@Override
+				public long getSize() {
+					return buffer.getSize();
+				}
+				
+				@Override
+				public int read(final long position,
+				                final ByteBuffer target) throws IOException {
+					latch.countDown();
+					try {
+						MemoryStore.this.release.await();
+					} catch (final InterruptedException e) {
+						throw new IOException(e);
+					}
+					return buffer.read(position, target);
+				}
+				
+				@Override
+				public long transferTo(final long position,
+				                       final long count,
+				                       final WritableByteChannel target) throws IOException {
+					return buffer.transferTo(position, count, target);
+				}
+			};
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.ResponseStore#put(net.ownhero.dev.ioda.sockets.CacheKey,
+		 * java.nio.channels.ReadableByteChannel, long)
+		 */
+		@Override
+		public void put(final CacheKey key,
+		                final ReadableByteChannel payload,
+		                final long length) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+			while (buffer.hasRemaining() && (payload.read(buffer) >= 0)) {
+				// fill
+			}
+			this.responses.put(key, buffer.array());
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see net.ownhero.dev.ioda.sockets.ResponseStore#remove(net.ownhero.dev.ioda.sockets.CacheKey)
+		 */
+		@Override
+		public boolean remove(final CacheKey key) {
+			return this.responses.remove(key) != null;
+		}
+	}
+	
+	/** The charset of the payloads. */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	/**
+	 * Creates a key.
+	 *
+	 * @param path
+	 *            the path requested
+	 * @return the key
+	 */
+	private static CacheKey key(final String path) {
+		return CacheKey.create("example.org", 80, ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes(ASCII)));
+	}
+	
+	/**
+	 * Creates a payload of the given size.
+	 *
+	 * @param size
+	 *            the size
+	 * @param fill
+	 *            the byte to fill it with
+	 * @return the payload
+	 */
+	private static byte[] payload(final int size,
+	                              final char fill) {
+		final byte[] payload = new byte[size];
+		Arrays.fill(payload, (byte) fill);
+		return payload;
+	}
+	
+	/**
+	 * Stores a payload.
+	 *
+	 * @param store
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @param payload
+	 *            the payload
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void put(final ResponseStore store,
+	                        final CacheKey key,
+	                        final byte[] payload) throws IOException {
+		store.put(key, Channels.newChannel(new ByteArrayInputStream(payload)), payload.length);
+	}
+	
+	/**
+	 * Reads a response completely.
+	 *
+	 * @param store
+	 *            the store
+	 * @param key
+	 *            the key
+	 * @return the payload or <code>null</code> if the store holds no response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] read(final ResponseStore store,
+	                           final CacheKey key) throws IOException {
+		final CachedResponse response = store.get(key);
+		if (response == null) {
+			return null;
+		}
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate((int) response.getSize());
+			while (buffer.hasRemaining() && (response.read(buffer.position(), buffer) >= 0)) {
+				// fill
+			}
+			return buffer.array();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Responses evicted from the heap tier move to the off-heap tier and back to the heap once they are hit again.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testDemotion() throws IOException {
+		final MemoryStore disk = new MemoryStore();
+		final TieredResponseStore store = new TieredResponseStore(disk, 1000, 10000);
+		put(store, key("/a"), payload(600, 'a'));
+		put(store, key("/b"), payload(600, 'b'));
+		
+		for (int i = 0; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/a"));
+		}
+		for (int i = 0; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/b"));
+		}
+		assertEquals(1, store.getHeapEntryCount());
+		assertEquals(1, store.getOffHeapEntryCount());
+		
+		// a is off-heap now and swaps places with b
+		assertEquals(Arrays.toString(payload(600, 'a')), Arrays.toString(read(store, key("/a"))));
+		assertEquals(600, store.getHeapSize());
+		assertEquals(600, store.getOffHeapSize());
+		assertEquals(2 * TieredResponseStore.PROMOTION_THRESHOLD, disk.reads.get());
+	}
+	
+	/**
+	 * Responses too large for the heap tier are promoted to the off-heap tier.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testOffHeap() throws IOException {
+		final MemoryStore disk = new MemoryStore();
+		final TieredResponseStore store = new TieredResponseStore(disk);
+		final byte[] payload = payload(TieredResponseStore.HEAP_ENTRY_LIMIT + 1, 'x');
+		put(store, key("/large"), payload);
+		
+		for (int i = 0; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/large"));
+		}
+		assertEquals(0, store.getHeapEntryCount());
+		assertEquals(1, store.getOffHeapEntryCount());
+		assertEquals(payload.length, store.getOffHeapSize());
+	}
+	
+	/**
+	 * A response is promoted into memory after {@link TieredResponseStore#PROMOTION_THRESHOLD} reads and served from
+	 * memory afterwards.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testPromotion() throws IOException {
+		final MemoryStore disk = new MemoryStore();
+		final TieredResponseStore store = new TieredResponseStore(disk);
+		put(store, key("/"), "hello".getBytes(ASCII));
+		
+		for (int i = 1; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/"));
+			assertEquals(0, store.getHeapEntryCount());
+		}
+		read(store, key("/"));
+		assertEquals(1, store.getHeapEntryCount());
+		
+		assertEquals("hello", new String(read(store, key("/")), ASCII));
+		assertEquals(TieredResponseStore.PROMOTION_THRESHOLD, disk.reads.get());
+	}
+	
+	/**
+	 * Writing or removing a response drops it from memory.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testPutAndRemove() throws IOException {
+		final TieredResponseStore store = new TieredResponseStore(new MemoryStore());
+		put(store, key("/"), "old".getBytes(ASCII));
+		for (int i = 0; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/"));
+		}
+		assertEquals(1, store.getHeapEntryCount());
+		
+		put(store, key("/"), "new".getBytes(ASCII));
+		assertEquals(0, store.getHeapEntryCount());
+		assertEquals("new", new String(read(store, key("/")), ASCII));
+		
+		for (int i = 0; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/"));
+		}
+		store.remove(key("/"));
+		assertEquals(0, store.getHeapEntryCount());
+		assertFalse(store.contains(key("/")));
+		assertNull(read(store, key("/")));
+	}
+	
+	/**
+	 * A read that promotes the response while a write replaces it does not put the old response back into memory.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRacingPut() throws Exception {
+		final MemoryStore disk = new MemoryStore();
+		final TieredResponseStore store = new TieredResponseStore(disk);
+		put(store, key("/"), "old".getBytes(ASCII));
+		for (int i = 1; i < TieredResponseStore.PROMOTION_THRESHOLD; ++i) {
+			read(store, key("/"));
+		}
+		
+		// the next read promotes the response, but the write clears the memory tiers while it is loaded
+		disk.held = new CountDownLatch(1);
+		disk.release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<byte[]> racing = executor.submit(new Callable<byte[]>() {
+				
+				@Override
+				public byte[] call() throws Exception {
+					return read(store, key("/"));
+				}
+			});
+			disk.held.await(5, TimeUnit.SECONDS);
+			disk.held = null;
+			put(store, key("/"), "new".getBytes(ASCII));
+			disk.release.countDown();
+			
+			assertEquals("old", new String(racing.get(5, TimeUnit.SECONDS), ASCII));
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		assertEquals(0, store.getHeapEntryCount());
+		assertEquals("new", new String(read(store, key("/")), ASCII));
+	}
+}